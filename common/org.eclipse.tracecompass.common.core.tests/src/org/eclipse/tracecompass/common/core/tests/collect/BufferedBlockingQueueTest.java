@@ -119,6 +119,28 @@ public class BufferedBlockingQueueTest {
         assertEquals(string, sb.toString());
     }
 
+    /**
+     * Test that {@link BufferedBlockingQueue#blockingPeek()} returns the next
+     * element without removing it, across input buffers.
+     */
+    @Test
+    public void testBlockingPeek() {
+        String string = testString.substring(0, 40);
+        for (char elem : string.toCharArray()) {
+            charQueue.put(elem);
+        }
+        charQueue.flushInputBuffer();
+
+        StringBuilder sb = new StringBuilder();
+        while (!charQueue.isEmpty()) {
+            Character next = charQueue.blockingPeek();
+            assertTrue(Iterables.contains(charQueue, next));
+            assertEquals(next, charQueue.take());
+            sb.append(next);
+        }
+        assertEquals(string, sb.toString());
+    }
+
     /**
      * Test the state of the {@link BufferedBlockingQueue#isEmpty()} method at
      * various moments.
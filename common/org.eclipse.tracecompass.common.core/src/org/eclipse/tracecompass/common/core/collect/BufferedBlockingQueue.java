@@ -23,8 +23,10 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.internal.common.core.Activator;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 
@@ -52,8 +54,11 @@ public class BufferedBlockingQueue<T> implements Iterable<T> {
     private final Lock fOutputLock = new ReentrantLock();
     private final int fChunkSize;
 
-    private Deque<T> fInputBuffer;
-    private Deque<T> fOutputBuffer;
+    /*
+     * Volatile, since the iterators read them without taking the locks.
+     */
+    private volatile Deque<T> fInputBuffer;
+    private volatile Deque<T> fOutputBuffer;
 
     /*
      * ConcurrentLinkedDeque's size() method does not run in constant time.
@@ -145,14 +150,7 @@ public class BufferedBlockingQueue<T> implements Iterable<T> {
     public T take() {
         fOutputLock.lock();
         try {
-            if (fOutputBuffer.isEmpty()) {
-                /*
-                 * Our read buffer is empty, take the next buffer in the queue.
-                 * This call will block if the inner queue is empty.
-                 */
-                fOutputBuffer = checkNotNull(fInnerQueue.take());
-            }
-            return checkNotNull(fOutputBuffer.removeLast());
+            return checkNotNull(nextOutputBuffer().removeLast());
         } catch (InterruptedException e) {
             Activator.instance().logError("Buffered queue interrupted", e); //$NON-NLS-1$
             throw new IllegalStateException();
@@ -161,6 +159,51 @@ public class BufferedBlockingQueue<T> implements Iterable<T> {
         }
     }
 
+    /**
+     * Retrieve the element that the next call to {@link #take} will return,
+     * without removing it from the queue.
+     *
+     * If the queue is empty, this call will block until an element is inserted.
+     * A single consumer can use it to process an element before taking it, so
+     * that the element remains visible to the iterators until it is processed.
+     *
+     * @return The next element of the queue. It is not removed from the queue.
+     * @since 1.1
+     */
+    public T blockingPeek() {
+        fOutputLock.lock();
+        try {
+            return checkNotNull(nextOutputBuffer().peekLast());
+        } catch (InterruptedException e) {
+            Activator.instance().logError("Buffered queue interrupted", e); //$NON-NLS-1$
+            throw new IllegalStateException();
+        } finally {
+            fOutputLock.unlock();
+        }
+    }
+
+    /* To be called with fOutputLock held */
+    private Deque<T> nextOutputBuffer() throws InterruptedException {
+        if (fOutputBuffer.isEmpty()) {
+            /*
+             * Our read buffer is empty, take the next buffer in the queue.
+             * This call will block if the inner queue is empty.
+             *
+             * If there is one already, it is made the output buffer before
+             * it is removed from the queue, so that an iterator going
+             * through the queue then the output buffer cannot miss it.
+             */
+            Deque<T> next = fInnerQueue.peek();
+            if (next != null) {
+                fOutputBuffer = next;
+                fInnerQueue.remove();
+            } else {
+                fOutputBuffer = checkNotNull(fInnerQueue.take());
+            }
+        }
+        return fOutputBuffer;
+    }
+
     /**
      * Does the queue contain at least one element?
      *
@@ -201,7 +244,25 @@ public class BufferedBlockingQueue<T> implements Iterable<T> {
 
         Iterator<T> inputIterator = fInputBuffer.iterator();
         Iterator<T> queueIterator = Iterables.concat(fInnerQueue).iterator();
-        Iterator<T> outputIterator = fOutputBuffer.iterator();
+
+        /*
+         * The output buffer is only looked up once we are done with the inner
+         * queue: a chunk that was taken out of the queue in the meantime is
+         * then the current output buffer.
+         */
+        Iterator<T> outputIterator = new AbstractIterator<T>() {
+            private @Nullable Iterator<T> fIterator = null;
+
+            @Override
+            protected @Nullable T computeNext() {
+                Iterator<T> iterator = fIterator;
+                if (iterator == null) {
+                    iterator = fOutputBuffer.iterator();
+                    fIterator = iterator;
+                }
+                return (iterator.hasNext() ? iterator.next() : endOfData());
+            }
+        };
 
         return checkNotNull(Iterators.concat(inputIterator, queueIterator, outputIterator));
     }
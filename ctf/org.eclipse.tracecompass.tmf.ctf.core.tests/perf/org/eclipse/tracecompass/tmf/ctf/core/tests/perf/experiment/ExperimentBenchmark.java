@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2014 Ericsson
+ * Copyright (c) 2014, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -41,11 +41,13 @@ import org.junit.Test;
 public class ExperimentBenchmark {
 
     private static final String TEST_ID = "org.eclipse.linuxtools#Experiment benchmark#";
+    private static final String TEST_ID_PREFETCH = "org.eclipse.linuxtools#Experiment benchmark (prefetch)#";
     private static final int MAX_TRACES = 160;
     private static final int BLOCK_SIZE = 100;
     private static final String TRACES_ROOT_PATH = CtfTestTrace.TRACE_EXPERIMENT.getPath();
     private static final int SAMPLE_SIZE_SLOW = 20;
     private static final int SAMPLE_SIZE = 100;
+    private static final int PREFETCH_SIZE = 1000;
 
     private TmfExperimentStub fExperiment;
 
@@ -54,13 +56,27 @@ public class ExperimentBenchmark {
      */
     @Test
     public void benchmarkExperimentSizeRequest() {
+        runBenchmark(TEST_ID, "Experiment Benchmark:", 0, Dimension.CPU_TIME);
+    }
+
+    /**
+     * Run the benchmark, with the traces read ahead by worker threads. The
+     * work is spread on several cores, so the elapsed time is the one that
+     * matters.
+     */
+    @Test
+    public void benchmarkExperimentSizeRequestPrefetch() {
+        runBenchmark(TEST_ID_PREFETCH, "Experiment Benchmark (prefetch):", PREFETCH_SIZE, Dimension.ELAPSED_PROCESS);
+    }
+
+    private void runBenchmark(String testId, String summary, int prefetchSize, Dimension dimension) {
         Performance perf = Performance.getDefault();
 
         for (int numTraces = 1; numTraces < MAX_TRACES; numTraces = (int) (1.6 * (numTraces + 1))) {
-            PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + numTraces + " traces");
-            perf.tagAsSummary(pm, "Experiment Benchmark:" + numTraces + " traces", Dimension.CPU_TIME);
+            PerformanceMeter pm = perf.createPerformanceMeter(testId + numTraces + " traces");
+            perf.tagAsSummary(pm, summary + numTraces + " traces", dimension);
             if ((int) (1.6 * (numTraces + 1)) > MAX_TRACES) {
-                perf.tagAsGlobalSummary(pm, "Experiment Benchmark:" + numTraces + " traces", Dimension.CPU_TIME);
+                perf.tagAsGlobalSummary(pm, summary + numTraces + " traces", dimension);
             }
 
             int sampleSize = SAMPLE_SIZE;
@@ -74,6 +90,7 @@ public class ExperimentBenchmark {
                 InnerEventRequest traceReq[] = new InnerEventRequest[numTraces];
 
                 init(numTraces);
+                fExperiment.setPrefetchSize(prefetchSize);
                 fExperiment.sendRequest(expReq);
                 List<ITmfTrace> traces = fExperiment.getTraces();
                 for (int i = 0; i < numTraces; i++) {
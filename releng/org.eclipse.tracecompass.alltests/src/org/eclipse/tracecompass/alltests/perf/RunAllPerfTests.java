@@ -23,6 +23,8 @@ import org.junit.runners.Suite;
     org.eclipse.tracecompass.ctf.core.tests.perf.AllPerfTests.class,
     org.eclipse.tracecompass.lttng2.kernel.core.tests.perf.AllPerfTests.class,
     org.eclipse.tracecompass.pcap.core.tests.perf.AllPerfTests.class,
+    org.eclipse.tracecompass.segmentstore.core.tests.perf.AllPerfTests.class,
+    org.eclipse.tracecompass.statesystem.core.tests.perf.AllPerfTests.class,
     org.eclipse.tracecompass.tmf.core.tests.perf.AllPerfTests.class,
     org.eclipse.tracecompass.tmf.ctf.core.tests.perf.AllPerfTests.class
 })
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+import org.eclipse.tracecompass.segmentstore.core.file.FileSegmentStore;
+import org.eclipse.tracecompass.segmentstore.core.file.ISegmentCodec;
+import org.eclipse.tracecompass.segmentstore.core.sortedarray.SortedArrayStore;
+import org.eclipse.tracecompass.segmentstore.core.treemap.TreeMapStore;
+import org.junit.Test;
+
+/**
+ * Benchmark of the segment stores, using randomly generated segments. This
+ * measures the time to insert the segments, and the time to run intersection
+ * queries at single positions and over ranges.
+ */
+public class SegmentStoreBenchmark {
+
+    private static final String TEST_SUITE_NAME = "Segment Store";
+    private static final String TEST_ID = "org.eclipse.linuxtools#" + TEST_SUITE_NAME + '#';
+    private static final int LOOP_COUNT = 10;
+
+    private static final int NB_SEGMENTS = 100000;
+    private static final long MAX_START = 100000000L;
+    private static final long MAX_DURATION = 100000L;
+    private static final int NB_QUERIES = 100;
+    private static final long QUERY_RANGE = 1000000L;
+
+    /** Segment of the benchmark, defined by its start and end only */
+    private static final class BasicSegment implements ISegment {
+        private static final long serialVersionUID = 1L;
+        private final long fStart;
+        private final long fEnd;
+
+        public BasicSegment(long start, long end) {
+            fStart = start;
+            fEnd = end;
+        }
+
+        @Override
+        public long getStart() {
+            return fStart;
+        }
+
+        @Override
+        public long getEnd() {
+            return fEnd;
+        }
+
+        @Override
+        public long getLength() {
+            return fEnd - fStart;
+        }
+    }
+
+    private static final ISegmentCodec<ISegment> CODEC = new ISegmentCodec<ISegment>() {
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getSerializedSize(ISegment segment) {
+            return 2 * Long.SIZE / Byte.SIZE;
+        }
+
+        @Override
+        public void write(ISegment segment, ByteBuffer buffer) {
+            buffer.putLong(segment.getStart());
+            buffer.putLong(segment.getEnd());
+        }
+
+        @Override
+        public ISegment read(ByteBuffer buffer) {
+            return new BasicSegment(buffer.getLong(), buffer.getLong());
+        }
+    };
+
+    /**
+     * Benchmark the tree map store
+     */
+    @Test
+    public void testTreeMapStore() {
+        runTest(new IStoreFactory() {
+            @Override
+            public ISegmentStore<ISegment> create() {
+                return new TreeMapStore<>();
+            }
+        }, "TreeMapStore");
+    }
+
+    /**
+     * Benchmark the sorted array store
+     */
+    @Test
+    public void testSortedArrayStore() {
+        runTest(new IStoreFactory() {
+            @Override
+            public ISegmentStore<ISegment> create() {
+                return new SortedArrayStore<>();
+            }
+        }, "SortedArrayStore");
+    }
+
+    /**
+     * Benchmark the file store
+     */
+    @Test
+    public void testFileStore() {
+        runTest(new IStoreFactory() {
+            @Override
+            public ISegmentStore<ISegment> create() {
+                try {
+                    File file = File.createTempFile("SegmentStoreBenchmark", ".seg");
+                    file.deleteOnExit();
+                    return FileSegmentStore.createNew(file, CODEC);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, "FileSegmentStore");
+    }
+
+    /** Creates an empty store for each iteration */
+    private interface IStoreFactory {
+        ISegmentStore<ISegment> create();
+    }
+
+    private static void runTest(IStoreFactory factory, String testName) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter insertMeter = createMeter(perf, testName + ": insertion");
+        PerformanceMeter positionQueryMeter = createMeter(perf, testName + ": position queries");
+        PerformanceMeter rangeQueryMeter = createMeter(perf, testName + ": range queries");
+
+        /* Always use the same segments and query positions */
+        Random random = new Random(1);
+        ISegment[] segments = new ISegment[NB_SEGMENTS];
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            long start = (long) (random.nextDouble() * MAX_START);
+            segments[i] = new BasicSegment(start, start + (long) (random.nextDouble() * MAX_DURATION));
+        }
+        long[] positions = new long[NB_QUERIES];
+        for (int i = 0; i < NB_QUERIES; i++) {
+            positions[i] = (long) (random.nextDouble() * MAX_START);
+        }
+
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            ISegmentStore<ISegment> store = factory.create();
+
+            insertMeter.start();
+            for (ISegment segment : segments) {
+                store.addElement(segment);
+            }
+            insertMeter.stop();
+
+            positionQueryMeter.start();
+            for (long position : positions) {
+                consume(store.getIntersectingElements(position));
+            }
+            positionQueryMeter.stop();
+
+            rangeQueryMeter.start();
+            for (long position : positions) {
+                consume(store.getIntersectingElements(position, position + QUERY_RANGE));
+            }
+            rangeQueryMeter.stop();
+
+            store.dispose();
+        }
+        insertMeter.commit();
+        positionQueryMeter.commit();
+        rangeQueryMeter.commit();
+    }
+
+    /**
+     * Go through the results of a query, the stores are allowed to compute
+     * them lazily.
+     */
+    private static int consume(Iterable<ISegment> segments) {
+        int count = 0;
+        for (ISegment segment : segments) {
+            if (segment != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static PerformanceMeter createMeter(Performance perf, String name) {
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + name);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ": " + name, Dimension.CPU_TIME);
+        return pm;
+    }
+}
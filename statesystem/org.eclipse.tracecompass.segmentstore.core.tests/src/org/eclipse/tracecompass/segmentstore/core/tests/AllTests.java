@@ -12,6 +12,8 @@
 
 package org.eclipse.tracecompass.segmentstore.core.tests;
 
+import org.eclipse.tracecompass.segmentstore.core.tests.file.FileSegmentStoreTest;
+import org.eclipse.tracecompass.segmentstore.core.tests.sortedarray.SortedArrayStoreTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
@@ -20,7 +22,8 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-        // No tests at the moment!
+        FileSegmentStoreTest.class,
+        SortedArrayStoreTest.class
 })
 public class AllTests {
 
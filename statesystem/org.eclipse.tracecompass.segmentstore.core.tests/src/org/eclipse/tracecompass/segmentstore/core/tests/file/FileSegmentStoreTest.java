@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+import org.eclipse.tracecompass.segmentstore.core.file.FileSegmentStore;
+import org.eclipse.tracecompass.segmentstore.core.file.ISegmentCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link FileSegmentStore}, while it is being built and after it is
+ * opened again from its file.
+ */
+public class FileSegmentStoreTest {
+
+    private static final int NB_SEGMENTS = 5000;
+    private static final long MAX_START = 100000;
+    private static final long MAX_DURATION = 2000;
+
+    /** Segment with a name, so that records have different sizes */
+    private static final class NamedSegment implements ISegment {
+        private static final long serialVersionUID = 1L;
+        private final long fStart;
+        private final long fEnd;
+        private final String fName;
+
+        public NamedSegment(long start, long end, String name) {
+            fStart = start;
+            fEnd = end;
+            fName = name;
+        }
+
+        @Override
+        public long getStart() {
+            return fStart;
+        }
+
+        @Override
+        public long getEnd() {
+            return fEnd;
+        }
+
+        @Override
+        public long getLength() {
+            return fEnd - fStart;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NamedSegment)) {
+                return false;
+            }
+            NamedSegment other = (NamedSegment) obj;
+            return fStart == other.fStart && fEnd == other.fEnd && fName.equals(other.fName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (fStart ^ fEnd) + fName.hashCode();
+        }
+    }
+
+    private static final ISegmentCodec<NamedSegment> CODEC = new ISegmentCodec<NamedSegment>() {
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getSerializedSize(NamedSegment segment) {
+            return 2 * Long.SIZE / Byte.SIZE + 4 + segment.fName.length() * 2;
+        }
+
+        @Override
+        public void write(NamedSegment segment, ByteBuffer buffer) {
+            buffer.putLong(segment.fStart);
+            buffer.putLong(segment.fEnd);
+            buffer.putInt(segment.fName.length());
+            for (int i = 0; i < segment.fName.length(); i++) {
+                buffer.putChar(segment.fName.charAt(i));
+            }
+        }
+
+        @Override
+        public NamedSegment read(ByteBuffer buffer) {
+            long start = buffer.getLong();
+            long end = buffer.getLong();
+            char[] name = new char[buffer.getInt()];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = buffer.getChar();
+            }
+            return new NamedSegment(start, end, new String(name));
+        }
+    };
+
+    private File fFile;
+    private FileSegmentStore<NamedSegment> fStore;
+    private List<NamedSegment> fSegments;
+    private Random fRandom;
+
+    /**
+     * Create an empty store
+     *
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        fFile = File.createTempFile("FileSegmentStoreTest", ".seg");
+        fStore = FileSegmentStore.createNew(fFile, CODEC);
+        fSegments = new ArrayList<>();
+        fRandom = new Random(42);
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fStore.dispose();
+        fFile.delete();
+    }
+
+    /**
+     * Test queries while the store is being built, with segments added
+     * between them
+     */
+    @Test
+    public void testQueriesDuringBuild() {
+        addSegments(NB_SEGMENTS / 2);
+        checkStore(fStore);
+        addSegments(NB_SEGMENTS / 2);
+        checkStore(fStore);
+    }
+
+    /**
+     * Test opening the file of a finished store
+     *
+     * @throws IOException
+     *             If the file cannot be opened
+     */
+    @Test
+    public void testReopen() throws IOException {
+        addSegments(NB_SEGMENTS);
+        fStore.finishedBuilding();
+        checkStore(fStore);
+        fStore.dispose();
+
+        fStore = FileSegmentStore.openExisting(fFile, CODEC);
+        checkStore(fStore);
+    }
+
+    /**
+     * Test that an unfinished file cannot be opened
+     */
+    @Test
+    public void testReopenUnfinished() {
+        addSegments(10);
+        checkStore(fStore);
+        try {
+            FileSegmentStore<NamedSegment> store = FileSegmentStore.openExisting(fFile, CODEC);
+            store.dispose();
+            fail();
+        } catch (IOException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test a record larger than the write buffer
+     */
+    @Test
+    public void testLargeRecord() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        NamedSegment large = new NamedSegment(10, 20, sb.toString());
+        addSegments(100);
+        fStore.addElement(large);
+        fSegments.add(large);
+        checkStore(fStore);
+    }
+
+    private void addSegments(int count) {
+        for (int i = 0; i < count; i++) {
+            long start = (long) (fRandom.nextDouble() * MAX_START);
+            long end = start + (long) (fRandom.nextDouble() * MAX_DURATION);
+            NamedSegment segment = new NamedSegment(start, end, "segment" + fSegments.size());
+            fStore.addElement(segment);
+            fSegments.add(segment);
+        }
+    }
+
+    private void checkStore(ISegmentStore<NamedSegment> store) {
+        assertEquals(fSegments.size(), store.getNbElements());
+        long previous = Long.MIN_VALUE;
+        int count = 0;
+        for (NamedSegment segment : store) {
+            assertEquals(segment, store.getElementAtIndex(count));
+            assertTrue(segment.getStart() >= previous);
+            previous = segment.getStart();
+            count++;
+        }
+        assertEquals(fSegments.size(), count);
+
+        for (long position = -10; position < MAX_START + 2 * MAX_DURATION; position += 997) {
+            checkQuery(store, position, position + (position % 3) * MAX_DURATION);
+        }
+        checkQuery(store, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private void checkQuery(ISegmentStore<NamedSegment> store, long start, long end) {
+        List<NamedSegment> expected = new ArrayList<>();
+        for (NamedSegment segment : fSegments) {
+            if (segment.getStart() <= end && segment.getEnd() >= start) {
+                expected.add(segment);
+            }
+        }
+        List<NamedSegment> actual = new ArrayList<>();
+        for (NamedSegment segment : store.getIntersectingElements(start, end)) {
+            actual.add(segment);
+        }
+        assertEquals(expected.size(), actual.size());
+        assertTrue(actual.containsAll(expected));
+    }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.sortedarray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.sortedarray.SortedArrayStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link SortedArrayStore}, by comparing its results with those of a
+ * linear search.
+ */
+public class SortedArrayStoreTest {
+
+    private static final int NB_SEGMENTS = 5000;
+    private static final long MAX_START = 100000;
+    private static final long MAX_DURATION = 2000;
+
+    private static final class TestSegment implements ISegment {
+        private static final long serialVersionUID = 1L;
+        private final long fStart;
+        private final long fEnd;
+
+        public TestSegment(long start, long end) {
+            fStart = start;
+            fEnd = end;
+        }
+
+        @Override
+        public long getStart() {
+            return fStart;
+        }
+
+        @Override
+        public long getEnd() {
+            return fEnd;
+        }
+
+        @Override
+        public long getLength() {
+            return fEnd - fStart;
+        }
+    }
+
+    private SortedArrayStore<ISegment> fStore;
+    private List<ISegment> fSegments;
+
+    /**
+     * Fill the store with random segments
+     */
+    @Before
+    public void setUp() {
+        fStore = new SortedArrayStore<>();
+        fSegments = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            long start = (long) (random.nextDouble() * MAX_START);
+            /* Add some identical segments, and some very long ones */
+            long duration = (i % 100 == 0 ? MAX_START / 2 : (long) (random.nextDouble() * MAX_DURATION));
+            ISegment segment = new TestSegment(start, start + duration);
+            fSegments.add(segment);
+            fStore.addElement(segment);
+            if (i % 500 == 0) {
+                fSegments.add(segment);
+                fStore.addElement(segment);
+            }
+        }
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fStore.dispose();
+    }
+
+    /**
+     * Test that the elements are indexed by start time
+     */
+    @Test
+    public void testIndex() {
+        assertEquals(fSegments.size(), fStore.getNbElements());
+        long previous = Long.MIN_VALUE;
+        int count = 0;
+        for (ISegment segment : fStore) {
+            assertSame(segment, fStore.getElementAtIndex(count));
+            assertTrue(segment.getStart() >= previous);
+            previous = segment.getStart();
+            count++;
+        }
+        assertEquals(fSegments.size(), count);
+    }
+
+    /**
+     * Test queries at single positions, including before and after all the
+     * segments
+     */
+    @Test
+    public void testPositionQueries() {
+        for (long position = -10; position < MAX_START + 2 * MAX_DURATION; position += 997) {
+            checkQuery(position, position);
+        }
+        checkQuery(Long.MIN_VALUE, Long.MIN_VALUE);
+        checkQuery(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Test queries over ranges of different lengths
+     */
+    @Test
+    public void testRangeQueries() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            long start = (long) (random.nextDouble() * MAX_START);
+            long end = start + (long) (random.nextDouble() * MAX_DURATION * (i % 10));
+            checkQuery(start, end);
+        }
+        checkQuery(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Test adding elements after the store was queried
+     */
+    @Test
+    public void testAddAfterQuery() {
+        checkQuery(MAX_START / 2, MAX_START / 2);
+        ISegment first = new TestSegment(-5, -1);
+        ISegment last = new TestSegment(MAX_START * 2, MAX_START * 3);
+        fSegments.add(first);
+        fSegments.add(last);
+        fStore.addElement(last);
+        fStore.addElement(first);
+
+        assertEquals(fSegments.size(), fStore.getNbElements());
+        assertSame(first, fStore.getElementAtIndex(0));
+        assertSame(last, fStore.getElementAtIndex(fSegments.size() - 1));
+        checkQuery(-3, -3);
+        checkQuery(MAX_START * 2, MAX_START * 2);
+        checkQuery(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Test queries while a few elements are pending, which are scanned instead
+     * of being merged into the arrays
+     */
+    @Test
+    public void testQueryWithPendingElements() {
+        checkQuery(MAX_START / 2, MAX_START / 2);
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            long start = (long) (random.nextDouble() * MAX_START);
+            ISegment segment = new TestSegment(start, start + (long) (random.nextDouble() * MAX_DURATION));
+            fSegments.add(segment);
+            fStore.addElement(segment);
+        }
+
+        assertEquals(fSegments.size(), fStore.getNbElements());
+        for (long position = -10; position < MAX_START + 2 * MAX_DURATION; position += 997) {
+            checkQuery(position, position);
+        }
+        checkQuery(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Test an empty store
+     */
+    @Test
+    public void testEmpty() {
+        SortedArrayStore<ISegment> store = new SortedArrayStore<>();
+        assertEquals(0, store.getNbElements());
+        assertFalse(store.iterator().hasNext());
+        assertFalse(store.getIntersectingElements(0).iterator().hasNext());
+    }
+
+    private void checkQuery(long start, long end) {
+        List<ISegment> expected = new ArrayList<>();
+        for (ISegment segment : fSegments) {
+            if (segment.getStart() <= end && segment.getEnd() >= start) {
+                expected.add(segment);
+            }
+        }
+        List<ISegment> actual = new ArrayList<>();
+        for (ISegment segment : fStore.getIntersectingElements(start, end)) {
+            assertTrue(segment.getStart() <= end && segment.getEnd() >= start);
+            if (!actual.isEmpty()) {
+                assertTrue(actual.get(actual.size() - 1).getStart() <= segment.getStart());
+            }
+            actual.add(segment);
+        }
+        assertEquals(expected.size(), actual.size());
+        assertTrue(actual.containsAll(expected));
+    }
+}
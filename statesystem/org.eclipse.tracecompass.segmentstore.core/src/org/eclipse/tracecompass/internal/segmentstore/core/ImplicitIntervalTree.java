@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.segmentstore.core;
+
+import java.util.Arrays;
+
+/**
+ * Interval tree laid over an array of segments sorted by start time, without
+ * any extra pointers.
+ *
+ * The array itself is the tree: the element at an index whose lowest k bits
+ * are set, and the bit after them is not, is a node at level k, whose children
+ * are at index +/- 2^(k-1). Every node also stores the maximum end time of its
+ * subtree, which lets queries skip whole subtrees of segments that end before
+ * the target position. Queries then take O(log n + k) time, for k results.
+ *
+ * Subclasses decide where the start, end and maximum end times are stored, for
+ * example in arrays or in a file.
+ */
+public abstract class ImplicitIntervalTree {
+
+    /** Levels of the tree under which the nodes are simply scanned */
+    private static final int SCAN_LEVEL = 3;
+
+    /** Deep enough for the levels of any tree of 2^63 elements */
+    private static final int MAX_STACK_SIZE = 128;
+
+    /**
+     * Get the number of elements in the tree.
+     *
+     * @return The number of elements
+     */
+    protected abstract long size();
+
+    /**
+     * Get the start time of an element.
+     *
+     * @param index
+     *            The index of the element
+     * @return The start time
+     */
+    protected abstract long getStart(long index);
+
+    /**
+     * Get the end time of an element.
+     *
+     * @param index
+     *            The index of the element
+     * @return The end time
+     */
+    protected abstract long getEnd(long index);
+
+    /**
+     * Get the maximum end time of the subtree rooted at an element.
+     *
+     * @param index
+     *            The index of the element
+     * @return The maximum end time
+     */
+    protected abstract long getMaxEnd(long index);
+
+    /**
+     * Set the maximum end time of the subtree rooted at an element.
+     *
+     * @param index
+     *            The index of the element
+     * @param maxEnd
+     *            The maximum end time
+     */
+    protected abstract void setMaxEnd(long index, long maxEnd);
+
+    /**
+     * Compute the maximum end times, bottom-up. This must be called once the
+     * elements are sorted, before doing queries.
+     *
+     * Nodes can have a right child past the end of the array: that child then
+     * stands for the last elements, whose maximum is tracked on the side.
+     */
+    protected void buildIndex() {
+        long n = size();
+        if (n == 0) {
+            return;
+        }
+        long lastMax = 0;
+        long lastIndex = 0;
+        for (long i = 0; i < n; i += 2) {
+            long end = getEnd(i);
+            setMaxEnd(i, end);
+            lastIndex = i;
+            lastMax = end;
+        }
+        for (int k = 1; (1L << k) <= n && k < Long.SIZE - 1; k++) {
+            long x = 1L << (k - 1);
+            long first = (x << 1) - 1;
+            long step = x << 2;
+            for (long i = first; i < n; i += step) {
+                long max = Math.max(getEnd(i), getMaxEnd(i - x));
+                max = Math.max(max, (i + x < n ? getMaxEnd(i + x) : lastMax));
+                setMaxEnd(i, max);
+            }
+            lastIndex = (((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x);
+            if (lastIndex < n && getMaxEnd(lastIndex) > lastMax) {
+                lastMax = getMaxEnd(lastIndex);
+            }
+        }
+    }
+
+    /**
+     * Get the indexes of the elements intersecting a range, bounds included.
+     *
+     * @param start
+     *            The start of the range
+     * @param end
+     *            The end of the range
+     * @return The indexes, in increasing order
+     */
+    public long[] query(long start, long end) {
+        long n = size();
+        long[] results = new long[16];
+        int nbResults = 0;
+        if (n == 0) {
+            return new long[0];
+        }
+
+        /* Explicit stack of (node, level, left child done) */
+        long[] nodes = new long[MAX_STACK_SIZE];
+        int[] levels = new int[MAX_STACK_SIZE];
+        boolean[] leftDone = new boolean[MAX_STACK_SIZE];
+        int rootLevel = Long.SIZE - 1 - Long.numberOfLeadingZeros(n);
+        int top = 0;
+        nodes[top] = (1L << rootLevel) - 1;
+        levels[top] = rootLevel;
+        leftDone[top++] = false;
+
+        while (top > 0) {
+            top--;
+            long x = nodes[top];
+            int k = levels[top];
+            if (k <= SCAN_LEVEL) {
+                /* Small subtree, check all its nodes in order */
+                long i0 = (x >> k) << k;
+                long i1 = Math.min(i0 + (1L << (k + 1)) - 1, n);
+                for (long i = i0; i < i1 && getStart(i) <= end; i++) {
+                    if (getEnd(i) >= start) {
+                        if (nbResults == results.length) {
+                            results = Arrays.copyOf(results, nbResults * 2);
+                        }
+                        results[nbResults++] = i;
+                    }
+                }
+            } else if (!leftDone[top]) {
+                /* Come back to this node once its left subtree is done */
+                leftDone[top++] = true;
+                long y = x - (1L << (k - 1));
+                if (y >= n || getMaxEnd(y) >= start) {
+                    nodes[top] = y;
+                    levels[top] = k - 1;
+                    leftDone[top++] = false;
+                }
+            } else if (x < n && getStart(x) <= end) {
+                if (getEnd(x) >= start) {
+                    if (nbResults == results.length) {
+                        results = Arrays.copyOf(results, nbResults * 2);
+                    }
+                    results[nbResults++] = x;
+                }
+                nodes[top] = x + (1L << (k - 1));
+                levels[top] = k - 1;
+                leftDone[top++] = false;
+            }
+        }
+        return Arrays.copyOf(results, nbResults);
+    }
+}
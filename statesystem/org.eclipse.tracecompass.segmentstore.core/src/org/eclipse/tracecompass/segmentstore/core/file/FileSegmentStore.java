@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.segmentstore.core.Activator;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Implementation of a {@link ISegmentStore} keeping the segments in a file, so
+ * that it can hold more segments than what fits in memory.
+ *
+ * The file starts with a header, followed by the records of the segments in
+ * the order they were added, each written by a {@link ISegmentCodec}. The time
+ * index comes last: it has one entry per segment, sorted by start time, which
+ * also forms an implicit interval tree. Queries go through the memory-mapped
+ * index, and only read the records of the segments they return.
+ *
+ * While the store is being built, the index is kept in a temporary file, and
+ * is sorted again by the first read after new segments were added. Once
+ * {@link #finishedBuilding()} is called, the index is written to the file,
+ * which can later be opened again with {@link #openExisting}.
+ *
+ * @param <T>
+ *            The type of segment held
+ */
+public class FileSegmentStore<T extends ISegment> implements ISegmentStore<T> {
+
+    private static final int FILE_MAGIC_NUMBER = 0x05E65707;
+    private static final int FILE_VERSION = 1;
+
+    /** Magic number, file version, codec version, unused, count, index position */
+    private static final int HEADER_SIZE = 32;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** Size of the header of each record, which holds its size */
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    /** Number of bytes read at once for a record, enough for most of them */
+    private static final int RECORD_READ_SIZE = 128;
+
+    private final File fFile;
+    private final ISegmentCodec<T> fCodec;
+    private final RandomAccessFile fRaf;
+    private final FileChannel fFc;
+
+    /* Build-time state, protected by 'this' */
+    private @Nullable ByteBuffer fDataBuffer;
+    private @Nullable ByteBuffer fIndexBuffer;
+    private long fDataEnd;
+    private @Nullable File fIndexFile;
+    private @Nullable FileChannel fIndexFc;
+    private long fNbEntries = 0;
+    private long fNbSortedEntries = 0;
+
+    /** The index used by reads, replaced when new segments are indexed */
+    private volatile SegmentIndex fIndex;
+    private volatile boolean fHasPending = false;
+    private volatile boolean fFinished;
+
+    /**
+     * Create a new store, in a new file. Any existing file is overwritten.
+     *
+     * @param <T>
+     *            The type of segment held
+     * @param file
+     *            The file to write
+     * @param codec
+     *            The codec used to write the segments
+     * @return The new, empty store
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    public static <T extends ISegment> FileSegmentStore<T> createNew(File file, ISegmentCodec<T> codec) throws IOException {
+        return new FileSegmentStore<>(file, codec, true);
+    }
+
+    /**
+     * Open the store of a file written by a previous store. The store cannot
+     * be modified.
+     *
+     * @param <T>
+     *            The type of segment held
+     * @param file
+     *            The file to read
+     * @param codec
+     *            The codec used to read the segments. It must be the same
+     *            version as the one which wrote them.
+     * @return The store
+     * @throws IOException
+     *             If the file cannot be read, is incomplete, or was written
+     *             with another version of the format or codec
+     */
+    public static <T extends ISegment> FileSegmentStore<T> openExisting(File file, ISegmentCodec<T> codec) throws IOException {
+        return new FileSegmentStore<>(file, codec, false);
+    }
+
+    private FileSegmentStore(File file, ISegmentCodec<T> codec, boolean newFile) throws IOException {
+        fFile = file;
+        fCodec = codec;
+
+        if (newFile) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot delete existing file at " + file.getName()); //$NON-NLS-1$
+            }
+            fRaf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            fFc = fRaf.getChannel();
+            /* The header is only written at the end: the file is not valid until then */
+            fFc.write(ByteBuffer.allocate(HEADER_SIZE), 0);
+            fDataEnd = HEADER_SIZE;
+            fDataBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            fIndexBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            File indexFile = File.createTempFile(file.getName(), ".idx", file.getAbsoluteFile().getParentFile()); //$NON-NLS-1$
+            fIndexFile = indexFile;
+            fIndexFc = new RandomAccessFile(indexFile, "rw").getChannel(); //$NON-NLS-1$
+            fIndex = new SegmentIndex(fFc, HEADER_SIZE, 0, MapMode.READ_ONLY);
+            fFinished = false;
+            return;
+        }
+
+        fRaf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        fFc = fRaf.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, 0);
+            if (header.getInt() != FILE_MAGIC_NUMBER) {
+                throw new IOException("Wrong magic number, or incomplete file"); //$NON-NLS-1$
+            }
+            if (header.getInt() != FILE_VERSION) {
+                throw new IOException("Wrong file version"); //$NON-NLS-1$
+            }
+            if (header.getInt() != codec.getVersion()) {
+                throw new IOException("Wrong codec version"); //$NON-NLS-1$
+            }
+            header.getInt();
+            long count = header.getLong();
+            long indexPos = header.getLong();
+            if (count < 0 || indexPos < HEADER_SIZE || indexPos + count * SegmentIndex.ENTRY_SIZE > fFc.size()) {
+                throw new IOException("The file is corrupted"); //$NON-NLS-1$
+            }
+            fIndex = new SegmentIndex(fFc, indexPos, count, MapMode.READ_ONLY);
+            fFinished = true;
+        } catch (IOException e) {
+            fRaf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the file of this store.
+     *
+     * @return The file
+     */
+    public File getFile() {
+        return fFile;
+    }
+
+    @Override
+    public synchronized void addElement(T val) {
+        ByteBuffer dataBuffer = fDataBuffer;
+        ByteBuffer indexBuffer = fIndexBuffer;
+        if (fFinished || dataBuffer == null || indexBuffer == null) {
+            throw new IllegalStateException("Cannot add segments to a finished store"); //$NON-NLS-1$
+        }
+
+        try {
+            int size = fCodec.getSerializedSize(val);
+            if (dataBuffer.remaining() < size + RECORD_HEADER_SIZE) {
+                flushData();
+                if (dataBuffer.capacity() < size + RECORD_HEADER_SIZE) {
+                    dataBuffer = ByteBuffer.allocate(size + RECORD_HEADER_SIZE);
+                    fDataBuffer = dataBuffer;
+                }
+            }
+            long offset = fDataEnd + dataBuffer.position();
+            dataBuffer.putInt(size);
+            fCodec.write(val, dataBuffer);
+
+            if (indexBuffer.remaining() < SegmentIndex.ENTRY_SIZE) {
+                flushIndex();
+            }
+            SegmentIndex.putEntry(indexBuffer, val.getStart(), val.getEnd(), offset);
+            fNbEntries++;
+            fHasPending = true;
+        } catch (IOException e) {
+            Activator.instance().logError(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write the index to the file, which can then be opened again with
+     * {@link #openExisting}. The store can still be queried, but no more
+     * segments can be added.
+     */
+    public synchronized void finishedBuilding() {
+        if (fFinished) {
+            return;
+        }
+        SegmentIndex index = getIndex();
+        FileChannel indexFc = fIndexFc;
+        if (indexFc == null) {
+            return;
+        }
+        try {
+            index.force();
+            long indexPos = fDataEnd;
+            long size = fNbEntries * SegmentIndex.ENTRY_SIZE;
+            long transferred = 0;
+            while (transferred < size) {
+                transferred += indexFc.transferTo(transferred, size - transferred, fFc.position(indexPos + transferred));
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FILE_MAGIC_NUMBER);
+            header.putInt(FILE_VERSION);
+            header.putInt(fCodec.getVersion());
+            header.putInt(0);
+            header.putLong(fNbEntries);
+            header.putLong(indexPos);
+            header.flip();
+            while (header.hasRemaining()) {
+                fFc.write(header, header.position());
+            }
+            fFc.force(false);
+
+            fIndex = new SegmentIndex(fFc, indexPos, fNbEntries, MapMode.READ_ONLY);
+            fFinished = true;
+            fDataBuffer = null;
+            fIndexBuffer = null;
+            closeIndexFile();
+        } catch (IOException e) {
+            Activator.instance().logError(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long getNbElements() {
+        return getIndex().size();
+    }
+
+    @Override
+    public T getElementAtIndex(long index) {
+        SegmentIndex segmentIndex = getIndex();
+        if (index < 0 || index >= segmentIndex.size()) {
+            throw new IndexOutOfBoundsException(Long.toString(index));
+        }
+        return readSegment(segmentIndex.getOffset(index));
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final SegmentIndex segmentIndex = getIndex();
+        return new Iterator<T>() {
+            private long fPosition = 0;
+
+            @Override
+            public boolean hasNext() {
+                return fPosition < segmentIndex.size();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return readSegment(segmentIndex.getOffset(fPosition++));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterable<T> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    @Override
+    public Iterable<T> getIntersectingElements(long start, long end) {
+        SegmentIndex segmentIndex = getIndex();
+        long[] indexes = segmentIndex.query(start, end);
+        List<T> results = new ArrayList<>(indexes.length);
+        for (long index : indexes) {
+            results.add(readSegment(segmentIndex.getOffset(index)));
+        }
+        return results;
+    }
+
+    /**
+     * Close the file. It is kept on disk, if {@link #finishedBuilding()} was
+     * called it can be opened again later.
+     */
+    @Override
+    public synchronized void dispose() {
+        try {
+            closeIndexFile();
+            fRaf.close();
+        } catch (IOException e) {
+            Activator.instance().logError(e.getMessage(), e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the current index, after sorting the entries of the segments that
+     * were added since the last read.
+     */
+    private SegmentIndex getIndex() {
+        if (!fHasPending) {
+            return fIndex;
+        }
+        synchronized (this) {
+            FileChannel indexFc = fIndexFc;
+            ByteBuffer indexBuffer = fIndexBuffer;
+            if (!fHasPending || indexFc == null || indexBuffer == null) {
+                return fIndex;
+            }
+            try {
+                flushData();
+                flushIndex();
+
+                /* Sort the new entries, which are after the sorted ones */
+                SegmentIndex newEntries = new SegmentIndex(indexFc, fNbSortedEntries * SegmentIndex.ENTRY_SIZE,
+                        fNbEntries - fNbSortedEntries, MapMode.READ_WRITE);
+                newEntries.sort();
+
+                if (fNbSortedEntries > 0) {
+                    /* Merge both runs into a new file, which replaces the current one */
+                    SegmentIndex sortedEntries = new SegmentIndex(indexFc, 0, fNbSortedEntries, MapMode.READ_ONLY);
+                    File mergedFile = File.createTempFile(fFile.getName(), ".idx", fFile.getAbsoluteFile().getParentFile()); //$NON-NLS-1$
+                    @SuppressWarnings("resource")
+                    FileChannel mergedFc = new RandomAccessFile(mergedFile, "rw").getChannel(); //$NON-NLS-1$
+                    SegmentIndex.merge(sortedEntries, newEntries, indexBuffer, mergedFc);
+                    indexBuffer.clear();
+                    closeIndexFile();
+                    fIndexFile = mergedFile;
+                    fIndexFc = mergedFc;
+                    indexFc = mergedFc;
+                }
+                fNbSortedEntries = fNbEntries;
+
+                SegmentIndex index = new SegmentIndex(indexFc, 0, fNbEntries, MapMode.READ_WRITE);
+                index.buildIndex();
+                fIndex = index;
+                fHasPending = false;
+                return index;
+            } catch (IOException e) {
+                Activator.instance().logError(e.getMessage(), e);
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private T readSegment(long offset) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_READ_SIZE);
+            fFc.read(buffer, offset);
+            buffer.flip();
+            int size = buffer.getInt();
+            if (buffer.remaining() < size) {
+                ByteBuffer record = ByteBuffer.allocate(size);
+                record.put(buffer);
+                while (record.hasRemaining()) {
+                    if (fFc.read(record, offset + RECORD_HEADER_SIZE + record.position()) < 0) {
+                        throw new IOException("Truncated segment record"); //$NON-NLS-1$
+                    }
+                }
+                record.flip();
+                buffer = record;
+            }
+            return fCodec.read(buffer);
+        } catch (IOException e) {
+            Activator.instance().logError(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fFc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file"); //$NON-NLS-1$
+            }
+        }
+        buffer.flip();
+    }
+
+    private void flushData() throws IOException {
+        ByteBuffer dataBuffer = fDataBuffer;
+        if (dataBuffer == null) {
+            return;
+        }
+        dataBuffer.flip();
+        while (dataBuffer.hasRemaining()) {
+            fDataEnd += fFc.write(dataBuffer, fDataEnd);
+        }
+        dataBuffer.clear();
+    }
+
+    private void flushIndex() throws IOException {
+        ByteBuffer indexBuffer = fIndexBuffer;
+        FileChannel indexFc = fIndexFc;
+        if (indexBuffer == null || indexFc == null) {
+            return;
+        }
+        indexBuffer.flip();
+        long position = (fNbEntries * SegmentIndex.ENTRY_SIZE) - indexBuffer.remaining();
+        while (indexBuffer.hasRemaining()) {
+            position += indexFc.write(indexBuffer, position);
+        }
+        indexBuffer.clear();
+    }
+
+    private void closeIndexFile() throws IOException {
+        FileChannel indexFc = fIndexFc;
+        File indexFile = fIndexFile;
+        if (indexFc != null) {
+            indexFc.close();
+            fIndexFc = null;
+        }
+        if (indexFile != null) {
+            /* It may still be mapped by readers on some systems */
+            if (!indexFile.delete()) {
+                indexFile.deleteOnExit();
+            }
+            fIndexFile = null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.file;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+
+/**
+ * Converts segments to and from the bytes stored by a {@link FileSegmentStore}.
+ * Each type of segment stored in files needs a codec, which is typically
+ * provided by the analysis creating the segments.
+ *
+ * @param <T>
+ *            The type of segment
+ */
+public interface ISegmentCodec<T extends ISegment> {
+
+    /**
+     * Get the version of the serialized format. Files written with a
+     * different version of the codec cannot be opened.
+     *
+     * @return The version of the format
+     */
+    int getVersion();
+
+    /**
+     * Get the number of bytes {@link #write} will use for a segment.
+     *
+     * @param segment
+     *            The segment
+     * @return The size of the serialized segment, in bytes
+     */
+    int getSerializedSize(T segment);
+
+    /**
+     * Write a segment to a buffer, at the buffer's current position.
+     *
+     * @param segment
+     *            The segment to write
+     * @param buffer
+     *            The buffer to write to. It has at least
+     *            {@link #getSerializedSize} bytes remaining.
+     */
+    void write(T segment, ByteBuffer buffer);
+
+    /**
+     * Read a segment from a buffer, at the buffer's current position.
+     *
+     * @param buffer
+     *            The buffer to read from, which contains what {@link #write}
+     *            wrote
+     * @return The segment
+     */
+    T read(ByteBuffer buffer);
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.eclipse.tracecompass.internal.segmentstore.core.ImplicitIntervalTree;
+
+/**
+ * Time index of a {@link FileSegmentStore}, memory-mapped from a region of a
+ * file. Each entry holds the start and end times of a segment, the maximum end
+ * time of its subtree in the interval tree, and the position of the segment's
+ * record in the data file.
+ *
+ * The region is mapped in chunks, since a single mapping cannot exceed 2 GB.
+ */
+class SegmentIndex extends ImplicitIntervalTree {
+
+    /** Size of an entry, in bytes */
+    static final int ENTRY_SIZE = 32;
+
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int MAX_END = 2;
+    private static final int OFFSET = 3;
+    private static final int LONGS_PER_ENTRY = 4;
+
+    private static final int CHUNK_BITS = 24;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    /** Ranges shorter than this are sorted by insertion */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final MappedByteBuffer[] fMappings;
+    private final LongBuffer[] fChunks;
+    private final long fSize;
+
+    /**
+     * Map the entries of a file region.
+     *
+     * @param fc
+     *            The channel of the file
+     * @param position
+     *            The position of the first entry in the file
+     * @param size
+     *            The number of entries
+     * @param mode
+     *            The mapping mode, read-write to sort or build the index
+     * @throws IOException
+     *             If the region cannot be mapped
+     */
+    SegmentIndex(FileChannel fc, long position, long size, MapMode mode) throws IOException {
+        fSize = size;
+        int nbChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+        fMappings = new MappedByteBuffer[nbChunks];
+        fChunks = new LongBuffer[nbChunks];
+        for (int i = 0; i < nbChunks; i++) {
+            long first = ((long) i) << CHUNK_BITS;
+            long entries = Math.min(CHUNK_MASK + 1, size - first);
+            fMappings[i] = fc.map(mode, position + first * ENTRY_SIZE, entries * ENTRY_SIZE);
+            fChunks[i] = fMappings[i].asLongBuffer();
+        }
+    }
+
+    /**
+     * Write an entry to a buffer, in the format of the index.
+     *
+     * @param buffer
+     *            The buffer to write to
+     * @param start
+     *            The start time of the segment
+     * @param end
+     *            The end time of the segment
+     * @param offset
+     *            The position of the segment's record
+     */
+    static void putEntry(ByteBuffer buffer, long start, long end, long offset) {
+        buffer.putLong(start);
+        buffer.putLong(end);
+        buffer.putLong(end);
+        buffer.putLong(offset);
+    }
+
+    @Override
+    protected long size() {
+        return fSize;
+    }
+
+    @Override
+    protected long getStart(long index) {
+        return get(index, START);
+    }
+
+    @Override
+    protected long getEnd(long index) {
+        return get(index, END);
+    }
+
+    @Override
+    protected long getMaxEnd(long index) {
+        return get(index, MAX_END);
+    }
+
+    @Override
+    protected void setMaxEnd(long index, long maxEnd) {
+        put(index, MAX_END, maxEnd);
+    }
+
+    @Override
+    protected void buildIndex() {
+        super.buildIndex();
+    }
+
+    /**
+     * Get the position of the record of a segment.
+     *
+     * @param index
+     *            The index of the segment
+     * @return The position of its record in the data file
+     */
+    long getOffset(long index) {
+        return get(index, OFFSET);
+    }
+
+    /**
+     * Sort the entries by start time, then end time, then record position.
+     * Records are appended, so the last criteria keeps the insertion order of
+     * identical segments.
+     */
+    void sort() {
+        quickSort(0, fSize - 1);
+    }
+
+    /**
+     * Copy the entries in sorted order from two sorted indexes to a buffer,
+     * flushing it to a channel when it is full.
+     *
+     * @param first
+     *            The first sorted index
+     * @param second
+     *            The second sorted index
+     * @param buffer
+     *            The buffer to use for writing
+     * @param target
+     *            The channel to write to, at its current position
+     * @throws IOException
+     *             If the entries cannot be written
+     */
+    static void merge(SegmentIndex first, SegmentIndex second, ByteBuffer buffer, FileChannel target) throws IOException {
+        long i = 0;
+        long j = 0;
+        buffer.clear();
+        while (i < first.fSize || j < second.fSize) {
+            if (buffer.remaining() < ENTRY_SIZE) {
+                flush(buffer, target);
+            }
+            if (j == second.fSize || (i < first.fSize && first.compareTo(i, second, j) <= 0)) {
+                putEntry(buffer, first.getStart(i), first.getEnd(i), first.getOffset(i));
+                i++;
+            } else {
+                putEntry(buffer, second.getStart(j), second.getEnd(j), second.getOffset(j));
+                j++;
+            }
+        }
+        flush(buffer, target);
+    }
+
+    /**
+     * Write the changes to the mapped file.
+     */
+    void force() {
+        for (MappedByteBuffer mapping : fMappings) {
+            mapping.force();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private long get(long index, int field) {
+        return fChunks[(int) (index >>> CHUNK_BITS)].get((int) ((index & CHUNK_MASK) * LONGS_PER_ENTRY + field));
+    }
+
+    private void put(long index, int field, long value) {
+        fChunks[(int) (index >>> CHUNK_BITS)].put((int) ((index & CHUNK_MASK) * LONGS_PER_ENTRY + field), value);
+    }
+
+    private int compareTo(long index, SegmentIndex other, long otherIndex) {
+        int res = Long.compare(getStart(index), other.getStart(otherIndex));
+        if (res == 0) {
+            res = Long.compare(getEnd(index), other.getEnd(otherIndex));
+        }
+        if (res == 0) {
+            res = Long.compare(getOffset(index), other.getOffset(otherIndex));
+        }
+        return res;
+    }
+
+    private void swap(long i, long j) {
+        for (int field = 0; field < LONGS_PER_ENTRY; field++) {
+            long tmp = get(i, field);
+            put(i, field, get(j, field));
+            put(j, field, tmp);
+        }
+    }
+
+    /**
+     * Quicksort with a median-of-three pivot, which keeps the segments that
+     * are already almost sorted (the usual case) from being a worst case.
+     * Recursion only goes in the smaller partition, to bound the stack.
+     */
+    private void quickSort(long low, long high) {
+        long lo = low;
+        long hi = high;
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            long mid = lo + (hi - lo) / 2;
+            if (compareTo(mid, this, lo) < 0) {
+                swap(mid, lo);
+            }
+            if (compareTo(hi, this, lo) < 0) {
+                swap(hi, lo);
+            }
+            if (compareTo(hi, this, mid) < 0) {
+                swap(hi, mid);
+            }
+            /* The pivot is now at 'mid', move it out of the way */
+            swap(mid, hi - 1);
+            long pivot = hi - 1;
+            long i = lo;
+            long j = hi - 1;
+            while (true) {
+                while (compareTo(++i, this, pivot) < 0) {
+                    /* Find an element not lower than the pivot */
+                }
+                while (compareTo(--j, this, pivot) > 0) {
+                    /* Find an element not greater than the pivot */
+                }
+                if (i >= j) {
+                    break;
+                }
+                swap(i, j);
+            }
+            swap(i, hi - 1);
+
+            if (i - lo < hi - i) {
+                quickSort(lo, i - 1);
+                lo = i + 1;
+            } else {
+                quickSort(i + 1, hi);
+                hi = i - 1;
+            }
+        }
+        insertionSort(lo, hi);
+    }
+
+    private void insertionSort(long low, long high) {
+        for (long i = low + 1; i <= high; i++) {
+            for (long j = i; j > low && compareTo(j, this, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel target) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.sortedarray;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.segmentstore.core.ImplicitIntervalTree;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Implementation of a {@link ISegmentStore} keeping the segments in arrays
+ * sorted by start time, augmented with an implicit interval tree. Queries take
+ * O(log n + k) time, for k results, and {@link #getElementAtIndex} is a simple
+ * array access.
+ *
+ * Added elements are first kept aside. Intersection queries scan them
+ * linearly, on top of the tree query, and they are only merged into the sorted
+ * arrays once there are enough of them, or when a read needs the elements in
+ * order. Reads of an unmodified store only use an immutable snapshot of the
+ * arrays, so they can run concurrently without locking.
+ *
+ * @param <T>
+ *            The type of segment held
+ */
+public class SortedArrayStore<T extends ISegment> implements ISegmentStore<T> {
+
+    /**
+     * Minimum number of pending elements for an intersection query to merge
+     * them into the arrays, instead of scanning them. Larger stores wait for
+     * a proportionally larger number, so that the cost of the merges stays
+     * proportional to the number of added elements.
+     */
+    private static final int MIN_MERGE_THRESHOLD = 1024;
+
+    private static final Comparator<ISegment> START_END_COMPARATOR = new Comparator<ISegment>() {
+        @Override
+        public int compare(@Nullable ISegment o1, @Nullable ISegment o2) {
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException();
+            }
+            int res = Long.compare(o1.getStart(), o2.getStart());
+            return (res != 0 ? res : Long.compare(o1.getEnd(), o2.getEnd()));
+        }
+    };
+
+    /**
+     * The segments sorted by start time, and then end time. It is never
+     * modified once published, a new one replaces it instead.
+     */
+    private static final class Snapshot extends ImplicitIntervalTree {
+        final Object[] fSegments;
+        final long[] fStarts;
+        final long[] fEnds;
+        final long[] fMaxEnds;
+
+        Snapshot(Object[] segments) {
+            int n = segments.length;
+            fSegments = segments;
+            fStarts = new long[n];
+            fEnds = new long[n];
+            for (int i = 0; i < n; i++) {
+                ISegment segment = (ISegment) segments[i];
+                fStarts[i] = segment.getStart();
+                fEnds[i] = segment.getEnd();
+            }
+            fMaxEnds = new long[n];
+            buildIndex();
+        }
+
+        @Override
+        protected long size() {
+            return fSegments.length;
+        }
+
+        @Override
+        protected long getStart(long index) {
+            return fStarts[(int) index];
+        }
+
+        @Override
+        protected long getEnd(long index) {
+            return fEnds[(int) index];
+        }
+
+        @Override
+        protected long getMaxEnd(long index) {
+            return fMaxEnds[(int) index];
+        }
+
+        @Override
+        protected void setMaxEnd(long index, long maxEnd) {
+            fMaxEnds[(int) index] = maxEnd;
+        }
+    }
+
+    private static final Snapshot EMPTY_SNAPSHOT = new Snapshot(new Object[0]);
+
+    private volatile Snapshot fSnapshot = EMPTY_SNAPSHOT;
+
+    /** Elements added since the last snapshot, protected by 'this' */
+    private final List<T> fPending = new ArrayList<>();
+
+    /** Whether there are pending elements, to avoid locking on reads */
+    private volatile boolean fHasPending = false;
+
+    /**
+     * Constructor
+     */
+    public SortedArrayStore() {
+    }
+
+    @Override
+    public synchronized void addElement(T val) {
+        fPending.add(val);
+        fHasPending = true;
+    }
+
+    @Override
+    public long getNbElements() {
+        if (!fHasPending) {
+            return fSnapshot.fSegments.length;
+        }
+        synchronized (this) {
+            return fSnapshot.fSegments.length + fPending.size();
+        }
+    }
+
+    @Override
+    public T getElementAtIndex(long index) {
+        Snapshot snapshot = getSnapshot();
+        if (index < 0 || index >= snapshot.fSegments.length) {
+            throw new IndexOutOfBoundsException(Long.toString(index));
+        }
+        return getSegment(snapshot, (int) index);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final Snapshot snapshot = getSnapshot();
+        return new Iterator<T>() {
+            private int fIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return fIndex < snapshot.fSegments.length;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getSegment(snapshot, fIndex++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterable<T> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    @Override
+    public Iterable<T> getIntersectingElements(long start, long end) {
+        Snapshot snapshot;
+        List<T> pendingResults = null;
+        if (!fHasPending) {
+            snapshot = fSnapshot;
+        } else {
+            synchronized (this) {
+                snapshot = fSnapshot;
+                if (fPending.size() >= Math.max(MIN_MERGE_THRESHOLD, snapshot.fSegments.length / 8)) {
+                    snapshot = mergePending();
+                } else {
+                    pendingResults = new ArrayList<>();
+                    for (T segment : fPending) {
+                        if (segment.getStart() <= end && segment.getEnd() >= start) {
+                            pendingResults.add(segment);
+                        }
+                    }
+                }
+            }
+        }
+
+        long[] indexes = snapshot.query(start, end);
+        if (pendingResults == null || pendingResults.isEmpty()) {
+            List<T> results = new ArrayList<>(indexes.length);
+            for (long index : indexes) {
+                results.add(getSegment(snapshot, (int) index));
+            }
+            return results;
+        }
+
+        /* Merge both lists, so that the results stay sorted */
+        Collections.sort(pendingResults, START_END_COMPARATOR);
+        List<T> results = new ArrayList<>(indexes.length + pendingResults.size());
+        int i = 0;
+        int j = 0;
+        while (i < indexes.length && j < pendingResults.size()) {
+            T segment = getSegment(snapshot, (int) indexes[i]);
+            if (START_END_COMPARATOR.compare(segment, pendingResults.get(j)) <= 0) {
+                results.add(segment);
+                i++;
+            } else {
+                results.add(pendingResults.get(j++));
+            }
+        }
+        for (; i < indexes.length; i++) {
+            results.add(getSegment(snapshot, (int) indexes[i]));
+        }
+        results.addAll(pendingResults.subList(j, pendingResults.size()));
+        return results;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        fPending.clear();
+        fHasPending = false;
+        fSnapshot = EMPTY_SNAPSHOT;
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    @SuppressWarnings("unchecked")
+    private T getSegment(Snapshot snapshot, int index) {
+        return checkNotNull((T) snapshot.fSegments[index]);
+    }
+
+    /**
+     * Get the current snapshot, after merging the pending elements into it if
+     * there are any. This is used by the reads that need all the elements in
+     * order.
+     */
+    private Snapshot getSnapshot() {
+        if (!fHasPending) {
+            return fSnapshot;
+        }
+        synchronized (this) {
+            return mergePending();
+        }
+    }
+
+    /**
+     * Merge the pending elements into a new snapshot, and publish it. Must be
+     * called while holding the lock on 'this'.
+     */
+    private Snapshot mergePending() {
+        if (fPending.isEmpty()) {
+            return fSnapshot;
+        }
+        Collections.sort(fPending, START_END_COMPARATOR);
+        Object[] current = fSnapshot.fSegments;
+        Object[] merged = new Object[current.length + fPending.size()];
+        int i = 0;
+        int j = 0;
+        int m = 0;
+        while (i < current.length && j < fPending.size()) {
+            /* Existing elements go first when equal, to keep insertion order */
+            if (START_END_COMPARATOR.compare((ISegment) current[i], fPending.get(j)) <= 0) {
+                merged[m++] = current[i++];
+            } else {
+                merged[m++] = fPending.get(j++);
+            }
+        }
+        System.arraycopy(current, i, merged, m, current.length - i);
+        m += current.length - i;
+        for (; j < fPending.size(); j++) {
+            merged[m++] = fPending.get(j);
+        }
+        fPending.clear();
+
+        Snapshot snapshot = new Snapshot(merged);
+        fSnapshot = snapshot;
+        fHasPending = false;
+        return snapshot;
+    }
+}
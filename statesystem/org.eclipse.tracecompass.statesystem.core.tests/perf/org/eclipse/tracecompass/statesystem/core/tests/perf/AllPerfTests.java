@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+/**
+ * The class <code>AllPerfTests</code> builds a suite that can be used to run
+ * all of the performance tests within its package as well as within any
+ * subpackages of its package.
+ */
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+        org.eclipse.tracecompass.statesystem.core.tests.perf.backend.AllPerfTests.class,
+        org.eclipse.tracecompass.statesystem.core.tests.perf.statesystem.AllPerfTests.class
+})
+public class AllPerfTests {
+
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf.backend;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.junit.Test;
+
+/**
+ * Benchmark of the state history back-ends, using synthetic histories. For
+ * each back-end, this measures the time to insert all the intervals, to run
+ * single-attribute queries and to run full queries.
+ */
+public class StateHistoryBackendBenchmark {
+
+    private static final String TEST_SUITE_NAME = "State History Backend";
+    private static final String TEST_ID = "org.eclipse.linuxtools#" + TEST_SUITE_NAME + '#';
+    private static final String SSID = "benchmark";
+    private static final int LOOP_COUNT = 10;
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 100000000L;
+    private static final int NB_SINGLE_QUERIES = 100000;
+    private static final int NB_FULL_QUERIES = 1000;
+
+    /** Few attributes changing often, like the CPUs of a kernel trace */
+    private static final SyntheticIntervalGenerator FEW_ATTRIBUTES = new SyntheticIntervalGenerator(16, 100, 10000, 1);
+
+    /** Many attributes changing less often, like the threads of a kernel trace */
+    private static final SyntheticIntervalGenerator MANY_ATTRIBUTES = new SyntheticIntervalGenerator(2000, 10000, 1000000, 2);
+
+    /** Creates an empty back-end for each iteration */
+    private interface IBackendFactory {
+        IStateHistoryBackend create(File file) throws IOException;
+    }
+
+    private static final IBackendFactory IN_MEMORY = new IBackendFactory() {
+        @Override
+        public IStateHistoryBackend create(File file) {
+            return StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME);
+        }
+    };
+
+    private static final IBackendFactory HISTORY_TREE = new IBackendFactory() {
+        @Override
+        public IStateHistoryBackend create(File file) throws IOException {
+            return StateHistoryBackendFactory.createHistoryTreeBackendNewFile(SSID, file, 1, START_TIME, 0);
+        }
+    };
+
+    /**
+     * Benchmark the in-memory back-end with few attributes
+     */
+    @Test
+    public void testInMemoryFewAttributes() {
+        runTest(IN_MEMORY, FEW_ATTRIBUTES, "In memory, few attributes");
+    }
+
+    /**
+     * Benchmark the in-memory back-end with many attributes
+     */
+    @Test
+    public void testInMemoryManyAttributes() {
+        runTest(IN_MEMORY, MANY_ATTRIBUTES, "In memory, many attributes");
+    }
+
+    /**
+     * Benchmark the history tree back-end with few attributes
+     */
+    @Test
+    public void testHistoryTreeFewAttributes() {
+        runTest(HISTORY_TREE, FEW_ATTRIBUTES, "History tree, few attributes");
+    }
+
+    /**
+     * Benchmark the history tree back-end with many attributes
+     */
+    @Test
+    public void testHistoryTreeManyAttributes() {
+        runTest(HISTORY_TREE, MANY_ATTRIBUTES, "History tree, many attributes");
+    }
+
+    private static void runTest(IBackendFactory factory, SyntheticIntervalGenerator generator, String testName) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter insertMeter = createMeter(perf, testName + ": insertion");
+        PerformanceMeter singleQueryMeter = createMeter(perf, testName + ": single queries");
+        PerformanceMeter fullQueryMeter = createMeter(perf, testName + ": full queries");
+
+        List<ITmfStateInterval> intervals = generator.generate(START_TIME, END_TIME);
+        long[] singleQueryTimes = generator.generateTimestamps(START_TIME, END_TIME, NB_SINGLE_QUERIES);
+        long[] fullQueryTimes = generator.generateTimestamps(START_TIME, END_TIME, NB_FULL_QUERIES);
+        int nbAttributes = generator.getNbAttributes();
+
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            File file = null;
+            IStateHistoryBackend backend = null;
+            try {
+                file = File.createTempFile("StateHistoryBackendBenchmark", ".ht");
+                backend = factory.create(file);
+
+                insertMeter.start();
+                for (ITmfStateInterval interval : intervals) {
+                    backend.insertPastState(interval.getStartTime(), interval.getEndTime(),
+                            interval.getAttribute(), interval.getStateValue());
+                }
+                backend.finishedBuilding(END_TIME);
+                insertMeter.stop();
+
+                singleQueryMeter.start();
+                for (int i = 0; i < singleQueryTimes.length; i++) {
+                    ITmfStateInterval interval = backend.doSingularQuery(singleQueryTimes[i], i % nbAttributes);
+                    assertNotNull(interval);
+                }
+                singleQueryMeter.stop();
+
+                List<ITmfStateInterval> stateInfo = new ArrayList<>(nbAttributes);
+                fullQueryMeter.start();
+                for (long t : fullQueryTimes) {
+                    stateInfo.clear();
+                    for (int quark = 0; quark < nbAttributes; quark++) {
+                        stateInfo.add(null);
+                    }
+                    backend.doQuery(stateInfo, t);
+                }
+                fullQueryMeter.stop();
+
+            } catch (IOException | TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
+                fail("Test failed at iteration " + loop + ':' + e.getMessage());
+            } finally {
+                if (backend != null) {
+                    backend.dispose();
+                }
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+        insertMeter.commit();
+        singleQueryMeter.commit();
+        fullQueryMeter.commit();
+    }
+
+    private static PerformanceMeter createMeter(Performance perf, String name) {
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + name);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ": " + name, Dimension.CPU_TIME);
+        return pm;
+    }
+}
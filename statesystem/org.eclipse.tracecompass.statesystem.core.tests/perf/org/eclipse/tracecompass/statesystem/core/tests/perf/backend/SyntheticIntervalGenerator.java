@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf.backend;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * Generates a synthetic state history. Every attribute goes through a
+ * sequence of contiguous intervals, whose durations are picked randomly
+ * between a minimum and a maximum. The same seed always generates the same
+ * intervals, so that every back-end of a benchmark gets the same input.
+ */
+public class SyntheticIntervalGenerator {
+
+    /* Fields of the arrays representing the ongoing intervals */
+    private static final int QUARK = 0;
+    private static final int START = 1;
+    private static final int END = 2;
+    private static final int COUNT = 3;
+
+    private final int fNbAttributes;
+    private final long fMinDuration;
+    private final long fMaxDuration;
+    private final long fSeed;
+
+    /**
+     * Constructor
+     *
+     * @param nbAttributes
+     *            The number of attributes in the history
+     * @param minDuration
+     *            The minimum duration of an interval
+     * @param maxDuration
+     *            The maximum duration of an interval
+     * @param seed
+     *            The seed of the random durations
+     */
+    public SyntheticIntervalGenerator(int nbAttributes, long minDuration, long maxDuration, long seed) {
+        if (nbAttributes <= 0 || minDuration <= 0 || maxDuration < minDuration) {
+            throw new IllegalArgumentException();
+        }
+        fNbAttributes = nbAttributes;
+        fMinDuration = minDuration;
+        fMaxDuration = maxDuration;
+        fSeed = seed;
+    }
+
+    /**
+     * Get the number of attributes of the generated history.
+     *
+     * @return The number of attributes
+     */
+    public int getNbAttributes() {
+        return fNbAttributes;
+    }
+
+    /**
+     * Generate the intervals between two timestamps. They are returned sorted
+     * by end time, which is the order in which a state system inserts them in
+     * its back-end. The value of each interval is its index in the sequence of
+     * its attribute.
+     *
+     * @param startTime
+     *            The start time of the history
+     * @param endTime
+     *            The end time of the history. The last interval of every
+     *            attribute ends at this time.
+     * @return The intervals
+     */
+    public List<ITmfStateInterval> generate(long startTime, long endTime) {
+        Random random = new Random(fSeed);
+        List<ITmfStateInterval> intervals = new ArrayList<>();
+
+        /* The ongoing interval of every attribute, the next one to end first */
+        PriorityQueue<long[]> ongoing = new PriorityQueue<>(fNbAttributes, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[END], o2[END]);
+            }
+        });
+        for (int quark = 0; quark < fNbAttributes; quark++) {
+            ongoing.add(new long[] { quark, startTime, nextEnd(random, startTime, endTime), 0 });
+        }
+
+        while (!ongoing.isEmpty()) {
+            long[] interval = ongoing.poll();
+            int quark = (int) interval[QUARK];
+            intervals.add(new TmfStateInterval(interval[START], interval[END], quark,
+                    TmfStateValue.newValueInt((int) interval[COUNT])));
+
+            if (interval[END] < endTime) {
+                long start = interval[END] + 1;
+                ongoing.add(new long[] { quark, start, nextEnd(random, start, endTime), interval[COUNT] + 1 });
+            }
+        }
+        return intervals;
+    }
+
+    /**
+     * Generate random timestamps between two times, for example to use as
+     * query times.
+     *
+     * @param startTime
+     *            The minimum timestamp
+     * @param endTime
+     *            The maximum timestamp
+     * @param count
+     *            The number of timestamps
+     * @return The timestamps, in random order
+     */
+    public long[] generateTimestamps(long startTime, long endTime, int count) {
+        Random random = new Random(fSeed);
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = startTime + (long) (random.nextDouble() * (endTime - startTime));
+        }
+        return timestamps;
+    }
+
+    private long nextEnd(Random random, long start, long endTime) {
+        long duration = fMinDuration + (long) (random.nextDouble() * (fMaxDuration - fMinDuration));
+        return Math.min(start + duration - 1, endTime);
+    }
+}
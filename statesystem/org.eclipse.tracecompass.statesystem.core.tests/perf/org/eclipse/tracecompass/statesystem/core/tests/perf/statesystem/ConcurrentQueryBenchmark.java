@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf.statesystem;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Test;
+
+/**
+ * Benchmark of a state system that is queried while it is being built, like
+ * when views poll an analysis that is still running. This measures the time
+ * the builder takes with and without concurrent readers, and the time the
+ * readers take to run their queries during the build.
+ */
+public class ConcurrentQueryBenchmark {
+
+    private static final String TEST_SUITE_NAME = "State System Concurrent Queries";
+    private static final String TEST_ID = "org.eclipse.linuxtools#" + TEST_SUITE_NAME + '#';
+    private static final String SSID = "benchmark";
+    private static final int LOOP_COUNT = 5;
+
+    private static final int NB_ATTRIBUTES = 500;
+    private static final int NB_STATE_CHANGES = 1000000;
+    private static final long TIME_STEP = 10;
+    private static final int QUEUE_SIZE = 10000;
+    /* Number of queries each reader runs between two checks of the builder */
+    private static final int QUERY_BATCH = 10;
+
+    /**
+     * Build a state system without any reader, as a reference
+     */
+    @Test
+    public void testNoReader() {
+        runTest(0, "no reader");
+    }
+
+    /**
+     * Build a state system with one reader
+     */
+    @Test
+    public void testOneReader() {
+        runTest(1, "1 reader");
+    }
+
+    /**
+     * Build a state system with four readers
+     */
+    @Test
+    public void testFourReaders() {
+        runTest(4, "4 readers");
+    }
+
+    private static void runTest(int nbReaders, String testName) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter buildMeter = createMeter(perf, "Build, " + testName);
+        PerformanceMeter queryMeter = (nbReaders > 0 ? createMeter(perf, "Queries during build, " + testName) : null);
+
+        ExecutorService executor = (nbReaders > 0 ? Executors.newFixedThreadPool(nbReaders) : null);
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            File file = null;
+            ITmfStateSystemBuilder ss = null;
+            try {
+                file = File.createTempFile("ConcurrentQueryBenchmark", ".ht");
+                IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendNewFile(SSID, file, 1, 0, QUEUE_SIZE);
+                ss = StateSystemFactory.newStateSystem(backend);
+                int[] quarks = new int[NB_ATTRIBUTES];
+                for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                    quarks[i] = ss.getQuarkAbsoluteAndAdd("Threads", Integer.toString(i));
+                }
+
+                AtomicBoolean done = new AtomicBoolean(false);
+                List<Future<Integer>> readers = new ArrayList<>();
+                for (int i = 0; i < nbReaders && executor != null; i++) {
+                    readers.add(executor.submit(new Reader(ss, done, i, (i == 0 ? queryMeter : null))));
+                }
+
+                Random random = new Random(loop);
+                buildMeter.start();
+                for (int i = 0; i < NB_STATE_CHANGES; i++) {
+                    ss.modifyAttribute(i * TIME_STEP, TmfStateValue.newValueInt(random.nextInt(100)), quarks[random.nextInt(NB_ATTRIBUTES)]);
+                }
+                ss.closeHistory(NB_STATE_CHANGES * TIME_STEP);
+                buildMeter.stop();
+
+                done.set(true);
+                for (Future<Integer> reader : readers) {
+                    assertTrue(reader.get() > 0);
+                }
+
+            } catch (IOException | InterruptedException | ExecutionException | TimeRangeException | AttributeNotFoundException e) {
+                fail("Test failed at iteration " + loop + ':' + e.getMessage());
+            } finally {
+                if (ss != null) {
+                    ss.dispose();
+                }
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        buildMeter.commit();
+        if (queryMeter != null) {
+            queryMeter.commit();
+        }
+    }
+
+    /**
+     * Reader that alternates full and single queries at random timestamps of
+     * the part of the history that is already built, until the build is done.
+     * It returns the number of queries it ran.
+     */
+    private static class Reader implements Callable<Integer> {
+
+        private final ITmfStateSystemBuilder fSS;
+        private final AtomicBoolean fDone;
+        private final Random fRandom;
+        private final PerformanceMeter fMeter;
+
+        public Reader(ITmfStateSystemBuilder ss, AtomicBoolean done, int seed, PerformanceMeter meter) {
+            fSS = ss;
+            fDone = done;
+            fRandom = new Random(seed);
+            fMeter = meter;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            TmfFullStateBuffer buffer = new TmfFullStateBuffer();
+            int nbQueries = 0;
+            if (fMeter != null) {
+                fMeter.start();
+            }
+            while (!fDone.get()) {
+                for (int i = 0; i < QUERY_BATCH; i++) {
+                    long end = fSS.getCurrentEndTime();
+                    long t = (long) (fRandom.nextDouble() * end);
+                    if (i % 2 == 0) {
+                        fSS.queryFullState(t, buffer);
+                    } else {
+                        fSS.querySingleState(t, fRandom.nextInt(fSS.getNbAttributes()));
+                    }
+                    nbQueries++;
+                }
+            }
+            if (fMeter != null) {
+                fMeter.stop();
+            }
+            return nbQueries;
+        }
+    }
+
+    private static PerformanceMeter createMeter(Performance perf, String name) {
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + name);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ": " + name, Dimension.CPU_TIME);
+        return pm;
+    }
+}
@@ -21,6 +21,8 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+        AttributeTreeConcurrencyTest.class,
+        StateSystemConcurrentQueryTest.class,
         StateSystemPushPopTest.class,
         StateSystemUtilsTest.class,
         org.eclipse.tracecompass.statesystem.core.tests.backend.AllTests.class,
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test adding and looking up attributes from several threads at the same
+ * time.
+ */
+public class AttributeTreeConcurrencyTest {
+
+    private static final int NB_THREADS = 8;
+    private static final int NB_ENTRIES = 500;
+    private static final String[] SUB_ATTRIBUTES = { "Status", "PPID", "Exec_name" };
+
+    private ITmfStateSystemBuilder fSS;
+
+    /**
+     * Initialization
+     */
+    @Before
+    public void setUp() {
+        fSS = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createNullBackend("test-attributes"));
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fSS.dispose();
+    }
+
+    /**
+     * Have every thread create (or find) the same attributes, each in a
+     * different order, and check they all got the same quarks.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS);
+        List<Future<int[][]>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < NB_THREADS; i++) {
+                final int offset = i * (NB_ENTRIES / NB_THREADS);
+                results.add(executor.submit(new Callable<int[][]>() {
+                    @Override
+                    public int[][] call() throws Exception {
+                        int[][] quarks = new int[NB_ENTRIES][SUB_ATTRIBUTES.length];
+                        for (int j = 0; j < NB_ENTRIES; j++) {
+                            int entry = (j + offset) % NB_ENTRIES;
+                            int entryQuark = fSS.getQuarkAbsoluteAndAdd("Threads", String.valueOf(entry));
+                            for (int k = 0; k < SUB_ATTRIBUTES.length; k++) {
+                                quarks[entry][k] = fSS.getQuarkRelativeAndAdd(entryQuark, SUB_ATTRIBUTES[k]);
+                                fSS.modifyAttribute(1, TmfStateValue.newValueInt(k), quarks[entry][k]);
+                            }
+                        }
+                        return quarks;
+                    }
+                }));
+            }
+
+            int[][] expected = results.get(0).get();
+            for (Future<int[][]> result : results) {
+                int[][] quarks = result.get();
+                for (int j = 0; j < NB_ENTRIES; j++) {
+                    assertArrayEquals(expected[j], quarks[j]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        /* "Threads", plus every entry and its sub-attributes */
+        assertEquals(1 + NB_ENTRIES * (1 + SUB_ATTRIBUTES.length), fSS.getNbAttributes());
+        for (int j = 0; j < NB_ENTRIES; j++) {
+            int entryQuark = fSS.getQuarkAbsolute("Threads", String.valueOf(j));
+            assertEquals(SUB_ATTRIBUTES.length, fSS.getSubAttributes(entryQuark, false).size());
+            for (int k = 0; k < SUB_ATTRIBUTES.length; k++) {
+                int quark = fSS.getQuarkRelative(entryQuark, SUB_ATTRIBUTES[k]);
+                assertArrayEquals(new String[] { "Threads", String.valueOf(j), SUB_ATTRIBUTES[k] },
+                        fSS.getFullAttributePathArray(quark));
+                assertEquals(k, fSS.queryOngoingState(quark).unboxInt());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test queries that run while the state system is being built by another
+ * thread, so that they need to look in the ongoing state, in the interval
+ * queue and in the history tree.
+ */
+public class StateSystemConcurrentQueryTest {
+
+    private static final int NB_READERS = 3;
+    private static final int NB_ATTRIBUTES = 50;
+    private static final int NB_STEPS = 4000;
+    private static final long STEP = 100;
+    /* Small queue, so that intervals often go through it during queries */
+    private static final int QUEUE_SIZE = 200;
+
+    private File fFile;
+    private ITmfStateSystemBuilder fSS;
+
+    /**
+     * Initialization
+     *
+     * @throws IOException
+     *             If the history file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        fFile = File.createTempFile("StateSystemConcurrentQueryTest", ".ht");
+        fSS = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createHistoryTreeBackendNewFile("test-concurrent", fFile, 1, 0, QUEUE_SIZE));
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fSS.dispose();
+        fFile.delete();
+    }
+
+    /**
+     * Build a state system where every attribute changes at every step, the
+     * value being the step number, while readers run full and single queries
+     * at random times of what was built so far.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testQueriesDuringBuild() throws Exception {
+        int[] quarks = new int[NB_ATTRIBUTES];
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            quarks[i] = fSS.getQuarkAbsoluteAndAdd(Integer.toString(i));
+        }
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(NB_READERS);
+        try {
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int i = 0; i < NB_READERS; i++) {
+                final Random random = new Random(i);
+                readers.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        TmfFullStateBuffer buffer = new TmfFullStateBuffer();
+                        int nbQueries = 0;
+                        while (!done.get()) {
+                            /*
+                             * The states up to the end time of the history are
+                             * final, once the first step is done (a new tree
+                             * already ends after its start time).
+                             */
+                            long end = fSS.getCurrentEndTime();
+                            if (end < STEP) {
+                                Thread.yield();
+                                continue;
+                            }
+                            long t = (long) (random.nextDouble() * end);
+                            List<ITmfStateInterval> stateInfo = fSS.queryFullState(t);
+                            fSS.queryFullState(t, buffer);
+                            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                                ITmfStateInterval interval = stateInfo.get(quark);
+                                assertTrue(interval.intersects(t));
+                                assertEquals(getExpectedValue(t, quark), interval.getStateValue().unboxInt());
+                                assertEquals(getExpectedValue(t, quark), buffer.getLongValue(quark));
+                            }
+                            int quark = random.nextInt(NB_ATTRIBUTES);
+                            assertEquals(getExpectedValue(t, quark), fSS.querySingleState(t, quark).getStateValue().unboxInt());
+                            nbQueries++;
+                        }
+                        return nbQueries;
+                    }
+                }));
+            }
+
+            for (int step = 0; step < NB_STEPS; step++) {
+                for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                    fSS.modifyAttribute(step * STEP + quark, TmfStateValue.newValueInt(step), quarks[quark]);
+                }
+            }
+            fSS.closeHistory(NB_STEPS * STEP);
+            done.set(true);
+
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get() > 0);
+            }
+        } finally {
+            done.set(true);
+            executor.shutdown();
+        }
+    }
+
+    private static int getExpectedValue(long t, int quark) {
+        if (t < quark) {
+            /* Null value, from the start of the history to the first change */
+            return -1;
+        }
+        return (int) ((t - quark) / STEP);
+    }
+}
@@ -20,6 +20,10 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    HistoryTreeBackendTest.class,
+    HTNodeCacheTest.class,
+    HistoryTreeCompactFormatTest.class,
+    HistoryTreeCompactorTest.class,
     InMemoryBackendTest.class
 })
 public class AllTests {
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNodeCache;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link HTNodeCache} shared by the history trees
+ */
+public class HTNodeCacheTest {
+
+    private static final int PROVIDER_VERSION = 1;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+    private static final int NB_INTERVALS = 5000;
+
+    private File fFile;
+    private int fNodeCount;
+
+    /*
+     * The capacity is split between the segments of the cache, make it large
+     * enough for no node to be evicted
+     */
+    private long fLargeCapacity;
+
+    /**
+     * Build a history file of a few nodes
+     *
+     * @throws IOException
+     *             If the history file cannot be written
+     */
+    @Before
+    public void setUp() throws IOException {
+        fFile = File.createTempFile("HTNodeCacheTest", ".ht");
+        HistoryTree tree = new HistoryTree(new HTConfig(fFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0));
+        for (int i = 0; i < NB_INTERVALS; i++) {
+            tree.insertInterval(new HTInterval(i, i, i % 10, TmfStateValue.newValueInt(i)));
+        }
+        tree.closeTree(NB_INTERVALS);
+        fNodeCount = tree.getNodeCount();
+        tree.closeFile();
+        assertTrue(fNodeCount > 4);
+        fLargeCapacity = 4L * fNodeCount * BLOCK_SIZE;
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fFile.delete();
+    }
+
+    /**
+     * Test the hit and miss counters
+     *
+     * @throws IOException
+     *             Fails the test
+     */
+    @Test
+    public void testHitsAndMisses() throws IOException {
+        HTNodeCache cache = new HTNodeCache(fLargeCapacity);
+        HistoryTree tree = new HistoryTree(fFile, PROVIDER_VERSION, cache);
+        try {
+            /* Every node is read from the file once */
+            for (int i = 0; i < fNodeCount; i++) {
+                assertEquals(i, tree.readNode(i).getSequenceNumber());
+            }
+            assertEquals(0, cache.getHitCount());
+            assertEquals(fNodeCount, cache.getMissCount());
+            assertEquals(fNodeCount, cache.getNodeCount());
+
+            /*
+             * The second time, they come from the cache, except the ones of
+             * the latest branch, which the tree keeps in memory.
+             */
+            for (int i = 0; i < fNodeCount; i++) {
+                assertEquals(i, tree.readNode(i).getSequenceNumber());
+            }
+            assertEquals(fNodeCount - tree.getDepth(), cache.getHitCount());
+            assertEquals(fNodeCount, cache.getMissCount());
+            assertEquals(0, cache.getEvictionCount());
+        } finally {
+            tree.closeFile();
+        }
+    }
+
+    /**
+     * Test that the cache does not keep more nodes than its capacity
+     *
+     * @throws IOException
+     *             Fails the test
+     */
+    @Test
+    public void testEviction() throws IOException {
+        int capacity = 2;
+        HTNodeCache cache = new HTNodeCache(capacity * BLOCK_SIZE);
+        HistoryTree tree = new HistoryTree(fFile, PROVIDER_VERSION, cache);
+        try {
+            for (int i = 0; i < fNodeCount; i++) {
+                assertEquals(i, tree.readNode(i).getSequenceNumber());
+                assertTrue(cache.getNodeCount() <= capacity);
+            }
+            assertTrue(cache.getEvictionCount() >= fNodeCount - capacity);
+
+            /* The first node was evicted, it is read again */
+            long misses = cache.getMissCount();
+            assertEquals(0, tree.readNode(0).getSequenceNumber());
+            assertEquals(misses + 1, cache.getMissCount());
+        } finally {
+            tree.closeFile();
+        }
+    }
+
+    /**
+     * Test that the nodes of a closed file cannot be obtained from the cache
+     * anymore
+     *
+     * @throws IOException
+     *             Fails the test
+     */
+    @Test
+    public void testInvalidationOnClose() throws IOException {
+        HTNodeCache cache = new HTNodeCache(fLargeCapacity);
+        HistoryTree tree = new HistoryTree(fFile, PROVIDER_VERSION, cache);
+        tree.readNode(0);
+        long hits = cache.getHitCount();
+        tree.readNode(0);
+        assertEquals(hits + 1, cache.getHitCount());
+        tree.closeFile();
+
+        try {
+            tree.readNode(0);
+            fail();
+        } catch (ClosedChannelException e) {
+            /* Expected */
+        }
+        assertEquals(hits + 1, cache.getHitCount());
+
+        /* The nodes of another file are not affected */
+        HistoryTree otherTree = new HistoryTree(fFile, PROVIDER_VERSION, cache);
+        try {
+            otherTree.readNode(0);
+            hits = cache.getHitCount();
+            otherTree.readNode(0);
+            assertEquals(hits + 1, cache.getHitCount());
+        } finally {
+            otherTree.closeFile();
+        }
+    }
+}
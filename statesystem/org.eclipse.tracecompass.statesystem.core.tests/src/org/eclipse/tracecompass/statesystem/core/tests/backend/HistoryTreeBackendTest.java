@@ -0,0 +1,484 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTAttributeIndex;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig.NodeFormat;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IBufferQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfPrimitiveStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for the history tree backend, using small blocks so that the
+ * tree has several levels.
+ */
+public class HistoryTreeBackendTest {
+
+    private static final String SSID = "test-ht";
+    private static final int PROVIDER_VERSION = 1;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private static final int NB_ATTRIBUTES = 10;
+    private static final int NB_STEPS = 2000;
+    private static final long STEP = 100;
+    private static final long END_TIME = NB_STEPS * STEP + NB_ATTRIBUTES;
+
+    private static final int NB_THREADS = 4;
+
+    private File fTestFile;
+    private HistoryTreeBackend fBackend;
+
+    /**
+     * Get the node format to use for the history trees of this test.
+     *
+     * @return The node format
+     */
+    protected NodeFormat getNodeFormat() {
+        return NodeFormat.CLASSIC;
+    }
+
+    /**
+     * Build a history tree in a temporary file. Every attribute changes value
+     * at every step, the value being the step number.
+     *
+     * @throws IOException
+     *             If the history file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        fTestFile = File.createTempFile("HistoryTreeBackendTest", ".ht");
+        fBackend = new HistoryTreeBackend(SSID, new HTConfig(fTestFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, getNodeFormat()));
+        for (int step = 0; step < NB_STEPS; step++) {
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                long start = (step == 0 ? 0 : step * STEP + quark);
+                long end = (step + 1) * STEP + quark - 1;
+                fBackend.insertPastState(start, end, quark, TmfStateValue.newValueInt(step));
+            }
+        }
+        fBackend.finishedBuilding(END_TIME);
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fBackend.dispose();
+        fTestFile.delete();
+    }
+
+    /**
+     * Run full queries from several threads at the same time on a completed
+     * tree.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        runConcurrentQueries(fBackend);
+    }
+
+    /**
+     * Re-open the history file and run the same queries on it.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testConcurrentQueriesExistingFile() throws Exception {
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID, fTestFile, PROVIDER_VERSION);
+        try {
+            assertEquals(0, backend.getStartTime());
+            assertEquals(END_TIME, backend.getEndTime());
+            runConcurrentQueries(backend);
+        } finally {
+            backend.dispose();
+        }
+    }
+
+    /**
+     * Query a tree while it is being built, so that some of the nodes that
+     * are read are still waiting to be written to the file.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testQueriesDuringBuild() throws Exception {
+        File file = File.createTempFile("HistoryTreeBackendTest", ".ht");
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID, new HTConfig(file, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, getNodeFormat()));
+        try {
+            for (int step = 0; step < NB_STEPS; step++) {
+                for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                    long start = (step == 0 ? 0 : step * STEP + quark);
+                    long end = (step + 1) * STEP + quark - 1;
+                    backend.insertPastState(start, end, quark, TmfStateValue.newValueInt(step));
+                }
+                if (step > 0 && step % 100 == 0) {
+                    for (int past = step - 100; past < step; past += 7) {
+                        checkSingleQuery(backend, past * STEP + STEP / 2, past % NB_ATTRIBUTES);
+                    }
+                }
+            }
+            backend.finishedBuilding(END_TIME);
+            runConcurrentQueries(backend);
+        } finally {
+            backend.dispose();
+            file.delete();
+        }
+    }
+
+    /**
+     * Run a batched query over the whole tree, for a subset of the attributes.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testMultiQuery() throws Exception {
+        int[] quarks = { 8, 0, 3 };
+        long[] times = new long[NB_STEPS * 2];
+        for (int step = 0; step < NB_STEPS; step++) {
+            times[2 * step] = step * STEP;
+            times[2 * step + 1] = step * STEP + STEP / 2;
+        }
+
+        ITmfStateInterval[][] results = new ITmfStateInterval[times.length][quarks.length];
+        fBackend.doMultiQuery(times, quarks, results);
+        for (int i = 0; i < times.length; i++) {
+            for (int j = 0; j < quarks.length; j++) {
+                ITmfStateInterval interval = results[i][j];
+                assertNotNull(interval);
+                assertEquals(quarks[j], interval.getAttribute());
+                assertTrue(interval.intersects(times[i]));
+                assertEquals(fBackend.doSingularQuery(times[i], quarks[j]), interval);
+            }
+        }
+    }
+
+    /**
+     * Run a range query for a few attributes, and check that for every
+     * attribute the intervals cover the whole range without gaps or
+     * duplicates.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testQuery2D() throws Exception {
+        checkQuery2D(fBackend, Arrays.asList(1, 4, 9), 50 * STEP + 30, 1500 * STEP + 2);
+    }
+
+    /**
+     * Run a range query on a threaded back-end while its intervals are still
+     * being inserted in the tree, and check that every interval is returned
+     * exactly once, whether it was found in the queue or in the tree.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testThreadedQuery2D() throws Exception {
+        File file = File.createTempFile("HistoryTreeBackendTest", ".ht");
+        ThreadedHistoryTreeBackend backend = new ThreadedHistoryTreeBackend(SSID,
+                new HTConfig(file, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, getNodeFormat()), 2000);
+        try {
+            List<Integer> quarks = Arrays.asList(0, 3, 7);
+            for (int step = 0; step < NB_STEPS; step++) {
+                for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                    long start = (step == 0 ? 0 : step * STEP + quark);
+                    long end = (step + 1) * STEP + quark - 1;
+                    backend.insertPastState(start, end, quark, TmfStateValue.newValueInt(step));
+                }
+                if (step % 100 == 99) {
+                    checkQuery2D(backend, quarks, step * STEP / 2, step * STEP);
+                }
+            }
+            backend.finishedBuilding(END_TIME);
+        } finally {
+            backend.dispose();
+            file.delete();
+        }
+    }
+
+    private static void checkQuery2D(HistoryTreeBackend backend, List<Integer> quarks, long start, long end)
+            throws Exception {
+        Map<Integer, List<ITmfStateInterval>> intervalsPerQuark = new HashMap<>();
+        for (int quark : quarks) {
+            intervalsPerQuark.put(quark, new ArrayList<ITmfStateInterval>());
+        }
+        for (ITmfStateInterval interval : backend.query2D(quarks, start, end)) {
+            assertTrue(interval.getStartTime() <= end && interval.getEndTime() >= start);
+            List<ITmfStateInterval> intervals = intervalsPerQuark.get(interval.getAttribute());
+            assertNotNull(intervals);
+            intervals.add(interval);
+        }
+
+        for (int quark : quarks) {
+            List<ITmfStateInterval> intervals = intervalsPerQuark.get(quark);
+            Collections.sort(intervals, new Comparator<ITmfStateInterval>() {
+                @Override
+                public int compare(ITmfStateInterval o1, ITmfStateInterval o2) {
+                    return Long.compare(o1.getStartTime(), o2.getStartTime());
+                }
+            });
+            assertTrue(intervals.get(0).intersects(start));
+            assertTrue(intervals.get(intervals.size() - 1).intersects(end));
+            for (int i = 1; i < intervals.size(); i++) {
+                assertEquals(intervals.get(i - 1).getEndTime() + 1, intervals.get(i).getStartTime());
+            }
+        }
+    }
+
+    /**
+     * Check that a range query can be stopped early.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testQuery2DEarlyStop() throws Exception {
+        Iterator<ITmfStateInterval> iter = fBackend.query2D(Collections.singleton(5), 0, END_TIME).iterator();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(iter.hasNext());
+            assertEquals(5, iter.next().getAttribute());
+        }
+    }
+
+    /**
+     * Create the attribute index of a tree, and check that range and single
+     * queries return the same intervals with it, also once the file is
+     * re-opened.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testAttributeIndex() throws Exception {
+        List<List<String>> expected = runIndexedQueries(fBackend);
+
+        File indexFile = HTAttributeIndex.getIndexFile(fTestFile);
+        try {
+            fBackend.createAttributeIndex();
+            assertTrue(indexFile.exists());
+            assertEquals(expected, runIndexedQueries(fBackend));
+
+            HistoryTreeBackend backend = new HistoryTreeBackend(SSID, fTestFile, PROVIDER_VERSION);
+            try {
+                assertEquals(expected, runIndexedQueries(backend));
+            } finally {
+                backend.dispose();
+            }
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    private static List<List<String>> runIndexedQueries(HistoryTreeBackend backend) throws Exception {
+        List<List<String>> results = new ArrayList<>();
+        List<List<Integer>> quarkSets = Arrays.asList(
+                Collections.singletonList(3),
+                Arrays.asList(1, 7),
+                Arrays.asList(0, NB_ATTRIBUTES + 5));
+        for (List<Integer> quarks : quarkSets) {
+            for (long start = 0; start < END_TIME; start += END_TIME / 7) {
+                List<String> intervals = new ArrayList<>();
+                for (ITmfStateInterval interval : backend.query2D(quarks, start, start + 3 * STEP)) {
+                    intervals.add(interval.toString());
+                }
+                Collections.sort(intervals);
+                results.add(intervals);
+            }
+        }
+        List<String> singleResults = new ArrayList<>();
+        for (long t = 0; t <= END_TIME; t += STEP / 3) {
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                singleResults.add(backend.doSingularQuery(t, quark).toString());
+            }
+        }
+        results.add(singleResults);
+        return results;
+    }
+
+    /**
+     * Fill a {@link TmfFullStateBuffer} from a tree with values of every type,
+     * before and after it is re-opened, and check that it holds the same
+     * states as the List query.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testBufferQuery() throws Exception {
+        File file = File.createTempFile("HistoryTreeBackendTest", ".ht");
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID, new HTConfig(file, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, getNodeFormat()));
+        try {
+            for (int step = 0; step < NB_STEPS; step++) {
+                for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                    long start = (step == 0 ? 0 : step * STEP + quark);
+                    long end = (step + 1) * STEP + quark - 1;
+                    backend.insertPastState(start, end, quark, getMixedValue(step, quark));
+                }
+            }
+            backend.finishedBuilding(END_TIME);
+            checkBufferQueries(backend);
+            backend.dispose();
+
+            backend = new HistoryTreeBackend(SSID, file, PROVIDER_VERSION);
+            checkBufferQueries(backend);
+        } finally {
+            backend.dispose();
+            file.delete();
+        }
+    }
+
+    private static ITmfStateValue getMixedValue(int step, int quark) {
+        switch ((step + quark) % 5) {
+        case 0:
+            return TmfStateValue.newValueInt(-step);
+        case 1:
+            return TmfStateValue.newValueLong(step * 10000000000L);
+        case 2:
+            return TmfStateValue.newValueDouble(step / 3.0);
+        case 3:
+            return TmfStateValue.newValueString("state" + step);
+        default:
+            return TmfStateValue.nullValue();
+        }
+    }
+
+    private static void checkBufferQueries(IBufferQueryHistoryBackend backend)
+            throws TimeRangeException, StateSystemDisposedException, StateValueTypeException {
+        TmfFullStateBuffer buffer = new TmfFullStateBuffer();
+        List<ITmfStateInterval> stateInfo = new ArrayList<>(NB_ATTRIBUTES);
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            stateInfo.add(null);
+        }
+        for (long t = 0; t <= END_TIME; t += STEP * 7 + 3) {
+            buffer.reset(NB_ATTRIBUTES);
+            backend.doQuery(buffer, t);
+            backend.doQuery(stateInfo, t);
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                ITmfPrimitiveStateInterval interval = (ITmfPrimitiveStateInterval) stateInfo.get(quark);
+                ITmfStateValue value = interval.getStateValue();
+                assertEquals(interval.getStartTime(), buffer.getStartTime(quark));
+                assertEquals(interval.getEndTime(), buffer.getEndTime(quark));
+                assertEquals(value.getType(), buffer.getValueType(quark));
+                assertEquals(value.getType(), interval.getValueType());
+                switch (value.getType()) {
+                case INTEGER:
+                case LONG:
+                    assertEquals(value.unboxLong(), buffer.getLongValue(quark));
+                    assertEquals(value.unboxLong(), interval.getLongValue());
+                    break;
+                case DOUBLE:
+                    assertEquals(value.unboxDouble(), buffer.getDoubleValue(quark), 0.0);
+                    assertEquals(value.unboxDouble(), interval.getDoubleValue(), 0.0);
+                    break;
+                case STRING:
+                    assertEquals(value.unboxStr(), buffer.getStringValue(quark));
+                    break;
+                case NULL:
+                default:
+                    assertEquals(-1, buffer.getLongValue(quark));
+                    assertTrue(Double.isNaN(buffer.getDoubleValue(quark)));
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void runConcurrentQueries(final IStateHistoryBackend backend)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < NB_THREADS; i++) {
+                final int threadIndex = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int step = threadIndex; step < NB_STEPS; step += NB_THREADS) {
+                            checkFullQuery(backend, step * STEP + STEP / 2);
+                            checkSingleQuery(backend, step * STEP + STEP / 2, step % NB_ATTRIBUTES);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void checkFullQuery(IStateHistoryBackend backend, long t)
+            throws TimeRangeException, StateSystemDisposedException, StateValueTypeException {
+        List<ITmfStateInterval> stateInfo = new ArrayList<>(NB_ATTRIBUTES);
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            stateInfo.add(null);
+        }
+        backend.doQuery(stateInfo, t);
+        for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+            checkInterval(stateInfo.get(quark), t, quark);
+        }
+    }
+
+    private static void checkSingleQuery(IStateHistoryBackend backend, long t, int quark)
+            throws Exception {
+        checkInterval(backend.doSingularQuery(t, quark), t, quark);
+    }
+
+    private static void checkInterval(ITmfStateInterval interval, long t, int quark)
+            throws StateValueTypeException {
+        assertNotNull(interval);
+        assertEquals(quark, interval.getAttribute());
+        assertTrue(interval.toString() + " t=" + t, interval.intersects(t));
+        long expectedStep = (t - quark) / STEP;
+        assertEquals(expectedStep, interval.getStateValue().unboxInt());
+    }
+}
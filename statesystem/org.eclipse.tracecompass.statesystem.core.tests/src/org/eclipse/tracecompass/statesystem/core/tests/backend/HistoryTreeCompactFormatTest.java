@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig.NodeFormat;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Test;
+
+/**
+ * Run the history tree backend tests using the compact node format, and
+ * check that all the types of values are read back correctly.
+ */
+public class HistoryTreeCompactFormatTest extends HistoryTreeBackendTest {
+
+    private static final String SSID = "test-ht-compact";
+    private static final int PROVIDER_VERSION = 1;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private static final String[] STRINGS = { "swapper", "bash", "ls", "sshd", "" };
+    private static final int NB_INTERVALS = 5000;
+
+    @Override
+    protected NodeFormat getNodeFormat() {
+        return NodeFormat.COMPACT;
+    }
+
+    /**
+     * Store values of every type, some of them negative or big, re-open the
+     * file and check that we get the same values.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testValueTypes() throws Exception {
+        File file = File.createTempFile("HistoryTreeCompactFormatTest", ".ht");
+        try {
+            HistoryTreeBackend backend = buildTree(file, NodeFormat.COMPACT);
+            backend.dispose();
+
+            backend = new HistoryTreeBackend(SSID, file, PROVIDER_VERSION);
+            try {
+                for (int i = 0; i < NB_INTERVALS; i++) {
+                    ITmfStateInterval interval = backend.doSingularQuery(i * 10 + 5, i % 5);
+                    assertEquals(i * 10, interval.getStartTime());
+                    assertEquals(i * 10 + 9, interval.getEndTime());
+                    assertEquals(getValue(i), interval.getStateValue());
+                }
+            } finally {
+                backend.dispose();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Check that the compact format actually takes less space on disk.
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testFileSize() throws Exception {
+        File classicFile = File.createTempFile("HistoryTreeCompactFormatTest", ".ht");
+        File compactFile = File.createTempFile("HistoryTreeCompactFormatTest", ".ht");
+        try {
+            buildTree(classicFile, NodeFormat.CLASSIC).dispose();
+            buildTree(compactFile, NodeFormat.COMPACT).dispose();
+            assertTrue(compactFile.length() < classicFile.length());
+        } finally {
+            classicFile.delete();
+            compactFile.delete();
+        }
+    }
+
+    private static HistoryTreeBackend buildTree(File file, NodeFormat format) throws IOException {
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID,
+                new HTConfig(file, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, format));
+        for (int i = 0; i < NB_INTERVALS; i++) {
+            backend.insertPastState(i * 10, i * 10 + 9, i % 5, getValue(i));
+        }
+        backend.finishedBuilding(NB_INTERVALS * 10);
+        return backend;
+    }
+
+    private static TmfStateValue getValue(int i) {
+        switch (i % 5) {
+        case 0:
+            return TmfStateValue.newValueInt(i % 2 == 0 ? i % 20 : -i * 1000);
+        case 1:
+            return TmfStateValue.newValueString(STRINGS[(i / 5) % STRINGS.length]);
+        case 2:
+            return TmfStateValue.newValueLong(i % 2 == 0 ? Long.MAX_VALUE - i : -i);
+        case 3:
+            return TmfStateValue.newValueDouble(i / 3.0);
+        default:
+            return TmfStateValue.nullValue();
+        }
+    }
+}
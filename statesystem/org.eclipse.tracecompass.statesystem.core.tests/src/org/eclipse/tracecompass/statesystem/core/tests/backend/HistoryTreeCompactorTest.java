@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig.NodeFormat;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeCompactor;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the offline compaction of history tree files
+ */
+public class HistoryTreeCompactorTest {
+
+    private static final String SSID = "test-ht-compactor";
+    private static final int PROVIDER_VERSION = 1;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private static final int NB_ATTRIBUTES = 20;
+    private static final int NB_CHANGES = 20000;
+    private static final long END_TIME = NB_CHANGES + 1000;
+    private static final int NB_QUERIES = 500;
+
+    private File fFile;
+
+    /**
+     * Initialization
+     *
+     * @throws IOException
+     *             If the history file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        fFile = File.createTempFile("HistoryTreeCompactorTest", ".ht");
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fFile.delete();
+    }
+
+    /**
+     * Compact a classic history file
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testClassicFormat() throws Exception {
+        runTest(NodeFormat.CLASSIC);
+    }
+
+    /**
+     * Compact a history file using the compact node format
+     *
+     * @throws Exception
+     *             Fails the test
+     */
+    @Test
+    public void testCompactFormat() throws Exception {
+        runTest(NodeFormat.COMPACT);
+    }
+
+    private void runTest(NodeFormat format) throws Exception {
+        buildStateSystem(format);
+
+        long[] times = new long[NB_QUERIES];
+        Random random = new Random(0);
+        for (int i = 0; i < NB_QUERIES; i++) {
+            times[i] = (long) (random.nextDouble() * END_TIME);
+        }
+        List<List<ITmfStateInterval>> expected = queryAll(times);
+
+        HistoryTree tree = new HistoryTree(fFile, PROVIDER_VERSION);
+        int depth = tree.getDepth();
+        int nodeCount = tree.getNodeCount();
+        tree.closeFile();
+        long fileSize = fFile.length();
+
+        assertTrue(HistoryTreeCompactor.compact(fFile, PROVIDER_VERSION));
+        /* The file is only compacted once */
+        long compactedSize = fFile.length();
+        assertFalse(HistoryTreeCompactor.compact(fFile, PROVIDER_VERSION));
+        assertEquals(compactedSize, fFile.length());
+
+        tree = new HistoryTree(fFile, PROVIDER_VERSION);
+        try {
+            assertTrue(tree.getDepth() <= depth);
+            assertTrue(tree.getNodeCount() <= nodeCount);
+            assertTrue(fFile.length() <= fileSize);
+        } finally {
+            tree.closeFile();
+        }
+
+        /* The attribute tree and all the states must be there */
+        List<List<ITmfStateInterval>> actual = queryAll(times);
+        for (int i = 0; i < NB_QUERIES; i++) {
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                ITmfStateInterval expectedInterval = expected.get(i).get(quark);
+                ITmfStateInterval actualInterval = actual.get(i).get(quark);
+                assertEquals(expectedInterval.getStartTime(), actualInterval.getStartTime());
+                assertEquals(expectedInterval.getEndTime(), actualInterval.getEndTime());
+                assertEquals(expectedInterval.getStateValue(), actualInterval.getStateValue());
+            }
+        }
+    }
+
+    /**
+     * Build a history where random attributes change at every timestamp, some
+     * of them holding strings, so that some states are long.
+     */
+    private void buildStateSystem(NodeFormat format) throws Exception {
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID,
+                new HTConfig(fFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0, format));
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend);
+        try {
+            int[] quarks = new int[NB_ATTRIBUTES];
+            for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                quarks[i] = ss.getQuarkAbsoluteAndAdd("Attributes", Integer.toString(i));
+            }
+            Random random = new Random(1);
+            for (int t = 0; t < NB_CHANGES; t++) {
+                /* Low quarks change much more often than high ones */
+                int index = (int) (Math.pow(random.nextDouble(), 3) * NB_ATTRIBUTES);
+                int value = random.nextInt(10);
+                TmfStateValue stateValue = (index % 2 == 0 ?
+                        TmfStateValue.newValueInt(value) :
+                        TmfStateValue.newValueString("value" + value));
+                ss.modifyAttribute(t, stateValue, quarks[index]);
+            }
+            ss.closeHistory(END_TIME);
+        } finally {
+            ss.dispose();
+        }
+    }
+
+    private List<List<ITmfStateInterval>> queryAll(long[] times) throws Exception {
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID, fFile, PROVIDER_VERSION);
+        ITmfStateSystem ss = StateSystemFactory.newStateSystem(backend, false);
+        try {
+            assertEquals(END_TIME, ss.getCurrentEndTime());
+            List<List<ITmfStateInterval>> results = new ArrayList<>();
+            for (long t : times) {
+                List<ITmfStateInterval> states = new ArrayList<>();
+                for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                    int quark = ss.getQuarkAbsolute("Attributes", Integer.toString(i));
+                    states.add(ss.querySingleState(t, quark));
+                }
+                results.add(states);
+            }
+            return results;
+        } finally {
+            ss.dispose();
+        }
+    }
+}
@@ -15,8 +15,11 @@ package org.eclipse.tracecompass.statesystem.core.tests.backend;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.eclipse.tracecompass.statesystem.core.backend.IMultiQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IRangeQueryHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
@@ -74,6 +77,80 @@ public class InMemoryBackendTest {
         }
     }
 
+    /*
+     * The backend creates new interval objects for every query, compare them
+     * field by field.
+     */
+    private static void assertSameInterval(ITmfStateInterval expected, ITmfStateInterval actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getStartTime(), actual.getStartTime());
+        assertEquals(expected.getEndTime(), actual.getEndTime());
+        assertEquals(expected.getAttribute(), actual.getAttribute());
+        assertEquals(expected.getStateValue(), actual.getStateValue());
+    }
+
+    /**
+     * Insert the intervals of an attribute out of order, and make sure they
+     * can still be found.
+     */
+    @Test
+    public void testOutOfOrderInsertion() {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend("test-order", 0);
+        try {
+            backend.insertPastState(20, 29, 0, TmfStateValue.newValueInt(2));
+            backend.insertPastState(0, 9, 0, TmfStateValue.newValueInt(0));
+            backend.insertPastState(30, 39, 0, TmfStateValue.newValueInt(3));
+            backend.insertPastState(10, 19, 0, TmfStateValue.newValueInt(1));
+
+            for (int i = 0; i < 4; i++) {
+                testInterval(backend.doSingularQuery(i * 10 + 5, 0), i * 10, i * 10 + 9, i);
+            }
+        } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Run a batched query for a few attributes at several timestamps, and
+     * check it returns the same thing as the single queries.
+     */
+    @Test
+    public void testDoMultiQuery() {
+        long[] times = { 10, 950, 955, 999, 5000, 99990 };
+        int[] quarks = { 7, 2, 9 };
+        ITmfStateInterval[][] results = new ITmfStateInterval[times.length][quarks.length];
+        try {
+            ((IMultiQueryHistoryBackend) fixture).doMultiQuery(times, quarks, results);
+            for (int i = 0; i < times.length; i++) {
+                for (int j = 0; j < quarks.length; j++) {
+                    assertSameInterval(fixture.doSingularQuery(times[i], quarks[j]), results[i][j]);
+                }
+            }
+        } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+        testInterval(results[1][0], 907, 997, 9);
+        testInterval(results[2][1], 902, 992, 9);
+    }
+
+    /**
+     * Run a range query for two attributes
+     */
+    @Test
+    public void testQuery2D() {
+        int nbIntervals = 0;
+        try {
+            for (ITmfStateInterval interval : ((IRangeQueryHistoryBackend) fixture).query2D(Arrays.asList(3, 8), 950, 1250)) {
+                assertTrue(interval.getAttribute() == 3 || interval.getAttribute() == 8);
+                assertTrue(interval.getStartTime() <= 1250 && interval.getEndTime() >= 950);
+                nbIntervals++;
+            }
+        } catch (TimeRangeException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+        /* [903, 993], [994, 1002], [1003, 1093], ... [1203, 1293] for quark 3 */
+        assertEquals(14, nbIntervals);
+    }
 
     /**
      * Test at start time
@@ -148,8 +225,9 @@ public class InMemoryBackendTest {
             }
 
             fixture.doQuery(intervalQuery, 950);
-            ITmfStateInterval ref[] = intervalQuery.toArray(new ITmfStateInterval[0]);
-            assertArrayEquals(ref, interval);
+            for (int i = 0; i < 10; i++) {
+                assertSameInterval(intervalQuery.get(i), interval[i]);
+            }
 
         } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
             fail(e.getMessage());
@@ -17,10 +17,11 @@ package org.eclipse.tracecompass.internal.statesystem.core;
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
 import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jdt.annotation.NonNull;
 
@@ -42,9 +43,15 @@ public final class Attribute {
     private final @NonNull String name;
     private final int quark;
 
-    /** The sub-attributes (<basename, attribute>) of this attribute */
+    /**
+     * The sub-attributes (<basename, attribute>) of this attribute. Lookups
+     * by name do not need any locking.
+     */
     private final Map<String, Attribute> subAttributes;
 
+    /** The same sub-attributes, in the order they were added */
+    private final List<Attribute> subAttributesList;
+
     /**
      * Constructor
      *
@@ -60,7 +67,8 @@ public final class Attribute {
         this.parent = parent;
         this.quark = quark;
         this.name = name;
-        this.subAttributes = Collections.synchronizedMap(new LinkedHashMap<String, Attribute>());
+        this.subAttributes = new ConcurrentHashMap<>();
+        this.subAttributesList = new ArrayList<>();
     }
 
     // ------------------------------------------------------------------------
@@ -91,7 +99,9 @@ public final class Attribute {
      * @return The child attributes.
      */
     public Iterable<Attribute> getSubAttributes() {
-        return ImmutableList.copyOf(subAttributes.values());
+        synchronized (subAttributesList) {
+            return ImmutableList.copyOf(subAttributesList);
+        }
     }
 
     /**
@@ -163,6 +173,10 @@ public final class Attribute {
         if (newSubAttribute == null) {
             throw new IllegalArgumentException();
         }
+        synchronized (subAttributesList) {
+            subAttributesList.add(newSubAttribute);
+        }
+        /* Only make it visible to lookups once it is in the list too */
         subAttributes.put(newSubAttribute.getName(), newSubAttribute);
     }
 
@@ -28,7 +28,6 @@ import java.io.PrintWriter;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -39,6 +38,10 @@ import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundExc
  * Each node of this tree is both like a file and a directory in the
  * "file system".
  *
+ * Looking up existing attributes does not require any locking, so that state
+ * providers and readers can resolve quarks concurrently. Only the creation of
+ * new attributes is serialized.
+ *
  * @author alexmont
  *
  */
@@ -47,10 +50,21 @@ public final class AttributeTree {
     /* "Magic number" for attribute tree files or file sections */
     private static final int ATTRIB_TREE_MAGIC_NUMBER = 0x06EC3671;
 
+    /* Initial capacity of the quark-to-attribute array */
+    private static final int INITIAL_CAPACITY = 64;
+
     private final StateSystem ss;
-    private final List<Attribute> attributeList;
     private final Attribute attributeTreeRoot;
 
+    /*
+     * The attributes, indexed by quark. They are only added while holding the
+     * lock on this object. The array is published before the number of
+     * attributes, so readers that read the number first always see a large
+     * enough array.
+     */
+    private volatile Attribute[] attributes;
+    private volatile int nbAttributes;
+
     /**
      * Standard constructor, create a new empty Attribute Tree
      *
@@ -59,7 +73,8 @@ public final class AttributeTree {
      */
     public AttributeTree(StateSystem ss) {
         this.ss = ss;
-        this.attributeList = Collections.synchronizedList(new ArrayList<Attribute>());
+        this.attributes = new Attribute[INITIAL_CAPACITY];
+        this.nbAttributes = 0;
         this.attributeTreeRoot = new Attribute(null, "root", -1); //$NON-NLS-1$
     }
 
@@ -122,9 +137,11 @@ public final class AttributeTree {
                 oos.writeInt(ATTRIB_TREE_MAGIC_NUMBER);
 
                 /* Compute the serialized list of attributes and write it */
-                List<String[]> list = new ArrayList<>(attributeList.size());
-                for (Attribute entry : this.attributeList) {
-                    list.add(entry.getFullAttribute());
+                int size = nbAttributes;
+                Attribute[] array = attributes;
+                List<String[]> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(array[i].getFullAttribute());
                 }
                 oos.writeObject(list);
             }
@@ -142,7 +159,7 @@ public final class AttributeTree {
      * @return The current number of attributes in the tree
      */
     public int getNbAttributes() {
-        return attributeList.size();
+        return nbAttributes;
     }
 
     /**
@@ -173,7 +190,7 @@ public final class AttributeTree {
         if (startingNodeQuark == -1) {
             prevNode = attributeTreeRoot;
         } else {
-            prevNode = attributeList.get(startingNodeQuark);
+            prevNode = getAttribute(startingNodeQuark);
         }
 
         int knownQuark = prevNode.getSubAttributeQuark(subPath);
@@ -203,20 +220,17 @@ public final class AttributeTree {
      *            The path to the attribute, relative to the starting node.
      * @return The quark of the attribute represented by the path
      */
-    public synchronized int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
-        // FIXME synchronized here is probably quite costly... maybe only locking
-        // the "for" would be enough?
+    public int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
         assert (subPath != null && subPath.length > 0);
         assert (startingNodeQuark >= -1);
 
-        Attribute nextNode = null;
         Attribute prevNode;
 
         /* Get the "starting node" */
         if (startingNodeQuark == -1) {
             prevNode = attributeTreeRoot;
         } else {
-            prevNode = attributeList.get(startingNodeQuark);
+            prevNode = getAttribute(startingNodeQuark);
         }
 
         int knownQuark = prevNode.getSubAttributeQuark(subPath);
@@ -225,18 +239,7 @@ public final class AttributeTree {
              * The attribute was not in the table previously, and we want to add
              * it
              */
-            for (String curDirectory : subPath) {
-                nextNode = prevNode.getSubAttributeNode(curDirectory);
-                if (nextNode == null) {
-                    /* This is where we need to start adding */
-                    nextNode = new Attribute(prevNode, checkNotNull(curDirectory), attributeList.size());
-                    prevNode.addSubAttribute(nextNode);
-                    attributeList.add(nextNode);
-                    ss.addEmptyAttribute();
-                }
-                prevNode = nextNode;
-            }
-            return attributeList.size() - 1;
+            return addAttributes(prevNode, subPath);
         }
         /*
          * The attribute was already existing, return the quark of that
@@ -245,6 +248,53 @@ public final class AttributeTree {
         return knownQuark;
     }
 
+    private synchronized int addAttributes(Attribute startingNode, String... subPath) {
+        Attribute prevNode = startingNode;
+        Attribute nextNode = startingNode;
+
+        /*
+         * Another thread may have added some of the attributes in the
+         * meantime, so we check every level again now that we have the lock.
+         */
+        for (String curDirectory : subPath) {
+            nextNode = prevNode.getSubAttributeNode(curDirectory);
+            if (nextNode == null) {
+                /* This is where we need to start adding */
+                int size = nbAttributes;
+                nextNode = new Attribute(prevNode, checkNotNull(curDirectory), size);
+
+                /*
+                 * The ongoing state must exist before the quark is counted,
+                 * and the attribute is only made reachable by lookups once it
+                 * has a quark.
+                 */
+                ss.addEmptyAttribute();
+                Attribute[] array = attributes;
+                if (size == array.length) {
+                    array = Arrays.copyOf(array, size * 2);
+                    attributes = array;
+                }
+                array[size] = nextNode;
+                nbAttributes = size + 1;
+                prevNode.addSubAttribute(nextNode);
+            }
+            prevNode = nextNode;
+        }
+        return nextNode.getQuark();
+    }
+
+    /*
+     * Get the attribute for a quark, without locking.
+     */
+    private Attribute getAttribute(int quark) {
+        int size = nbAttributes;
+        Attribute[] array = attributes;
+        if (quark < 0 || quark >= size) {
+            throw new IndexOutOfBoundsException("Quark: " + quark + ", Size: " + size); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return array[quark];
+    }
+
     /**
      * Returns the sub-attributes of the quark passed in parameter
      *
@@ -265,7 +315,7 @@ public final class AttributeTree {
         Attribute startingAttribute;
 
         /* Check if the quark is valid */
-        if (attributeQuark < -1 || attributeQuark >= attributeList.size()) {
+        if (attributeQuark < -1 || attributeQuark >= nbAttributes) {
             throw new AttributeNotFoundException(ss.getSSID() + " Quark:" + attributeQuark); //$NON-NLS-1$
         }
 
@@ -273,7 +323,7 @@ public final class AttributeTree {
         if (attributeQuark == -1) {
             startingAttribute = attributeTreeRoot;
         } else {
-            startingAttribute = attributeList.get(attributeQuark);
+            startingAttribute = getAttribute(attributeQuark);
         }
 
         /* Iterate through the sub-attributes and add them to the list */
@@ -295,7 +345,7 @@ public final class AttributeTree {
         if (quark == -1) {
             return quark;
         }
-        return attributeList.get(quark).getParentAttributeQuark();
+        return getAttribute(quark).getParentAttributeQuark();
     }
 
     private void addSubAttributes(List<Integer> list, Attribute curAttribute,
@@ -316,7 +366,7 @@ public final class AttributeTree {
      * @return The (base) name of the attribute
      */
     public @NonNull String getAttributeName(int quark) {
-        return attributeList.get(quark).getName();
+        return getAttribute(quark).getName();
     }
 
     /**
@@ -327,7 +377,7 @@ public final class AttributeTree {
      * @return The full path name of the attribute
      */
     public @NonNull String getFullAttributeName(int quark) {
-        return attributeList.get(quark).getFullAttributeName();
+        return getAttribute(quark).getFullAttributeName();
     }
 
     /**
@@ -339,7 +389,7 @@ public final class AttributeTree {
      * @return The path elements of the full path
      */
     public @NonNull String[] getFullAttributePathArray(int quark) {
-        return attributeList.get(quark).getFullAttribute();
+        return getAttribute(quark).getFullAttribute();
     }
 
     /**
@@ -19,23 +19,37 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.backend.IBufferQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IMultiQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IRangeQueryHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+
 /**
  * This is the core class of the Generic State System. It contains all the
  * methods to build and query a state history. It's exposed externally through
@@ -51,6 +65,26 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
  */
 public class StateSystem implements ITmfStateSystemBuilder {
 
+    /*
+     * Names of the sub-attributes of stack attributes for the usual stack
+     * depths, so that pushing and popping does not create a new string every
+     * time.
+     */
+    private static final String[] STACK_DEPTH_NAMES = new String[64];
+
+    /*
+     * Integer values for the same depths, also used by counters. The value
+     * cache of TmfStateValue can evict them when other integers share their
+     * slot, these ones stay.
+     */
+    private static final ITmfStateValue[] SMALL_INT_VALUES = new ITmfStateValue[STACK_DEPTH_NAMES.length];
+    static {
+        for (int i = 0; i < STACK_DEPTH_NAMES.length; i++) {
+            STACK_DEPTH_NAMES[i] = String.valueOf(i);
+            SMALL_INT_VALUES[i] = TmfStateValue.newValueInt(i);
+        }
+    }
+
     /* References to the inner structures */
     private final AttributeTree attributeTree;
     private final TransientState transState;
@@ -390,7 +424,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
         if (!stateValue.isNull()) {
             prevValue = stateValue.unboxInt();
         }
-        modifyAttribute(t, TmfStateValue.newValueInt(prevValue + 1),
+        modifyAttribute(t, getIntValue(prevValue + 1),
                 attributeQuark);
     }
 
@@ -426,9 +460,9 @@ public class StateSystem implements ITmfStateSystemBuilder {
         }
 
         stackDepth++;
-        subAttributeQuark = getQuarkRelativeAndAdd(attributeQuark, String.valueOf(stackDepth));
+        subAttributeQuark = getQuarkRelativeAndAdd(attributeQuark, getStackDepthName(stackDepth));
 
-        modifyAttribute(t, TmfStateValue.newValueInt(stackDepth), attributeQuark);
+        modifyAttribute(t, getIntValue(stackDepth), attributeQuark);
         modifyAttribute(t, value, subAttributeQuark);
     }
 
@@ -464,7 +498,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
         }
 
         /* The attribute should already exist at this point */
-        int subAttributeQuark = getQuarkRelative(attributeQuark, String.valueOf(stackDepth));
+        int subAttributeQuark = getQuarkRelative(attributeQuark, getStackDepthName(stackDepth));
         ITmfStateValue poppedValue = queryOngoingState(subAttributeQuark);
 
         /* Update the state value of the stack-attribute */
@@ -473,7 +507,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
             /* Store a null state value */
             nextSV = TmfStateValue.nullValue();
         } else {
-            nextSV = TmfStateValue.newValueInt(stackDepth);
+            nextSV = getIntValue(stackDepth);
         }
         modifyAttribute(t, nextSV, attributeQuark);
 
@@ -483,6 +517,20 @@ public class StateSystem implements ITmfStateSystemBuilder {
         return poppedValue;
     }
 
+    private static String getStackDepthName(int stackDepth) {
+        if (stackDepth < STACK_DEPTH_NAMES.length) {
+            return STACK_DEPTH_NAMES[stackDepth];
+        }
+        return String.valueOf(stackDepth);
+    }
+
+    private static ITmfStateValue getIntValue(int value) {
+        if (value >= 0 && value < SMALL_INT_VALUES.length) {
+            return SMALL_INT_VALUES[value];
+        }
+        return TmfStateValue.newValueInt(value);
+    }
+
     @Override
     public void removeAttribute(long t, int attributeQuark)
             throws TimeRangeException, AttributeNotFoundException {
@@ -589,6 +637,43 @@ public class StateSystem implements ITmfStateSystemBuilder {
         return stateInfo;
     }
 
+    @Override
+    public synchronized void queryFullState(long t, TmfFullStateBuffer buffer)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+
+        final int nbAttr = getNbAttributes();
+        buffer.reset(nbAttr);
+
+        if (transState.isActive()) {
+            transState.doQuery(buffer, t);
+        }
+
+        if (backend instanceof IBufferQueryHistoryBackend) {
+            ((IBufferQueryHistoryBackend) backend).doQuery(buffer, t);
+        } else {
+            List<ITmfStateInterval> stateInfo = new ArrayList<>(nbAttr);
+            for (int i = 0; i < nbAttr; i++) {
+                stateInfo.add(null);
+            }
+            backend.doQuery(stateInfo, t);
+            for (int i = 0; i < nbAttr; i++) {
+                ITmfStateInterval interval = stateInfo.get(i);
+                if (interval != null && !buffer.isSet(i)) {
+                    buffer.set(interval);
+                }
+            }
+        }
+
+        for (int i = 0; i < nbAttr; i++) {
+            if (!buffer.isSet(i)) {
+                throw new IllegalStateException("Incoherent interval storage"); //$NON-NLS-1$
+            }
+        }
+    }
+
     @Override
     public ITmfStateInterval querySingleState(long t, int attributeQuark)
             throws AttributeNotFoundException, TimeRangeException,
@@ -616,6 +701,195 @@ public class StateSystem implements ITmfStateSystemBuilder {
         return ret;
     }
 
+    @Override
+    public ITmfStateInterval[][] queryStates(long[] times, int[] quarks)
+            throws AttributeNotFoundException, TimeRangeException,
+            StateSystemDisposedException {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] < times[i - 1]) {
+                throw new IllegalArgumentException("Timestamps are not sorted"); //$NON-NLS-1$
+            }
+        }
+        final int nbAttr = getNbAttributes();
+        boolean[] requested = new boolean[nbAttr];
+        for (int quark : quarks) {
+            if (quark < 0 || quark >= nbAttr) {
+                throw new AttributeNotFoundException(getSSID() + " Quark:" + quark); //$NON-NLS-1$
+            }
+            if (requested[quark]) {
+                throw new IllegalArgumentException("Duplicate quark " + quark); //$NON-NLS-1$
+            }
+            requested[quark] = true;
+        }
+
+        ITmfStateInterval[][] results = new ITmfStateInterval[times.length][quarks.length];
+
+        /*
+         * Look in the transient state first, and only send to the backend the
+         * timestamps for which something is still missing. Those are the only
+         * ones that have to be inside the backend's time range.
+         */
+        int nbMissing = 0;
+        long[] missingTimes = new long[times.length];
+        ITmfStateInterval[][] missingResults = new ITmfStateInterval[times.length][];
+        for (int i = 0; i < times.length; i++) {
+            boolean missing = false;
+            for (int j = 0; j < quarks.length; j++) {
+                results[i][j] = transState.getIntervalAt(times[i], quarks[j]);
+                if (results[i][j] == null) {
+                    missing = true;
+                }
+            }
+            if (missing) {
+                missingTimes[nbMissing] = times[i];
+                missingResults[nbMissing] = results[i];
+                nbMissing++;
+            }
+        }
+
+        if (nbMissing > 0) {
+            if (nbMissing < times.length) {
+                missingTimes = Arrays.copyOf(missingTimes, nbMissing);
+                missingResults = Arrays.copyOf(missingResults, nbMissing);
+            }
+            if (backend instanceof IMultiQueryHistoryBackend) {
+                ((IMultiQueryHistoryBackend) backend).doMultiQuery(missingTimes, quarks, missingResults);
+            } else {
+                for (int i = 0; i < nbMissing; i++) {
+                    for (int j = 0; j < quarks.length; j++) {
+                        if (missingResults[i][j] == null) {
+                            missingResults[i][j] = backend.doSingularQuery(missingTimes[i], quarks[j]);
+                        }
+                    }
+                }
+            }
+
+            for (ITmfStateInterval[] row : missingResults) {
+                for (ITmfStateInterval interval : row) {
+                    if (interval == null) {
+                        /* Same as querySingleState() */
+                        throw new IllegalStateException("Incoherent interval storage"); //$NON-NLS-1$
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, long start, long end)
+            throws AttributeNotFoundException, TimeRangeException,
+            StateSystemDisposedException {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+        if (end < start) {
+            throw new TimeRangeException(getSSID() + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        final int nbAttr = getNbAttributes();
+        for (int quark : quarks) {
+            if (quark < 0 || quark >= nbAttr) {
+                throw new AttributeNotFoundException(getSSID() + " Quark:" + quark); //$NON-NLS-1$
+            }
+        }
+
+        /*
+         * The ongoing intervals are not in the backend yet, get the ones that
+         * intersect the range from the transient state.
+         */
+        List<ITmfStateInterval> ongoingIntervals = new ArrayList<>();
+        if (transState.isActive()) {
+            for (int quark : quarks) {
+                ITmfStateInterval interval = transState.getOngoingInterval(quark);
+                if (interval.getStartTime() <= end && interval.getEndTime() >= start) {
+                    ongoingIntervals.add(interval);
+                }
+            }
+        }
+
+        Iterable<ITmfStateInterval> storedIntervals;
+        if (backend instanceof IRangeQueryHistoryBackend) {
+            storedIntervals = ((IRangeQueryHistoryBackend) backend).query2D(quarks, start, end);
+        } else {
+            storedIntervals = followIntervals(quarks, start, end);
+        }
+        if (ongoingIntervals.isEmpty()) {
+            return storedIntervals;
+        }
+
+        /*
+         * An ongoing interval may have been closed and inserted in the
+         * backend since we read it. Skip its stored copy, which has the same
+         * attribute and start time.
+         */
+        final Map<Integer, Long> ongoingStarts = new HashMap<>();
+        for (ITmfStateInterval interval : ongoingIntervals) {
+            ongoingStarts.put(interval.getAttribute(), interval.getStartTime());
+        }
+        Iterable<ITmfStateInterval> remainingIntervals = Iterables.filter(storedIntervals, new Predicate<ITmfStateInterval>() {
+            @Override
+            public boolean apply(@Nullable ITmfStateInterval interval) {
+                if (interval == null) {
+                    return false;
+                }
+                Long ongoingStart = ongoingStarts.get(interval.getAttribute());
+                return (ongoingStart == null || ongoingStart.longValue() != interval.getStartTime());
+            }
+        });
+        return Iterables.concat(ongoingIntervals, remainingIntervals);
+    }
+
+    /*
+     * Range query for the back-ends that can only be queried at a given time:
+     * follow each attribute from one interval to the next, reading them only
+     * as they are iterated over.
+     */
+    private Iterable<ITmfStateInterval> followIntervals(final Collection<Integer> quarks, long start, long end) {
+        final long rangeStart = Math.max(start, backend.getStartTime());
+        final long rangeEnd = Math.min(end, backend.getEndTime());
+        return new Iterable<ITmfStateInterval>() {
+            @Override
+            public Iterator<ITmfStateInterval> iterator() {
+                final Iterator<Integer> quarkIter = quarks.iterator();
+                return new AbstractIterator<ITmfStateInterval>() {
+                    private int fQuark;
+                    private long fTime = rangeEnd + 1;
+
+                    @Override
+                    protected ITmfStateInterval computeNext() {
+                        try {
+                            while (true) {
+                                /* fTime wraps around after Long.MAX_VALUE */
+                                if (fTime > rangeEnd || fTime < rangeStart) {
+                                    if (!quarkIter.hasNext()) {
+                                        return endOfData();
+                                    }
+                                    fQuark = quarkIter.next();
+                                    fTime = rangeStart;
+                                    continue;
+                                }
+                                ITmfStateInterval interval = backend.doSingularQuery(fTime, fQuark);
+                                if (interval == null) {
+                                    /* Nothing more is stored for this attribute */
+                                    fTime = rangeEnd + 1;
+                                    continue;
+                                }
+                                fTime = interval.getEndTime() + 1;
+                                return interval;
+                            }
+                        } catch (AttributeNotFoundException | StateSystemDisposedException e) {
+                            return endOfData();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
     //--------------------------------------------------------------------------
     //        Debug methods
     //--------------------------------------------------------------------------
@@ -16,9 +16,11 @@
 package org.eclipse.tracecompass.internal.statesystem.core;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -27,6 +29,7 @@ import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundExc
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
@@ -47,18 +50,60 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 @NonNullByDefault
 public class TransientState {
 
+    /* Initial capacity of the arrays, they grow as attributes are added */
+    private static final int INITIAL_CAPACITY = 64;
+
     /* Indicates where to insert state changes that we generate */
     private final IStateHistoryBackend fBackend;
 
-    private final ReentrantReadWriteLock fRWLock = new ReentrantReadWriteLock(false);
+    /*
+     * Only serializes the writers. Readers do not take any lock: they read the
+     * ongoing state between two reads of fSequence, which is odd while a
+     * writer is modifying the ongoing state, and retry if it changed. This way
+     * the queries of views that poll an analysis that is being built never
+     * block the thread that builds it.
+     */
+    private final ReentrantLock fWriteLock = new ReentrantLock(false);
+    private volatile int fSequence = 0;
 
     private volatile boolean fIsActive;
     private volatile long fLatestTime;
 
-    /* A method accessing these arrays will have to go through the lock */
-    private List<ITmfStateValue> fOngoingStateInfo;
-    private List<Long> fOngoingStateStartTimes;
-    private List<Type> fStateValueTypes;
+    /*
+     * The ongoing state, indexed by quark. Only the first fNbAttributes
+     * entries are used. The types are only used by the writers.
+     */
+    private volatile int fNbAttributes;
+    private volatile Columns fColumns;
+    private Type[] fStateValueTypes;
+
+    /**
+     * Arrays of the ongoing state values and start times. The entries are
+     * atomic so that a reader running at the same time as a writer never sees
+     * a partially written entry, and start times are kept in a primitive
+     * array so that state changes do not need to box them.
+     */
+    private static final class Columns {
+        final AtomicReferenceArray<ITmfStateValue> fValues;
+        final AtomicLongArray fStartTimes;
+
+        Columns(int capacity) {
+            fValues = new AtomicReferenceArray<>(capacity);
+            fStartTimes = new AtomicLongArray(capacity);
+        }
+
+        Columns(Columns other, int capacity) {
+            this(capacity);
+            for (int i = 0; i < other.length(); i++) {
+                fValues.lazySet(i, other.fValues.get(i));
+                fStartTimes.lazySet(i, other.fStartTimes.get(i));
+            }
+        }
+
+        int length() {
+            return fValues.length();
+        }
+    }
 
     /**
      * Constructor
@@ -69,13 +114,82 @@ public class TransientState {
     public TransientState(IStateHistoryBackend backend) {
         fBackend = backend;
         fIsActive = true;
-        fOngoingStateInfo = new ArrayList<>();
-        fOngoingStateStartTimes = new ArrayList<>();
-        fStateValueTypes = new ArrayList<>();
+        fNbAttributes = 0;
+        fColumns = new Columns(INITIAL_CAPACITY);
+        fStateValueTypes = new Type[INITIAL_CAPACITY];
 
         fLatestTime = backend.getStartTime();
     }
 
+    // ------------------------------------------------------------------------
+    // Sequence lock
+    // ------------------------------------------------------------------------
+
+    /*
+     * Called by writers, with fWriteLock held, around the modifications of the
+     * ongoing state. Nothing between the two calls may block.
+     */
+    private void beginUpdate() {
+        fSequence++;
+    }
+
+    private void endUpdate() {
+        fSequence++;
+    }
+
+    private int beginRead() {
+        int seq = fSequence;
+        while ((seq & 1) != 0) {
+            /* A writer is in the middle of an update, which is very short */
+            Thread.yield();
+            seq = fSequence;
+        }
+        return seq;
+    }
+
+    private boolean validateRead(int seq) {
+        return (fSequence == seq);
+    }
+
+    /* To be called between beginRead() and validateRead() */
+    private boolean isValidAttribute(int quark, Columns columns) {
+        return (quark >= 0 && quark < fNbAttributes && quark < columns.length());
+    }
+
+    /**
+     * Read the ongoing state of an attribute without locking. The readers
+     * that only need one field of the state read it directly instead, so
+     * that they do not create anything.
+     *
+     * @return The ongoing interval, or null if the quark is not a valid
+     *         attribute or its ongoing state starts after t
+     */
+    private @Nullable ITmfStateInterval readOngoingInterval(int quark, long t) {
+        while (true) {
+            int seq = beginRead();
+            Columns columns = fColumns;
+            boolean valid = isValidAttribute(quark, columns);
+            long start = 0;
+            long end = 0;
+            ITmfStateValue value = null;
+            if (valid) {
+                start = columns.fStartTimes.get(quark);
+                value = columns.fValues.get(quark);
+                end = fLatestTime;
+            }
+            if (validateRead(seq)) {
+                if (!valid || value == null || t < start) {
+                    return null;
+                }
+                return new TmfStateInterval(start, end, quark, value);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Readers
+    // ------------------------------------------------------------------------
+
     /**
      * Get the latest time we have seen so far.
      *
@@ -95,16 +209,16 @@ public class TransientState {
      *             If the quark is invalid
      */
     public ITmfStateValue getOngoingStateValue(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            ITmfStateValue ret = fOngoingStateInfo.get(quark);
-            if (ret == null) {
-                throw new IllegalStateException("Null interval stored in transient state"); //$NON-NLS-1$
+        while (true) {
+            int seq = beginRead();
+            Columns columns = fColumns;
+            ITmfStateValue value = (isValidAttribute(quark, columns) ? columns.fValues.get(quark) : null);
+            if (validateRead(seq)) {
+                if (value == null) {
+                    throw attributeNotFound(quark);
+                }
+                return value;
             }
-            return ret;
-        } finally {
-            fRWLock.readLock().unlock();
         }
     }
 
@@ -118,34 +232,17 @@ public class TransientState {
      *             If the quark is invalid
      */
     public long getOngoingStartTime(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            return fOngoingStateStartTimes.get(quark);
-        } finally {
-            fRWLock.readLock().unlock();
-        }
-    }
-
-    /**
-     * Modify the current state for a given attribute. This will not update the
-     * "ongoing state start time" in any way, so be careful when using this.
-     *
-     * @param quark
-     *            The quark of the attribute to modify
-     * @param newValue
-     *            The state value the attribute should have
-     * @throws AttributeNotFoundException
-     *             If the quark is invalid
-     */
-    public void changeOngoingStateValue(int quark, ITmfStateValue newValue)
-            throws AttributeNotFoundException {
-        fRWLock.writeLock().lock();
-        try {
-            checkValidAttribute(quark);
-            fOngoingStateInfo.set(quark, newValue);
-        } finally {
-            fRWLock.writeLock().unlock();
+        while (true) {
+            int seq = beginRead();
+            Columns columns = fColumns;
+            boolean valid = isValidAttribute(quark, columns);
+            long start = (valid ? columns.fStartTimes.get(quark) : 0);
+            if (validateRead(seq)) {
+                if (!valid) {
+                    throw attributeNotFound(quark);
+                }
+                return start;
+            }
         }
     }
 
@@ -161,14 +258,11 @@ public class TransientState {
      *             If the quark is invalid
      */
     public ITmfStateInterval getOngoingInterval(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            return new TmfStateInterval(fOngoingStateStartTimes.get(quark), fLatestTime,
-                    quark, fOngoingStateInfo.get(quark));
-        } finally {
-            fRWLock.readLock().unlock();
+        ITmfStateInterval interval = readOngoingInterval(quark, Long.MAX_VALUE);
+        if (interval == null) {
+            throw attributeNotFound(quark);
         }
+        return interval;
     }
 
     /**
@@ -184,24 +278,118 @@ public class TransientState {
      *         this transient state, or null if we couldn't.
      */
     public @Nullable ITmfStateInterval getIntervalAt(long time, int quark) {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            if (!isActive() || time < fOngoingStateStartTimes.get(quark)) {
-                return null;
-            }
-            return new TmfStateInterval(fOngoingStateStartTimes.get(quark),
-                    fLatestTime, quark, fOngoingStateInfo.get(quark));
-        } catch (AttributeNotFoundException e) {
+        if (!isActive()) {
             return null;
-        } finally {
-            fRWLock.readLock().unlock();
         }
+        return readOngoingInterval(quark, time);
+    }
+
+    /**
+     * Run a "get state at time" query on the Transient State only.
+     *
+     * @param stateInfo
+     *            The stateInfo object in which we will put our relevant
+     *            information
+     * @param t
+     *            The requested timestamp
+     */
+    public void doQuery(List<ITmfStateInterval> stateInfo, long t) {
+        if (!this.fIsActive) {
+            return;
+        }
+        if (stateInfo.size() > fNbAttributes) {
+            throw new IllegalArgumentException();
+        }
+
+        for (int i = 0; i < stateInfo.size(); i++) {
+            /*
+             * We build a dummy interval whose end time =
+             * "current transient state end time" to put in the answer to the
+             * query.
+             */
+            ITmfStateInterval interval = readOngoingInterval(i, t);
+            if (interval != null) {
+                stateInfo.set(i, interval);
+            }
+        }
+    }
+
+    /**
+     * Run a "get state at time" query on the Transient State only, writing the
+     * ongoing states to a buffer instead of creating intervals.
+     *
+     * @param buffer
+     *            The buffer of the query
+     * @param t
+     *            The requested timestamp
+     */
+    public void doQuery(TmfFullStateBuffer buffer, long t) {
+        if (!this.fIsActive) {
+            return;
+        }
+        if (buffer.size() > fNbAttributes) {
+            throw new IllegalArgumentException();
+        }
+
+        for (int i = 0; i < buffer.size(); i++) {
+            while (true) {
+                int seq = beginRead();
+                Columns columns = fColumns;
+                boolean valid = isValidAttribute(i, columns);
+                long start = 0;
+                long end = 0;
+                ITmfStateValue value = null;
+                if (valid) {
+                    start = columns.fStartTimes.get(i);
+                    value = columns.fValues.get(i);
+                    end = fLatestTime;
+                }
+                if (validateRead(seq)) {
+                    if (valid && value != null && t >= start) {
+                        buffer.set(i, start, end, value);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private AttributeNotFoundException attributeNotFound(int quark) {
+        return new AttributeNotFoundException(fBackend.getSSID() + " Quark:" + quark); //$NON-NLS-1$
     }
 
+    // ------------------------------------------------------------------------
+    // Writers
+    // ------------------------------------------------------------------------
+
+    /* To be called with fWriteLock held */
     private void checkValidAttribute(int quark) throws AttributeNotFoundException {
-        if (quark > fOngoingStateInfo.size() - 1 || quark < 0) {
-            throw new AttributeNotFoundException(fBackend.getSSID() + " Quark:" + quark); //$NON-NLS-1$
+        if (quark > fNbAttributes - 1 || quark < 0) {
+            throw attributeNotFound(quark);
+        }
+    }
+
+    /**
+     * Modify the current state for a given attribute. This will not update the
+     * "ongoing state start time" in any way, so be careful when using this.
+     *
+     * @param quark
+     *            The quark of the attribute to modify
+     * @param newValue
+     *            The state value the attribute should have
+     * @throws AttributeNotFoundException
+     *             If the quark is invalid
+     */
+    public void changeOngoingStateValue(int quark, ITmfStateValue newValue)
+            throws AttributeNotFoundException {
+        fWriteLock.lock();
+        try {
+            checkValidAttribute(quark);
+            beginUpdate();
+            fColumns.fValues.lazySet(quark, newValue);
+            endUpdate();
+        } finally {
+            fWriteLock.unlock();
         }
     }
 
@@ -218,20 +406,26 @@ public class TransientState {
      */
     public void replaceOngoingState(List<ITmfStateInterval> newStateIntervals) {
         final int size = newStateIntervals.size();
+        final int capacity = Math.max(size, INITIAL_CAPACITY);
+
+        Columns columns = new Columns(capacity);
+        Type[] types = new Type[capacity];
+        for (int i = 0; i < size; i++) {
+            ITmfStateInterval interval = newStateIntervals.get(i);
+            columns.fValues.lazySet(i, interval.getStateValue());
+            columns.fStartTimes.lazySet(i, interval.getStartTime());
+            types[i] = interval.getStateValue().getType();
+        }
 
-        fRWLock.writeLock().lock();
+        fWriteLock.lock();
         try {
-            fOngoingStateInfo = new ArrayList<>(size);
-            fOngoingStateStartTimes = new ArrayList<>(size);
-            fStateValueTypes = new ArrayList<>(size);
-
-            for (ITmfStateInterval interval : newStateIntervals) {
-                fOngoingStateInfo.add(interval.getStateValue());
-                fOngoingStateStartTimes.add(interval.getStartTime());
-                fStateValueTypes.add(interval.getStateValue().getType());
-            }
+            fStateValueTypes = types;
+            beginUpdate();
+            fColumns = columns;
+            fNbAttributes = size;
+            endUpdate();
         } finally {
-            fRWLock.writeLock().unlock();
+            fWriteLock.unlock();
         }
     }
 
@@ -241,20 +435,31 @@ public class TransientState {
      * attribute tree, namely when we add sub-path attributes.
      */
     public void addEmptyEntry() {
-        fRWLock.writeLock().lock();
+        fWriteLock.lock();
         try {
+            int quark = fNbAttributes;
+            Columns columns = fColumns;
+            if (quark == columns.length()) {
+                int capacity = Math.max(quark * 2, INITIAL_CAPACITY);
+                columns = new Columns(columns, capacity);
+                fStateValueTypes = Arrays.copyOf(fStateValueTypes, capacity);
+            }
+
             /*
              * Since this is a new attribute, we suppose it was in the
              * "null state" since the beginning (so we can have intervals
              * covering for all timestamps). A null interval will then get added
              * at the first state change.
              */
-            fOngoingStateInfo.add(TmfStateValue.nullValue());
-            fStateValueTypes.add(Type.NULL);
-
-            fOngoingStateStartTimes.add(fBackend.getStartTime());
+            fStateValueTypes[quark] = Type.NULL;
+            beginUpdate();
+            columns.fValues.lazySet(quark, TmfStateValue.nullValue());
+            columns.fStartTimes.lazySet(quark, fBackend.getStartTime());
+            fColumns = columns;
+            fNbAttributes = quark + 1;
+            endUpdate();
         } finally {
-            fRWLock.writeLock().unlock();
+            fWriteLock.unlock();
         }
     }
 
@@ -281,10 +486,10 @@ public class TransientState {
             return;
         }
 
-        fRWLock.writeLock().lock();
+        fWriteLock.lock();
         try {
-            Type expectedSvType = fStateValueTypes.get(quark);
             checkValidAttribute(quark);
+            Type expectedSvType = fStateValueTypes[quark];
 
             /*
              * Make sure the state value type we're inserting is the same as the
@@ -295,7 +500,7 @@ public class TransientState {
                  * The value hasn't been used yet, set it to the value we're
                  * currently inserting (which might be null/-1 again).
                  */
-                fStateValueTypes.set(quark, value.getType());
+                fStateValueTypes[quark] = value.getType();
             } else if ((value.getType() != Type.NULL) && (value.getType() != expectedSvType)) {
                 /*
                  * We authorize inserting null values in any type of attribute,
@@ -305,7 +510,9 @@ public class TransientState {
                 throw new StateValueTypeException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getType() + ", Expected:" + expectedSvType); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
             }
 
-            if (fOngoingStateInfo.get(quark).equals(value)) {
+            Columns columns = fColumns;
+            ITmfStateValue ongoingValue = columns.fValues.get(quark);
+            if (ongoingValue.equals(value)) {
                 /*
                  * This is the case where the new value and the one already
                  * present in the Builder are the same. We do not need to create
@@ -314,62 +521,36 @@ public class TransientState {
                 return;
             }
 
-            if (fOngoingStateStartTimes.get(quark) < eventTime) {
+            long ongoingStart = columns.fStartTimes.get(quark);
+            boolean newInterval = (ongoingStart < eventTime);
+            if (newInterval) {
                 /*
                  * These two conditions are necessary to create an interval and
-                 * update ongoingStateInfo.
+                 * update ongoingStateInfo. The interval is inserted before the
+                 * update of the ongoing state, since the insertion may block.
+                 * Until then, readers still see the previous state, which is
+                 * valid up to this time.
                  */
-                fBackend.insertPastState(fOngoingStateStartTimes.get(quark),
+                fBackend.insertPastState(ongoingStart,
                         eventTime - 1, /* End Time */
                         quark, /* attribute quark */
-                        fOngoingStateInfo.get(quark)); /* StateValue */
+                        ongoingValue); /* StateValue */
+            }
 
-                fOngoingStateStartTimes.set(quark, eventTime);
+            beginUpdate();
+            if (newInterval) {
+                columns.fStartTimes.lazySet(quark, eventTime);
             }
-            fOngoingStateInfo.set(quark, value);
+            columns.fValues.lazySet(quark, value);
 
             /* Update the Transient State's lastestTime, if needed */
             if (fLatestTime < eventTime) {
                 fLatestTime = eventTime;
             }
+            endUpdate();
 
         } finally {
-            fRWLock.writeLock().unlock();
-        }
-    }
-
-    /**
-     * Run a "get state at time" query on the Transient State only.
-     *
-     * @param stateInfo
-     *            The stateInfo object in which we will put our relevant
-     *            information
-     * @param t
-     *            The requested timestamp
-     */
-    public void doQuery(List<ITmfStateInterval> stateInfo, long t) {
-        fRWLock.readLock().lock();
-        try {
-            if (!this.fIsActive) {
-                return;
-            }
-            if (stateInfo.size() > fOngoingStateInfo.size()) {
-                throw new IllegalArgumentException();
-            }
-
-            for (int i = 0; i < stateInfo.size(); i++) {
-                /*
-                 * We build a dummy interval whose end time =
-                 * "current transient state end time" to put in the answer to
-                 * the query.
-                 */
-                final ITmfStateInterval interval = getIntervalAt(t, i);
-                if (interval != null) {
-                    stateInfo.set(i, interval);
-                }
-            }
-        } finally {
-            fRWLock.readLock().unlock();
+            fWriteLock.unlock();
         }
     }
 
@@ -388,10 +569,11 @@ public class TransientState {
             return;
         }
 
-        fRWLock.writeLock().lock();
+        fWriteLock.lock();
         try {
-            for (int i = 0; i < fOngoingStateInfo.size(); i++) {
-                if (fOngoingStateStartTimes.get(i) > endTime) {
+            Columns columns = fColumns;
+            for (int i = 0; i < fNbAttributes; i++) {
+                if (columns.fStartTimes.get(i) > endTime) {
                     /*
                      * Handle the cases where trace end > timestamp of last
                      * state change. This can happen when inserting "future"
@@ -400,10 +582,10 @@ public class TransientState {
                     continue;
                 }
                 try {
-                    fBackend.insertPastState(fOngoingStateStartTimes.get(i),
+                    fBackend.insertPastState(columns.fStartTimes.get(i),
                             endTime, /* End Time */
                             i, /* attribute quark */
-                            fOngoingStateInfo.get(i)); /* StateValue */
+                            columns.fValues.get(i)); /* StateValue */
 
                 } catch (TimeRangeException e) {
                     /*
@@ -414,12 +596,15 @@ public class TransientState {
                 }
             }
 
-            fOngoingStateInfo.clear();
-            fOngoingStateStartTimes.clear();
+            fStateValueTypes = new Type[0];
+            beginUpdate();
+            fNbAttributes = 0;
+            fColumns = new Columns(0);
             this.fIsActive = false;
+            endUpdate();
 
         } finally {
-            fRWLock.writeLock().unlock();
+            fWriteLock.unlock();
         }
     }
 
@@ -455,10 +640,11 @@ public class TransientState {
             return;
         }
         writer.println("\nAttribute\tStateValue\tValid since time"); //$NON-NLS-1$
-        for (int i = 0; i < fOngoingStateInfo.size(); i++) {
+        ITmfStateInterval interval;
+        for (int i = 0; (interval = readOngoingInterval(i, Long.MAX_VALUE)) != null; i++) {
             writer.format("%d\t\t", i); //$NON-NLS-1$
-            writer.print(fOngoingStateInfo.get(i).toString() + "\t\t"); //$NON-NLS-1$
-            writer.println(fOngoingStateStartTimes.get(i).toString());
+            writer.print(interval.getStateValue().toString() + "\t\t"); //$NON-NLS-1$
+            writer.println(interval.getStartTime());
         }
         writer.println('\n');
         return;
@@ -10,6 +10,7 @@
  *   Alexandre Montplaisir - Initial API and implementation
  *   Matthew Khouzam - Modified to use a TreeSet
  *   Patrick Tasse - Add message to exceptions
+ *   Ericsson - Store the intervals in sorted arrays, per attribute
  ******************************************************************************/
 
 package org.eclipse.tracecompass.internal.statesystem.core.backend;
@@ -17,17 +18,20 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.eclipse.jdt.annotation.NonNull;
-import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IBufferQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IMultiQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IRangeQueryHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 
@@ -37,46 +41,168 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
  * trace. But it's relatively quick to build, so this shouldn't be a problem in
  * most cases.
  *
- * This should only be used with very small state histories (and/or, very small
- * traces). Since it's stored in standard Collections, it's limited to 2^31
- * intervals.
+ * The intervals are not kept as objects. Each attribute has its own arrays of
+ * start times, end times and values, sorted by end time, so queries are binary
+ * searches in the arrays of the requested attributes. Interval objects are
+ * only created for the results of the queries.
+ *
+ * Queries do not take any lock, they can run while intervals are being
+ * inserted. This should still only be used with small state histories, and
+ * each attribute is limited to 2^31 intervals.
  *
  * @author Alexandre Montplaisir
  */
-public class InMemoryBackend implements IStateHistoryBackend {
+public class InMemoryBackend implements IMultiQueryHistoryBackend, IRangeQueryHistoryBackend,
+        IBufferQueryHistoryBackend {
+
+    private static final int INITIAL_CAPACITY = 16;
 
     /**
-     * We need to compare the end time and the attribute, because we can have 2
-     * intervals with the same end time (for different attributes). And TreeSet
-     * needs a unique "key" per element.
+     * The intervals of one attribute, sorted by end time. Since the intervals
+     * of an attribute do not overlap, they are sorted by start time too.
+     *
+     * There is only one writer at a time. The arrays are only ever appended
+     * to, or replaced by copies, and then published together with the new
+     * size in a single write: a reader always sees a size that matches the
+     * arrays it reads.
      */
-    private static final Comparator<ITmfStateInterval> END_COMPARATOR =
-            new Comparator<ITmfStateInterval>() {
-                @Override
-                public int compare(ITmfStateInterval o1, ITmfStateInterval o2) {
-                    final long e1 = o1.getEndTime();
-                    final long e2 = o2.getEndTime();
-                    final int a1 = o1.getAttribute();
-                    final int a2 = o2.getAttribute();
-                    if (e1 < e2) {
-                        return -1;
-                    } else if (e1 > e2) {
-                        return 1;
-                    } else if (a1 < a2) {
-                        return -1;
-                    } else if (a1 > a2) {
-                        return 1;
-                    } else {
-                        return 0;
-                    }
+    private static final class AttributeIntervals {
+
+        /**
+         * The arrays, and the number of valid intervals in them. Entries
+         * past the size can be written to, the rest is never modified.
+         */
+        private static final class Columns {
+            final long[] fStarts;
+            final long[] fEnds;
+            final ITmfStateValue[] fValues;
+            final int fSize;
+
+            Columns(int capacity) {
+                fStarts = new long[capacity];
+                fEnds = new long[capacity];
+                fValues = new ITmfStateValue[capacity];
+                fSize = 0;
+            }
+
+            Columns(Columns arrays, int size) {
+                fStarts = arrays.fStarts;
+                fEnds = arrays.fEnds;
+                fValues = arrays.fValues;
+                fSize = size;
+            }
+        }
+
+        private volatile Columns fColumns = new Columns(INITIAL_CAPACITY);
+
+        synchronized void add(long start, long end, ITmfStateValue value) {
+            Columns columns = fColumns;
+            int size = columns.fSize;
+            if (size > 0 && end <= columns.fEnds[size - 1]) {
+                /*
+                 * Intervals are normally inserted in order. Otherwise, do not
+                 * shift the elements under the feet of the readers, write a
+                 * new copy instead.
+                 */
+                insertCopy(start, end, value);
+                return;
+            }
+            if (size == columns.fEnds.length) {
+                Columns bigger = new Columns(size * 2);
+                copy(columns, 0, bigger, 0, size);
+                columns = bigger;
+            }
+            columns.fStarts[size] = start;
+            columns.fEnds[size] = end;
+            columns.fValues[size] = value;
+            fColumns = new Columns(columns, size + 1);
+        }
+
+        private void insertCopy(long start, long end, ITmfStateValue value) {
+            Columns columns = fColumns;
+            int size = columns.fSize;
+            int pos = findEnd(columns.fEnds, size, end);
+            Columns copy = new Columns(Math.max(columns.fEnds.length, size + 1));
+            copy(columns, 0, copy, 0, pos);
+            copy.fStarts[pos] = start;
+            copy.fEnds[pos] = end;
+            copy.fValues[pos] = value;
+            copy(columns, pos, copy, pos + 1, size - pos);
+            fColumns = new Columns(copy, size + 1);
+        }
+
+        /**
+         * Get the interval intersecting a timestamp.
+         *
+         * @return The interval, or null if there is no interval at this time
+         */
+        ITmfStateInterval query(long t, int quark) {
+            Columns columns = fColumns;
+            int size = columns.fSize;
+            int index = findEnd(columns.fEnds, size, t);
+            if (index < size && columns.fStarts[index] <= t) {
+                return new TmfStateInterval(columns.fStarts[index], columns.fEnds[index], quark, columns.fValues[index]);
+            }
+            return null;
+        }
+
+        /**
+         * Write the state intersecting a timestamp to a buffer, without
+         * creating an interval.
+         */
+        void query(long t, int quark, TmfFullStateBuffer buffer) {
+            Columns columns = fColumns;
+            int size = columns.fSize;
+            int index = findEnd(columns.fEnds, size, t);
+            if (index < size && columns.fStarts[index] <= t) {
+                buffer.set(quark, columns.fStarts[index], columns.fEnds[index], columns.fValues[index]);
+            }
+        }
+
+        /**
+         * Add the intervals intersecting a time range to a list.
+         */
+        void query(long start, long end, int quark, List<ITmfStateInterval> results) {
+            Columns columns = fColumns;
+            int size = columns.fSize;
+            for (int i = findEnd(columns.fEnds, size, start); i < size && columns.fStarts[i] <= end; i++) {
+                results.add(new TmfStateInterval(columns.fStarts[i], columns.fEnds[i], quark, columns.fValues[i]));
+            }
+        }
+
+        /**
+         * Binary search for the first interval ending at or after a
+         * timestamp.
+         *
+         * @return The index of that interval, or 'size' if there is none
+         */
+        private static int findEnd(long[] ends, int size, long t) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ends[mid] < t) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
+            }
+            return low;
+        }
 
-            };
+        private static void copy(Columns src, int srcPos, Columns dest, int destPos, int length) {
+            System.arraycopy(src.fStarts, srcPos, dest.fStarts, destPos, length);
+            System.arraycopy(src.fEnds, srcPos, dest.fEnds, destPos, length);
+            System.arraycopy(src.fValues, srcPos, dest.fValues, destPos, length);
+        }
+    }
 
     private final @NonNull String ssid;
-    private final TreeSet<ITmfStateInterval> intervals;
     private final long startTime;
 
+    /** The intervals of every attribute, indexed by quark */
+    private volatile AttributeIntervals[] attributes = new AttributeIntervals[0];
+
     private volatile long latestTime;
 
     /**
@@ -91,7 +217,6 @@ public class InMemoryBackend implements IStateHistoryBackend {
         this.ssid = ssid;
         this.startTime = startTime;
         this.latestTime = startTime;
-        this.intervals = new TreeSet<>(END_COMPARATOR);
     }
 
     @Override
@@ -117,12 +242,7 @@ public class InMemoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(ssid + " Interval Start:" + stateStartTime + ", Interval End:" + stateEndTime + ", Backend Start:" + startTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        ITmfStateInterval interval = new TmfStateInterval(stateStartTime, stateEndTime, quark, value);
-
-        /* Add the interval into the tree */
-        synchronized (intervals) {
-            intervals.add(interval);
-        }
+        getOrCreateAttribute(quark).add(stateStartTime, stateEndTime, value);
 
         /* Update the "latest seen time" */
         if (stateEndTime > latestTime) {
@@ -130,6 +250,36 @@ public class InMemoryBackend implements IStateHistoryBackend {
         }
     }
 
+    private AttributeIntervals getOrCreateAttribute(int quark) {
+        AttributeIntervals[] array = attributes;
+        if (quark < array.length && array[quark] != null) {
+            return array[quark];
+        }
+        synchronized (this) {
+            array = attributes;
+            if (quark < array.length && array[quark] != null) {
+                return array[quark];
+            }
+            /*
+             * Readers may be going through the published array, so never
+             * modify it: fill a copy, and publish it with a single write.
+             */
+            AttributeIntervals[] newArray = Arrays.copyOf(array, Math.max(quark + 1, array.length));
+            AttributeIntervals attribute = new AttributeIntervals();
+            newArray[quark] = attribute;
+            attributes = newArray;
+            return attribute;
+        }
+    }
+
+    private AttributeIntervals getAttribute(int quark) {
+        AttributeIntervals[] array = attributes;
+        if (quark < 0 || quark >= array.length) {
+            return null;
+        }
+        return array[quark];
+    }
+
     @Override
     public void doQuery(List<ITmfStateInterval> currentStateInfo, long t)
             throws TimeRangeException {
@@ -137,24 +287,35 @@ public class InMemoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        /*
-         * The intervals are sorted by end time, so we can binary search to get
-         * the first possible interval, then only compare their start times.
-         */
-        synchronized (intervals) {
-            Iterator<ITmfStateInterval> iter = serachforEndTime(intervals, t);
-            for (int modCount = 0; iter.hasNext() && modCount < currentStateInfo.size();) {
-                ITmfStateInterval entry = iter.next();
-                final long entryStartTime = entry.getStartTime();
-                if (entryStartTime <= t) {
-                    /* Add this interval to the returned values */
-                    currentStateInfo.set(entry.getAttribute(), entry);
-                    modCount++;
+        AttributeIntervals[] array = attributes;
+        int nbAttributes = Math.min(array.length, currentStateInfo.size());
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            AttributeIntervals attribute = array[quark];
+            if (attribute != null) {
+                ITmfStateInterval interval = attribute.query(t, quark);
+                if (interval != null) {
+                    currentStateInfo.set(quark, interval);
                 }
             }
         }
     }
 
+    @Override
+    public void doQuery(TmfFullStateBuffer buffer, long t) throws TimeRangeException {
+        if (!checkValidTime(t)) {
+            throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        AttributeIntervals[] array = attributes;
+        int nbAttributes = Math.min(array.length, buffer.size());
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            AttributeIntervals attribute = array[quark];
+            if (attribute != null) {
+                attribute.query(t, quark, buffer);
+            }
+        }
+    }
+
     @Override
     public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
             throws TimeRangeException, AttributeNotFoundException {
@@ -162,25 +323,65 @@ public class InMemoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
+        AttributeIntervals attribute = getAttribute(attributeQuark);
+        ITmfStateInterval interval = (attribute == null ? null : attribute.query(t, attributeQuark));
+        if (interval == null) {
+            throw new AttributeNotFoundException(ssid + " Quark:" + attributeQuark); //$NON-NLS-1$
+        }
+        return interval;
+    }
+
+    @Override
+    public void doMultiQuery(long[] times, int[] quarks, ITmfStateInterval[][] results)
+            throws TimeRangeException, AttributeNotFoundException {
+        for (long t : times) {
+            if (!checkValidTime(t)) {
+                throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+        }
+
+        /* Every attribute is stored separately, so go one column at a time */
+        for (int j = 0; j < quarks.length; j++) {
+            AttributeIntervals attribute = getAttribute(quarks[j]);
+            for (int i = 0; i < times.length; i++) {
+                if (results[i][j] != null) {
+                    continue;
+                }
+                ITmfStateInterval interval = (attribute == null ? null : attribute.query(times[i], quarks[j]));
+                if (interval == null) {
+                    /* Same behaviour as doSingularQuery() */
+                    throw new AttributeNotFoundException(ssid + " Quark:" + quarks[j]); //$NON-NLS-1$
+                }
+                results[i][j] = interval;
+            }
+        }
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, long start, long end)
+            throws TimeRangeException {
+        if (end < start) {
+            throw new TimeRangeException(ssid + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        BitSet quarkSet = new BitSet();
+        for (int quark : quarks) {
+            if (quark >= 0) {
+                quarkSet.set(quark);
+            }
+        }
+
         /*
-         * The intervals are sorted by end time, so we can binary search to get
-         * the first possible interval, then only compare their start times.
+         * Everything is in memory already, so there is no point in being lazy
+         * here. The intervals are returned attribute by attribute.
          */
-        synchronized (intervals) {
-            Iterator<ITmfStateInterval> iter = serachforEndTime(intervals, t);
-            while (iter.hasNext()) {
-                ITmfStateInterval entry = iter.next();
-                final boolean attributeMatches = (entry.getAttribute() == attributeQuark);
-                final long entryStartTime = entry.getStartTime();
-                if (attributeMatches) {
-                    if (entryStartTime <= t) {
-                        /* This is the droid we are looking for */
-                        return entry;
-                    }
-                }
+        List<ITmfStateInterval> ret = new ArrayList<>();
+        for (int quark = quarkSet.nextSetBit(0); quark >= 0; quark = quarkSet.nextSetBit(quark + 1)) {
+            AttributeIntervals attribute = getAttribute(quark);
+            if (attribute != null) {
+                attribute.query(start, end, quark, ret);
             }
         }
-        throw new AttributeNotFoundException(ssid + " Quark:" + attributeQuark); //$NON-NLS-1$
+        return ret;
     }
 
     private boolean checkValidTime(long t) {
@@ -225,21 +426,14 @@ public class InMemoryBackend implements IStateHistoryBackend {
 
     @Override
     public void debugPrint(PrintWriter writer) {
-        synchronized (intervals) {
-            writer.println(intervals.toString());
-        }
-    }
-
-    private static Iterator<ITmfStateInterval> serachforEndTime(TreeSet<ITmfStateInterval> tree, long time) {
-        ITmfStateInterval dummyInterval = new TmfStateInterval(-1, time, -1, null);
-        ITmfStateInterval myInterval = tree.lower(dummyInterval);
-        if (myInterval == null) {
-            return tree.iterator();
+        AttributeIntervals[] array = attributes;
+        List<ITmfStateInterval> intervals = new ArrayList<>();
+        for (int quark = 0; quark < array.length; quark++) {
+            if (array[quark] != null) {
+                array[quark].query(startTime, Long.MAX_VALUE, quark, intervals);
+            }
         }
-        final SortedSet<ITmfStateInterval> tailSet = tree.tailSet(myInterval);
-        Iterator<ITmfStateInterval> retVal = tailSet.iterator();
-        retVal.next();
-        return retVal;
+        writer.println(intervals.toString());
     }
 
 }
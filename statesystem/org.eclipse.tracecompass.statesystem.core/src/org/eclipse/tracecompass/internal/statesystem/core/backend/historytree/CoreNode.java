@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2010, 2014 Ericsson, École Polytechnique de Montréal, and others
+ * Copyright (c) 2010, 2015 Ericsson, École Polytechnique de Montréal, and others
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -213,12 +213,26 @@ public final class CoreNode extends HTNode {
      *            The SHTNode object of the new child
      */
     public void linkNewChild(HTNode childNode) {
+        linkNewChild(childNode.getSequenceNumber(), childNode.getNodeStart());
+    }
+
+    /**
+     * Tell this node that it has a new child, of which only the sequence
+     * number and start time are known, for example because it was already
+     * written to disk.
+     *
+     * @param childSeqNumber
+     *            The sequence number of the new child
+     * @param childNodeStart
+     *            The start time of the new child
+     */
+    void linkNewChild(int childSeqNumber, long childNodeStart) {
         rwl.writeLock().lock();
         try {
             assert (nbChildren < getConfig().getMaxChildren());
 
-            children[nbChildren] = childNode.getSequenceNumber();
-            childStart[nbChildren] = childNode.getNodeStart();
+            children[nbChildren] = childSeqNumber;
+            childStart[nbChildren] = childNodeStart;
             nbChildren++;
 
         } finally {
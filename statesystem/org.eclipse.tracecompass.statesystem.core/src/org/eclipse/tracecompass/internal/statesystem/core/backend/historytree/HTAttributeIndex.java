@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Secondary index of a finished history tree, giving for each attribute the
+ * sorted sequence numbers of the nodes that hold its intervals, along with the
+ * time range of every node.
+ *
+ * With it, the intervals of a few attributes can be read from their own nodes
+ * only, instead of going down the tree from the root. This is the most useful
+ * for sparse attributes, whose intervals are spread in few nodes.
+ *
+ * The index is saved in a file next to the history file, and checked against
+ * the tree when it is loaded again.
+ */
+public final class HTAttributeIndex {
+
+    /** Suffix of the index file, added to the name of the history file */
+    public static final String FILE_SUFFIX = ".idx"; //$NON-NLS-1$
+
+    private static final int MAGIC_NUMBER = 0x05FFA1D0;
+    private static final int FILE_VERSION = 1;
+
+    private static final int[] NO_NODES = new int[0];
+
+    private final long fTreeStart;
+    private final long fTreeEnd;
+    private final long fFileLength;
+
+    /* Time range of every node, indexed by sequence number */
+    private final long[] fNodeStarts;
+    private final long[] fNodeEnds;
+
+    /* Sorted sequence numbers of the nodes of every attribute */
+    private final int[][] fNodesPerQuark;
+
+    private HTAttributeIndex(long treeStart, long treeEnd, long fileLength,
+            long[] nodeStarts, long[] nodeEnds, int[][] nodesPerQuark) {
+        fTreeStart = treeStart;
+        fTreeEnd = treeEnd;
+        fFileLength = fileLength;
+        fNodeStarts = nodeStarts;
+        fNodeEnds = nodeEnds;
+        fNodesPerQuark = nodesPerQuark;
+    }
+
+    /**
+     * Get the index file of a history file.
+     *
+     * @param historyFile
+     *            The history file
+     * @return The index file
+     */
+    public static File getIndexFile(File historyFile) {
+        return new File(historyFile.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Build the index of a tree, by reading all its nodes once.
+     *
+     * @param tree
+     *            The tree, which must be closed
+     * @return The index
+     * @throws ClosedChannelException
+     *             If the tree's file was closed
+     */
+    public static HTAttributeIndex build(HistoryTree tree) throws ClosedChannelException {
+        int nodeCount = tree.getNodeCount();
+        long[] nodeStarts = new long[nodeCount];
+        long[] nodeEnds = new long[nodeCount];
+        int[][] nodesPerQuark = new int[0][];
+        int[] sizes = new int[0];
+
+        for (int seq = 0; seq < nodeCount; seq++) {
+            HTNode node = tree.readNode(seq);
+            nodeStarts[seq] = node.getNodeStart();
+            nodeEnds[seq] = node.getNodeEnd();
+            for (HTInterval interval : node.getIntervals()) {
+                int quark = interval.getAttribute();
+                if (quark >= nodesPerQuark.length) {
+                    int capacity = Math.max(quark + 1, nodesPerQuark.length * 2);
+                    nodesPerQuark = Arrays.copyOf(nodesPerQuark, capacity);
+                    sizes = Arrays.copyOf(sizes, capacity);
+                }
+                int[] nodes = nodesPerQuark[quark];
+                int size = sizes[quark];
+                /* The nodes are read in order, so only the last one can repeat */
+                if (nodes != null && size > 0 && nodes[size - 1] == seq) {
+                    continue;
+                }
+                if (nodes == null) {
+                    nodes = new int[4];
+                } else if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                }
+                nodes[size] = seq;
+                nodesPerQuark[quark] = nodes;
+                sizes[quark] = size + 1;
+            }
+        }
+
+        for (int quark = 0; quark < nodesPerQuark.length; quark++) {
+            int[] nodes = nodesPerQuark[quark];
+            nodesPerQuark[quark] = (nodes == null ? NO_NODES : Arrays.copyOf(nodes, sizes[quark]));
+        }
+        return new HTAttributeIndex(tree.getTreeStart(), tree.getTreeEnd(), tree.getFileSize(),
+                nodeStarts, nodeEnds, nodesPerQuark);
+    }
+
+    /**
+     * Save the index to a file.
+     *
+     * @param file
+     *            The file to write
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(FILE_VERSION);
+            /* Used to check that the file matches the history */
+            out.writeLong(fTreeStart);
+            out.writeLong(fTreeEnd);
+            out.writeLong(fFileLength);
+            out.writeInt(fNodeStarts.length);
+            for (int seq = 0; seq < fNodeStarts.length; seq++) {
+                out.writeLong(fNodeStarts[seq]);
+                out.writeLong(fNodeEnds[seq]);
+            }
+            out.writeInt(fNodesPerQuark.length);
+            for (int[] nodes : fNodesPerQuark) {
+                out.writeInt(nodes.length);
+                for (int seq : nodes) {
+                    out.writeInt(seq);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the index of a tree from a file written by {@link #save}.
+     *
+     * @param file
+     *            The file to read
+     * @param tree
+     *            The tree, opened from an existing history file
+     * @return The index, or null if the file does not exist or does not match
+     *         the tree
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public static @Nullable HTAttributeIndex load(File file, HistoryTree tree) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC_NUMBER || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            long treeStart = in.readLong();
+            long treeEnd = in.readLong();
+            long fileLength = in.readLong();
+            int nodeCount = in.readInt();
+            if (treeStart != tree.getTreeStart() || treeEnd != tree.getTreeEnd() ||
+                    fileLength != tree.getFileSize() || nodeCount != tree.getNodeCount()) {
+                return null;
+            }
+            long[] nodeStarts = new long[nodeCount];
+            long[] nodeEnds = new long[nodeCount];
+            for (int seq = 0; seq < nodeCount; seq++) {
+                nodeStarts[seq] = in.readLong();
+                nodeEnds[seq] = in.readLong();
+            }
+            int[][] nodesPerQuark = new int[in.readInt()][];
+            for (int quark = 0; quark < nodesPerQuark.length; quark++) {
+                int[] nodes = new int[in.readInt()];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = in.readInt();
+                }
+                nodesPerQuark[quark] = nodes;
+            }
+            return new HTAttributeIndex(treeStart, treeEnd, fileLength, nodeStarts, nodeEnds, nodesPerQuark);
+        }
+    }
+
+    /**
+     * Get the nodes holding intervals of an attribute.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The sequence numbers of the nodes, sorted. The array must not
+     *         be modified.
+     */
+    public int[] getNodes(int quark) {
+        if (quark < 0 || quark >= fNodesPerQuark.length) {
+            return NO_NODES;
+        }
+        return fNodesPerQuark[quark];
+    }
+
+    /**
+     * Get the nodes holding intervals of a set of attributes, whose time range
+     * intersects a given range.
+     *
+     * @param quarks
+     *            The quarks of the attributes
+     * @param start
+     *            The start of the time range (inclusive)
+     * @param end
+     *            The end of the time range (inclusive)
+     * @return The sequence numbers of the nodes, sorted
+     */
+    public int[] getNodes(BitSet quarks, long start, long end) {
+        BitSet seqs = new BitSet(fNodeStarts.length);
+        for (int quark = quarks.nextSetBit(0); quark >= 0; quark = quarks.nextSetBit(quark + 1)) {
+            for (int seq : getNodes(quark)) {
+                if (intersects(seq, start, end)) {
+                    seqs.set(seq);
+                }
+            }
+        }
+        int[] ret = new int[seqs.cardinality()];
+        int i = 0;
+        for (int seq = seqs.nextSetBit(0); seq >= 0; seq = seqs.nextSetBit(seq + 1)) {
+            ret[i++] = seq;
+        }
+        return ret;
+    }
+
+    /**
+     * Check if the time range of a node intersects a given range.
+     *
+     * @param seq
+     *            The sequence number of the node
+     * @param start
+     *            The start of the time range (inclusive)
+     * @param end
+     *            The end of the time range (inclusive)
+     * @return True if the node's range intersects it
+     */
+    public boolean intersects(int seq, long start, long end) {
+        return fNodeStarts[seq] <= end && fNodeEnds[seq] >= start;
+    }
+}
@@ -21,6 +21,25 @@ import java.io.File;
  */
 public final class HTConfig {
 
+    /**
+     * The way intervals are encoded in the nodes of the history file.
+     */
+    public enum NodeFormat {
+        /**
+         * Fixed-size entries, with the full start and end times, and string
+         * values written in full for every interval.
+         */
+        CLASSIC,
+
+        /**
+         * Variable-length entries, with the timestamps stored as varints
+         * relative to the node start, the type packed with small integer
+         * values in one byte, and string values stored once per node in a
+         * dictionary.
+         */
+        COMPACT
+    }
+
     private static final int DEFAULT_BLOCKSIZE = 64 * 1024;
     private static final int DEFAULT_MAXCHILDREN = 50;
 
@@ -29,6 +48,7 @@ public final class HTConfig {
     private final int maxChildren;
     private final int providerVersion;
     private final long treeStart;
+    private final NodeFormat nodeFormat;
 
     /**
      * Full constructor.
@@ -47,14 +67,40 @@ public final class HTConfig {
      *            uselessly.
      * @param startTime
      *            The start time of the history
+     * @param nodeFormat
+     *            The encoding to use for the intervals in the nodes
      */
     public HTConfig(File newStateFile, int blockSize, int maxChildren,
-            int providerVersion, long startTime) {
+            int providerVersion, long startTime, NodeFormat nodeFormat) {
         this.stateFile = newStateFile;
         this.blockSize = blockSize;
         this.maxChildren = maxChildren;
         this.providerVersion = providerVersion;
         this.treeStart = startTime;
+        this.nodeFormat = nodeFormat;
+    }
+
+    /**
+     * Version of the constructor using the classic node format.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param blockSize
+     *            The size of each "block" on disk. One node will always fit in
+     *            one block.
+     * @param maxChildren
+     *            The maximum number of children allowed per core (non-leaf)
+     *            node.
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     */
+    public HTConfig(File newStateFile, int blockSize, int maxChildren,
+            int providerVersion, long startTime) {
+        this(newStateFile, blockSize, maxChildren, providerVersion, startTime, NodeFormat.CLASSIC);
     }
 
     /**
@@ -74,6 +120,25 @@ public final class HTConfig {
         this(newStateFile, DEFAULT_BLOCKSIZE, DEFAULT_MAXCHILDREN, providerVersion, startTime);
     }
 
+    /**
+     * Version of the constructor using default values for 'blockSize' and
+     * 'maxChildren', with the given node format.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     * @param nodeFormat
+     *            The encoding to use for the intervals in the nodes
+     */
+    public HTConfig(File newStateFile, int providerVersion, long startTime, NodeFormat nodeFormat) {
+        this(newStateFile, DEFAULT_BLOCKSIZE, DEFAULT_MAXCHILDREN, providerVersion, startTime, nodeFormat);
+    }
+
     // ------------------------------------------------------------------------
     // Getters
     // ------------------------------------------------------------------------
@@ -122,4 +187,13 @@ public final class HTConfig {
     public long getTreeStart() {
         return treeStart;
     }
+
+    /**
+     * Get the encoding of the intervals in the nodes
+     *
+     * @return The node format
+     */
+    public NodeFormat getNodeFormat() {
+        return nodeFormat;
+    }
 }
@@ -17,10 +17,11 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
-import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
-import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfPrimitiveStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
@@ -30,7 +31,7 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
  *
  * @author Alexandre Montplaisir
  */
-public final class HTInterval implements ITmfStateInterval, Comparable<HTInterval> {
+public final class HTInterval implements ITmfPrimitiveStateInterval, Comparable<HTInterval> {
 
     private static final String errMsg = "Invalid interval data. Maybe your file is corrupt?"; //$NON-NLS-1$
 
@@ -53,6 +54,15 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     private static final byte TYPE_LONG = 2;
     private static final byte TYPE_DOUBLE = 3;
 
+    /*
+     * In the compact format, the low bits of the first byte of an entry are
+     * the type (the 'Byte' equivalent above + 1), and the high bits can hold
+     * a small integer value directly (value + 1, 0 meaning it is not there).
+     */
+    private static final int COMPACT_TYPE_BITS = 3;
+    private static final int COMPACT_TYPE_MASK = (1 << COMPACT_TYPE_BITS) - 1;
+    private static final int COMPACT_MAX_INLINE_INT = (1 << (8 - COMPACT_TYPE_BITS)) - 2;
+
     /* String entry sizes of different state values */
     private static final int NO_ENTRY_SIZE = 0;
     private static final int LONG_ENTRY_SIZE = 8;
@@ -62,7 +72,16 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     private final long start;
     private final long end;
     private final int attribute;
-    private final TmfStateValue sv;
+
+    /*
+     * The state value is kept unboxed: integer and long values as is, double
+     * values as their bits. The value object is only created when requested.
+     * String values are kept in their value object, which only wraps the
+     * string, so that it is not copied and checked again on every request.
+     */
+    private final ITmfStateValue.Type type;
+    private final long value;
+    private final @Nullable ITmfStateValue stringValue;
 
     /*
      * Size of the strings section entry used by this interval (= 0 if not used)
@@ -93,8 +112,28 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         this.start = intervalStart;
         this.end = intervalEnd;
         this.attribute = attribute;
-        this.sv = value;
-        this.stringsEntrySize = computeStringsEntrySize();
+        this.type = value.getType();
+        switch (type) {
+        case INTEGER:
+        case LONG:
+            this.value = value.unboxLong();
+            this.stringValue = null;
+            break;
+        case DOUBLE:
+            this.value = Double.doubleToRawLongBits(value.unboxDouble());
+            this.stringValue = null;
+            break;
+        case STRING:
+            this.value = 0;
+            this.stringValue = value;
+            break;
+        case NULL:
+        default:
+            this.value = 0;
+            this.stringValue = null;
+            break;
+        }
+        this.stringsEntrySize = computeStringsEntrySize(type, getStringValue());
     }
 
     /**
@@ -104,7 +143,8 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
      * {@link #computeStringsEntrySize()} and do an extra copy.
      */
     private HTInterval(long intervalStart, long intervalEnd, int attribute,
-            TmfStateValue value, int size) throws TimeRangeException {
+            ITmfStateValue.Type type, long value, @Nullable String stringValue,
+            int size) throws TimeRangeException {
         if (intervalStart > intervalEnd) {
             throw new TimeRangeException("Start:" + intervalStart + ", End:" + intervalEnd); //$NON-NLS-1$ //$NON-NLS-2$
         }
@@ -112,7 +152,9 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         this.start = intervalStart;
         this.end = intervalEnd;
         this.attribute = attribute;
-        this.sv = value;
+        this.type = type;
+        this.value = value;
+        this.stringValue = (stringValue == null ? null : TmfStateValue.newValueString(stringValue));
         this.stringsEntrySize = size;
     }
 
@@ -130,7 +172,9 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         HTInterval interval;
         long intervalStart, intervalEnd;
         int attribute;
-        TmfStateValue value;
+        ITmfStateValue.Type type;
+        long value = 0;
+        String stringValue = null;
         int valueOrOffset, valueSize, res;
         byte valueType;
         byte array[];
@@ -146,13 +190,14 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         switch (valueType) {
 
         case TYPE_NULL:
-            value = TmfStateValue.nullValue();
+            type = ITmfStateValue.Type.NULL;
             valueSize = NO_ENTRY_SIZE;
             break;
 
         case TYPE_INTEGER:
             /* "ValueOrOffset" is the straight value */
-            value = TmfStateValue.newValueInt(valueOrOffset);
+            type = ITmfStateValue.Type.INTEGER;
+            value = valueOrOffset;
             valueSize = NO_ENTRY_SIZE;
             break;
 
@@ -172,7 +217,8 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
              */
             array = new byte[valueSize - 2];
             buffer.get(array);
-            value = TmfStateValue.newValueString(new String(array));
+            type = ITmfStateValue.Type.STRING;
+            stringValue = new String(array);
 
             /* Confirm the 0'ed byte at the end */
             res = buffer.get();
@@ -191,7 +237,8 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             /* Go read the matching entry in the Strings section of the block */
             buffer.mark();
             buffer.position(valueOrOffset);
-            value = TmfStateValue.newValueLong(buffer.getLong());
+            type = ITmfStateValue.Type.LONG;
+            value = buffer.getLong();
             valueSize = LONG_ENTRY_SIZE;
 
             /*
@@ -205,7 +252,8 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             /* Go read the matching entry in the Strings section of the block */
             buffer.mark();
             buffer.position(valueOrOffset);
-            value = TmfStateValue.newValueDouble(buffer.getDouble());
+            type = ITmfStateValue.Type.DOUBLE;
+            value = Double.doubleToRawLongBits(buffer.getDouble());
             valueSize = DOUBLE_ENTRY_SIZE;
 
             /*
@@ -221,7 +269,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         }
 
         try {
-            interval = new HTInterval(intervalStart, intervalEnd, attribute, value, valueSize);
+            interval = new HTInterval(intervalStart, intervalEnd, attribute, type, value, stringValue, valueSize);
         } catch (TimeRangeException e) {
             throw new IOException(errMsg);
         }
@@ -246,32 +294,22 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         buffer.putLong(start);
         buffer.putLong(end);
         buffer.putInt(attribute);
-        buffer.put(getByteFromType(sv.getType()));
+        buffer.put(getByteFromType(type));
 
-        switch (getByteFromType(sv.getType())) {
+        switch (getByteFromType(type)) {
 
         case TYPE_NULL:
+            /* Same as the integer value of a null state value */
+            buffer.putInt(-1);
+            break;
+
         case TYPE_INTEGER:
             /* We write the 'valueOffset' field as a straight value. */
-            try {
-                buffer.putInt(sv.unboxInt());
-            } catch (StateValueTypeException e) {
-                /*
-                 * This should not happen, since the value told us it was of
-                 * type Null or Integer (corrupted value?)
-                 */
-                e.printStackTrace();
-            }
+            buffer.putInt((int) value);
             break;
 
         case TYPE_STRING:
-            byte[] byteArrayToWrite;
-            try {
-                byteArrayToWrite = sv.unboxStr().getBytes();
-            } catch (StateValueTypeException e1) {
-                /* Should not happen, we're in a switch/case for string type */
-                throw new RuntimeException();
-            }
+            byte[] byteArrayToWrite = getNonNullString().getBytes();
 
             /* we use the valueOffset as an offset. */
             buffer.putInt(endPosOfStringEntry - stringsEntrySize);
@@ -297,15 +335,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             /*
              * write the Long in the Strings section
              */
-            try {
-                buffer.putLong(sv.unboxLong());
-            } catch (StateValueTypeException e) {
-                /*
-                 * This should not happen, since the value told us it was of
-                 * type Long (corrupted value?)
-                 */
-                e.printStackTrace();
-            }
+            buffer.putLong(value);
             assert (buffer.position() == endPosOfStringEntry);
             buffer.reset();
             break;
@@ -317,15 +347,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             buffer.position(endPosOfStringEntry - stringsEntrySize);
 
             /* Write the Double in the Strings section */
-            try {
-                buffer.putDouble(sv.unboxDouble());
-            } catch (StateValueTypeException e) {
-                /*
-                 * This should not happen, since the value told us it was of
-                 * type Double (corrupted value?)
-                 */
-                e.printStackTrace();
-            }
+            buffer.putLong(value);
             if (buffer.position() != endPosOfStringEntry) {
                 throw new IllegalStateException();
             }
@@ -338,6 +360,229 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         return stringsEntrySize;
     }
 
+    /**
+     * Reader factory method for the compact node format. Builds the interval
+     * from its variable-length entry in the data section of a node.
+     *
+     * @param buffer
+     *            The ByteBuffer from which to read the information
+     * @param nodeStart
+     *            The start time of the node, to which the interval start
+     *            times are relative
+     * @param strings
+     *            The string dictionary of the node
+     * @return The interval object
+     * @throws IOException
+     *             If there was an error reading from the buffer
+     */
+    public static final HTInterval readCompactFrom(ByteBuffer buffer, long nodeStart,
+            List<String> strings) throws IOException {
+        int tag = buffer.get() & 0xFF;
+        long intervalStart = nodeStart + decodeZigZag(getVarLong(buffer));
+        long intervalEnd = intervalStart + getVarLong(buffer);
+        int attribute = (int) getVarLong(buffer);
+
+        ITmfStateValue.Type type;
+        long value = 0;
+        String stringValue = null;
+        int inlineValue = tag >>> COMPACT_TYPE_BITS;
+        switch ((byte) ((tag & COMPACT_TYPE_MASK) - 1)) {
+        case TYPE_NULL:
+            type = ITmfStateValue.Type.NULL;
+            break;
+
+        case TYPE_INTEGER:
+            type = ITmfStateValue.Type.INTEGER;
+            if (inlineValue != 0) {
+                value = inlineValue - 1;
+            } else {
+                value = (int) decodeZigZag(getVarLong(buffer));
+            }
+            break;
+
+        case TYPE_STRING:
+            long index = getVarLong(buffer);
+            if (index < 0 || index >= strings.size()) {
+                throw new IOException(errMsg);
+            }
+            type = ITmfStateValue.Type.STRING;
+            stringValue = strings.get((int) index);
+            break;
+
+        case TYPE_LONG:
+            type = ITmfStateValue.Type.LONG;
+            value = decodeZigZag(getVarLong(buffer));
+            break;
+
+        case TYPE_DOUBLE:
+            type = ITmfStateValue.Type.DOUBLE;
+            value = Double.doubleToRawLongBits(buffer.getDouble());
+            break;
+
+        default:
+            /* Unknown data, better to not make anything up... */
+            throw new IOException(errMsg);
+        }
+
+        try {
+            return new HTInterval(intervalStart, intervalEnd, attribute, type, value, stringValue,
+                    computeStringsEntrySize(type, stringValue));
+        } catch (TimeRangeException e) {
+            throw new IOException(errMsg);
+        }
+    }
+
+    /**
+     * Write the entry of this interval in the compact node format. Strings
+     * are not written here, only their index in the node's dictionary.
+     *
+     * @param buffer
+     *            The already-allocated ByteBuffer corresponding to a SHT Node
+     * @param nodeStart
+     *            The start time of the node
+     * @param stringIndex
+     *            The index of this interval's string value in the dictionary
+     *            of the node. Ignored if the value is not a string.
+     */
+    public void writeCompactInterval(ByteBuffer buffer, long nodeStart, int stringIndex) {
+        byte typeByte = getByteFromType(type);
+        int inlineValue = getInlineValue();
+        buffer.put((byte) ((inlineValue << COMPACT_TYPE_BITS) | (typeByte + 1)));
+        putVarLong(buffer, encodeZigZag(start - nodeStart));
+        putVarLong(buffer, end - start);
+        putVarLong(buffer, attribute);
+
+        switch (typeByte) {
+        case TYPE_INTEGER:
+            if (inlineValue == 0) {
+                putVarLong(buffer, encodeZigZag(value));
+            }
+            break;
+        case TYPE_STRING:
+            putVarLong(buffer, stringIndex);
+            break;
+        case TYPE_LONG:
+            putVarLong(buffer, encodeZigZag(value));
+            break;
+        case TYPE_DOUBLE:
+            buffer.putLong(value);
+            break;
+        case TYPE_NULL:
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Size of the entry written by {@link #writeCompactInterval}.
+     *
+     * @param nodeStart
+     *            The start time of the node
+     * @param stringIndex
+     *            The index of this interval's string value in the dictionary
+     *            of the node. Ignored if the value is not a string.
+     * @return The size of the entry, in bytes
+     */
+    public int getCompactIntervalSize(long nodeStart, int stringIndex) {
+        int size = 1 + getVarLongSize(encodeZigZag(start - nodeStart))
+                + getVarLongSize(end - start)
+                + getVarLongSize(attribute);
+
+        switch (getByteFromType(type)) {
+        case TYPE_INTEGER:
+            if (getInlineValue() == 0) {
+                size += getVarLongSize(encodeZigZag(value));
+            }
+            break;
+        case TYPE_STRING:
+            size += getVarLongSize(stringIndex);
+            break;
+        case TYPE_LONG:
+            size += getVarLongSize(encodeZigZag(value));
+            break;
+        case TYPE_DOUBLE:
+            size += DOUBLE_ENTRY_SIZE;
+            break;
+        case TYPE_NULL:
+        default:
+            break;
+        }
+        return size;
+    }
+
+    /**
+     * Get the value to store in the high bits of the type byte, for small
+     * integer values.
+     */
+    private int getInlineValue() {
+        if (type == ITmfStateValue.Type.INTEGER && value >= 0 && value <= COMPACT_MAX_INLINE_INT) {
+            return (int) value + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Get the string value of this interval, if it has one.
+     *
+     * @return The string, or null if the value is not a string
+     */
+    @Nullable String getStringValue() {
+        ITmfStateValue str = stringValue;
+        return (str == null ? null : str.unboxStr());
+    }
+
+    private String getNonNullString() {
+        String str = getStringValue();
+        if (str == null) {
+            /* Only called for string values, which are never null */
+            throw new IllegalStateException();
+        }
+        return str;
+    }
+
+    // ------------------------------------------------------------------------
+    // Variable-length encoding of integers (LEB128)
+    // ------------------------------------------------------------------------
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException(errMsg);
+    }
+
+    static int getVarLongSize(long value) {
+        int size = 1;
+        long remaining = value >>> 7;
+        while (remaining != 0) {
+            size++;
+            remaining >>>= 7;
+        }
+        return size;
+    }
+
+    private static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
     @Override
     public long getStartTime() {
         return start;
@@ -360,7 +605,58 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
 
     @Override
     public ITmfStateValue getStateValue() {
-        return sv;
+        /* The factory methods reuse the objects of recent values */
+        switch (type) {
+        case INTEGER:
+            return TmfStateValue.newValueInt((int) value);
+        case LONG:
+            return TmfStateValue.newValueLong(value);
+        case DOUBLE:
+            return TmfStateValue.newValueDouble(Double.longBitsToDouble(value));
+        case STRING:
+            ITmfStateValue str = stringValue;
+            return (str == null ? TmfStateValue.nullValue() : str);
+        case NULL:
+        default:
+            return TmfStateValue.nullValue();
+        }
+    }
+
+    @Override
+    public ITmfStateValue.Type getValueType() {
+        return type;
+    }
+
+    @Override
+    public long getLongValue() {
+        switch (type) {
+        case INTEGER:
+        case LONG:
+            return value;
+        case NULL:
+            return -1;
+        case DOUBLE:
+        case STRING:
+        default:
+            /* Same exception as when unboxing the value */
+            return getStateValue().unboxLong();
+        }
+    }
+
+    @Override
+    public double getDoubleValue() {
+        switch (type) {
+        case DOUBLE:
+            return Double.longBitsToDouble(value);
+        case NULL:
+            return Double.NaN;
+        case INTEGER:
+        case LONG:
+        case STRING:
+        default:
+            /* Same exception as when unboxing the value */
+            return getStateValue().unboxDouble();
+        }
     }
 
     @Override
@@ -386,8 +682,8 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         return stringsEntrySize + DATA_ENTRY_SIZE;
     }
 
-    private int computeStringsEntrySize() {
-        switch(sv.getType()) {
+    private static int computeStringsEntrySize(ITmfStateValue.Type type, @Nullable String stringValue) {
+        switch(type) {
         case NULL:
         case INTEGER:
             /* Those don't use the strings section at all */
@@ -399,13 +695,12 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             /* The value is also written directly into the strings section */
             return DOUBLE_ENTRY_SIZE;
         case STRING:
-            try {
-                /* String's length + 2 (1 byte for size, 1 byte for \0 at the end */
-                return sv.unboxStr().getBytes().length + 2;
-            } catch (StateValueTypeException e) {
-                /* We're inside a switch/case for the string type, can't happen */
-                throw new IllegalStateException(e);
+            if (stringValue == null) {
+                /* String values are never null */
+                throw new IllegalStateException();
             }
+            /* String's length + 2 (1 byte for size, 1 byte for \0 at the end */
+            return stringValue.getBytes().length + 2;
         default:
             /* It's very important that we know how to write the state value in
              * the file!! */
@@ -456,7 +751,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         sb.append(attribute);
 
         sb.append(", value = "); //$NON-NLS-1$
-        sb.append(sv.toString());
+        sb.append(getStateValue().toString());
 
         return sb.toString();
     }
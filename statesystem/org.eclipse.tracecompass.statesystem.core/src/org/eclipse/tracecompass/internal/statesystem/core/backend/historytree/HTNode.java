@@ -19,13 +19,18 @@ import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
 /**
@@ -92,6 +97,13 @@ public abstract class HTNode {
         }
     }
 
+    /**
+     * Position of the parent sequence number in the header of a node, after
+     * the type (1 byte), the start and end times (8 bytes each) and the
+     * sequence number (4 bytes).
+     */
+    static final int PARENT_SEQ_NUMBER_OFFSET = 21;
+
     // ------------------------------------------------------------------------
     // Attributes
     // ------------------------------------------------------------------------
@@ -119,6 +131,14 @@ public abstract class HTNode {
     /* Vector containing all the intervals contained in this node */
     private final List<HTInterval> intervals;
 
+    /*
+     * String dictionary of the node, only used by the compact format. The
+     * index of a string is its position in the strings section. Nodes of the
+     * classic format share empty, immutable collections.
+     */
+    private final List<String> fStrings;
+    private final Map<String, Integer> fStringIndexes;
+
     /* Lock used to protect the accesses to intervals, nodeEnd and such */
     private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock(false);
 
@@ -144,6 +164,14 @@ public abstract class HTNode {
         this.sizeOfIntervalSection = 0;
         this.isOnDisk = false;
         this.intervals = new ArrayList<>();
+
+        if (config.getNodeFormat() == HTConfig.NodeFormat.COMPACT) {
+            fStrings = new ArrayList<>();
+            fStringIndexes = new HashMap<>();
+        } else {
+            fStrings = Collections.emptyList();
+            fStringIndexes = Collections.emptyMap();
+        }
     }
 
     /**
@@ -161,8 +189,7 @@ public abstract class HTNode {
      */
     public static final HTNode readNode(HTConfig config, FileChannel fc)
             throws IOException {
-        HTNode newNode = null;
-        int res, i;
+        int res;
 
         ByteBuffer buffer = ByteBuffer.allocate(config.getBlockSize());
         buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -171,6 +198,30 @@ public abstract class HTNode {
         assert (res == config.getBlockSize());
         buffer.flip();
 
+        return readNode(config, buffer);
+    }
+
+    /**
+     * Reader factory method. Build a Node object (of the right type) by
+     * decoding a block that is already in memory, for example a region of a
+     * memory-mapped history file.
+     *
+     * @param config
+     *            Configuration of the History Tree
+     * @param buffer
+     *            Buffer containing exactly one node block. Position 0 of the
+     *            buffer must be the start of the node, since the offsets
+     *            stored in the node are relative to it. The buffer must use
+     *            little-endian byte order.
+     * @return The node object
+     * @throws IOException
+     *             If the contents of the buffer could not be decoded
+     */
+    public static final HTNode readNode(HTConfig config, ByteBuffer buffer)
+            throws IOException {
+        HTNode newNode = null;
+        int i;
+
         /* Read the common header part */
         byte typeByte = buffer.get();
         NodeType type = NodeType.fromByte(typeByte);
@@ -205,8 +256,24 @@ public abstract class HTNode {
          * At this point, we should be done reading the header and 'buffer'
          * should only have the intervals left
          */
-        for (i = 0; i < intervalCount; i++) {
-            newNode.intervals.add(HTInterval.readFrom(buffer));
+        if (config.getNodeFormat() == HTConfig.NodeFormat.COMPACT) {
+            /* Load the string dictionary first, the intervals refer to it */
+            int dataSectionPos = buffer.position();
+            buffer.position(stringSectionOffset);
+            while (buffer.position() < config.getBlockSize()) {
+                byte[] array = new byte[(int) HTInterval.getVarLong(buffer)];
+                buffer.get(array);
+                newNode.addString(new String(array, StandardCharsets.UTF_8));
+            }
+            buffer.position(dataSectionPos);
+
+            for (i = 0; i < intervalCount; i++) {
+                newNode.intervals.add(HTInterval.readCompactFrom(buffer, start, newNode.fStrings));
+            }
+        } else {
+            for (i = 0; i < intervalCount; i++) {
+                newNode.intervals.add(HTInterval.readFrom(buffer));
+            }
         }
 
         /* Assign the node's other information we have read previously */
@@ -227,6 +294,20 @@ public abstract class HTNode {
      *             If there was an error writing
      */
     public final void writeSelf(FileChannel fc) throws IOException {
+        ByteBuffer buffer = serialize();
+        int res = fc.write(buffer);
+        assert (res == config.getBlockSize());
+        isOnDisk = true;
+    }
+
+    /**
+     * Serialize this node into a new buffer, the size of one block. The
+     * returned buffer is flipped, ready to be written at the position of the
+     * node in the file.
+     *
+     * @return The buffer containing the node
+     */
+    public final ByteBuffer serialize() {
         /*
          * Yes, we are taking the *read* lock here, because we are reading the
          * information in the node to write it to disk.
@@ -254,9 +335,15 @@ public abstract class HTNode {
             this.writeSpecificHeader(buffer);
 
             /* Back to us, we write the intervals */
-            for (HTInterval interval : intervals) {
-                int size = interval.writeInterval(buffer, curStringsEntryEndPos);
-                curStringsEntryEndPos -= size;
+            if (config.getNodeFormat() == HTConfig.NodeFormat.COMPACT) {
+                for (HTInterval interval : intervals) {
+                    interval.writeCompactInterval(buffer, nodeStart, getStringIndex(interval));
+                }
+            } else {
+                for (HTInterval interval : intervals) {
+                    int size = interval.writeInterval(buffer, curStringsEntryEndPos);
+                    curStringsEntryEndPos -= size;
+                }
             }
 
             /*
@@ -268,25 +355,30 @@ public abstract class HTNode {
                 buffer.put((byte) 0);
             }
 
-            /*
-             * If the offsets were right, the size of the Strings section should
-             * be == to the expected size
-             */
-            assert (curStringsEntryEndPos == stringSectionOffset);
-
-            /* Finally, write everything in the Buffer to disk */
+            if (config.getNodeFormat() == HTConfig.NodeFormat.COMPACT) {
+                /* The dictionary fills the Strings section */
+                for (String string : fStrings) {
+                    byte[] array = string.getBytes(StandardCharsets.UTF_8);
+                    HTInterval.putVarLong(buffer, array.length);
+                    buffer.put(array);
+                }
+            } else {
+                /*
+                 * If the offsets were right, the size of the Strings section
+                 * should be == to the expected size
+                 */
+                assert (curStringsEntryEndPos == stringSectionOffset);
+            }
 
             // if we don't do this, flip() will lose what's after.
             buffer.position(blockSize);
 
             buffer.flip();
-            int res = fc.write(buffer);
-            assert (res == blockSize);
+            return buffer;
 
         } finally {
             rwl.readLock().unlock();
         }
-        isOnDisk = true;
     }
 
     // ------------------------------------------------------------------------
@@ -361,6 +453,14 @@ public abstract class HTNode {
         return isOnDisk;
     }
 
+    /**
+     * Mark this node as being on disk, when it is handed over to be written
+     * asynchronously. Its contents must not change anymore after this.
+     */
+    void setOnDisk() {
+        isOnDisk = true;
+    }
+
     /**
      * Add an interval to this node
      *
@@ -371,7 +471,7 @@ public abstract class HTNode {
         rwl.writeLock().lock();
         try {
             /* Just in case, should be checked before even calling this function */
-            assert (newInterval.getIntervalSize() <= this.getNodeFreeSpace());
+            assert (getIntervalSize(newInterval) <= this.getNodeFreeSpace());
 
             /* Find the insert position to keep the list sorted */
             int index = intervals.size();
@@ -380,15 +480,74 @@ public abstract class HTNode {
             }
 
             intervals.add(index, newInterval);
-            sizeOfIntervalSection += newInterval.getIntervalSize();
 
-            /* Update the in-node offset "pointer" */
-            stringSectionOffset -= (newInterval.getStringsEntrySize());
+            if (config.getNodeFormat() == HTConfig.NodeFormat.COMPACT) {
+                String string = newInterval.getStringValue();
+                if (string != null && !fStringIndexes.containsKey(string)) {
+                    /* Update the in-node offset "pointer" */
+                    stringSectionOffset -= getStringEntrySize(string);
+                    addString(string);
+                }
+                sizeOfIntervalSection += newInterval.getCompactIntervalSize(nodeStart, getStringIndex(newInterval));
+            } else {
+                sizeOfIntervalSection += newInterval.getIntervalSize();
+
+                /* Update the in-node offset "pointer" */
+                stringSectionOffset -= (newInterval.getStringsEntrySize());
+            }
         } finally {
             rwl.writeLock().unlock();
         }
     }
 
+    /**
+     * Get the number of bytes an interval would use if it was added to this
+     * node, which depends on the node format.
+     *
+     * @param interval
+     *            The interval
+     * @return The size of the interval in this node, in bytes
+     */
+    public int getIntervalSize(HTInterval interval) {
+        if (config.getNodeFormat() != HTConfig.NodeFormat.COMPACT) {
+            return interval.getIntervalSize();
+        }
+        rwl.readLock().lock();
+        try {
+            String string = interval.getStringValue();
+            if (string == null) {
+                return interval.getCompactIntervalSize(nodeStart, 0);
+            }
+            Integer index = fStringIndexes.get(string);
+            if (index != null) {
+                return interval.getCompactIntervalSize(nodeStart, index);
+            }
+            /* The string would be added at the end of the dictionary */
+            return interval.getCompactIntervalSize(nodeStart, fStrings.size())
+                    + getStringEntrySize(string);
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    private void addString(String string) {
+        fStringIndexes.put(string, fStrings.size());
+        fStrings.add(string);
+    }
+
+    private int getStringIndex(HTInterval interval) {
+        String string = interval.getStringValue();
+        if (string == null) {
+            return 0;
+        }
+        return fStringIndexes.get(string);
+    }
+
+    private static int getStringEntrySize(String string) {
+        int length = string.getBytes(StandardCharsets.UTF_8).length;
+        return HTInterval.getVarLongSize(length) + length;
+    }
+
     /**
      * We've received word from the containerTree that newest nodes now exist to
      * our right. (Puts isDone = true and sets the endtime)
@@ -454,6 +613,152 @@ public abstract class HTNode {
         }
     }
 
+    /**
+     * Version of {@link #writeInfoFromNode(List, long)} that fills a
+     * {@link TmfFullStateBuffer} with the primitive values of the intervals.
+     *
+     * @param buffer
+     *            The buffer of the query, sized to the number of attributes
+     * @param t
+     *            The timestamp for the query
+     * @throws TimeRangeException
+     *             If 't' is invalid
+     */
+    public void writeInfoFromNode(TmfFullStateBuffer buffer, long t)
+            throws TimeRangeException {
+        rwl.readLock().lock();
+        try {
+            for (int i = getStartIndexFor(t); i < intervals.size(); i++) {
+                HTInterval interval = intervals.get(i);
+                if (interval.getStartTime() <= t) {
+                    buffer.set(interval);
+                }
+            }
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Batched version of {@link #writeInfoFromNode(List, long)}, for a range
+     * of sorted timestamps and a subset of the attributes. Only the null
+     * entries of 'results' are written to.
+     *
+     * @param times
+     *            The timestamps of the query, sorted in ascending order
+     * @param fromIndex
+     *            Index of the first timestamp to look for (inclusive)
+     * @param toIndex
+     *            Index of the last timestamp to look for (exclusive)
+     * @param columns
+     *            The column of each quark in 'results', indexed by quark. -1
+     *            for the quarks that were not requested.
+     * @param results
+     *            The intervals found so far, indexed by [time][column]
+     * @throws TimeRangeException
+     *             If one of the timestamps is invalid
+     */
+    public void writeInfoFromNode(long[] times, int fromIndex, int toIndex,
+            int[] columns, ITmfStateInterval[][] results) throws TimeRangeException {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        rwl.readLock().lock();
+        try {
+            for (int i = getStartIndexFor(times[fromIndex]); i < intervals.size(); i++) {
+                HTInterval interval = intervals.get(i);
+                int attribute = interval.getAttribute();
+                if (attribute >= columns.length || columns[attribute] < 0) {
+                    continue;
+                }
+                int column = columns[attribute];
+                long end = interval.getEndTime();
+                for (int index = getFirstIndexAtOrAfter(times, fromIndex, toIndex, interval.getStartTime());
+                        index < toIndex && times[index] <= end; index++) {
+                    if (results[index][column] == null) {
+                        results[index][column] = interval;
+                    }
+                }
+            }
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get a copy of all the intervals of this node.
+     *
+     * @return The intervals, sorted by end time
+     */
+    List<HTInterval> getIntervals() {
+        rwl.readLock().lock();
+        try {
+            return new ArrayList<>(intervals);
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the intervals of this node that belong to a set of attributes and
+     * intersect a time range.
+     *
+     * @param quarks
+     *            The set of attribute quarks to look for
+     * @param start
+     *            The start of the time range (inclusive)
+     * @param end
+     *            The end of the time range (inclusive)
+     * @return The matching intervals, in no particular order
+     * @throws TimeRangeException
+     *             If 'start' is invalid
+     */
+    public List<HTInterval> getMatchingIntervals(BitSet quarks, long start, long end)
+            throws TimeRangeException {
+        List<HTInterval> ret = new ArrayList<>();
+        rwl.readLock().lock();
+        try {
+            for (int i = getStartIndexFor(start); i < intervals.size(); i++) {
+                HTInterval interval = intervals.get(i);
+                if (interval.getStartTime() <= end && quarks.get(interval.getAttribute())) {
+                    ret.add(interval);
+                }
+            }
+        } finally {
+            rwl.readLock().unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * Find the first timestamp of a sorted range that is greater or equal to
+     * a given time.
+     *
+     * @param times
+     *            The timestamps, sorted in ascending order
+     * @param fromIndex
+     *            Start of the range to search (inclusive)
+     * @param toIndex
+     *            End of the range to search (exclusive)
+     * @param t
+     *            The time to look for
+     * @return The index of the first timestamp &gt;= t, or toIndex if there
+     *         is none
+     */
+    static int getFirstIndexAtOrAfter(long[] times, int fromIndex, int toIndex, long t) {
+        int low = fromIndex;
+        int high = toIndex;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     /**
      * Get a single Interval from the information in this node If the
      * key/timestamp pair cannot be found, we return null.
@@ -516,7 +821,11 @@ public abstract class HTNode {
             index = 0;
         }
         if (index >= intervals.size()) {
-            index = intervals.size() - 1;
+            /*
+             * All the intervals in this node end before 't', none of them can
+             * intersect it.
+             */
+            return intervals.size();
         }
 
         /*
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+
+/**
+ * Cache of history tree nodes read from disk. Its capacity is expressed in
+ * bytes (every node counts for the block size of its tree), and least-recently
+ * used nodes are evicted first.
+ *
+ * One instance is normally shared by all the history trees that are open at
+ * the same time (see {@link #getSharedCache()}), so that the memory used for
+ * caching does not grow with the number of open state systems. Its capacity
+ * can be set with the {@value #CACHE_SIZE_PROPERTY} system property.
+ */
+public final class HTNodeCache {
+
+    /**
+     * System property that can be used to set the capacity, in bytes, of the
+     * shared cache.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "org.eclipse.tracecompass.statesystem.core.nodeCacheSize"; //$NON-NLS-1$
+
+    /** Default capacity of the shared cache, in bytes */
+    private static final long DEFAULT_CACHE_SIZE = 128L * 1024 * 1024;
+
+    private static @Nullable HTNodeCache sharedCache = null;
+
+    /**
+     * Key of the cache entries. Sequence numbers are only unique within one
+     * history file, so we also need to know which file the node comes from.
+     *
+     * The key also holds the cache generation of the file at the time of the
+     * lookup. Invalidating the entries of a file moves it to a new generation,
+     * so that its previous entries, including the ones of loads that were
+     * still running, cannot be looked up anymore.
+     */
+    private static final class CacheKey {
+        private final HT_IO fIO;
+        private final int fGeneration;
+        private final int fSeqNumber;
+
+        public CacheKey(HT_IO io, int seqNumber) {
+            fIO = io;
+            fGeneration = io.getCacheGeneration();
+            fSeqNumber = seqNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(fIO) + fGeneration) + fSeqNumber;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return (fIO == other.fIO && fGeneration == other.fGeneration && fSeqNumber == other.fSeqNumber);
+        }
+    }
+
+    private final LoadingCache<CacheKey, HTNode> fCache;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize
+     *            The capacity of the cache, in bytes
+     */
+    public HTNodeCache(long maxSize) {
+        fCache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher(new Weigher<CacheKey, HTNode>() {
+                    @Override
+                    public int weigh(CacheKey key, HTNode value) {
+                        return value.getConfig().getBlockSize();
+                    }
+                })
+                .recordStats()
+                .build(new CacheLoader<CacheKey, HTNode>() {
+                    @Override
+                    public HTNode load(CacheKey key) throws IOException {
+                        return key.fIO.readNodeFromDisk(key.fSeqNumber);
+                    }
+                });
+    }
+
+    /**
+     * Get the cache shared by all the history trees.
+     *
+     * @return The shared cache
+     */
+    public static synchronized HTNodeCache getSharedCache() {
+        HTNodeCache cache = sharedCache;
+        if (cache == null) {
+            long size = DEFAULT_CACHE_SIZE;
+            String property = System.getProperty(CACHE_SIZE_PROPERTY);
+            if (property != null) {
+                try {
+                    size = Long.parseLong(property);
+                } catch (NumberFormatException e) {
+                    Activator.getDefault().logWarning("Invalid value for " + CACHE_SIZE_PROPERTY + ": " + property); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+            }
+            cache = new HTNodeCache(size);
+            sharedCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * Get a node from the cache, reading it from the file if it is not present.
+     * If several threads ask for the same missing node, it will only be read
+     * once.
+     *
+     * @param io
+     *            The IO object of the history file the node belongs to
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The node
+     * @throws ClosedChannelException
+     *             If the history file was closed
+     * @throws IllegalStateException
+     *             If the node could not be read, for example because writing
+     *             it to the file failed
+     */
+    HTNode getNode(HT_IO io, int seqNumber) throws ClosedChannelException {
+        try {
+            return fCache.get(new CacheKey(io, seqNumber));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ClosedChannelException) {
+                throw (ClosedChannelException) cause;
+            }
+            throw new IllegalStateException("State system read error", cause); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Insert a node in the cache, for example when it just got written.
+     *
+     * @param io
+     *            The IO object of the history file the node belongs to
+     * @param node
+     *            The node to insert
+     */
+    void putNode(HT_IO io, HTNode node) {
+        fCache.put(new CacheKey(io, node.getSequenceNumber()), node);
+    }
+
+    /**
+     * Make all the nodes of a given history file unreachable in the cache. They
+     * are not looked for one by one: they are evicted like any other unused
+     * entry as the cache fills up.
+     *
+     * @param io
+     *            The IO object of the history file
+     */
+    void invalidate(HT_IO io) {
+        io.nextCacheGeneration();
+    }
+
+    // ------------------------------------------------------------------------
+    // Statistics
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the number of node reads that were served by the cache.
+     *
+     * @return The hit count
+     */
+    public long getHitCount() {
+        return fCache.stats().hitCount();
+    }
+
+    /**
+     * Get the number of node reads that had to go to the history file.
+     *
+     * @return The miss count
+     */
+    public long getMissCount() {
+        return fCache.stats().missCount();
+    }
+
+    /**
+     * Get the number of nodes that were evicted to respect the capacity of
+     * the cache.
+     *
+     * @return The eviction count
+     */
+    public long getEvictionCount() {
+        return fCache.stats().evictionCount();
+    }
+
+    /**
+     * Get the number of nodes currently in the cache.
+     *
+     * @return The number of cached nodes
+     */
+    public long getNodeCount() {
+        return fCache.size();
+    }
+
+    @SuppressWarnings("nls")
+    @Override
+    public String toString() {
+        /* Only used for debugging, shouldn't be externalized */
+        CacheStats stats = fCache.stats();
+        return "HTNodeCache: " + fCache.size() + " nodes, "
+                + stats.hitCount() + " hits, "
+                + stats.missCount() + " misses, "
+                + stats.evictionCount() + " evictions";
+    }
+}
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+
+/**
+ * Writes the closed nodes of a history tree to its file in the background, so
+ * that the thread building the tree does not wait for the disk.
+ *
+ * Nodes go through two stages, each running in its own thread. They are first
+ * serialized into block-sized buffers, then the writer stage takes them in
+ * batches and writes each run of consecutive nodes with a single gathering
+ * write. Until a node is written, it can still be obtained with
+ * {@link #getPendingNode(int)}.
+ *
+ * The number of nodes in the pipeline is bounded: {@link #submit(HTNode)}
+ * blocks when the disk cannot keep up.
+ *
+ * If a write fails, its nodes remain pending, so they can still be read, and
+ * the error is kept for the owner to report, see {@link #getWriteError()}.
+ */
+class HTNodeWriter {
+
+    private static final int MAX_PENDING_NODES = 128;
+    private static final int MAX_BATCH_SIZE = 32;
+
+    /** Marks the end of the input of a stage */
+    private static final SerializedNode END_OF_QUEUE = new SerializedNode(-1, ByteBuffer.allocate(0));
+
+    private static final class SerializedNode {
+        final int fSeqNumber;
+        final ByteBuffer fBuffer;
+
+        SerializedNode(int seqNumber, ByteBuffer buffer) {
+            fSeqNumber = seqNumber;
+            fBuffer = buffer;
+        }
+    }
+
+    private static final Comparator<SerializedNode> SEQ_NUMBER_COMPARATOR = new Comparator<SerializedNode>() {
+        @Override
+        public int compare(SerializedNode o1, SerializedNode o2) {
+            return Integer.compare(o1.fSeqNumber, o2.fSeqNumber);
+        }
+    };
+
+    private final FileChannel fFc;
+    private final long fHeaderSize;
+    private final int fBlockSize;
+
+    /** Nodes that were submitted, but are not written yet */
+    private final ConcurrentMap<Integer, HTNode> fPendingNodes = new ConcurrentHashMap<>();
+    private final Semaphore fFreeSlots = new Semaphore(MAX_PENDING_NODES);
+
+    private final BlockingQueue<HTNode> fToSerialize = new ArrayBlockingQueue<>(MAX_PENDING_NODES);
+    private final BlockingQueue<SerializedNode> fToWrite = new ArrayBlockingQueue<>(MAX_PENDING_NODES + 1);
+
+    private final Thread fSerializerThread;
+    private final Thread fWriterThread;
+
+    /**
+     * The serializer stage has no way to tell a real node from the end marker,
+     * so it is stopped with this flag and an interruption instead.
+     */
+    private volatile boolean fClosing = false;
+
+    /** The first write error, if any */
+    private volatile IOException fWriteError = null;
+
+    /**
+     * Constructor. The threads of the pipeline are started right away.
+     *
+     * @param fc
+     *            The channel of the history file to write to
+     * @param headerSize
+     *            The size of the tree header, which precedes the nodes in the
+     *            file
+     * @param blockSize
+     *            The size of each node
+     */
+    public HTNodeWriter(FileChannel fc, long headerSize, int blockSize) {
+        fFc = fc;
+        fHeaderSize = headerSize;
+        fBlockSize = blockSize;
+
+        fSerializerThread = new Thread("History Tree Node Serializer") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                serializeNodes();
+            }
+        };
+        fWriterThread = new Thread("History Tree Node Writer") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                writeNodes();
+            }
+        };
+        fSerializerThread.setDaemon(true);
+        fWriterThread.setDaemon(true);
+        fSerializerThread.start();
+        fWriterThread.start();
+    }
+
+    /**
+     * Queue a node to be written. The node must be closed, it should not be
+     * modified anymore.
+     *
+     * @param node
+     *            The node to write
+     */
+    public void submit(HTNode node) {
+        fPendingNodes.put(node.getSequenceNumber(), node);
+        fFreeSlots.acquireUninterruptibly();
+        putUninterruptibly(fToSerialize, node);
+    }
+
+    /**
+     * Get a node that was submitted but is not written to the file yet.
+     *
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The node, or null if it was already written (or never
+     *         submitted)
+     */
+    public HTNode getPendingNode(int seqNumber) {
+        return fPendingNodes.get(seqNumber);
+    }
+
+    /**
+     * Get the error of the first write that failed. The nodes of the failed
+     * writes remain available with {@link #getPendingNode(int)}.
+     *
+     * @return The write error, or null if all the writes succeeded so far
+     */
+    public IOException getWriteError() {
+        return fWriteError;
+    }
+
+    /**
+     * Wait until all the nodes submitted so far are written to the file, or
+     * failed to be written.
+     */
+    public void flush() {
+        /* Once all the slots are free, nothing is left in the pipeline */
+        fFreeSlots.acquireUninterruptibly(MAX_PENDING_NODES);
+        fFreeSlots.release(MAX_PENDING_NODES);
+    }
+
+    /**
+     * Write the remaining nodes and stop the threads. No more nodes can be
+     * submitted after this.
+     */
+    public void close() {
+        flush();
+        fClosing = true;
+        fSerializerThread.interrupt();
+        joinUninterruptibly(fSerializerThread);
+        putUninterruptibly(fToWrite, END_OF_QUEUE);
+        joinUninterruptibly(fWriterThread);
+    }
+
+    // ------------------------------------------------------------------------
+    // Pipeline stages
+    // ------------------------------------------------------------------------
+
+    private void serializeNodes() {
+        while (true) {
+            HTNode node;
+            try {
+                node = fToSerialize.take();
+            } catch (InterruptedException e) {
+                if (fClosing) {
+                    return;
+                }
+                continue;
+            }
+            SerializedNode serialized = new SerializedNode(node.getSequenceNumber(), node.serialize());
+            putUninterruptibly(fToWrite, serialized);
+        }
+    }
+
+    private void writeNodes() {
+        List<SerializedNode> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean done = false;
+        while (!done) {
+            try {
+                batch.add(fToWrite.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            fToWrite.drainTo(batch, MAX_BATCH_SIZE - 1);
+            done = batch.remove(END_OF_QUEUE);
+
+            Collections.sort(batch, SEQ_NUMBER_COMPARATOR);
+            int runStart = 0;
+            for (int i = 1; i <= batch.size(); i++) {
+                if (i == batch.size() || batch.get(i).fSeqNumber != batch.get(i - 1).fSeqNumber + 1) {
+                    List<SerializedNode> run = batch.subList(runStart, i);
+                    if (writeRun(run)) {
+                        /* The nodes are on disk now, they can be read back from there */
+                        for (SerializedNode node : run) {
+                            fPendingNodes.remove(node.fSeqNumber);
+                        }
+                    }
+                    runStart = i;
+                }
+            }
+            fFreeSlots.release(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write nodes whose sequence numbers follow each other, with one gathering
+     * write.
+     *
+     * @return True if the nodes were written, false if the write failed
+     */
+    private boolean writeRun(List<SerializedNode> run) {
+        if (run.isEmpty()) {
+            return true;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = run.get(i).fBuffer;
+        }
+        long pos = fHeaderSize + ((long) run.get(0).fSeqNumber) * fBlockSize;
+        try {
+            fFc.position(pos);
+            long remaining = ((long) buffers.length) * fBlockSize;
+            while (remaining > 0) {
+                remaining -= fFc.write(buffers);
+            }
+            return true;
+        } catch (IOException e) {
+            Activator.getDefault().logError(e.getMessage(), e);
+            if (fWriteError == null) {
+                fWriteError = e;
+            }
+            return false;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2014 Ericsson
+ * Copyright (c) 2012, 2015 Ericsson
  * Copyright (c) 2010, 2011 École Polytechnique de Montréal
  * Copyright (c) 2010, 2011 Alexandre Montplaisir <alexandre.montplaisir@gmail.com>
  *
@@ -16,8 +16,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 
@@ -30,6 +37,14 @@ import org.eclipse.tracecompass.internal.statesystem.core.Activator;
  * This abstraction is mainly for code isolation/clarification purposes. Every
  * HistoryTree must contain 1 and only 1 HT_IO element.
  *
+ * Nodes are written asynchronously by a {@link HTNodeWriter}: until a node
+ * reaches the file, reads are served from the node object itself.
+ *
+ * Reading nodes does not take any lock. While the tree is being built, nodes
+ * are read with positional reads on the input channel. Once the tree is
+ * complete, the node section of the file is memory-mapped and nodes are
+ * decoded directly from the mapped regions.
+ *
  * @author Alexandre Montplaisir
  *
  */
@@ -43,9 +58,38 @@ class HT_IO {
     private final FileChannel fcIn;
     private final FileChannel fcOut;
 
-    // TODO test/benchmark optimal cache size
-    private static final int CACHE_SIZE = 256;
-    private final HTNode fNodeCache[] = new HTNode[CACHE_SIZE];
+    /* Cache of the nodes read from this file */
+    private final HTNodeCache fNodeCache;
+
+    /*
+     * Read-only mappings of the node section, once the tree is complete. Each
+     * region holds 'fBlocksPerRegion' nodes, since a single mapping cannot be
+     * larger than 2 GB.
+     */
+    private final int fBlocksPerRegion;
+    private volatile MappedByteBuffer[] fMappedRegions = null;
+    private volatile boolean fIsClosed = false;
+
+    /*
+     * Number of nodes being decoded right now, possibly from the mapped
+     * regions. The regions are only unmapped once it drops to zero.
+     */
+    private final AtomicInteger fActiveReads = new AtomicInteger();
+
+    /*
+     * Writes the nodes in the background while the tree is being built.
+     * Created when the first node is written.
+     */
+    private volatile HTNodeWriter fNodeWriter = null;
+
+    /* Generation of the entries of this file in the node cache */
+    private final AtomicInteger fCacheGeneration = new AtomicInteger();
+
+    /*
+     * Error of a node write that failed, once the writer that hit it is
+     * finished. The file is incomplete from then on.
+     */
+    private volatile IOException fWriteError = null;
 
     /**
      * Standard constructor
@@ -59,7 +103,25 @@ class HT_IO {
      *             An exception can be thrown when file cannot be accessed
      */
     public HT_IO(HTConfig config, boolean newFile) throws IOException {
+        this(config, newFile, HTNodeCache.getSharedCache());
+    }
+
+    /**
+     * Constructor specifying the node cache to use
+     *
+     * @param config
+     *            The configuration object for the StateHistoryTree
+     * @param newFile
+     *            Flag indicating that the file must be created from scratch
+     * @param nodeCache
+     *            The cache in which to keep the nodes read from this file
+     *
+     * @throws IOException
+     *             An exception can be thrown when file cannot be accessed
+     */
+    public HT_IO(HTConfig config, boolean newFile, HTNodeCache nodeCache) throws IOException {
         fConfig = config;
+        fNodeCache = nodeCache;
 
         File historyTreeFile = config.getStateFile();
         if (newFile) {
@@ -86,10 +148,42 @@ class HT_IO {
         }
         this.fcIn = fis.getChannel();
         this.fcOut = fos.getChannel();
+        this.fBlocksPerRegion = Integer.MAX_VALUE / config.getBlockSize();
+    }
+
+    /**
+     * Memory-map the node section of the file, so that subsequent reads are
+     * served from the mapped regions instead of the file channel. This should
+     * only be called once the given number of nodes are all on disk, and no
+     * more nodes will be written.
+     *
+     * If the mapping fails (for example if the address space is exhausted),
+     * reads will simply keep going through the file channel.
+     *
+     * @param nodeCount
+     *            The number of nodes in the tree
+     */
+    public void mapNodeSection(int nodeCount) {
+        final int blockSize = fConfig.getBlockSize();
+        int nbRegions = (nodeCount + fBlocksPerRegion - 1) / fBlocksPerRegion;
+        MappedByteBuffer[] regions = new MappedByteBuffer[nbRegions];
+        try {
+            for (int i = 0; i < nbRegions; i++) {
+                int firstBlock = i * fBlocksPerRegion;
+                int nbBlocks = Math.min(fBlocksPerRegion, nodeCount - firstBlock);
+                long pos = HistoryTree.TREE_HEADER_SIZE + ((long) firstBlock) * blockSize;
+                regions[i] = fcIn.map(MapMode.READ_ONLY, pos, ((long) nbBlocks) * blockSize);
+            }
+        } catch (IOException e) {
+            Activator.getDefault().logWarning("Could not map the history file, falling back to regular reads", e); //$NON-NLS-1$
+            return;
+        }
+        fMappedRegions = regions;
     }
 
     /**
-     * Read a node from the file on disk.
+     * Read a node, from the node cache if it is there or from the file on
+     * disk otherwise.
      *
      * @param seqNumber
      *            The sequence number of the node to read.
@@ -99,47 +193,158 @@ class HT_IO {
      *             reading. Instead of using a big reader-writer lock, we'll
      *             just catch this exception.
      */
-    public synchronized HTNode readNode(int seqNumber) throws ClosedChannelException {
-        /* Do a cache lookup */
-        int offset = seqNumber & (CACHE_SIZE - 1);
-        HTNode readNode = fNodeCache[offset];
-        if (readNode != null && readNode.getSequenceNumber() == seqNumber) {
-            return readNode;
-        }
+    public HTNode readNode(int seqNumber) throws ClosedChannelException {
+        return fNodeCache.getNode(this, seqNumber);
+    }
 
-        /* Lookup on disk */
+    /**
+     * Get the generation of the entries of this file in the node cache.
+     *
+     * @return The current generation
+     */
+    int getCacheGeneration() {
+        return fCacheGeneration.get();
+    }
+
+    /**
+     * Move the entries of this file in the node cache to a new generation,
+     * see {@link HTNodeCache#invalidate(HT_IO)}.
+     */
+    void nextCacheGeneration() {
+        fCacheGeneration.incrementAndGet();
+    }
+
+    /**
+     * Read a node from the file, without looking in the cache. This is what
+     * the cache calls on a miss.
+     *
+     * @param seqNumber
+     *            The sequence number of the node to read.
+     * @return The object representing the node
+     * @throws IOException
+     *             If the node could not be read, or if the file was closed
+     *             ({@link ClosedChannelException})
+     */
+    HTNode readNodeFromDisk(int seqNumber) throws IOException {
+        HTNodeWriter writer = fNodeWriter;
+        if (writer != null) {
+            HTNode pendingNode = writer.getPendingNode(seqNumber);
+            if (pendingNode != null) {
+                return pendingNode;
+            }
+        }
+        checkWriteError();
+        /*
+         * Register the read before checking if the file is closed, so that
+         * closeFile() does not unmap a region we are decoding.
+         */
+        fActiveReads.incrementAndGet();
         try {
-            seekFCToNodePos(fcIn, seqNumber);
-            readNode = HTNode.readNode(fConfig, fcIn);
-
-            /* Put the node in the cache. */
-            fNodeCache[offset] = readNode;
-            return readNode;
-        } catch (ClosedChannelException e) {
-            throw e;
-        } catch (IOException e) {
-            /* Other types of IOExceptions shouldn't happen at this point though */
-            Activator.getDefault().logError(e.getMessage(), e);
-            return null;
+            return HTNode.readNode(fConfig, getNodeBuffer(seqNumber));
+        } finally {
+            fActiveReads.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get a buffer containing the block of the given node, positioned at the
+     * start of the node. This is safe to call from multiple threads at once.
+     */
+    private ByteBuffer getNodeBuffer(int seqNumber) throws IOException {
+        if (fIsClosed) {
+            throw new ClosedChannelException();
+        }
+        final int blockSize = fConfig.getBlockSize();
+
+        MappedByteBuffer[] regions = fMappedRegions;
+        int regionIndex = seqNumber / fBlocksPerRegion;
+        if (regions != null && regionIndex < regions.length) {
+            /* Work on a view, the mapped buffer's own position is shared */
+            ByteBuffer view = regions[regionIndex].duplicate();
+            int pos = (seqNumber % fBlocksPerRegion) * blockSize;
+            view.limit(pos + blockSize);
+            view.position(pos);
+            ByteBuffer buffer = view.slice();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
         }
+
+        /*
+         * Positional reads do not modify the channel's position, so concurrent
+         * readers do not need to coordinate.
+         */
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        long pos = getNodePos(seqNumber);
+        while (buffer.hasRemaining()) {
+            if (fcIn.read(buffer, pos + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of history file"); //$NON-NLS-1$
+            }
+        }
+        buffer.flip();
+        return buffer;
     }
 
+    /**
+     * Write a closed node to the file. The write itself happens in the
+     * background, but the node can be read back right away.
+     *
+     * @param node
+     *            The node to write
+     */
     public synchronized void writeNode(HTNode node) {
-        try {
-            /* Insert the node into the cache. */
-            int seqNumber = node.getSequenceNumber();
-            int offset = seqNumber & (CACHE_SIZE - 1);
-            fNodeCache[offset] = node;
-
-            /* Position ourselves at the start of the node and write it */
-            seekFCToNodePos(fcOut, seqNumber);
-            node.writeSelf(fcOut);
-        } catch (IOException e) {
-            /* If we were able to open the file, we should be fine now... */
-            Activator.getDefault().logError(e.getMessage(), e);
+        HTNodeWriter writer = fNodeWriter;
+        if (writer == null) {
+            writer = new HTNodeWriter(fcOut, HistoryTree.TREE_HEADER_SIZE, fConfig.getBlockSize());
+            fNodeWriter = writer;
+        }
+
+        /* Insert the node into the cache. */
+        node.setOnDisk();
+        fNodeCache.putNode(this, node);
+        writer.submit(node);
+    }
+
+    /**
+     * Wait until all the nodes passed to {@link #writeNode(HTNode)} are
+     * written to the file, and stop the background writer.
+     *
+     * @throws IOException
+     *             If some nodes could not be written, now or before
+     */
+    public synchronized void finishWrites() throws IOException {
+        HTNodeWriter writer = fNodeWriter;
+        if (writer != null) {
+            writer.close();
+            fNodeWriter = null;
+            if (fWriteError == null) {
+                fWriteError = writer.getWriteError();
+            }
+        }
+        checkWriteError();
+    }
+
+    /**
+     * Throw the error of a node write that failed, if any. It is reported
+     * again on every call, the nodes it concerns are not in the file.
+     */
+    private void checkWriteError() throws IOException {
+        IOException error = fWriteError;
+        HTNodeWriter writer = fNodeWriter;
+        if (error == null && writer != null) {
+            error = writer.getWriteError();
+        }
+        if (error != null) {
+            throw new IOException("Could not write the nodes of " + fConfig.getStateFile(), error); //$NON-NLS-1$
         }
     }
 
+    /**
+     * Get the output channel of the file. The pending node writes should be
+     * finished with {@link #finishWrites()} before using it directly.
+     *
+     * @return The output file channel
+     */
     public FileChannel getFcOut() {
         return this.fcOut;
     }
@@ -157,17 +362,84 @@ class HT_IO {
         return fis;
     }
 
-    public synchronized void closeFile() {
+    /**
+     * Close the history file. It is closed even if some nodes could not be
+     * written, the error is reported afterwards.
+     *
+     * @throws IOException
+     *             If some nodes could not be written
+     */
+    public synchronized void closeFile() throws IOException {
+        IOException writeError = null;
+        try {
+            finishWrites();
+        } catch (IOException e) {
+            writeError = e;
+        }
+        fIsClosed = true;
+        fNodeCache.invalidate(this);
+        MappedByteBuffer[] regions = fMappedRegions;
+        fMappedRegions = null;
+        if (regions != null) {
+            /*
+             * Release the mappings now rather than when they get
+             * garbage-collected: on some platforms, a mapped file cannot be
+             * deleted. New reads see the file as closed, wait for the ones
+             * that may still be decoding from the regions.
+             */
+            while (fActiveReads.get() > 0) {
+                Thread.yield();
+            }
+            for (MappedByteBuffer region : regions) {
+                unmap(region);
+            }
+        }
         try {
             fis.close();
             fos.close();
         } catch (IOException e) {
             Activator.getDefault().logError(e.getMessage(), e);
         }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /**
+     * Release a mapped region right away. There is no public API for this, so
+     * it goes through the JDK's internal cleaner. If that is not available,
+     * the region is released when it gets garbage-collected.
+     */
+    private static void unmap(MappedByteBuffer region) {
+        try {
+            /* Java 9 and later */
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe"); //$NON-NLS-1$
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class); //$NON-NLS-1$
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe"); //$NON-NLS-1$
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), region);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* Not available, try the Java 7-8 way */
+        }
+        try {
+            Method cleanerMethod = region.getClass().getMethod("cleaner"); //$NON-NLS-1$
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(region);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner); //$NON-NLS-1$
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* Leave it to the garbage collector */
+        }
     }
 
     public synchronized void deleteFile() {
-        closeFile();
+        try {
+            closeFile();
+        } catch (IOException e) {
+            /* The nodes that could not be written are deleted anyway */
+        }
 
         File historyTreeFile = fConfig.getStateFile();
         if (!historyTreeFile.delete()) {
@@ -189,12 +461,16 @@ class HT_IO {
      */
     private void seekFCToNodePos(FileChannel fc, int seqNumber)
             throws IOException {
+        fc.position(getNodePos(seqNumber));
+    }
+
+    private long getNodePos(int seqNumber) {
         /*
          * Cast to (long) is needed to make sure the result is a long too and
          * doesn't get truncated
          */
-        fc.position(HistoryTree.TREE_HEADER_SIZE
-                + ((long) seqNumber) * fConfig.getBlockSize());
+        return HistoryTree.TREE_HEADER_SIZE
+                + ((long) seqNumber) * fConfig.getBlockSize();
     }
 
 }
@@ -50,6 +50,9 @@ public class HistoryTree {
     /** File format version. Increment when breaking compatibility. */
     private static final int FILE_VERSION = 5;
 
+    /** File format version of the files using the compact node format */
+    private static final int COMPACT_FILE_VERSION = 6;
+
     // ------------------------------------------------------------------------
     // Tree-specific configuration
     // ------------------------------------------------------------------------
@@ -121,12 +124,29 @@ public class HistoryTree {
      *             If an error happens reading the file
      */
     public HistoryTree(File existingStateFile, int expProviderVersion) throws IOException {
+        this(existingStateFile, expProviderVersion, HTNodeCache.getSharedCache());
+    }
+
+    /**
+     * "Reader" constructor specifying the cache in which to keep the nodes
+     * read from the file
+     *
+     * @param existingStateFile
+     *            Path/filename of the history-file we are to open
+     * @param expProviderVersion
+     *            The expected version of the state provider
+     * @param nodeCache
+     *            The cache of the nodes read from the file
+     * @throws IOException
+     *             If an error happens reading the file
+     */
+    public HistoryTree(File existingStateFile, int expProviderVersion, HTNodeCache nodeCache) throws IOException {
         /*
          * Open the file ourselves, get the tree header information we need,
          * then pass on the descriptor to the TreeIO object.
          */
         int rootNodeSeqNb, res;
-        int bs, maxc;
+        int providerVersion, bs, maxc;
         long startTime;
 
         /* Java I/O mumbo jumbo... */
@@ -157,12 +177,17 @@ public class HistoryTree {
             }
 
             res = buffer.getInt(); /* File format version number */
-            if (res != FILE_VERSION) {
+            HTConfig.NodeFormat nodeFormat;
+            if (res == FILE_VERSION) {
+                nodeFormat = HTConfig.NodeFormat.CLASSIC;
+            } else if (res == COMPACT_FILE_VERSION) {
+                nodeFormat = HTConfig.NodeFormat.COMPACT;
+            } else {
                 throw new IOException("Mismatching History Tree file format versions"); //$NON-NLS-1$
             }
 
-            res = buffer.getInt(); /* Event handler's version number */
-            if (res != expProviderVersion &&
+            providerVersion = buffer.getInt(); /* Event handler's version number */
+            if (providerVersion != expProviderVersion &&
                     expProviderVersion != ITmfStateSystemBuilder.IGNORE_PROVIDER_VERSION) {
                 /*
                  * The existing history was built using an event handler that
@@ -181,7 +206,7 @@ public class HistoryTree {
             rootNodeSeqNb = buffer.getInt();
             startTime = buffer.getLong();
 
-            this.config = new HTConfig(existingStateFile, bs, maxc, expProviderVersion, startTime);
+            this.config = new HTConfig(existingStateFile, bs, maxc, expProviderVersion, startTime, nodeFormat);
         }
 
         /*
@@ -189,7 +214,8 @@ public class HistoryTree {
          * file, not extremely elegant. But how to pass the information here to
          * the SHT otherwise?
          */
-        this.treeIO = new HT_IO(config, false);
+        this.treeIO = new HT_IO(config, false, nodeCache);
+        this.treeIO.mapNodeSection(nodeCount);
 
         this.latestBranch = buildLatestBranch(rootNodeSeqNb);
         this.treeEnd = getRootNode().getNodeEnd();
@@ -256,43 +282,79 @@ public class HistoryTree {
                 treeIO.writeNode(latestBranch.get(i));
             }
 
+            try {
+                /* The header is written directly, after all the nodes */
+                treeIO.finishWrites();
+            } catch (IOException e) {
+                throw new RuntimeException("State system write error", e); //$NON-NLS-1$
+            }
+
             try (FileChannel fc = treeIO.getFcOut();) {
-                ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                buffer.clear();
+                writeHeader(fc, config, nodeCount,
+                        latestBranch.get(0).getSequenceNumber(),
+                        latestBranch.get(0).getNodeStart());
+            } catch (IOException e) {
+                /*
+                 * If we were able to write so far, there should not be any
+                 * problem at this point...
+                 */
+                throw new RuntimeException("State system write error"); //$NON-NLS-1$
+            }
 
-                /* Save the config of the tree to the header of the file */
-                fc.position(0);
+            /* No more nodes will be written, serve the reads from memory */
+            treeIO.mapNodeSection(nodeCount);
+        }
+    }
 
-                buffer.putInt(HISTORY_FILE_MAGIC_NUMBER);
+    /**
+     * Write the tree header at the start of a history file.
+     *
+     * @param fc
+     *            The file channel to write to
+     * @param config
+     *            The configuration of the tree
+     * @param nodeCount
+     *            The number of nodes in the tree
+     * @param rootSeqNb
+     *            The sequence number of the root node
+     * @param startTime
+     *            The start time of the history
+     * @throws IOException
+     *             If the header cannot be written
+     */
+    static void writeHeader(FileChannel fc, HTConfig config, int nodeCount,
+            int rootSeqNb, long startTime) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.clear();
 
-                buffer.putInt(FILE_VERSION);
-                buffer.putInt(config.getProviderVersion());
+        /* Save the config of the tree to the header of the file */
+        fc.position(0);
 
-                buffer.putInt(config.getBlockSize());
-                buffer.putInt(config.getMaxChildren());
+        buffer.putInt(HISTORY_FILE_MAGIC_NUMBER);
 
-                buffer.putInt(nodeCount);
+        if (config.getNodeFormat() == HTConfig.NodeFormat.COMPACT) {
+            buffer.putInt(COMPACT_FILE_VERSION);
+        } else {
+            buffer.putInt(FILE_VERSION);
+        }
+        buffer.putInt(config.getProviderVersion());
 
-                /* root node seq. nb */
-                buffer.putInt(latestBranch.get(0).getSequenceNumber());
+        buffer.putInt(config.getBlockSize());
+        buffer.putInt(config.getMaxChildren());
 
-                /* start time of this history */
-                buffer.putLong(latestBranch.get(0).getNodeStart());
+        buffer.putInt(nodeCount);
 
-                buffer.flip();
-                int res = fc.write(buffer);
-                assert (res <= TREE_HEADER_SIZE);
-                /* done writing the file header */
+        /* root node seq. nb */
+        buffer.putInt(rootSeqNb);
 
-            } catch (IOException e) {
-                /*
-                 * If we were able to write so far, there should not be any
-                 * problem at this point...
-                 */
-                throw new RuntimeException("State system write error"); //$NON-NLS-1$
-            }
-        }
+        /* start time of this history */
+        buffer.putLong(startTime);
+
+        buffer.flip();
+        int res = fc.write(buffer);
+        assert (res <= TREE_HEADER_SIZE);
+        /* done writing the file header */
     }
 
     // ------------------------------------------------------------------------
@@ -326,6 +388,25 @@ public class HistoryTree {
         return nodeCount;
     }
 
+    /**
+     * Get the number of levels of this tree, from the root node to the
+     * leaves.
+     *
+     * @return The depth of the tree
+     */
+    public int getDepth() {
+        return latestBranch.size();
+    }
+
+    /**
+     * Get the configuration of this tree.
+     *
+     * @return The configuration
+     */
+    HTConfig getConfig() {
+        return config;
+    }
+
     /**
      * Get the current root node of this tree
      *
@@ -405,8 +486,11 @@ public class HistoryTree {
 
     /**
      * Close the history file.
+     *
+     * @throws IOException
+     *             If some nodes could not be written to the file
      */
-    public void closeFile() {
+    public void closeFile() throws IOException {
         treeIO.closeFile();
     }
 
@@ -449,7 +533,7 @@ public class HistoryTree {
         HTNode targetNode = latestBranch.get(indexOfNode);
 
         /* Verify if there is enough room in this node to store this interval */
-        if (interval.getIntervalSize() > targetNode.getNodeFreeSpace()) {
+        if (targetNode.getIntervalSize(interval) > targetNode.getNodeFreeSpace()) {
             /* Nope, not enough room. Insert in a new sibling instead. */
             addSiblingNode(indexOfNode);
             tryInsertAtNode(interval, latestBranch.size() - 1);
@@ -20,28 +20,42 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.CoreNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
-import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IBufferQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IMultiQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IRangeQueryHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
+import com.google.common.collect.AbstractIterator;
+
 /**
  * History Tree backend for storing a state history. This is the basic version
  * that runs in the same thread as the class creating it.
  *
  * @author Alexandre Montplaisir
  */
-public class HistoryTreeBackend implements IStateHistoryBackend {
+public class HistoryTreeBackend implements IMultiQueryHistoryBackend, IRangeQueryHistoryBackend,
+        IBufferQueryHistoryBackend {
 
     private final @NonNull String ssid;
 
@@ -53,6 +67,15 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
     /** Indicates if the history tree construction is done */
     private volatile boolean fFinishedBuilding = false;
 
+    /**
+     * Maximum number of nodes of an attribute for which single queries use
+     * the attribute index, instead of going down the tree
+     */
+    private static final int MAX_INDEXED_SINGLE_QUERY_NODES = 256;
+
+    /** Per-attribute index of the nodes, if there is one */
+    private volatile HTAttributeIndex fAttributeIndex = null;
+
     /**
      * Indicates if the history tree construction is done
      *
@@ -101,9 +124,22 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
             long startTime,
             int blockSize,
             int maxChildren) throws IOException {
+        this(ssid, new HTConfig(newStateFile, blockSize, maxChildren, providerVersion, startTime));
+    }
+
+    /**
+     * Constructor for new history files, using a complete configuration
+     * object. This allows choosing the node format, for example.
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param conf
+     *            The configuration of the new history tree
+     * @throws IOException
+     *             Thrown if we can't create the file for some reason
+     */
+    public HistoryTreeBackend(@NonNull String ssid, HTConfig conf) throws IOException {
         this.ssid = ssid;
-        final HTConfig conf = new HTConfig(newStateFile, blockSize, maxChildren,
-                providerVersion, startTime);
         sht = new HistoryTree(conf);
     }
 
@@ -151,6 +187,38 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         this.ssid = ssid;
         sht = new HistoryTree(existingStateFile, providerVersion);
         fFinishedBuilding = true;
+        try {
+            fAttributeIndex = HTAttributeIndex.load(HTAttributeIndex.getIndexFile(existingStateFile), sht);
+        } catch (IOException e) {
+            /* Queries simply go through the tree */
+            Activator.getDefault().logWarning("Could not read the attribute index of " + existingStateFile, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Build the per-attribute index of the nodes of the history, save it next
+     * to the history file and use it for the queries from now on. When the
+     * history file is opened again, the index is loaded with it.
+     *
+     * This reads the whole history once, so it should only be used for
+     * histories that are queried a lot for a few attributes at a time.
+     *
+     * @throws IOException
+     *             If the index file cannot be written
+     */
+    public void createAttributeIndex() throws IOException {
+        if (!fFinishedBuilding) {
+            throw new IllegalStateException("The history is not built yet"); //$NON-NLS-1$
+        }
+        HTAttributeIndex index = HTAttributeIndex.build(sht);
+        File indexFile = HTAttributeIndex.getIndexFile(sht.supplyATWriterFile());
+        try {
+            index.save(indexFile);
+        } catch (IOException e) {
+            indexFile.delete();
+            throw e;
+        }
+        fAttributeIndex = index;
     }
 
     /**
@@ -211,12 +279,17 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
     @Override
     public void removeFiles() {
         sht.deleteFile();
+        HTAttributeIndex.getIndexFile(sht.supplyATWriterFile()).delete();
     }
 
     @Override
     public void dispose() {
         if (fFinishedBuilding) {
-            sht.closeFile();
+            try {
+                sht.closeFile();
+            } catch (IOException e) {
+                Activator.getDefault().logError(e.getMessage(), e);
+            }
         } else {
             /*
              * The build is being interrupted, delete the file we partially
@@ -253,12 +326,191 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return;
     }
 
+    @Override
+    public void doQuery(TmfFullStateBuffer buffer, long t)
+            throws TimeRangeException, StateSystemDisposedException {
+        checkValidTime(t);
+
+        /* Same walk as doQuery(List, long), without building a list */
+        HTNode currentNode = sht.getRootNode();
+        currentNode.writeInfoFromNode(buffer, t);
+        try {
+            while (currentNode.getNodeType() == HTNode.NodeType.CORE) {
+                currentNode = sht.selectNextChild((CoreNode) currentNode, t);
+                currentNode.writeInfoFromNode(buffer, t);
+            }
+        } catch (ClosedChannelException e) {
+            throw new StateSystemDisposedException(e);
+        }
+    }
+
     @Override
     public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
             throws TimeRangeException, StateSystemDisposedException {
+        HTAttributeIndex index = fAttributeIndex;
+        if (index != null) {
+            int[] nodes = index.getNodes(attributeQuark);
+            if (nodes.length <= MAX_INDEXED_SINGLE_QUERY_NODES) {
+                return getIndexedInterval(index, nodes, t, attributeQuark);
+            }
+        }
         return getRelevantInterval(t, attributeQuark);
     }
 
+    @Override
+    public void doMultiQuery(long[] times, int[] quarks, ITmfStateInterval[][] results)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (times.length == 0 || quarks.length == 0) {
+            return;
+        }
+        for (long t : times) {
+            checkValidTime(t);
+        }
+
+        /* Map every requested quark to its column in the results */
+        int maxQuark = 0;
+        for (int quark : quarks) {
+            maxQuark = Math.max(maxQuark, quark);
+        }
+        int[] columns = new int[maxQuark + 1];
+        Arrays.fill(columns, -1);
+        for (int i = 0; i < quarks.length; i++) {
+            if (quarks[i] >= 0) {
+                columns[quarks[i]] = i;
+            }
+        }
+
+        /*
+         * Go down the tree only once, sending each timestamp towards the
+         * children that cover it, so that every node is read at most once for
+         * the whole batch.
+         */
+        try {
+            multiQueryNode(sht.getRootNode(), times, 0, times.length, columns, results);
+        } catch (ClosedChannelException e) {
+            throw new StateSystemDisposedException(e);
+        }
+    }
+
+    private void multiQueryNode(HTNode node, long[] times, int fromIndex, int toIndex,
+            int[] columns, ITmfStateInterval[][] results) throws ClosedChannelException {
+        node.writeInfoFromNode(times, fromIndex, toIndex, columns, results);
+        if (node.getNodeType() != HTNode.NodeType.CORE) {
+            return;
+        }
+
+        CoreNode coreNode = (CoreNode) node;
+        int nbChildren = coreNode.getNbChildren();
+        int index = fromIndex;
+        for (int i = 0; i < nbChildren && index < toIndex; i++) {
+            /* This child covers the timestamps until the next child's start */
+            int childToIndex = toIndex;
+            if (i + 1 < nbChildren) {
+                childToIndex = HTNode.getFirstIndexAtOrAfter(times, index, toIndex, coreNode.getChildStart(i + 1));
+            }
+            if (childToIndex > index) {
+                HTNode child = sht.readNode(coreNode.getChild(i));
+                multiQueryNode(child, times, index, childToIndex, columns, results);
+                index = childToIndex;
+            }
+        }
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, final long start, final long end)
+            throws TimeRangeException {
+        if (end < start) {
+            throw new TimeRangeException(ssid + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        final BitSet quarkSet = new BitSet();
+        for (int quark : quarks) {
+            if (quark >= 0) {
+                quarkSet.set(quark);
+            }
+        }
+        final HTAttributeIndex index = fAttributeIndex;
+        return new Iterable<ITmfStateInterval>() {
+            @Override
+            public Iterator<ITmfStateInterval> iterator() {
+                if (index != null) {
+                    /* Only read the nodes of these attributes */
+                    return new Query2DIterator(quarkSet, start, end, index.getNodes(quarkSet, start, end));
+                }
+                return new Query2DIterator(quarkSet, start, end);
+            }
+        };
+    }
+
+    /**
+     * Iterator going down the tree only in the branches that intersect the
+     * time range, or reading a given list of nodes, reading each node only
+     * when the intervals of the previous one have all been returned.
+     */
+    private class Query2DIterator extends AbstractIterator<ITmfStateInterval> {
+
+        private final BitSet fQuarks;
+        private final long fStart;
+        private final long fEnd;
+
+        /** Sequence numbers of the nodes that remain to be read */
+        private final Deque<Integer> fNodesToVisit = new ArrayDeque<>();
+        private final boolean fVisitChildren;
+        private Iterator<HTInterval> fCurrentIntervals = Collections.emptyIterator();
+
+        public Query2DIterator(BitSet quarks, long start, long end) {
+            fQuarks = quarks;
+            fStart = start;
+            fEnd = end;
+            fNodesToVisit.push(sht.getRootNode().getSequenceNumber());
+            fVisitChildren = true;
+        }
+
+        public Query2DIterator(BitSet quarks, long start, long end, int[] nodes) {
+            fQuarks = quarks;
+            fStart = start;
+            fEnd = end;
+            for (int seq : nodes) {
+                fNodesToVisit.add(seq);
+            }
+            fVisitChildren = false;
+        }
+
+        @Override
+        protected ITmfStateInterval computeNext() {
+            try {
+                while (!fCurrentIntervals.hasNext()) {
+                    if (fNodesToVisit.isEmpty()) {
+                        return endOfData();
+                    }
+                    HTNode node = sht.readNode(fNodesToVisit.pop());
+                    fCurrentIntervals = node.getMatchingIntervals(fQuarks, fStart, fEnd).iterator();
+                    if (fVisitChildren && node.getNodeType() == HTNode.NodeType.CORE) {
+                        pushChildren((CoreNode) node);
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                /* The history was disposed, there is nothing more to read */
+                return endOfData();
+            }
+            return fCurrentIntervals.next();
+        }
+
+        private void pushChildren(CoreNode node) {
+            /*
+             * Push them in reverse order, so that the children are visited
+             * from the earliest to the latest.
+             */
+            long nextChildStart = Long.MAX_VALUE;
+            for (int i = node.getNbChildren() - 1; i >= 0; i--) {
+                long childStart = node.getChildStart(i);
+                if (childStart <= fEnd && nextChildStart > fStart) {
+                    fNodesToVisit.push(node.getChild(i));
+                }
+                nextChildStart = childStart;
+            }
+        }
+    }
+
     private void checkValidTime(long t) {
         long treeStart = sht.getTreeStart();
         long treeEnd = sht.getTreeEnd();
@@ -293,6 +545,28 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return interval;
     }
 
+    /**
+     * Find the interval of an attribute at a given time by reading only the
+     * nodes that have intervals of this attribute and contain that time.
+     */
+    private HTInterval getIndexedInterval(HTAttributeIndex index, int[] nodes, long t, int key)
+            throws TimeRangeException, StateSystemDisposedException {
+        checkValidTime(t);
+        try {
+            for (int seq : nodes) {
+                if (index.intersects(seq, t, t)) {
+                    HTInterval interval = sht.readNode(seq).getRelevantInterval(key, t);
+                    if (interval != null) {
+                        return interval;
+                    }
+                }
+            }
+        } catch (ClosedChannelException e) {
+            throw new StateSystemDisposedException(e);
+        }
+        return null;
+    }
+
     /**
      * Return the size of the tree history file
      *
@@ -0,0 +1,477 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Offline compaction of a finished history tree file.
+ *
+ * A history tree is built in one pass, in the order the intervals arrive. The
+ * nodes of the last branch are only partially filled when the tree is closed,
+ * and a new root (and a new branch) is added every time the root is full. The
+ * compactor reads all the intervals of a finished file and packs them in a
+ * new tree, built bottom-up:
+ * <ul>
+ * <li>the leaves are filled to capacity, in time order;</li>
+ * <li>the intervals that start before the leaf covering their end time go to
+ * the lowest core node whose time range contains them;</li>
+ * <li>the nodes are written level by level, starting with the leaves, so the
+ * nodes covering consecutive time ranges are contiguous in the file.</li>
+ * </ul>
+ *
+ * The intervals are read one leaf of the original tree at a time, and the new
+ * leaves are written as soon as they are full, so only the intervals that go
+ * to the core nodes are kept in memory.
+ *
+ * What follows the nodes in the file (the attribute tree, and the sections
+ * that some back-ends write before it) is copied unchanged after the new
+ * nodes. The file must not be open while it is compacted.
+ */
+public final class HistoryTreeCompactor {
+
+    private HistoryTreeCompactor() {}
+
+    /**
+     * Compact a history tree file. The new tree is written to a temporary
+     * file, which replaces the original file only if it has fewer or as many
+     * nodes. Files that were already compacted are left as they are.
+     *
+     * @param file
+     *            The history file, whose tree is closed
+     * @param providerVersion
+     *            The expected version of the state provider that built the
+     *            file
+     * @return True if the file was replaced by the compacted tree
+     * @throws IOException
+     *             If the file cannot be read, was built by another version of
+     *             the state provider, or the new file cannot be written
+     */
+    public static boolean compact(File file, int providerVersion) throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile()); //$NON-NLS-1$
+        try {
+            HistoryTree tree = new HistoryTree(file, providerVersion);
+            int nodeCount;
+            try {
+                if (isCompacted(tree)) {
+                    return false;
+                }
+                nodeCount = writeCompactTree(tree, tmpFile);
+            } finally {
+                tree.closeFile();
+            }
+            if (nodeCount > tree.getNodeCount()) {
+                return false;
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            /* The attribute index refers to the old nodes */
+            HTAttributeIndex.getIndexFile(file).delete();
+            return true;
+        } finally {
+            /* Only there if the compacted tree was not kept */
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Check if a tree was already compacted. The compactor writes the root
+     * last, while a tree that is built normally adds a new branch after every
+     * new root, so its root is never the last node, unless it is the only one.
+     */
+    private static boolean isCompacted(HistoryTree tree) {
+        return tree.getRootNode().getSequenceNumber() == tree.getNodeCount() - 1;
+    }
+
+    /**
+     * Write the compacted version of a tree to a new file.
+     *
+     * @return The number of nodes of the new tree
+     */
+    private static int writeCompactTree(HistoryTree tree, File newFile) throws IOException {
+        HTConfig oldConfig = tree.getConfig();
+        HTConfig config = new HTConfig(newFile, oldConfig.getBlockSize(),
+                oldConfig.getMaxChildren(), oldConfig.getProviderVersion(),
+                oldConfig.getTreeStart(), oldConfig.getNodeFormat());
+
+        try (RandomAccessFile raf = new RandomAccessFile(newFile, "rw"); //$NON-NLS-1$
+                FileChannel fc = raf.getChannel();
+                FileInputStream fis = new FileInputStream(oldConfig.getStateFile());
+                FileChannel fcIn = fis.getChannel();) {
+            fc.truncate(0);
+            NodeWriter writer = new NodeWriter(config, fc);
+            IntervalReader reader = new IntervalReader(tree);
+            NodeRef root = packTree(writer, reader, tree.getTreeEnd());
+            if (reader.getNbRead() != reader.getNbIntervals()) {
+                /* Should not happen, unless the file is corrupted */
+                throw new IOException("The intervals of the history tree are not covered by its leaves"); //$NON-NLS-1$
+            }
+
+            int nodeCount = writer.getNodeCount();
+            HistoryTree.writeHeader(fc, config, nodeCount, root.fSeqNumber, root.fStart);
+
+            /* Copy the sections that follow the nodes */
+            fc.position(writer.getNodePosition(nodeCount));
+            long pos = tree.supplyATWriterFilePos();
+            long size = fcIn.size() - pos;
+            long copied = 0;
+            while (copied < size) {
+                copied += fcIn.transferTo(pos + copied, size - copied, fc);
+            }
+            return nodeCount;
+        }
+    }
+
+    /**
+     * Build and write the nodes of the compacted tree.
+     *
+     * @param writer
+     *            The writer of the new tree
+     * @param reader
+     *            The intervals of the original tree
+     * @param treeEnd
+     *            The end time of the tree
+     * @return The root node
+     */
+    private static NodeRef packTree(NodeWriter writer, IntervalReader reader, long treeEnd) throws IOException {
+        List<HTInterval> upper = new ArrayList<>();
+        List<NodeRef> level = packLeaves(writer, reader, upper, treeEnd);
+
+        while (level.size() > 1 || !upper.isEmpty()) {
+            List<HTInterval> rest = new ArrayList<>();
+            boolean singleNode = (level.size() == 1);
+            level = packCoreNodes(writer, level, upper, rest);
+            if (singleNode && rest.size() == upper.size()) {
+                /* Nothing fits in an empty node, we would never end */
+                throw new IllegalStateException("Interval bigger than a node"); //$NON-NLS-1$
+            }
+            upper = rest;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Fill the leaves, in time order. A leaf ends at the end time of its last
+     * interval, and the next one starts right after it. Each leaf is written
+     * as soon as it is full.
+     *
+     * @param upper
+     *            Filled with the intervals that do not fit in the leaves,
+     *            sorted by end time
+     * @return The leaves
+     */
+    private static List<NodeRef> packLeaves(NodeWriter writer, IntervalReader reader,
+            List<HTInterval> upper, long treeEnd) throws IOException {
+        List<NodeRef> leaves = new ArrayList<>();
+        HTNode leaf = writer.newLeafNode(writer.getConfig().getTreeStart());
+        long lastEnd = leaf.getNodeStart();
+
+        for (HTInterval interval = reader.next(); interval != null; interval = reader.next()) {
+            if (interval.getStartTime() < leaf.getNodeStart()) {
+                upper.add(interval);
+                continue;
+            }
+            if (leaf.getIntervalSize(interval) > leaf.getNodeFreeSpace()) {
+                if (interval.getEndTime() == lastEnd) {
+                    /* A new leaf would start after this interval's end */
+                    upper.add(interval);
+                    continue;
+                }
+                leaves.add(writer.write(leaf, lastEnd));
+                leaf = writer.newLeafNode(lastEnd + 1);
+                if (interval.getStartTime() < leaf.getNodeStart()) {
+                    upper.add(interval);
+                    continue;
+                }
+            }
+            leaf.addInterval(interval);
+            lastEnd = interval.getEndTime();
+        }
+        leaves.add(writer.write(leaf, treeEnd));
+        return leaves;
+    }
+
+    /**
+     * Build one level of core nodes over the nodes of the level below. Each
+     * core node takes as many consecutive children as it can, as long as the
+     * intervals of the level below that end in the range of a new child, and
+     * start in the range of the core node, still fit in it.
+     *
+     * @param children
+     *            The nodes of the level below, in time order
+     * @param upper
+     *            The intervals that did not fit in the levels below, sorted
+     *            by end time
+     * @param rest
+     *            Filled with the intervals that do not fit in this level,
+     *            sorted by end time
+     * @return The core nodes of this level
+     */
+    private static List<NodeRef> packCoreNodes(NodeWriter writer, List<NodeRef> children,
+            List<HTInterval> upper, List<HTInterval> rest) throws IOException {
+        List<NodeRef> parents = new ArrayList<>();
+        CoreNode parent = null;
+        long lastEnd = 0;
+        int next = 0;
+
+        for (NodeRef child : children) {
+            int groupEnd = next;
+            while (groupEnd < upper.size() && upper.get(groupEnd).getEndTime() <= child.fEnd) {
+                groupEnd++;
+            }
+            List<HTInterval> group = upper.subList(next, groupEnd);
+            next = groupEnd;
+
+            if (parent != null && (parent.getNbChildren() == writer.getConfig().getMaxChildren() || !fits(parent, group))) {
+                parents.add(writer.write(parent, lastEnd));
+                parent = null;
+            }
+            if (parent == null) {
+                parent = writer.newCoreNode(child.fStart);
+            }
+            parent.linkNewChild(child.fSeqNumber, child.fStart);
+            writer.writeParent(child, parent.getSequenceNumber());
+            lastEnd = child.fEnd;
+
+            for (HTInterval interval : group) {
+                if (interval.getStartTime() >= parent.getNodeStart() &&
+                        parent.getIntervalSize(interval) <= parent.getNodeFreeSpace()) {
+                    parent.addInterval(interval);
+                } else {
+                    rest.add(interval);
+                }
+            }
+        }
+        if (parent != null) {
+            parents.add(writer.write(parent, lastEnd));
+        }
+        return parents;
+    }
+
+    /**
+     * Check if the intervals that would have to be stored in a node fit in
+     * it. The size of a string shared by several intervals is counted for
+     * each of them, so this may reject a group that would just fit.
+     */
+    private static boolean fits(HTNode node, List<HTInterval> group) {
+        long size = 0;
+        for (HTInterval interval : group) {
+            if (interval.getStartTime() >= node.getNodeStart()) {
+                size += node.getIntervalSize(interval);
+            }
+        }
+        return size <= node.getNodeFreeSpace();
+    }
+
+    // ------------------------------------------------------------------------
+    // Helper classes
+    // ------------------------------------------------------------------------
+
+    /**
+     * What is still needed of a node once it is written: enough to link it to
+     * its parent.
+     */
+    private static final class NodeRef {
+        final int fSeqNumber;
+        final long fStart;
+        final long fEnd;
+
+        NodeRef(int seqNumber, long start, long end) {
+            fSeqNumber = seqNumber;
+            fStart = start;
+            fEnd = end;
+        }
+    }
+
+    /**
+     * Creates the nodes of the new tree, and writes them at the position of
+     * their sequence number as soon as they are closed. Their parent is only
+     * known later, and is written in their header then.
+     */
+    private static final class NodeWriter {
+        private final HTConfig fConfig;
+        private final FileChannel fFc;
+        private int fNodeCount = 0;
+
+        NodeWriter(HTConfig config, FileChannel fc) {
+            fConfig = config;
+            fFc = fc;
+        }
+
+        HTConfig getConfig() {
+            return fConfig;
+        }
+
+        int getNodeCount() {
+            return fNodeCount;
+        }
+
+        long getNodePosition(int seqNumber) {
+            return HistoryTree.TREE_HEADER_SIZE + (long) seqNumber * fConfig.getBlockSize();
+        }
+
+        HTNode newLeafNode(long start) {
+            return new LeafNode(fConfig, fNodeCount++, -1, start);
+        }
+
+        CoreNode newCoreNode(long start) {
+            return new CoreNode(fConfig, fNodeCount++, -1, start);
+        }
+
+        /**
+         * Close a node and write it. Its end time is only visible once it is
+         * marked as being on disk.
+         */
+        NodeRef write(HTNode node, long end) throws IOException {
+            node.closeThisNode(end);
+            node.setOnDisk();
+            writeFully(node.serialize(), getNodePosition(node.getSequenceNumber()));
+            return new NodeRef(node.getSequenceNumber(), node.getNodeStart(), end);
+        }
+
+        void writeParent(NodeRef child, int parentSeqNumber) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.SIZE / Byte.SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(parentSeqNumber);
+            buffer.flip();
+            writeFully(buffer, getNodePosition(child.fSeqNumber) + HTNode.PARENT_SEQ_NUMBER_OFFSET);
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            long pos = position;
+            while (buffer.hasRemaining()) {
+                pos += fFc.write(buffer, pos);
+            }
+        }
+    }
+
+    /**
+     * Reads the intervals of a tree sorted by end time, one leaf at a time.
+     * The tree is walked depth-first, so the leaves come in time order. For
+     * each leaf, the intervals of its ancestors that end in its time range
+     * are added to its own. Only the nodes of the current branch are kept in
+     * memory.
+     */
+    private static final class IntervalReader {
+
+        /** A core node of the current branch */
+        private static final class Frame {
+            final CoreNode fNode;
+            final List<HTInterval> fIntervals;
+            int fNextInterval = 0;
+            int fNextChild = 0;
+
+            Frame(CoreNode node) {
+                fNode = node;
+                fIntervals = node.getIntervals();
+                Collections.sort(fIntervals);
+            }
+        }
+
+        private final HistoryTree fTree;
+        private final Deque<Frame> fBranch = new ArrayDeque<>();
+        private final List<HTInterval> fWindow = new ArrayList<>();
+        private int fWindowPos = 0;
+        private @Nullable HTNode fNextNode;
+        private long fNbRead = 0;
+        private long fNbIntervals = 0;
+
+        IntervalReader(HistoryTree tree) {
+            fTree = tree;
+            fNextNode = tree.getRootNode();
+        }
+
+        /**
+         * Get the next interval.
+         *
+         * @return The interval, or null if all of them were read
+         */
+        @Nullable HTInterval next() throws IOException {
+            while (fWindowPos == fWindow.size()) {
+                if (!readNextLeaf()) {
+                    return null;
+                }
+            }
+            fNbRead++;
+            return fWindow.get(fWindowPos++);
+        }
+
+        /** Number of intervals returned so far */
+        long getNbRead() {
+            return fNbRead;
+        }
+
+        /** Number of intervals in the nodes visited so far */
+        long getNbIntervals() {
+            return fNbIntervals;
+        }
+
+        private boolean readNextLeaf() throws IOException {
+            fWindow.clear();
+            fWindowPos = 0;
+            while (true) {
+                HTNode node = fNextNode;
+                fNextNode = null;
+                if (node == null) {
+                    Frame frame = fBranch.peek();
+                    if (frame == null) {
+                        return false;
+                    }
+                    if (frame.fNextChild == frame.fNode.getNbChildren()) {
+                        fBranch.pop();
+                        continue;
+                    }
+                    node = fTree.readNode(frame.fNode.getChild(frame.fNextChild++));
+                }
+
+                if (node instanceof CoreNode) {
+                    Frame frame = new Frame((CoreNode) node);
+                    fNbIntervals += frame.fIntervals.size();
+                    fBranch.push(frame);
+                    continue;
+                }
+
+                List<HTInterval> intervals = node.getIntervals();
+                fNbIntervals += intervals.size();
+                fWindow.addAll(intervals);
+                long end = node.getNodeEnd();
+                for (Frame ancestor : fBranch) {
+                    List<HTInterval> ancestorIntervals = ancestor.fIntervals;
+                    while (ancestor.fNextInterval < ancestorIntervals.size() &&
+                            ancestorIntervals.get(ancestor.fNextInterval).getEndTime() <= end) {
+                        fWindow.add(ancestorIntervals.get(ancestor.fNextInterval++));
+                    }
+                }
+                Collections.sort(fWindow);
+                return true;
+            }
+        }
+    }
+}
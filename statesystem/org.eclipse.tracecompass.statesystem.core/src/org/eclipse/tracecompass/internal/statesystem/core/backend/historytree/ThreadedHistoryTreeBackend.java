@@ -16,7 +16,12 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.common.core.collect.BufferedBlockingQueue;
@@ -24,9 +29,13 @@ import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+
 /**
  * Variant of the HistoryTreeBackend which runs all the interval-insertion logic
  * in a separate thread.
@@ -37,6 +46,13 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
         implements Runnable {
 
     private static final int CHUNK_SIZE = 127;
+
+    /*
+     * The insertion thread only takes an interval out of the queue once it is
+     * inserted in the tree. An interval a query does not find in the tree is
+     * then either still in the queue, or was inserted in the tree while the
+     * query was looking at the queue, and a query never has to wait.
+     */
     private final @NonNull BufferedBlockingQueue<HTInterval> intervalQueue;
     private final @NonNull Thread shtThread;
 
@@ -116,6 +132,28 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
         shtThread.start();
     }
 
+    /**
+     * New state history constructor, using a complete configuration object.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param conf
+     *            The configuration of the new history tree
+     * @param queueSize
+     *            The size of the interval insertion queue. 2000 - 10000 usually
+     *            works well
+     * @throws IOException
+     *             If there was a problem opening the history file for writing
+     */
+    public ThreadedHistoryTreeBackend(@NonNull String ssid, HTConfig conf, int queueSize)
+            throws IOException {
+        super(ssid, conf);
+
+        intervalQueue = new BufferedBlockingQueue<>(queueSize / CHUNK_SIZE, CHUNK_SIZE);
+        shtThread = new Thread(this, "History Tree Thread"); //$NON-NLS-1$
+        shtThread.start();
+    }
+
     /*
      * The Threaded version does not specify an "existing file" constructor,
      * since the history is already built (and we only use the other thread
@@ -188,12 +226,14 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
     public void run() {
         HTInterval currentInterval;
         try {
-            currentInterval = intervalQueue.take();
+            currentInterval = intervalQueue.blockingPeek();
             while (currentInterval.getStartTime() != -1) {
                 /* Send the interval to the History Tree */
                 getSHT().insertInterval(currentInterval);
-                currentInterval = intervalQueue.take();
+                intervalQueue.take();
+                currentInterval = intervalQueue.blockingPeek();
             }
+            intervalQueue.take();
             if (currentInterval.getAttribute() != -1) {
                 /* Make sure this is the "poison pill" we are waiting for */
                 throw new IllegalStateException();
@@ -232,15 +272,177 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
          * the queue while the query was ongoing. Go over the results to see if
          * we missed any.
          */
+        int nbMissing = 0;
         for (int i = 0; i < currentStateInfo.size(); i++) {
             if (currentStateInfo.get(i) == null) {
-                /* Query the missing interval via "unicast" */
-                ITmfStateInterval interval = doSingularQuery(t, i);
-                currentStateInfo.set(i, interval);
+                nbMissing++;
+            }
+        }
+
+        if (nbMissing == 0) {
+            return;
+        }
+
+        /*
+         * Look for all the missing intervals in a single pass on the queue,
+         * instead of one pass per missing attribute, so that a query iterates
+         * as little as possible on the queue the builder is writing to.
+         */
+        for (ITmfStateInterval interval : intervalQueue) {
+            int quark = interval.getAttribute();
+            if (quark >= 0 && quark < currentStateInfo.size() && currentStateInfo.get(quark) == null && interval.intersects(t)) {
+                currentStateInfo.set(quark, interval);
+                nbMissing--;
+            }
+        }
+
+        /*
+         * The ones we still missed were inserted in the tree while we were
+         * iterating on the queue.
+         */
+        for (int i = 0; i < currentStateInfo.size() && nbMissing > 0; i++) {
+            if (currentStateInfo.get(i) == null) {
+                ITmfStateInterval interval = super.doSingularQuery(t, i);
+                if (interval != null) {
+                    currentStateInfo.set(i, interval);
+                    nbMissing--;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void doQuery(TmfFullStateBuffer buffer, long t)
+            throws TimeRangeException, StateSystemDisposedException {
+        super.doQuery(buffer, t);
+
+        if (isFinishedBuilding()) {
+            return;
+        }
+
+        /* Same as doQuery(List, long), look for the intervals that were in the queue */
+        int nbMissing = 0;
+        for (int i = 0; i < buffer.size(); i++) {
+            if (!buffer.isSet(i)) {
+                nbMissing++;
+            }
+        }
+
+        if (nbMissing == 0) {
+            return;
+        }
+        for (ITmfStateInterval interval : intervalQueue) {
+            int quark = interval.getAttribute();
+            if (quark >= 0 && quark < buffer.size() && !buffer.isSet(quark) && interval.intersects(t)) {
+                buffer.set(interval);
+                nbMissing--;
+            }
+        }
+        for (int i = 0; i < buffer.size() && nbMissing > 0; i++) {
+            if (!buffer.isSet(i)) {
+                ITmfStateInterval interval = super.doSingularQuery(t, i);
+                if (interval != null) {
+                    buffer.set(interval);
+                    nbMissing--;
+                }
             }
         }
     }
 
+    @Override
+    public void doMultiQuery(long[] times, int[] quarks, ITmfStateInterval[][] results)
+            throws TimeRangeException, StateSystemDisposedException {
+        super.doMultiQuery(times, quarks, results);
+
+        if (isFinishedBuilding()) {
+            return;
+        }
+
+        /*
+         * Same as doQuery(), look for the intervals that were in the queue, in
+         * a single pass for all the missing cells.
+         */
+        int nbMissing = 0;
+        int maxQuark = 0;
+        for (int j = 0; j < quarks.length; j++) {
+            maxQuark = Math.max(maxQuark, quarks[j]);
+            for (int i = 0; i < times.length; i++) {
+                if (results[i][j] == null) {
+                    nbMissing++;
+                }
+            }
+        }
+        if (nbMissing == 0) {
+            return;
+        }
+        int[] columns = new int[maxQuark + 1];
+        Arrays.fill(columns, -1);
+        for (int j = 0; j < quarks.length; j++) {
+            if (quarks[j] >= 0) {
+                columns[quarks[j]] = j;
+            }
+        }
+        for (ITmfStateInterval interval : intervalQueue) {
+            int quark = interval.getAttribute();
+            if (quark < 0 || quark >= columns.length || columns[quark] < 0) {
+                continue;
+            }
+            int j = columns[quark];
+            for (int i = 0; i < times.length; i++) {
+                if (results[i][j] == null && interval.intersects(times[i])) {
+                    results[i][j] = interval;
+                    nbMissing--;
+                }
+            }
+        }
+
+        /*
+         * The ones we still missed were inserted in the tree while we were
+         * iterating on the queue, go down the tree once more for all of them.
+         */
+        if (nbMissing > 0) {
+            super.doMultiQuery(times, quarks, results);
+        }
+    }
+
+    @Override
+    public Iterable<ITmfStateInterval> query2D(final Collection<Integer> quarks, final long start, final long end)
+            throws TimeRangeException {
+        if (isFinishedBuilding()) {
+            return super.query2D(quarks, start, end);
+        }
+
+        /*
+         * Some intervals may still be in the queue. Look there first. An
+         * interval that left the queue before we saw it is already in the
+         * tree, which is read afterwards.
+         */
+        Set<Integer> quarkSet = (quarks instanceof Set ? (Set<Integer>) quarks : new HashSet<>(quarks));
+        final Set<IntervalKey> queuedKeys = new HashSet<>();
+        final List<ITmfStateInterval> queuedIntervals = new ArrayList<>();
+        for (ITmfStateInterval interval : intervalQueue) {
+            if (quarkSet.contains(interval.getAttribute())
+                    && interval.getStartTime() <= end && interval.getEndTime() >= start
+                    && queuedKeys.add(new IntervalKey(interval))) {
+                queuedIntervals.add(interval);
+            }
+        }
+        final Iterable<ITmfStateInterval> treeIntervals = super.query2D(quarks, start, end);
+
+        /*
+         * The intervals read back from the tree are not the objects that were
+         * in the queue, so skip the ones we already have by their attribute
+         * and time range.
+         */
+        Iterable<ITmfStateInterval> remainingIntervals = Iterables.filter(treeIntervals, new Predicate<ITmfStateInterval>() {
+            @Override
+            public boolean apply(ITmfStateInterval interval) {
+                return !queuedKeys.contains(new IntervalKey(interval));
+            }
+        });
+        return Iterables.concat(queuedIntervals, remainingIntervals);
+    }
+
     @Override
     public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
             throws TimeRangeException, StateSystemDisposedException {
@@ -266,11 +468,42 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
          * *while we were iterating* on the queue. One last pass in the tree
          * should find it.
          *
-         * This case is really rare, which is why we do a second pass at the end
-         * if needed, instead of systematically checking in the queue first
-         * (which is slow).
+         * This case is really rare, which is why we do a second pass at the
+         * end if needed, instead of systematically checking in the queue
+         * first (which is slow).
          */
         return super.doSingularQuery(t, attributeQuark);
     }
 
+    /**
+     * Identifies an interval by its attribute and time range, whatever the
+     * object holding it.
+     */
+    private static final class IntervalKey {
+
+        private final int fQuark;
+        private final long fStart;
+        private final long fEnd;
+
+        public IntervalKey(ITmfStateInterval interval) {
+            fQuark = interval.getAttribute();
+            fStart = interval.getStartTime();
+            fEnd = interval.getEndTime();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * fQuark + (int) (fStart ^ (fStart >>> 32))) + (int) (fEnd ^ (fEnd >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof IntervalKey)) {
+                return false;
+            }
+            IntervalKey other = (IntervalKey) obj;
+            return fQuark == other.fQuark && fStart == other.fStart && fEnd == other.fEnd;
+        }
+    }
+
 }
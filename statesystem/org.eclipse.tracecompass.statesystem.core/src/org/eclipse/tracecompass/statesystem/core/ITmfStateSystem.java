@@ -12,6 +12,7 @@
 
 package org.eclipse.tracecompass.statesystem.core;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -19,6 +20,7 @@ import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundExc
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 
 
@@ -330,6 +332,30 @@ public interface ITmfStateSystem {
     @NonNull List<ITmfStateInterval> queryFullState(long t)
             throws StateSystemDisposedException;
 
+    /**
+     * Load the complete state information at time 't' into a buffer, instead
+     * of a List of intervals. The buffer is reset to the current number of
+     * attributes, and the states can be read with the primitive accessors of
+     * the buffer, using the quarks as indexes.
+     *
+     * Reusing the same buffer for many queries avoids creating a List, the
+     * intervals and the state values at every query.
+     *
+     * @param t
+     *            We will recreate the state information to what it was at time
+     *            t.
+     * @param buffer
+     *            The buffer to fill
+     * @throws TimeRangeException
+     *             If the 't' parameter is outside of the range of the state
+     *             history.
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been disposed
+     * @since 1.1
+     */
+    void queryFullState(long t, @NonNull TmfFullStateBuffer buffer)
+            throws StateSystemDisposedException;
+
     /**
      * Singular query method. This one does not update the whole stateInfo
      * vector, like queryFullState() does. It only searches for one specific
@@ -354,4 +380,62 @@ public interface ITmfStateSystem {
      */
     @NonNull ITmfStateInterval querySingleState(long t, int attributeQuark)
             throws AttributeNotFoundException, StateSystemDisposedException;
+
+    /**
+     * Batched query method, returning the states of several attributes at
+     * several timestamps. This is equivalent to calling querySingleState() for
+     * every timestamp/attribute pair, but the state history is only traversed
+     * once for the whole batch, which is much faster when there are many
+     * pairs (for example, when sampling a few attributes at every pixel of a
+     * view).
+     *
+     * @param times
+     *            The timestamps at which we want the states, sorted in
+     *            ascending order
+     * @param quarks
+     *            The attributes we want the states of. They should all be
+     *            different.
+     * @return The state intervals, indexed by [time index][quark index]
+     * @throws TimeRangeException
+     *             If one of the timestamps is invalid
+     * @throws AttributeNotFoundException
+     *             If one of the requested quarks does not exist in the model
+     * @throws IllegalArgumentException
+     *             If the timestamps are not sorted or the quarks are not all
+     *             different
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been disposed
+     * @since 1.1
+     */
+    @NonNull ITmfStateInterval[][] queryStates(long[] times, int[] quarks)
+            throws AttributeNotFoundException, StateSystemDisposedException;
+
+    /**
+     * Range query method, returning all the intervals of a set of attributes
+     * that intersect a time range. This replaces a series of
+     * querySingleState() calls for every attribute: the state history is
+     * traversed only once for all the attributes, and the intervals are read
+     * lazily as the returned Iterable is iterated over, so the caller can stop
+     * early.
+     *
+     * The intervals are not returned in any particular order. If the state
+     * system is disposed during the iteration, the iteration simply ends.
+     *
+     * @param quarks
+     *            The attributes we want the intervals of
+     * @param start
+     *            The start of the time range (inclusive)
+     * @param end
+     *            The end of the time range (inclusive)
+     * @return The intervals of these attributes intersecting the time range
+     * @throws TimeRangeException
+     *             If end is smaller than start
+     * @throws AttributeNotFoundException
+     *             If one of the requested quarks does not exist in the model
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been disposed
+     * @since 1.1
+     */
+    @NonNull Iterable<ITmfStateInterval> query2D(@NonNull Collection<Integer> quarks, long start, long end)
+            throws AttributeNotFoundException, StateSystemDisposedException;
 }
\ No newline at end of file
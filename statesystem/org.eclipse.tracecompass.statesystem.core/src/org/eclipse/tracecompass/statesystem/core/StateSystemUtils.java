@@ -15,6 +15,8 @@
 package org.eclipse.tracecompass.statesystem.core;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -37,6 +39,16 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 @NonNullByDefault
 public final class StateSystemUtils {
 
+    private static final Comparator<ITmfStateInterval> START_TIME_COMPARATOR = new Comparator<ITmfStateInterval>() {
+        @Override
+        public int compare(@Nullable ITmfStateInterval o1, @Nullable ITmfStateInterval o2) {
+            if (o1 == null || o2 == null) {
+                throw new IllegalArgumentException();
+            }
+            return Long.compare(o1.getStartTime(), o2.getStartTime());
+        }
+    };
+
     private StateSystemUtils() {
     }
 
@@ -142,13 +154,17 @@ public final class StateSystemUtils {
         currentInterval = ss.querySingleState(t1, attributeQuark);
         intervals.add(currentInterval);
 
-        /* Get the following state changes */
+        /*
+         * Get the following state changes in one pass over the history,
+         * instead of one query per state change, then put them back in time
+         * order.
+         */
         ts = currentInterval.getEndTime();
-        while (ts != -1 && ts < tEnd) {
-            ts++; /* To "jump over" to the next state in the history */
-            currentInterval = ss.querySingleState(ts, attributeQuark);
-            intervals.add(currentInterval);
-            ts = currentInterval.getEndTime();
+        if (ts != -1 && ts < tEnd) {
+            for (ITmfStateInterval interval : ss.query2D(Collections.singleton(attributeQuark), ts + 1, tEnd)) {
+                intervals.add(interval);
+            }
+            Collections.sort(intervals, START_TIME_COMPARATOR);
         }
         return intervals;
     }
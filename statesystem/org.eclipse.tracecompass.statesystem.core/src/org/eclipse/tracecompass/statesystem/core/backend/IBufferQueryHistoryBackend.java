@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.backend;
+
+import java.util.List;
+
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
+
+/**
+ * Extension of {@link IStateHistoryBackend} for back-ends that can write a
+ * full state directly to a {@link TmfFullStateBuffer}.
+ *
+ * The state system uses it when the back-end implements it. For other
+ * back-ends, it runs a regular {@link IStateHistoryBackend#doQuery(List, long)}
+ * and copies the resulting intervals to the buffer.
+ *
+ * @since 1.1
+ */
+public interface IBufferQueryHistoryBackend extends IStateHistoryBackend {
+
+    /**
+     * Same as {@link #doQuery(List, long)}, but the states are written to a
+     * buffer of primitive values. Back-ends that do not keep interval objects
+     * should write their states directly, without creating intervals, so that
+     * repeated queries with the same buffer do not create any garbage.
+     *
+     * @param buffer
+     *            The buffer to fill up, already reset to the number of
+     *            attributes of the query
+     * @param t
+     *            Target timestamp of the query
+     * @throws TimeRangeException
+     *             If the timestamp is outside of the history/trace
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed while a request is ongoing.
+     */
+    void doQuery(TmfFullStateBuffer buffer, long t)
+            throws TimeRangeException, StateSystemDisposedException;
+}
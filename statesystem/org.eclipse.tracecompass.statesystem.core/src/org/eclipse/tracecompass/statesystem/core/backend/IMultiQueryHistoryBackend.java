@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.backend;
+
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+
+/**
+ * Extension of {@link IStateHistoryBackend} for back-ends that can answer
+ * queries at several timestamps in one pass over their storage.
+ *
+ * The state system uses it when the back-end implements it. For other
+ * back-ends, it falls back to one
+ * {@link IStateHistoryBackend#doSingularQuery} per missing state.
+ *
+ * @since 1.1
+ */
+public interface IMultiQueryHistoryBackend extends IStateHistoryBackend {
+
+    /**
+     * Batched query method, to get the state of several attributes at several
+     * timestamps in one call. Back-ends can use this to read each part of
+     * their storage only once, instead of once per timestamp like repeated
+     * calls to doQuery() or doSingularQuery() would do.
+     *
+     * 'results' is an "out" parameter: results[i][j] should be set to the
+     * interval of attribute quarks[j] at time times[i]. Only the entries that
+     * are null are written to, so that information the caller already has
+     * (for example from the transient state) is kept.
+     *
+     * @param times
+     *            The target timestamps of the query, sorted in ascending order
+     * @param quarks
+     *            The attributes for which we want the state intervals. They
+     *            should all be different.
+     * @param results
+     *            The array of intervals to fill up, of dimensions
+     *            [times.length][quarks.length]
+     * @throws TimeRangeException
+     *             If one of the timestamps is outside of the history
+     * @throws AttributeNotFoundException
+     *             If one of the quarks was invalid
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed while a request is ongoing.
+     */
+    void doMultiQuery(long[] times, int[] quarks, ITmfStateInterval[][] results)
+            throws TimeRangeException, AttributeNotFoundException,
+            StateSystemDisposedException;
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.backend;
+
+import java.util.Collection;
+
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+
+/**
+ * Extension of {@link IStateHistoryBackend} for back-ends that can return all
+ * the intervals of a time range in one pass over their storage.
+ *
+ * The state system uses it when the back-end implements it. For other
+ * back-ends, it follows each attribute from one interval to the next with
+ * {@link IStateHistoryBackend#doSingularQuery}.
+ *
+ * @since 1.1
+ */
+public interface IRangeQueryHistoryBackend extends IStateHistoryBackend {
+
+    /**
+     * Range query method, to get all the intervals of a set of attributes
+     * that intersect a time range. The intervals are read lazily as the
+     * returned Iterable is being iterated over, so the whole result does not
+     * have to fit in memory, and callers can stop early without reading the
+     * rest of the history. They are not returned in any particular order.
+     *
+     * @param quarks
+     *            The attributes for which we want the intervals
+     * @param start
+     *            The start of the time range (inclusive)
+     * @param end
+     *            The end of the time range (inclusive)
+     * @return The intervals of these attributes that intersect the range
+     * @throws TimeRangeException
+     *             If end is smaller than start
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed while a request is ongoing.
+     */
+    Iterable<ITmfStateInterval> query2D(Collection<Integer> quarks, long start, long end)
+            throws TimeRangeException, StateSystemDisposedException;
+}
@@ -18,7 +18,10 @@ import java.io.IOException;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.InMemoryBackend;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.NullBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig.NodeFormat;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeCompactor;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
 
 /**
@@ -94,6 +97,49 @@ public final class StateHistoryBackendFactory {
         return new HistoryTreeBackend(ssid, stateFile, providerVersion, startTime);
     }
 
+    /**
+     * Same as
+     * {@link #createHistoryTreeBackendNewFile(String, File, int, long, int)},
+     * but the intervals can be written in the compact node format of the
+     * History Tree. It stores the timestamps relative to their node and each
+     * string value once per node, so the file is smaller and queries read
+     * fewer blocks, at the cost of decoding the entries when a node is read.
+     * Existing files are opened in the format they were written in.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            The filename/location where to store the state history (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param queueSize
+     *            The size of the interval insertion queue between the receiver
+     *            and writer threads. If 0 is specified, no queue is used and
+     *            the writes happen in the same thread.
+     * @param compactNodes
+     *            True to use the compact node format, false for the classic
+     *            one
+     * @return The state system backend
+     * @throws IOException
+     *             Thrown if we can't create the file for some reason
+     * @since 1.1
+     */
+    public static IStateHistoryBackend createHistoryTreeBackendNewFile(String ssid,
+            File stateFile, int providerVersion, long startTime, int queueSize,
+            boolean compactNodes) throws IOException {
+        NodeFormat format = (compactNodes ? NodeFormat.COMPACT : NodeFormat.CLASSIC);
+        HTConfig config = new HTConfig(stateFile, providerVersion, startTime, format);
+        if (queueSize > 0) {
+            return new ThreadedHistoryTreeBackend(ssid, config, queueSize);
+        }
+        return new HistoryTreeBackend(ssid, config);
+    }
+
     /**
      * Create a new History Tree backend, but attempt to open an existing file
      * on disk. If the file cannot be found or recognized, an IOException will
@@ -115,4 +161,51 @@ public final class StateHistoryBackendFactory {
             int providerVersion) throws IOException {
         return new HistoryTreeBackend(ssid, stateFile, providerVersion);
     }
+
+    /**
+     * Compact an existing History Tree file: its nodes are packed again
+     * bottom-up, so that they are full and the nodes of consecutive time
+     * ranges are next to each other. Queries on the compacted file read fewer
+     * nodes. Files that were already compacted are left as they are, so this
+     * can be called every time before the file is opened with
+     * {@link #createHistoryTreeBackendExistingFile(String, File, int)}.
+     *
+     * The file must not be open. It is only replaced once the compacted tree
+     * is completely written, and its attribute index is then deleted.
+     *
+     * @param stateFile
+     *            Filename/location of the history to compact
+     * @param providerVersion
+     *            Expected version of of the state provider plugin
+     * @return True if the file was compacted
+     * @throws IOException
+     *             If the file cannot be read, does not match the expected
+     *             providerVersion, or the compacted file cannot be written
+     * @since 1.1
+     */
+    public static boolean compactHistoryTreeFile(File stateFile, int providerVersion) throws IOException {
+        return HistoryTreeCompactor.compact(stateFile, providerVersion);
+    }
+
+    /**
+     * Create the per-attribute index of a completed History Tree backend. The
+     * index lists, for every attribute, the nodes of the tree holding its
+     * intervals, so that range queries on a few attributes only read these
+     * nodes. It is saved next to the history file, and loaded again when the
+     * file is opened with
+     * {@link #createHistoryTreeBackendExistingFile(String, File, int)}.
+     *
+     * Nothing is done for the other types of backends.
+     *
+     * @param backend
+     *            The backend, whose history is completely built
+     * @throws IOException
+     *             If the index file cannot be written
+     * @since 1.1
+     */
+    public static void createAttributeIndex(IStateHistoryBackend backend) throws IOException {
+        if (backend instanceof HistoryTreeBackend) {
+            ((HistoryTreeBackend) backend).createAttributeIndex();
+        }
+    }
 }
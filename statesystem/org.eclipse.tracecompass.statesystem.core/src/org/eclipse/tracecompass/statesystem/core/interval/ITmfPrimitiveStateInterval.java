@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.interval;
+
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
+
+/**
+ * Extension of {@link ITmfStateInterval} for intervals that can give their
+ * value as a primitive type, without necessarily creating the state value
+ * object. {@link TmfFullStateBuffer} uses these accessors when the intervals
+ * implement them.
+ *
+ * @since 1.1
+ */
+public interface ITmfPrimitiveStateInterval extends ITmfStateInterval {
+
+    /**
+     * Retrieve the type of the state value of this interval, without
+     * necessarily creating the state value object.
+     *
+     * @return The type of the state value
+     */
+    Type getValueType();
+
+    /**
+     * Retrieve the state value of this interval as a long, without
+     * necessarily creating the state value object. This follows
+     * {@link ITmfStateValue#unboxLong()}.
+     *
+     * @return The value of an integer or long state, or -1 for a null state
+     * @throws StateValueTypeException
+     *             If the state value is of another type
+     */
+    long getLongValue();
+
+    /**
+     * Retrieve the state value of this interval as a double, without
+     * necessarily creating the state value object. This follows
+     * {@link ITmfStateValue#unboxDouble()}.
+     *
+     * @return The value of a double state, or NaN for a null state
+     * @throws StateValueTypeException
+     *             If the state value is of another type
+     */
+    double getDoubleValue();
+}
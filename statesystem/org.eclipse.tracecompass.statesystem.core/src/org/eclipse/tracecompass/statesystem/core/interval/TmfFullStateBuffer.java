@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.interval;
+
+import java.util.Arrays;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
+
+/**
+ * Result of a full state query, kept in primitive arrays indexed by quark
+ * instead of a list of interval objects. The same buffer can be reused for
+ * many queries: once it has grown to the number of attributes, queries that
+ * fill it do not create any object, except for string values.
+ *
+ * Like the state value methods, the accessors of a value throw a
+ * {@link StateValueTypeException} if the attribute's value is not of the
+ * requested type.
+ *
+ * @since 1.1
+ */
+public final class TmfFullStateBuffer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int fSize = 0;
+    private long[] fStarts = new long[INITIAL_CAPACITY];
+    private long[] fEnds = new long[INITIAL_CAPACITY];
+    /* Integer and long values as is, double values as their bits */
+    private long[] fValues = new long[INITIAL_CAPACITY];
+    /* Null for the attributes that are not filled yet */
+    private @Nullable Type[] fTypes = new Type[INITIAL_CAPACITY];
+    private @Nullable String[] fStrings = new String[INITIAL_CAPACITY];
+
+    /**
+     * Empty the buffer and make room for a number of attributes.
+     *
+     * @param nbAttributes
+     *            The number of attributes of the query
+     */
+    public void reset(int nbAttributes) {
+        if (nbAttributes > fTypes.length) {
+            int capacity = Math.max(nbAttributes, fTypes.length * 2);
+            fStarts = new long[capacity];
+            fEnds = new long[capacity];
+            fValues = new long[capacity];
+            fTypes = new Type[capacity];
+            fStrings = new String[capacity];
+        } else {
+            Arrays.fill(fTypes, 0, fSize, null);
+            Arrays.fill(fStrings, 0, fSize, null);
+        }
+        fSize = nbAttributes;
+    }
+
+    /**
+     * Get the number of attributes of the query.
+     *
+     * @return The number of attributes
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * Check if the state of an attribute was filled.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return True if it was filled
+     */
+    public boolean isSet(int quark) {
+        return fTypes[quark] != null;
+    }
+
+    /**
+     * Fill the state of an attribute from an interval. If the interval
+     * implements {@link ITmfPrimitiveStateInterval}, this uses its primitive
+     * accessors, so it does not create its state value object.
+     *
+     * @param interval
+     *            The interval. Nothing is done if its attribute is not part
+     *            of the query.
+     */
+    public void set(ITmfStateInterval interval) {
+        int quark = interval.getAttribute();
+        if (quark >= fSize) {
+            return;
+        }
+        if (!(interval instanceof ITmfPrimitiveStateInterval)) {
+            set(quark, interval.getStartTime(), interval.getEndTime(), interval.getStateValue());
+            return;
+        }
+        ITmfPrimitiveStateInterval primitiveInterval = (ITmfPrimitiveStateInterval) interval;
+        Type type = primitiveInterval.getValueType();
+        switch (type) {
+        case INTEGER:
+        case LONG:
+            fValues[quark] = primitiveInterval.getLongValue();
+            break;
+        case DOUBLE:
+            fValues[quark] = Double.doubleToRawLongBits(primitiveInterval.getDoubleValue());
+            break;
+        case STRING:
+            fStrings[quark] = interval.getStateValue().unboxStr();
+            break;
+        case NULL:
+        default:
+            break;
+        }
+        fStarts[quark] = interval.getStartTime();
+        fEnds[quark] = interval.getEndTime();
+        fTypes[quark] = type;
+    }
+
+    /**
+     * Fill the state of an attribute from a state value.
+     *
+     * @param quark
+     *            The quark of the attribute. Nothing is done if it is not
+     *            part of the query.
+     * @param start
+     *            The start time of the state
+     * @param end
+     *            The end time of the state
+     * @param value
+     *            The state value
+     */
+    public void set(int quark, long start, long end, ITmfStateValue value) {
+        if (quark >= fSize) {
+            return;
+        }
+        Type type = value.getType();
+        switch (type) {
+        case INTEGER:
+        case LONG:
+            fValues[quark] = value.unboxLong();
+            break;
+        case DOUBLE:
+            fValues[quark] = Double.doubleToRawLongBits(value.unboxDouble());
+            break;
+        case STRING:
+            fStrings[quark] = value.unboxStr();
+            break;
+        case NULL:
+        default:
+            break;
+        }
+        fStarts[quark] = start;
+        fEnds[quark] = end;
+        fTypes[quark] = type;
+    }
+
+    /**
+     * Get the start time of the state of an attribute.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The start time
+     */
+    public long getStartTime(int quark) {
+        return fStarts[quark];
+    }
+
+    /**
+     * Get the end time of the state of an attribute.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The end time
+     */
+    public long getEndTime(int quark) {
+        return fEnds[quark];
+    }
+
+    /**
+     * Get the type of the state value of an attribute.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The type, or null if the attribute was not filled
+     */
+    public @Nullable Type getValueType(int quark) {
+        return fTypes[quark];
+    }
+
+    /**
+     * Get the value of an attribute as a long.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The value of an integer or long state, or -1 for a null state
+     * @throws StateValueTypeException
+     *             If the value is of another type
+     */
+    public long getLongValue(int quark) {
+        Type type = fTypes[quark];
+        if (type == Type.INTEGER || type == Type.LONG) {
+            return fValues[quark];
+        } else if (type == Type.NULL) {
+            return -1;
+        }
+        throw new StateValueTypeException("Quark:" + quark + ", Type:" + type); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Get the value of an attribute as a double.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The value of a double state, or NaN for a null state
+     * @throws StateValueTypeException
+     *             If the value is of another type
+     */
+    public double getDoubleValue(int quark) {
+        Type type = fTypes[quark];
+        if (type == Type.DOUBLE) {
+            return Double.longBitsToDouble(fValues[quark]);
+        } else if (type == Type.NULL) {
+            return Double.NaN;
+        }
+        throw new StateValueTypeException("Quark:" + quark + ", Type:" + type); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Get the value of an attribute as a string.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return The value of a string state, or null for a null state
+     * @throws StateValueTypeException
+     *             If the value is of another type
+     */
+    public @Nullable String getStringValue(int quark) {
+        Type type = fTypes[quark];
+        if (type == Type.STRING) {
+            return fStrings[quark];
+        } else if (type == Type.NULL) {
+            return null;
+        }
+        throw new StateValueTypeException("Quark:" + quark + ", Type:" + type); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
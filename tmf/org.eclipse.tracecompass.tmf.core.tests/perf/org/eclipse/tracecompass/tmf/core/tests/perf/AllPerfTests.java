@@ -24,6 +24,7 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+        org.eclipse.tracecompass.tmf.core.tests.perf.statesystem.AllPerfTests.class,
         org.eclipse.tracecompass.tmf.core.tests.perf.synchronization.AllPerfTests.class
 })
 public class AllPerfTests {
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.perf.statesystem;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.exceptions.TmfAnalysisException;
+import org.eclipse.tracecompass.tmf.core.statesystem.AbstractTmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.statesystem.ITmfStateProvider;
+import org.eclipse.tracecompass.tmf.core.statesystem.TmfStateSystemAnalysisModule;
+import org.eclipse.tracecompass.tmf.core.tests.shared.TmfTestHelper;
+import org.eclipse.tracecompass.tmf.core.tests.shared.TmfTestTrace;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
+import org.eclipse.tracecompass.tmf.core.trace.TmfTraceManager;
+import org.junit.Test;
+
+/**
+ * Benchmark of the state system back-ends as they are used by analysis
+ * modules, including the partial history which can only be built from a
+ * trace. For each back-end, this measures the time to build the state system
+ * and the time to run full queries.
+ */
+public class StateSystemBackendBenchmark {
+
+    private static final String TEST_SUITE_NAME = "State System Backend";
+    private static final String TEST_ID = "org.eclipse.linuxtools#" + TEST_SUITE_NAME + '#';
+    private static final int LOOP_COUNT = 10;
+    private static final int NB_QUERIES = 1000;
+
+    /** Number of attributes the events are distributed on */
+    private static final int NB_ATTRIBUTES = 50;
+
+    /** Creates a new analysis module for each iteration */
+    private interface IModuleFactory {
+        TmfStateSystemAnalysisModule create();
+    }
+
+    private static final IModuleFactory FULL = new IModuleFactory() {
+        @Override
+        public TmfStateSystemAnalysisModule create() {
+            return new BenchmarkModule() {
+                @Override
+                protected StateSystemBackendType getBackendType() {
+                    return StateSystemBackendType.FULL;
+                }
+            };
+        }
+    };
+
+    private static final IModuleFactory IN_MEMORY = new IModuleFactory() {
+        @Override
+        public TmfStateSystemAnalysisModule create() {
+            return new BenchmarkModule() {
+                @Override
+                protected StateSystemBackendType getBackendType() {
+                    return StateSystemBackendType.INMEM;
+                }
+            };
+        }
+    };
+
+    private static final IModuleFactory PARTIAL = new IModuleFactory() {
+        @Override
+        public TmfStateSystemAnalysisModule create() {
+            return new BenchmarkModule() {
+                @Override
+                protected StateSystemBackendType getBackendType() {
+                    return StateSystemBackendType.PARTIAL;
+                }
+            };
+        }
+    };
+
+    /**
+     * Benchmark the full history back-end
+     */
+    @Test
+    public void testFullHistory() {
+        runTest(FULL, "Full history");
+    }
+
+    /**
+     * Benchmark the in-memory back-end
+     */
+    @Test
+    public void testInMemory() {
+        runTest(IN_MEMORY, "In memory");
+    }
+
+    /**
+     * Benchmark the partial history back-end
+     */
+    @Test
+    public void testPartialHistory() {
+        runTest(PARTIAL, "Partial history");
+    }
+
+    private static void runTest(IModuleFactory factory, String testName) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter buildMeter = createMeter(perf, testName + ": build");
+        PerformanceMeter queryMeter = createMeter(perf, testName + ": full queries");
+
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            ITmfTrace trace = TmfTestTrace.A_TEST_10K.getTrace();
+            TmfStateSystemAnalysisModule module = factory.create();
+            try {
+                module.setId("benchmark");
+                module.setTrace(trace);
+
+                buildMeter.start();
+                TmfTestHelper.executeAnalysis(module);
+                ITmfStateSystem ss = module.getStateSystem();
+                assertNotNull(ss);
+                ss.waitUntilBuilt();
+                buildMeter.stop();
+
+                /* Always query the same timestamps */
+                Random random = new Random(1);
+                long start = ss.getStartTime();
+                long end = ss.getCurrentEndTime();
+                queryMeter.start();
+                for (int i = 0; i < NB_QUERIES; i++) {
+                    ss.queryFullState(start + (long) (random.nextDouble() * (end - start)));
+                }
+                queryMeter.stop();
+
+            } catch (TmfAnalysisException | StateSystemDisposedException e) {
+                fail("Test failed at iteration " + loop + ':' + e.getMessage());
+            } finally {
+                module.dispose();
+                /*
+                 * Delete the supplementary files, so that the next iteration
+                 * rebuilds the state system.
+                 */
+                File suppDir = new File(TmfTraceManager.getSupplementaryFileDir(trace));
+                for (File file : suppDir.listFiles()) {
+                    file.delete();
+                }
+                TmfTestTrace.A_TEST_10K.dispose();
+            }
+        }
+        buildMeter.commit();
+        queryMeter.commit();
+    }
+
+    private static PerformanceMeter createMeter(Performance perf, String name) {
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + name);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ": " + name, Dimension.CPU_TIME);
+        return pm;
+    }
+
+    /**
+     * Module whose state provider spreads the events on a fixed number of
+     * attributes. The back-end type is defined by the subclasses.
+     */
+    private abstract static class BenchmarkModule extends TmfStateSystemAnalysisModule {
+        @Override
+        protected ITmfStateProvider createStateProvider() {
+            return new BenchmarkStateProvider(checkNotNull(getTrace()));
+        }
+    }
+
+    private static class BenchmarkStateProvider extends AbstractTmfStateProvider {
+
+        public BenchmarkStateProvider(@NonNull ITmfTrace trace) {
+            super(trace, "Benchmark State Provider");
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public ITmfStateProvider getNewInstance() {
+            return new BenchmarkStateProvider(getTrace());
+        }
+
+        @Override
+        protected void eventHandle(ITmfEvent event) {
+            ITmfStateSystemBuilder ss = checkNotNull(getStateSystemBuilder());
+            long ts = event.getTimestamp().getValue();
+            try {
+                int quark = ss.getQuarkAbsoluteAndAdd("Attributes", String.valueOf(event.getRank() % NB_ATTRIBUTES));
+                ss.modifyAttribute(ts, TmfStateValue.newValueLong(ts), quark);
+            } catch (TimeRangeException | AttributeNotFoundException | StateValueTypeException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2014 École Polytechnique de Montréal
+ * Copyright (c) 2013, 2015 École Polytechnique de Montréal
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -21,6 +21,7 @@ import static org.junit.Assert.fail;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
@@ -30,12 +31,17 @@ import org.eclipse.osgi.util.NLS;
 import org.eclipse.tracecompass.tmf.core.analysis.IAnalysisModule;
 import org.eclipse.tracecompass.tmf.core.analysis.Messages;
 import org.eclipse.tracecompass.tmf.core.analysis.TmfAbstractAnalysisModule;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfAnalysisException;
+import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest.ExecutionType;
+import org.eclipse.tracecompass.tmf.core.request.TmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.tests.shared.TmfTestHelper;
 import org.eclipse.tracecompass.tmf.core.tests.shared.TmfTestTrace;
+import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimeRange;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
 import org.eclipse.tracecompass.tmf.tests.stubs.analysis.TestAnalysis;
 import org.eclipse.tracecompass.tmf.tests.stubs.analysis.TestAnalysis2;
+import org.eclipse.tracecompass.tmf.tests.stubs.trace.TmfTraceStub;
 import org.junit.After;
 import org.junit.Test;
 
@@ -362,4 +368,76 @@ public class AnalysisModuleTest {
         trace.dispose();
 
     }
+
+    /**
+     * Test that an analysis reading the trace holds the trace's background
+     * requests until it sent its own, but not its foreground requests
+     *
+     * @throws Exception
+     *             If the test fails
+     */
+    @Test
+    public void testTraceReaderHoldsRequests() throws Exception {
+        TmfTraceStub trace = (TmfTraceStub) TmfTestTrace.A_TEST_10K.getTrace();
+        trace.setTimerEnabledFlag(false);
+        final CountDownLatch ready = new CountDownLatch(1);
+
+        TestAnalysis module = new TestAnalysis() {
+
+            @Override
+            protected boolean isTraceReader() {
+                return true;
+            }
+
+            @Override
+            protected boolean executeAnalysis(IProgressMonitor monitor) {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                traceRequestSent();
+                return super.executeAnalysis(monitor);
+            }
+
+        };
+        module.setName(MODULE_GENERIC_NAME);
+        module.setId(MODULE_GENERIC_ID);
+        module.addParameter(TestAnalysis.PARAM_TEST);
+        module.setParameter(TestAnalysis.PARAM_TEST, 1);
+
+        try {
+            assertTrue(module.setTrace(trace));
+        } catch (TmfAnalysisException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(Status.OK_STATUS, module.schedule());
+
+        /* Foreground requests are served while the analysis subscribes */
+        TmfEventRequest fgRequest = new TmfEventRequest(ITmfEvent.class,
+                TmfTimeRange.ETERNITY, 0, 10, ExecutionType.FOREGROUND);
+        trace.sendRequest(fgRequest);
+        fgRequest.waitForCompletion();
+        assertEquals(10, fgRequest.getNbRead());
+
+        /*
+         * Background requests wait for the analysis to subscribe, even when
+         * the trace tries to dispatch them
+         */
+        TmfEventRequest bgRequest = new TmfEventRequest(ITmfEvent.class,
+                TmfTimeRange.ETERNITY, 0, 10, ExecutionType.BACKGROUND);
+        trace.sendRequest(bgRequest);
+        trace.notifyPendingRequest(true);
+        trace.notifyPendingRequest(false);
+        assertEquals(1, trace.getAllPendingRequests().size());
+        assertEquals(0, bgRequest.getNbRead());
+
+        ready.countDown();
+        bgRequest.waitForCompletion();
+        assertEquals(10, bgRequest.getNbRead());
+        assertTrue(module.waitForCompletion());
+
+        module.dispose();
+        trace.dispose();
+    }
 }
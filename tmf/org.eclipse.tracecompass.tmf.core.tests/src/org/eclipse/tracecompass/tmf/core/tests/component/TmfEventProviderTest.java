@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009, 2014 Ericsson
+ * Copyright (c) 2009, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -19,6 +19,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 import org.eclipse.tracecompass.internal.tmf.core.component.TmfProviderManager;
@@ -137,6 +139,41 @@ public class TmfEventProviderTest {
         }
     }
 
+    /**
+     * Test many requests executed at the same time, more than what the
+     * executor used to accept in its queues.
+     */
+    @Test
+    public void testManyRequests() {
+        final int NB_REQUESTS = 20;
+        final int NB_EVENTS = 100;
+
+        ITmfEventProvider[] eventProviders = TmfProviderManager.getProviders(ITmfEvent.class,
+                TmfEventProviderStub.class);
+        ITmfEventProvider provider = eventProviders[0];
+
+        TmfTimeRange range = new TmfTimeRange(TmfTimestamp.BIG_BANG, TmfTimestamp.BIG_CRUNCH);
+        List<TmfEventRequest> requests = new ArrayList<>();
+        for (int i = 0; i < NB_REQUESTS; i++) {
+            TmfEventRequest request = new TmfEventRequest(ITmfEvent.class,
+                    range, i * NB_EVENTS, NB_EVENTS, (i % 2 == 0 ? ExecutionType.FOREGROUND : ExecutionType.BACKGROUND)) {
+            };
+            requests.add(request);
+            provider.sendRequest(request);
+        }
+
+        try {
+            for (TmfEventRequest request : requests) {
+                request.waitForCompletion();
+                assertEquals("nbEvents", NB_EVENTS, request.getNbRead());
+                assertTrue("isCompleted", request.isCompleted());
+                assertFalse("isCancelled", request.isCancelled());
+            }
+        } catch (InterruptedException e) {
+            fail();
+        }
+    }
+
     /**
      * Test canceling requests.
      */
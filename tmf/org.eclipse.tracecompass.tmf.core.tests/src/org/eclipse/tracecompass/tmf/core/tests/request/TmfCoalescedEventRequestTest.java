@@ -30,6 +30,7 @@ import org.eclipse.tracecompass.internal.tmf.core.request.TmfCoalescedEventReque
 import org.eclipse.tracecompass.tmf.core.component.ITmfEventProvider;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfTraceException;
+import org.eclipse.tracecompass.tmf.core.request.ITmfEventBatchRequest;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest.ExecutionType;
 import org.eclipse.tracecompass.tmf.core.request.TmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.signal.TmfSignal;
@@ -381,6 +382,43 @@ public class TmfCoalescedEventRequestTest {
         }
     }
 
+    private static class TmfTestTriggerSignal3 extends TmfSignal {
+        public TmfTestTriggerSignal3(Object source) {
+            super(source);
+        }
+    }
+
+    private static final int BATCH_SIZE = 100;
+
+    private static class BatchRequest extends TmfEventRequest implements ITmfEventBatchRequest {
+        private final Vector<ITmfEvent> fEvents;
+        private int fMaxCount = 0;
+
+        public BatchRequest(TmfTimeRange range, long index, int nbRequested, Vector<ITmfEvent> events) {
+            super(ITmfEvent.class, range, index, nbRequested, ExecutionType.FOREGROUND);
+            fEvents = events;
+        }
+
+        @Override
+        public void handleData(ITmfEvent event) {
+            throw new IllegalStateException("Events should be received in batches");
+        }
+
+        @Override
+        public int getBatchSize() {
+            return BATCH_SIZE;
+        }
+
+        @Override
+        public void handleData(ITmfEvent[] events, int count) {
+            super.handleData(events, count);
+            fMaxCount = Math.max(fMaxCount, count);
+            for (int i = 0; i < count; i++) {
+                fEvents.add(events[i]);
+            }
+        }
+    }
+
     @TmfSignalHandler
     public void trigger(final TmfTestTriggerSignal signal) {
 
@@ -453,6 +491,30 @@ public class TmfCoalescedEventRequestTest {
         providers[0].sendRequest(request1);
     }
 
+    /**
+     * @param signal
+     *            the trigger signal
+     */
+    @TmfSignalHandler
+    public void trigger(final TmfTestTriggerSignal3 signal) {
+        TmfTimeRange range = new TmfTimeRange(TmfTimestamp.BIG_BANG, TmfTimestamp.BIG_CRUNCH);
+        requestedEvents1 = new Vector<>();
+        request1 = new TmfEventRequest(ITmfEvent.class, range, 0, NB_EVENTS, ExecutionType.FOREGROUND) {
+            @Override
+            public void handleData(ITmfEvent event) {
+                super.handleData(event);
+                if (!isCompleted()) {
+                    requestedEvents1.add(event);
+                }
+            }
+        };
+        requestedEvents2 = new Vector<>();
+        request2 = new BatchRequest(range, 1000, NB_EVENTS, requestedEvents2);
+        providers = TmfProviderManager.getProviders(ITmfEvent.class, TmfTraceStub.class);
+        providers[0].sendRequest(request1);
+        providers[0].sendRequest(request2);
+    }
+
     public void runCoalescedRequest(long startIndex) throws InterruptedException {
 
         fTrace = setupTrace(TEST_TRACE.getFullPath());
@@ -535,6 +597,40 @@ public class TmfCoalescedEventRequestTest {
         fTrace = null;
     }
 
+    @Test
+    public void testBatchRequest() throws InterruptedException {
+
+        fTrace = setupTrace(TEST_TRACE.getFullPath());
+
+        TmfSignalManager.register(this);
+        TmfTestTriggerSignal3 signal = new TmfTestTriggerSignal3(this);
+        TmfSignalManager.dispatchSignal(signal);
+
+        request1.waitForCompletion();
+        request2.waitForCompletion();
+
+        try {
+            assertEquals("Request1: nbEvents", NB_EVENTS, requestedEvents1.size());
+            assertTrue("Request1: isCompleted", request1.isCompleted());
+            assertFalse("Request1: isCancelled", request1.isCancelled());
+
+            assertEquals("Request2: nbEvents", NB_EVENTS, requestedEvents2.size());
+            assertEquals("Request2: nbRead", NB_EVENTS, request2.getNbRead());
+            assertTrue("Request2: isCompleted", request2.isCompleted());
+            assertFalse("Request2: isCancelled", request2.isCancelled());
+            assertTrue("Request2: batch size", ((BatchRequest) request2).fMaxCount <= BATCH_SIZE);
+
+            for (int i = 0; i < NB_EVENTS; i++) {
+                assertEquals("Distinct events", i + 1 + request1.getIndex(), requestedEvents1.get(i).getTimestamp().getValue());
+                assertEquals("Distinct events", i + 1 + request2.getIndex(), requestedEvents2.get(i).getTimestamp().getValue());
+            }
+        } finally {
+            TmfSignalManager.deregister(this);
+            fTrace.dispose();
+            fTrace = null;
+        }
+    }
+
     @Test
     public void testSingleTimeRequest() throws InterruptedException {
 
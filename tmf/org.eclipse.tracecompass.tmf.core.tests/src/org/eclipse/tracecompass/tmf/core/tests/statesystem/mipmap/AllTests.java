@@ -12,6 +12,7 @@
 
 package org.eclipse.tracecompass.tmf.core.tests.statesystem.mipmap;
 
+import org.eclipse.tracecompass.tmf.core.tests.statesystem.mipmap.TmfMipmapPyramidTest;
 import org.eclipse.tracecompass.tmf.core.tests.statesystem.mipmap.TmfMipmapStateProviderTest;
 import org.eclipse.tracecompass.tmf.core.tests.statesystem.mipmap.TmfMipmapStateProviderWeightedTest;
 import org.junit.runner.RunWith;
@@ -22,6 +23,7 @@ import org.junit.runners.Suite;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    TmfMipmapPyramidTest.class,
     TmfMipmapStateProviderTest.class,
     TmfMipmapStateProviderWeightedTest.class,
 })
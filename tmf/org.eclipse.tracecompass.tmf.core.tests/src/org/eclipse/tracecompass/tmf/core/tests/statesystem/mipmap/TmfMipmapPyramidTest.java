@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.statesystem.mipmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap.TmfMipmapPyramid;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the {@link TmfMipmapPyramid} against a scan of all the states of the
+ * attribute.
+ */
+public class TmfMipmapPyramidTest {
+
+    private static final int NB_CHANGES = 2000;
+    private static final int NB_QUERIES = 1000;
+    private static final double DELTA = 0.0001;
+    private static final long END_OFFSET = 100;
+    private static final String SSID = "pyramid-test";
+    private static final String ATTRIBUTE_NAME = "attribute";
+
+    private final Random fRandom = new Random(42);
+    private final List<Long> fTimes = new ArrayList<>();
+    private final List<ITmfStateValue> fValues = new ArrayList<>();
+    private ITmfStateSystemBuilder fStateSystem;
+    private int fQuark;
+
+    /**
+     * Dispose the state system of the pyramid
+     */
+    @After
+    public void tearDown() {
+        if (fStateSystem != null) {
+            fStateSystem.dispose();
+        }
+    }
+
+    /**
+     * Test a pyramid of long values with the smallest fanout
+     *
+     * @throws AttributeNotFoundException
+     *             If the attribute of the pyramid is not found
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    @Test
+    public void testLongFanout2() throws AttributeNotFoundException, StateSystemDisposedException {
+        checkPyramid(buildPyramid(2, Type.LONG));
+    }
+
+    /**
+     * Test a pyramid of double values with a larger fanout
+     *
+     * @throws AttributeNotFoundException
+     *             If the attribute of the pyramid is not found
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    @Test
+    public void testDoubleFanout16() throws AttributeNotFoundException, StateSystemDisposedException {
+        checkPyramid(buildPyramid(16, Type.DOUBLE));
+    }
+
+    /**
+     * Test a pyramid read back after being written
+     *
+     * @throws IOException
+     *             If the pyramid cannot be written or read
+     * @throws AttributeNotFoundException
+     *             If the attribute of the pyramid is not found
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    @Test
+    public void testWriteRead() throws IOException, AttributeNotFoundException, StateSystemDisposedException {
+        TmfMipmapPyramid pyramid = buildPyramid(3, Type.INTEGER);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        pyramid.writeTo(new DataOutputStream(bytes));
+        TmfMipmapPyramid copy = TmfMipmapPyramid.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), fStateSystem, fQuark);
+        assertEquals(pyramid.getNbLevels(), copy.getNbLevels());
+        checkPyramid(copy);
+    }
+
+    private TmfMipmapPyramid buildPyramid(int fanout, Type type) throws AttributeNotFoundException {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend(SSID, 0);
+        fStateSystem = StateSystemFactory.newStateSystem(backend);
+        fQuark = fStateSystem.getQuarkAbsoluteAndAdd(ATTRIBUTE_NAME);
+        TmfMipmapPyramid pyramid = new TmfMipmapPyramid(fStateSystem, fQuark, fanout, type);
+        long time = 0;
+        for (int i = 0; i < NB_CHANGES; i++) {
+            /* Some changes happen at the same time, some values are null */
+            time += fRandom.nextInt(50);
+            int v = fRandom.nextInt(1000) - 500;
+            ITmfStateValue value;
+            if (v % 10 == 0) {
+                value = TmfStateValue.nullValue();
+            } else if (type == Type.DOUBLE) {
+                value = TmfStateValue.newValueDouble(v / 4.0);
+            } else if (type == Type.INTEGER) {
+                value = TmfStateValue.newValueInt(v);
+            } else {
+                value = TmfStateValue.newValueLong(v);
+            }
+            fStateSystem.modifyAttribute(time, value, fQuark);
+            pyramid.update(value, time);
+            fTimes.add(time);
+            fValues.add(value);
+        }
+        fStateSystem.closeHistory(time + END_OFFSET);
+        assertTrue(pyramid.getNbLevels() > 1);
+        return pyramid;
+    }
+
+    private void checkPyramid(TmfMipmapPyramid pyramid) throws AttributeNotFoundException, StateSystemDisposedException {
+        long end = fTimes.get(fTimes.size() - 1) + END_OFFSET;
+        for (int i = 0; i < NB_QUERIES; i++) {
+            long t1 = (long) (fRandom.nextDouble() * end);
+            long t2 = (i % 5 == 0 ? t1 : t1 + (long) (fRandom.nextDouble() * (end - t1)));
+            checkQuery(pyramid, t1, t2);
+        }
+        checkQuery(pyramid, 0, end);
+        checkQuery(pyramid, end, end);
+    }
+
+    private void checkQuery(TmfMipmapPyramid pyramid, long t1, long t2) throws AttributeNotFoundException, StateSystemDisposedException {
+        ITmfStateValue max = TmfStateValue.nullValue();
+        ITmfStateValue min = TmfStateValue.nullValue();
+        ITmfStateValue first = TmfStateValue.nullValue();
+        double sum = 0.0;
+        for (int i = 0; i < fTimes.size(); i++) {
+            long start = fTimes.get(i);
+            long end = (i + 1 < fTimes.size() ? fTimes.get(i + 1) : Long.MAX_VALUE);
+            ITmfStateValue value = fValues.get(i);
+            /* States without duration are replaced, like in the state system */
+            if (value.isNull() || start == end || start > t2 || end <= t1) {
+                continue;
+            }
+            if (first.isNull()) {
+                first = value;
+            }
+            max = (max.isNull() || value.compareTo(max) > 0 ? value : max);
+            min = (min.isNull() || value.compareTo(min) < 0 ? value : min);
+            double v = (value.getType() == Type.DOUBLE ? value.unboxDouble() : value.unboxLong());
+            sum += v * Math.max(0, Math.min(t2, end) - Math.max(t1, start));
+        }
+        assertEquals(max, pyramid.queryMax(t1, t2));
+        assertEquals(min, pyramid.queryMin(t1, t2));
+        assertEquals(sum, pyramid.querySum(t1, t2), DELTA);
+        if (first.isNull()) {
+            assertEquals(0.0, pyramid.queryAverage(t1, t2), DELTA);
+        } else if (t1 == t2) {
+            double v = (first.getType() == Type.DOUBLE ? first.unboxDouble() : first.unboxLong());
+            assertEquals(v, pyramid.queryAverage(t1, t2), DELTA);
+        } else {
+            assertEquals(sum / (t2 - t1), pyramid.queryAverage(t1, t2), DELTA);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009, 2014 Ericsson
+ * Copyright (c) 2009, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -26,10 +26,13 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.eclipse.core.runtime.FileLocator;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfExperimentContext;
+import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfPrefetchingContext;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfTraceException;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest;
@@ -732,6 +735,83 @@ public class TmfMultiTraceExperimentTest {
         }
     }
 
+    @Test
+    public void testProcessRequestWithPrefetch() throws InterruptedException {
+        fExperiment.setPrefetchSize(7);
+        try {
+            for (int startIndex : new int[] { 0, 1500, NB_EVENTS - 10 }) {
+                final Vector<ITmfEvent> requestedEvents = new Vector<>();
+                final TmfTimeRange range = new TmfTimeRange(TmfTimestamp.BIG_BANG, TmfTimestamp.BIG_CRUNCH);
+                final TmfEventRequest request = new TmfEventRequest(ITmfEvent.class,
+                        range, startIndex, ITmfEventRequest.ALL_DATA, ExecutionType.FOREGROUND) {
+                    @Override
+                    public void handleData(final ITmfEvent event) {
+                        super.handleData(event);
+                        requestedEvents.add(event);
+                    }
+                };
+                fExperiment.sendRequest(request);
+                request.waitForCompletion();
+
+                assertEquals("nbEvents", NB_EVENTS - startIndex, requestedEvents.size());
+                assertTrue("isCompleted", request.isCompleted());
+                assertFalse("isCancelled", request.isCancelled());
+
+                // The events are merged in the same order as without prefetching
+                for (int i = 0; i < requestedEvents.size(); i++) {
+                    assertEquals("Distinct events", startIndex + i + 1, requestedEvents.get(i).getTimestamp().getValue());
+                }
+            }
+        } finally {
+            fExperiment.setPrefetchSize(0);
+        }
+    }
+
+    @Test
+    public void testPrefetchingContextPosition() {
+        ITmfTrace trace = fExperiment.getChildren(ITmfTrace.class).get(0);
+
+        /* Reference events, read without prefetching */
+        ITmfContext reference = trace.seekEvent(0);
+        ITmfTimestamp[] expected = new ITmfTimestamp[600];
+        ITmfLocation location = null;
+        for (int i = 0; i < expected.length; i++) {
+            if (i == 500) {
+                location = reference.getLocation();
+            }
+            expected[i] = trace.getNext(reference).getTimestamp();
+        }
+        reference.dispose();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TmfPrefetchingContext context = new TmfPrefetchingContext(trace, trace.seekEvent(0), 7, executor);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("getNext", expected[i], context.getNext().getTimestamp());
+            }
+            assertEquals("getRank", 10, context.getRank());
+
+            /* The events read ahead are numbered again */
+            context.setRank(100);
+            assertEquals("getNext", expected[10], context.getNext().getTimestamp());
+            assertEquals("getRank", 101, context.getRank());
+            context.increaseRank();
+            assertEquals("getNext", expected[11], context.getNext().getTimestamp());
+            assertEquals("getRank", 103, context.getRank());
+
+            /* The events read ahead are discarded */
+            context.setLocation(location);
+            context.setRank(500);
+            for (int i = 500; i < 510; i++) {
+                assertEquals("getNext", expected[i], context.getNext().getTimestamp());
+            }
+            assertEquals("getRank", 510, context.getRank());
+        } finally {
+            context.dispose();
+            executor.shutdown();
+        }
+    }
+
     // ------------------------------------------------------------------------
     // cancel
     // ------------------------------------------------------------------------
@@ -21,6 +21,7 @@ import org.eclipse.tracecompass.internal.tmf.core.TmfCoreTracer;
 import org.eclipse.tracecompass.tmf.core.component.ITmfEventProvider;
 import org.eclipse.tracecompass.tmf.core.component.TmfEventProvider;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.request.ITmfEventBatchRequest;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest.ExecutionType;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
@@ -179,6 +180,18 @@ public class TmfEventThread implements Runnable {
             return;
         }
 
+        // Deliver the events in batches if the request accepts them
+        ITmfEventBatchRequest batchRequest = null;
+        ITmfEvent[] batch = null;
+        int batchCount = 0;
+        if (fRequest instanceof ITmfEventBatchRequest) {
+            int batchSize = ((ITmfEventBatchRequest) fRequest).getBatchSize();
+            if (batchSize > 1) {
+                batchRequest = (ITmfEventBatchRequest) fRequest;
+                batch = new ITmfEvent[batchSize];
+            }
+        }
+
         try {
             // Get the ordered events
             ITmfEvent event = fProvider.getNext(context);
@@ -188,10 +201,23 @@ public class TmfEventThread implements Runnable {
 
                 TmfCoreTracer.traceEvent(fProvider, fRequest, event);
                 if (fRequest.getDataType().isInstance(event)) {
-                    fRequest.handleData(event);
+                    if (batch == null) {
+                        fRequest.handleData(event);
+                    } else {
+                        batch[batchCount++] = event;
+                        if (batchCount == batch.length) {
+                            batchRequest.handleData(batch, batchCount);
+                            batchCount = 0;
+                        }
+                    }
                 }
 
                 // Pause execution if requested
+                if (fIsPaused && batchCount > 0) {
+                    // Do not hold back the events read so far while paused
+                    batchRequest.handleData(batch, batchCount);
+                    batchCount = 0;
+                }
                 while (fIsPaused) {
                     CountDownLatch latch = fLatch;
                     latch.await();
@@ -203,6 +229,11 @@ public class TmfEventThread implements Runnable {
                 }
             }
 
+            // Deliver the last batch
+            if (batchCount > 0 && !fRequest.isCompleted()) {
+                batchRequest.handleData(batch, batchCount);
+            }
+
             isCompleted = true;
 
             if (fRequest.isCancelled()) {
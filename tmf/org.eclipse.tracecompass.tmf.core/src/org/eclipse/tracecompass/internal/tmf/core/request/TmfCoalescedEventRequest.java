@@ -23,6 +23,7 @@ import java.util.Set;
 
 import org.eclipse.tracecompass.internal.tmf.core.TmfCoreTracer;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.request.ITmfEventBatchRequest;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.request.TmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
@@ -30,10 +31,14 @@ import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimeRange;
 
 /**
  * The TMF coalesced event request
+ * <p>
+ * If some of the sub-requests accept batches of events, the coalesced request
+ * accepts them too, and passes to each sub-request the events of the batch it
+ * is interested in.
  *
  * @author Francois Chouinard
  */
-public class TmfCoalescedEventRequest extends TmfEventRequest {
+public class TmfCoalescedEventRequest extends TmfEventRequest implements ITmfEventBatchRequest {
 
     // ------------------------------------------------------------------------
     // Attributes
@@ -53,6 +58,12 @@ public class TmfCoalescedEventRequest extends TmfEventRequest {
      */
     private Map<String, Set<ITmfEventRequest>> fRequestsCache = new HashMap<>();
 
+    /**
+     * The batches of the sub-requests accepting them, created when the first
+     * batch is received.
+     */
+    private Map<ITmfEventRequest, EventBatch> fBatches = null;
+
     // ------------------------------------------------------------------------
     // Constructor
     // ------------------------------------------------------------------------
@@ -207,7 +218,63 @@ public class TmfCoalescedEventRequest extends TmfEventRequest {
     @Override
     public void handleData(ITmfEvent data) {
         super.handleData(data);
+        dispatch(data, null);
+    }
+
+    /**
+     * The largest batch size of the sub-requests. The events are dispatched
+     * one at a time if none of them accepts batches.
+     */
+    @Override
+    public int getBatchSize() {
+        int batchSize = 1;
+        for (ITmfEventRequest request : fRequests) {
+            if (request instanceof ITmfEventBatchRequest) {
+                batchSize = Math.max(batchSize, ((ITmfEventBatchRequest) request).getBatchSize());
+            }
+        }
+        return batchSize;
+    }
+
+    @Override
+    public void handleData(ITmfEvent[] events, int count) {
+        Map<ITmfEventRequest, EventBatch> batches = fBatches;
+        if (batches == null) {
+            batches = new HashMap<>();
+            for (ITmfEventRequest request : fRequests) {
+                if (request instanceof ITmfEventBatchRequest) {
+                    ITmfEventBatchRequest batchRequest = (ITmfEventBatchRequest) request;
+                    int batchSize = batchRequest.getBatchSize();
+                    if (batchSize > 1) {
+                        batches.put(request, new EventBatch(batchRequest, batchSize));
+                    }
+                }
+            }
+            fBatches = batches;
+        }
 
+        for (int i = 0; i < count; i++) {
+            ITmfEvent data = events[i];
+            super.handleData(data);
+            dispatch(data, batches);
+        }
+
+        /* Pass on what the sub-requests received from this batch */
+        for (EventBatch batch : batches.values()) {
+            batch.flush();
+        }
+    }
+
+    /**
+     * Dispatch an event to the sub-requests
+     *
+     * @param data
+     *            The event
+     * @param batches
+     *            The batches of the sub-requests accepting them, or null to
+     *            pass the event right away to all sub-requests
+     */
+    private void dispatch(ITmfEvent data, Map<ITmfEventRequest, EventBatch> batches) {
         long index = getIndex() + getNbRead() - 1;
 
         String traceName = data.getTrace().getName();
@@ -226,12 +293,19 @@ public class TmfCoalescedEventRequest extends TmfEventRequest {
 
         // dispatch event to relevant requests
         for (ITmfEventRequest request : requests) {
+            EventBatch batch = (batches == null ? null : batches.get(request));
+            /* Count the events already waiting in the request's batch */
+            long nbRead = request.getNbRead() + (batch == null ? 0 : batch.fCount);
             long start = request.getIndex();
-            if (!request.isCompleted() && index >= start && request.getNbRead() < request.getNbRequested()) {
+            if (!request.isCompleted() && index >= start && nbRead < request.getNbRequested()) {
                 ITmfTimestamp ts = data.getTimestamp();
                 if (request.getRange().contains(ts)) {
                     if (request.getDataType().isInstance(data)) {
-                        request.handleData(data);
+                        if (batch != null) {
+                            batch.add(data);
+                        } else {
+                            request.handleData(data);
+                        }
                     }
                 }
             }
@@ -335,4 +409,32 @@ public class TmfCoalescedEventRequest extends TmfEventRequest {
                 + ", " + fRequests.toString() + ")]";
     }
 
+    /**
+     * The events waiting to be passed to a sub-request accepting batches
+     */
+    private static final class EventBatch {
+
+        private final ITmfEventBatchRequest fRequest;
+        private final ITmfEvent[] fEvents;
+        private int fCount = 0;
+
+        public EventBatch(ITmfEventBatchRequest request, int batchSize) {
+            fRequest = request;
+            fEvents = new ITmfEvent[batchSize];
+        }
+
+        public void add(ITmfEvent event) {
+            fEvents[fCount++] = event;
+            if (fCount == fEvents.length) {
+                flush();
+            }
+        }
+
+        public void flush() {
+            if (fCount > 0 && !fRequest.isCompleted()) {
+                fRequest.handleData(fEvents, fCount);
+            }
+            fCount = 0;
+        }
+    }
 }
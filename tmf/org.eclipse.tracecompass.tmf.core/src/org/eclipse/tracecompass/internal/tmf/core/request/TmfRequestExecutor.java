@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009, 2014 Ericsson
+ * Copyright (c) 2009, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -14,14 +14,19 @@
 
 package org.eclipse.tracecompass.internal.tmf.core.request;
 
-import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.eclipse.tracecompass.internal.tmf.core.Activator;
 import org.eclipse.tracecompass.internal.tmf.core.TmfCoreTracer;
 import org.eclipse.tracecompass.internal.tmf.core.component.TmfEventThread;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest.ExecutionType;
@@ -34,9 +39,19 @@ import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest.ExecutionType;
  * Example: if we have one foreground and one background request, the foreground
  * request will be executed four times more often than the background request.
  *
+ * A foreground request that arrives while a background request is running
+ * does not wait for the end of the slot: the background request is suspended
+ * and the foreground request starts right away. A request that arrives when
+ * nothing is running also starts right away.
+ *
+ * The executors of all the providers share the same worker threads and the
+ * same timer, so the number of threads follows the number of running
+ * requests, not the number of open traces. Each executor keeps the number of
+ * waiting requests and the time they waited before being started.
+ *
  * @author Francois Chouinard
  * @author Simon Delisle
- * @version 1.1
+ * @version 1.2
  */
 public class TmfRequestExecutor implements Executor {
 
@@ -47,26 +62,41 @@ public class TmfRequestExecutor implements Executor {
     private static final long REQUEST_TIME = 100;
     private static final int FOREGROUND_SLOT = 4;
 
+    /** The worker threads, shared by all the executors */
+    private static final ExecutorService WORKERS = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new WorkerThreadFactory());
+
+    /** The timer switching between the requests, shared by all the executors */
+    private static final Timer SCHED_TIMER = new Timer("TmfRequestExecutor scheduler", true); //$NON-NLS-1$
+
     // ------------------------------------------------------------------------
     // Attributes
     // ------------------------------------------------------------------------
 
-    // The request executor
-    private final ExecutorService fExecutor = Executors.newCachedThreadPool();
     private final String fExecutorName;
 
     // The request queues
-    private final Queue<TmfEventThread> fForegroundTasks = new ArrayBlockingQueue<>(10);
-    private final Queue<TmfEventThread> fBackgroundTasks = new ArrayBlockingQueue<>(10);
+    private final Deque<RequestTask> fForegroundTasks = new ArrayDeque<>();
+    private final Deque<RequestTask> fBackgroundTasks = new ArrayDeque<>();
 
     // The tasks
-    private TmfEventThread fActiveTask;
+    private RequestTask fActiveTask;
 
-    private Timer fTimer;
     private TimerTask fTimerTask;
 
     private int fForegroundCycle = 0;
 
+    private boolean fIsShutdown = false;
+
+    /* Number of tasks started on a worker thread that did not return yet */
+    private int fNbRunningTasks = 0;
+
+    // Wait time metrics, indexed by execution type
+    private final long[] fNbStarted = new long[ExecutionType.values().length];
+    private final long[] fTotalWaitTime = new long[ExecutionType.values().length];
+    private final long[] fMaxWaitTime = new long[ExecutionType.values().length];
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -75,10 +105,10 @@ public class TmfRequestExecutor implements Executor {
      * Default constructor
      */
     public TmfRequestExecutor() {
-        String canonicalName = fExecutor.getClass().getCanonicalName();
+        String canonicalName = WORKERS.getClass().getCanonicalName();
         fExecutorName = canonicalName.substring(canonicalName.lastIndexOf('.') + 1);
         if (TmfCoreTracer.isComponentTraced()) {
-            TmfCoreTracer.trace(fExecutor + " created"); //$NON-NLS-1$
+            TmfCoreTracer.trace(this + " created"); //$NON-NLS-1$
         }
     }
 
@@ -89,15 +119,53 @@ public class TmfRequestExecutor implements Executor {
     /**
      * @return the shutdown state (i.e. if it is accepting new requests)
      */
-    public boolean isShutdown() {
-        return fExecutor.isShutdown();
+    public synchronized boolean isShutdown() {
+        return fIsShutdown;
     }
 
     /**
      * @return the termination state
      */
-    public boolean isTerminated() {
-        return fExecutor.isTerminated();
+    public synchronized boolean isTerminated() {
+        return fIsShutdown && fNbRunningTasks == 0;
+    }
+
+    /**
+     * Get the number of requests of a given type that are waiting to be
+     * executed, including the suspended ones.
+     *
+     * @param type
+     *            The execution type of the requests
+     * @return The number of waiting requests
+     */
+    public synchronized int getQueueDepth(ExecutionType type) {
+        return getQueue(type).size();
+    }
+
+    /**
+     * Get the average time the requests of a given type waited in the queue
+     * before being started.
+     *
+     * @param type
+     *            The execution type of the requests
+     * @return The average wait time, in nanoseconds, or 0 if no request was
+     *         started yet
+     */
+    public synchronized long getAverageWaitTime(ExecutionType type) {
+        long nbStarted = fNbStarted[type.ordinal()];
+        return (nbStarted == 0 ? 0 : fTotalWaitTime[type.ordinal()] / nbStarted);
+    }
+
+    /**
+     * Get the longest time a request of a given type waited in the queue
+     * before being started.
+     *
+     * @param type
+     *            The execution type of the requests
+     * @return The maximum wait time, in nanoseconds
+     */
+    public synchronized long getMaxWaitTime(ExecutionType type) {
+        return fMaxWaitTime[type.ordinal()];
     }
 
     // ------------------------------------------------------------------------
@@ -107,14 +175,13 @@ public class TmfRequestExecutor implements Executor {
     /**
      * Initialize the executor
      */
-    public void init() {
-        if (fTimer != null) {
+    public synchronized void init() {
+        if (fTimerTask != null || fIsShutdown) {
             return;
         }
         // Initialize the timer for the schedSwitch
         fTimerTask = new SchedSwitch();
-        fTimer = new Timer(true);
-        fTimer.schedule(fTimerTask, 0, REQUEST_TIME);
+        SCHED_TIMER.schedule(fTimerTask, 0, REQUEST_TIME);
     }
 
     @Override
@@ -126,30 +193,25 @@ public class TmfRequestExecutor implements Executor {
             return;
         }
 
-        // Wrap the thread in a MyThread
         TmfEventThread thread = (TmfEventThread) command;
-        TmfEventThread wrapper = new TmfEventThread(thread) {
-            @Override
-            public void run() {
-                try {
-                    command.run();
-                } finally {
-                    scheduleNext();
-                }
-            }
-        };
-
-        // Add the thread to the appropriate queue
-        ExecutionType priority = thread.getExecType();
+        if (fIsShutdown) {
+            thread.cancel();
+            return;
+        }
 
-        if (priority == ExecutionType.FOREGROUND) {
-            if (!fForegroundTasks.offer(wrapper)) {
-                wrapper.cancel();
-            }
-        } else {
-            if (!fBackgroundTasks.offer(wrapper)) {
-                wrapper.cancel();
-            }
+        // Wrap the thread, and add it to the appropriate queue
+        RequestTask task = new RequestTask(thread);
+        getQueue(task.getExecType()).addLast(task);
+
+        if (fActiveTask == null) {
+            schedule();
+        } else if (task.getExecType() == ExecutionType.FOREGROUND &&
+                fActiveTask.getExecType() == ExecutionType.BACKGROUND) {
+            // Pre-empt the background request
+            fActiveTask.getThread().suspend();
+            fBackgroundTasks.addFirst(fActiveTask);
+            fActiveTask = null;
+            schedule();
         }
     }
 
@@ -163,7 +225,12 @@ public class TmfRequestExecutor implements Executor {
 
         @Override
         public void run() {
-            scheduleNext();
+            try {
+                scheduleNext();
+            } catch (RuntimeException e) {
+                /* Do not let one executor kill the shared timer */
+                Activator.logError("Error scheduling the requests of " + TmfRequestExecutor.this, e); //$NON-NLS-1$
+            }
         }
     }
 
@@ -174,35 +241,15 @@ public class TmfRequestExecutor implements Executor {
         if (!isShutdown()) {
             if (fActiveTask == null) {
                 schedule();
-            } else if (fActiveTask.getExecType() == ExecutionType.FOREGROUND) {
-                if (fActiveTask.getThread().isCompleted()) {
-                    fActiveTask = null;
-                    schedule();
-                } else {
-                    if (hasTasks()) {
-                        fActiveTask.getThread().suspend();
-                        if (!fForegroundTasks.offer(fActiveTask)) {
-                            fActiveTask.cancel();
-                            fActiveTask = null;
-                        }
-                        schedule();
-                    }
-                }
-
-            } else if (fActiveTask.getExecType() == ExecutionType.BACKGROUND) {
-                if (fActiveTask.getThread().isCompleted()) {
-                    fActiveTask = null;
-                    schedule();
-                } else {
-                    if (hasTasks()) {
-                        fActiveTask.getThread().suspend();
-                        if (!fBackgroundTasks.offer(fActiveTask)) {
-                            fActiveTask.cancel();
-                            fActiveTask = null;
-                        }
-                        schedule();
-                    }
-                }
+            } else if (fActiveTask.getThread().isCompleted()) {
+                fActiveTask = null;
+                schedule();
+            } else if (hasTasks()) {
+                // The time slot is over, put the request back in its queue
+                fActiveTask.getThread().suspend();
+                getQueue(fActiveTask.getExecType()).addLast(fActiveTask);
+                fActiveTask = null;
+                schedule();
             }
         }
     }
@@ -211,28 +258,21 @@ public class TmfRequestExecutor implements Executor {
      * Stops the executor
      */
     public synchronized void stop() {
+        fIsShutdown = true;
         if (fTimerTask != null) {
             fTimerTask.cancel();
         }
 
-        if (fTimer != null) {
-            fTimer.cancel();
-        }
-
         if (fActiveTask != null) {
             fActiveTask.cancel();
+            fActiveTask = null;
         }
 
-        while ((fActiveTask = fForegroundTasks.poll()) != null) {
-            fActiveTask.cancel();
-        }
-        while ((fActiveTask = fBackgroundTasks.poll()) != null) {
-            fActiveTask.cancel();
-        }
+        cancelAll(fForegroundTasks);
+        cancelAll(fBackgroundTasks);
 
-        fExecutor.shutdown();
         if (TmfCoreTracer.isComponentTraced()) {
-            TmfCoreTracer.trace(fExecutor + " terminated"); //$NON-NLS-1$
+            TmfCoreTracer.trace(this + " terminated"); //$NON-NLS-1$
         }
     }
 
@@ -240,6 +280,38 @@ public class TmfRequestExecutor implements Executor {
     // Helper methods
     // ------------------------------------------------------------------------
 
+    private Deque<RequestTask> getQueue(ExecutionType type) {
+        return (type == ExecutionType.FOREGROUND ? fForegroundTasks : fBackgroundTasks);
+    }
+
+    /**
+     * Cancel the tasks of a queue. The suspended ones are resumed, so that
+     * their thread can see the cancellation and return.
+     */
+    private static void cancelAll(Deque<RequestTask> tasks) {
+        RequestTask task;
+        while ((task = tasks.poll()) != null) {
+            task.cancel();
+            if (task.getThread().isPaused()) {
+                task.getThread().resume();
+            }
+        }
+    }
+
+    /**
+     * Called by a task when its thread returns
+     */
+    private synchronized void taskDone(RequestTask task) {
+        fNbRunningTasks--;
+        if (fActiveTask == task) {
+            fActiveTask = null;
+        } else {
+            /* It may have ended right after being suspended */
+            getQueue(task.getExecType()).remove(task);
+        }
+        scheduleNext();
+    }
+
     /**
      * Determine which type of request (foreground or background) we schedule
      * next
@@ -284,7 +356,17 @@ public class TmfRequestExecutor implements Executor {
         if (fActiveTask.getThread().isPaused()) {
             fActiveTask.getThread().resume();
         } else {
-            fExecutor.execute(fActiveTask);
+            int type = fActiveTask.getExecType().ordinal();
+            long waitTime = System.nanoTime() - fActiveTask.fQueuedTime;
+            fNbStarted[type]++;
+            fTotalWaitTime[type] += waitTime;
+            fMaxWaitTime[type] = Math.max(fMaxWaitTime[type], waitTime);
+            if (TmfCoreTracer.isRequestTraced()) {
+                TmfCoreTracer.traceRequest(fActiveTask.getRequest().getRequestId(),
+                        "STARTED after waiting " + waitTime / 1000 + " us"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            fNbRunningTasks++;
+            WORKERS.execute(fActiveTask);
         }
     }
 
@@ -295,6 +377,48 @@ public class TmfRequestExecutor implements Executor {
         return !(fForegroundTasks.isEmpty() && fBackgroundTasks.isEmpty());
     }
 
+    // ------------------------------------------------------------------------
+    // Helper classes
+    // ------------------------------------------------------------------------
+
+    /**
+     * Wrapper of a request thread, which notifies the executor when it
+     * returns.
+     */
+    private class RequestTask extends TmfEventThread {
+
+        private final long fQueuedTime = System.nanoTime();
+
+        RequestTask(TmfEventThread thread) {
+            super(thread);
+        }
+
+        @Override
+        public void run() {
+            try {
+                getThread().run();
+            } finally {
+                taskDone(this);
+            }
+        }
+    }
+
+    /**
+     * Factory of the worker threads, which do not prevent the application from
+     * exiting
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger fCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TmfRequestExecutor worker " + fCount.incrementAndGet()); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Object
     // ------------------------------------------------------------------------
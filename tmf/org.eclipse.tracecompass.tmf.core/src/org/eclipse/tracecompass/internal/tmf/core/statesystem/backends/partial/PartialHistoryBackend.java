@@ -14,19 +14,31 @@ package org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.tmf.core.Activator;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.backend.IBufferQueryHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.IMultiQueryHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfFullStateBuffer;
 import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
@@ -37,6 +49,7 @@ import org.eclipse.tracecompass.tmf.core.statesystem.ITmfStateProvider;
 import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimeRange;
 import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
 
 /**
@@ -53,9 +66,44 @@ import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
  * earlier checkpoint, and will re-feed the state-change-input with events from
  * the trace, to restore the real state at the time that was requested.
  *
+ * Checkpoints are placed according to the cost of replaying the trace from
+ * them: every event a replay has to read counts, including the events of the
+ * other traces of an experiment, and events of the target trace count double
+ * since they also go through the state provider. This bounds the work of a
+ * query however the events are distributed in time. The checkpoints are saved
+ * in the history file, between the nodes and the attribute tree, so that an
+ * existing partial history can be opened again without reading the trace.
+ *
+ * Queries coming from different threads each get their own copy of the state
+ * provider and partial state system, so that one query does not wait for the
+ * whole replay of another. The replays are not fully parallel though: they
+ * read the same trace object, whose seekEvent() and getNext() are
+ * synchronized, so the parsing of the events is serialized between them, one
+ * event at a time. Only the handling of the events by the state providers,
+ * each on its own thread, runs in parallel. The last full states that were
+ * rebuilt are also kept in a small cache, from which nearby queries can start
+ * instead of the checkpoint.
+ *
  * @author Alexandre Montplaisir
  */
-public class PartialHistoryBackend implements IStateHistoryBackend {
+public class PartialHistoryBackend implements IMultiQueryHistoryBackend, IBufferQueryHistoryBackend {
+
+    /** Maximum number of rebuilt full states to keep in the cache */
+    private static final int STATE_CACHE_SIZE = 16;
+
+    private static final int CHECKPOINTS_MAGIC_NUMBER = 0x0AC4EC75;
+
+    /** Size of the checkpoints section header: magic number, count */
+    private static final int CHECKPOINTS_HEADER_SIZE = 8;
+
+    /** Size of each checkpoint in the file: timestamp, rank */
+    private static final int CHECKPOINT_SIZE = 16;
+
+    /** Replay cost of an event that is only read, and skipped */
+    private static final long READ_COST = 1;
+
+    /** Replay cost of an event that is read, then handled by the state provider */
+    private static final long PROCESS_COST = 2;
 
     private final @NonNull String fSSID;
 
@@ -84,6 +132,53 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
     private long fLatestTime;
 
+    /** Size of the checkpoints section in the history file */
+    private long fCheckpointsSectionSize = 0;
+
+    /**
+     * Whether the checkpoints could not be written. The attribute tree is then
+     * not written either, so that the file is rejected when it is opened
+     * again, and the history is built anew.
+     */
+    private volatile boolean fCheckpointsWriteFailed = false;
+
+    /**
+     * Maximum number of queries that can re-read the trace at the same time.
+     * Their reads of the trace are interleaved, not parallel.
+     */
+    private final int fMaxReplayers = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** All the replayers created so far, to dispose them at the end */
+    private final List<Replayer> fReplayers = new ArrayList<>();
+
+    /** The replayers that are not used by a query at the moment */
+    private final BlockingQueue<Replayer> fIdleReplayers = new LinkedBlockingQueue<>();
+
+    /** Last rebuilt full states, <Timestamp, Full state>, in LRU order */
+    private final Map<Long, List<ITmfStateInterval>> fStateCache =
+            new LinkedHashMap<Long, List<ITmfStateInterval>>(STATE_CACHE_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, List<ITmfStateInterval>> eldest) {
+                    return size() > STATE_CACHE_SIZE;
+                }
+            };
+
+    /**
+     * A state provider with the partial state system it is assigned to. A
+     * query re-reading the trace has exclusive use of one replayer.
+     */
+    private static final class Replayer {
+        final ITmfStateProvider fInput;
+        final PartialStateSystem fSS;
+
+        Replayer(ITmfStateProvider input, PartialStateSystem ss) {
+            fInput = input;
+            fSS = ss;
+        }
+    }
+
     /**
      * Constructor
      *
@@ -101,7 +196,8 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
      *            modular, so it should be able to be of any type.
      * @param granularity
      *            Configuration parameter indicating how many trace events there
-     *            should be between each checkpoint
+     *            should be between each checkpoint. Events of other traces,
+     *            which the replays only skip, count for less.
      */
     public PartialHistoryBackend(@NonNull String ssid,
             ITmfStateProvider partialInput,
@@ -124,9 +220,59 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
         fLatestTime = startTime;
 
+        Replayer replayer = new Replayer(partialInput, pss);
+        fReplayers.add(replayer);
+        fIdleReplayers.add(replayer);
+
         registerCheckpoints();
     }
 
+    /**
+     * "Existing file" constructor. The checkpoints are read from the history
+     * file of the real back-end, which must have been built by a partial
+     * history.
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param partialInput
+     *            The state change input object that was used to build the
+     *            upstream state system. This partial history will make its own
+     *            copy (since they have different targets).
+     * @param pss
+     *            The partial history's inner state system. It should already be
+     *            assigned to partialInput.
+     * @param realBackend
+     *            The real state history back-end, opened from an existing file
+     * @throws IOException
+     *             If the file does not contain the checkpoints of a partial
+     *             history
+     */
+    public PartialHistoryBackend(@NonNull String ssid,
+            ITmfStateProvider partialInput,
+            PartialStateSystem pss,
+            IStateHistoryBackend realBackend) throws IOException {
+        if (partialInput == null || pss == null ||
+                partialInput.getAssignedStateSystem() != pss) {
+            throw new IllegalArgumentException();
+        }
+
+        fSSID = ssid;
+        fPartialInput = partialInput;
+        fPartialSS = pss;
+
+        fInnerHistory = realBackend;
+        fGranularity = 0;
+
+        fLatestTime = realBackend.getEndTime();
+
+        Replayer replayer = new Replayer(partialInput, pss);
+        fReplayers.add(replayer);
+        fIdleReplayers.add(replayer);
+
+        readCheckpoints();
+        fCheckpointsReady.countDown();
+    }
+
     private void registerCheckpoints() {
         ITmfEventRequest request = new CheckpointsRequest(fPartialInput, fCheckpoints);
         fPartialInput.getTrace().sendRequest(request);
@@ -174,21 +320,45 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
     @Override
     public void finishedBuilding(long endTime) throws TimeRangeException {
         fInnerHistory.finishedBuilding(endTime);
+        writeCheckpoints();
     }
 
     @Override
     public FileInputStream supplyAttributeTreeReader() {
-        return fInnerHistory.supplyAttributeTreeReader();
+        FileInputStream fis = fInnerHistory.supplyAttributeTreeReader();
+        if (fis != null) {
+            /* The attribute tree comes after the checkpoints */
+            try {
+                fis.getChannel().position(fis.getChannel().position() + fCheckpointsSectionSize);
+            } catch (IOException e) {
+                /*
+                 * Reading the attribute tree from the wrong place would give a
+                 * corrupted tree. Without a stream, opening the state system
+                 * fails, and the history will be built again.
+                 */
+                Activator.logError("Could not seek to the attribute tree of the partial history " + fSSID, e); //$NON-NLS-1$
+                try {
+                    fis.close();
+                } catch (IOException e1) {
+                    /* Nothing more to do */
+                }
+                return null;
+            }
+        }
+        return fis;
     }
 
     @Override
     public File supplyAttributeTreeWriterFile() {
+        if (fCheckpointsWriteFailed) {
+            return null;
+        }
         return fInnerHistory.supplyAttributeTreeWriterFile();
     }
 
     @Override
     public long supplyAttributeTreeWriterFilePosition() {
-        return fInnerHistory.supplyAttributeTreeWriterFilePosition();
+        return fInnerHistory.supplyAttributeTreeWriterFilePosition() + fCheckpointsSectionSize;
     }
 
     @Override
@@ -198,8 +368,16 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
     @Override
     public void dispose() {
-        fPartialInput.dispose();
-        fPartialSS.dispose();
+        synchronized (fReplayers) {
+            for (Replayer replayer : fReplayers) {
+                replayer.fInput.dispose();
+                replayer.fSS.dispose();
+            }
+            fReplayers.clear();
+        }
+        synchronized (fStateCache) {
+            fStateCache.clear();
+        }
         fInnerHistory.dispose();
     }
 
@@ -214,46 +392,54 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(fSSID + " Time:" + t + ", Start:" + getStartTime() + ", End:" + getEndTime()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        /* Reload the previous checkpoint */
         long checkpointTime = fCheckpoints.floorKey(t);
-        fInnerHistory.doQuery(currentStateInfo, checkpointTime);
 
         /*
-         * Set the initial contents of the partial state system (which is the
-         * contents of the query at the checkpoint).
+         * Start from the latest cached state between the checkpoint and the
+         * target time if there is one, otherwise reload the checkpoint.
          */
-        fPartialSS.takeQueryLock();
-        fPartialSS.replaceOngoingState(currentStateInfo);
-
-        /* Send an event request to update the state system to the target time. */
-        TmfTimeRange range = new TmfTimeRange(
-                /*
-                 * The state at the checkpoint already includes any state change
-                 * caused by the event(s) happening exactly at 'checkpointTime',
-                 * if any. We must not include those events in the query.
-                 */
-                new TmfTimestamp(checkpointTime + 1, ITmfTimestamp.NANOSECOND_SCALE),
-                new TmfTimestamp(t, ITmfTimestamp.NANOSECOND_SCALE));
-        ITmfEventRequest request = new PartialStateSystemRequest(fPartialInput, range);
-        fPartialInput.getTrace().sendRequest(request);
-
-        try {
-            request.waitForCompletion();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        long replayStart;
+        Map.Entry<Long, List<ITmfStateInterval>> cached = getCachedState(checkpointTime, t, currentStateInfo.size());
+        if (cached != null) {
+            replayStart = cached.getKey();
+            for (int i = 0; i < currentStateInfo.size(); i++) {
+                currentStateInfo.set(i, cached.getValue().get(i));
+            }
+            if (replayStart == t) {
+                return;
+            }
+        } else {
+            replayStart = checkpointTime;
+            fInnerHistory.doQuery(currentStateInfo, checkpointTime);
         }
 
-        /*
-         * Now the partial state system should have the ongoing time we are
-         * looking for. However, the method expects a List of *state intervals*,
-         * not state values, so we'll create intervals with a dummy end time.
-         */
+        Replayer replayer = acquireReplayer();
+        PartialStateSystem pss = replayer.fSS;
+        pss.takeQueryLock();
         try {
+            /*
+             * Set the initial contents of the partial state system (which is
+             * the contents of the query at the starting point).
+             */
+            pss.replaceOngoingState(currentStateInfo);
+
+            /*
+             * Update the state system to the target time. The state at the
+             * starting point already includes any state change caused by the
+             * event(s) happening exactly at 'replayStart', if any. We must not
+             * include those events in the query.
+             */
+            replay(replayer.fInput, replayStart + 1, t);
+
+            /*
+             * Now the partial state system should have the ongoing time we are
+             * looking for. However, the method expects a List of *state
+             * intervals*, not state values, so we'll create intervals with a
+             * dummy end time.
+             */
             for (int i = 0; i < currentStateInfo.size(); i++) {
-                long start = 0;
-                ITmfStateValue val = null;
-                start = ((ITmfStateSystem) fPartialSS).getOngoingStartTime(i);
-                val = ((ITmfStateSystem) fPartialSS).queryOngoingState(i);
+                long start = ((ITmfStateSystem) pss).getOngoingStartTime(i);
+                ITmfStateValue val = ((ITmfStateSystem) pss).queryOngoingState(i);
 
                 ITmfStateInterval interval = new TmfStateInterval(start, t, i, val);
                 currentStateInfo.set(i, interval);
@@ -261,9 +447,34 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
         } catch (AttributeNotFoundException e) {
             /* Should not happen, we iterate over existing values. */
             e.printStackTrace();
+        } finally {
+            pss.releaseQueryLock();
+            fIdleReplayers.add(replayer);
         }
 
-        fPartialSS.releaseQueryLock();
+        synchronized (fStateCache) {
+            fStateCache.put(t, new ArrayList<>(currentStateInfo));
+        }
+    }
+
+    /**
+     * The replay of a partial history produces intervals, and they are kept in
+     * the state cache, so this runs the List query and copies the result to
+     * the buffer.
+     */
+    @Override
+    public void doQuery(TmfFullStateBuffer buffer, long t)
+            throws TimeRangeException, StateSystemDisposedException {
+        List<ITmfStateInterval> stateInfo = new ArrayList<>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            stateInfo.add(null);
+        }
+        doQuery(stateInfo, t);
+        for (ITmfStateInterval interval : stateInfo) {
+            if (interval != null) {
+                buffer.set(interval);
+            }
+        }
     }
 
     /**
@@ -275,6 +486,38 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Partial histories can only rebuild complete states, so this runs one
+     * full query per requested timestamp.
+     */
+    @Override
+    public void doMultiQuery(long[] times, int[] quarks, ITmfStateInterval[][] results)
+            throws TimeRangeException, AttributeNotFoundException, StateSystemDisposedException {
+        if (quarks.length == 0) {
+            return;
+        }
+        int nbAttributes = fPartialSS.getUpstreamSS().getNbAttributes();
+        for (int quark : quarks) {
+            if (quark < 0 || quark >= nbAttributes) {
+                throw new AttributeNotFoundException(fSSID + " Quark:" + quark); //$NON-NLS-1$
+            }
+        }
+
+        List<ITmfStateInterval> stateInfo = new ArrayList<>(nbAttributes);
+        for (int i = 0; i < times.length; i++) {
+            stateInfo.clear();
+            for (int j = 0; j < nbAttributes; j++) {
+                stateInfo.add(null);
+            }
+            doQuery(stateInfo, times[i]);
+            for (int j = 0; j < quarks.length; j++) {
+                if (results[i][j] == null) {
+                    results[i][j] = stateInfo.get(quarks[j]);
+                }
+            }
+        }
+    }
+
     private boolean checkValidTime(long t) {
         return (t >= getStartTime() && t <= getEndTime());
     }
@@ -284,6 +527,160 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
         // TODO Auto-generated method stub
     }
 
+    /**
+     * Get the cached full state closest before a time, but not before the
+     * checkpoint it would otherwise be rebuilt from.
+     */
+    private Map.Entry<Long, List<ITmfStateInterval>> getCachedState(long checkpointTime, long t, int nbAttributes) {
+        synchronized (fStateCache) {
+            Map.Entry<Long, List<ITmfStateInterval>> best = null;
+            for (Map.Entry<Long, List<ITmfStateInterval>> entry : fStateCache.entrySet()) {
+                long time = entry.getKey();
+                if (time >= checkpointTime && time <= t &&
+                        entry.getValue().size() == nbAttributes &&
+                        (best == null || time > best.getKey())) {
+                    best = entry;
+                }
+            }
+            if (best != null) {
+                /* Mark it as recently used */
+                fStateCache.get(best.getKey());
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Get a replayer that no other query is using, creating a new one if the
+     * maximum is not reached yet.
+     */
+    private Replayer acquireReplayer() throws StateSystemDisposedException {
+        Replayer replayer = fIdleReplayers.poll();
+        if (replayer != null) {
+            return replayer;
+        }
+        synchronized (fReplayers) {
+            if (fReplayers.size() < fMaxReplayers) {
+                ITmfStateProvider input = fPartialInput.getNewInstance();
+                PartialStateSystem pss = new PartialStateSystem();
+                input.assignTargetStateSystem(pss);
+                pss.assignUpstream(fPartialSS.getUpstreamSS());
+                replayer = new Replayer(input, pss);
+                fReplayers.add(replayer);
+                return replayer;
+            }
+        }
+        try {
+            return fIdleReplayers.take();
+        } catch (InterruptedException e) {
+            throw new StateSystemDisposedException(e);
+        }
+    }
+
+    /**
+     * Feed the events of the trace between two times to a state provider.
+     *
+     * The trace is read directly instead of through an event request, since
+     * requests are run one at a time and would serialize the queries. Each
+     * replay has its own context, but the calls to the trace are synchronized
+     * on it, so concurrent replays take turns reading events.
+     */
+    private static void replay(ITmfStateProvider input, long start, long end) {
+        ITmfTrace trace = input.getTrace();
+        ITmfTimestamp endTime = new TmfTimestamp(end, ITmfTimestamp.NANOSECOND_SCALE);
+        ITmfContext context = trace.seekEvent(new TmfTimestamp(start, ITmfTimestamp.NANOSECOND_SCALE));
+        try {
+            ITmfEvent event = trace.getNext(context);
+            while (event != null && event.getTimestamp().compareTo(endTime) <= 0) {
+                if (event.getTrace() == trace) {
+                    input.processEvent(event);
+                }
+                event = trace.getNext(context);
+            }
+        } finally {
+            context.dispose();
+        }
+
+        /*
+         * If we're using a threaded state provider, we need to make sure all
+         * events have been handled by the state system before doing queries
+         * on it.
+         */
+        if (input instanceof AbstractTmfStateProvider) {
+            ((AbstractTmfStateProvider) input).waitForEmptyQueue();
+        }
+    }
+
+    /**
+     * Write the checkpoints at the end of the real history's file, where the
+     * attribute tree would otherwise go. If they cannot be written, the error
+     * is logged and the attribute tree will not be written after them, so that
+     * the incomplete file is not reused. The checkpoints stay available in
+     * memory for the current session.
+     */
+    private void writeCheckpoints() {
+        File file = fInnerHistory.supplyAttributeTreeWriterFile();
+        if (file == null) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINTS_HEADER_SIZE + fCheckpoints.size() * CHECKPOINT_SIZE);
+        buffer.putInt(CHECKPOINTS_MAGIC_NUMBER);
+        buffer.putInt(fCheckpoints.size());
+        for (Map.Entry<Long, Long> checkpoint : fCheckpoints.entrySet()) {
+            buffer.putLong(checkpoint.getKey());
+            buffer.putLong(checkpoint.getValue());
+        }
+        buffer.flip();
+
+        try (FileOutputStream fos = new FileOutputStream(file, true);
+                FileChannel fc = fos.getChannel();) {
+            fc.position(fInnerHistory.supplyAttributeTreeWriterFilePosition());
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+            fCheckpointsSectionSize = buffer.limit();
+        } catch (IOException e) {
+            fCheckpointsWriteFailed = true;
+            Activator.logError("Could not write the checkpoints of the partial history " + fSSID, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Read the checkpoints saved in the real history's file.
+     */
+    private void readCheckpoints() throws IOException {
+        FileInputStream fis = fInnerHistory.supplyAttributeTreeReader();
+        if (fis == null) {
+            throw new IOException("The history file has no checkpoints section"); //$NON-NLS-1$
+        }
+        FileChannel fc = fis.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(CHECKPOINTS_HEADER_SIZE);
+        readFully(fc, header);
+        if (header.getInt() != CHECKPOINTS_MAGIC_NUMBER) {
+            throw new IOException("The checkpoints file section is either invalid or corrupted."); //$NON-NLS-1$
+        }
+        int count = header.getInt();
+        if (count <= 0) {
+            throw new IOException("The checkpoints file section is either invalid or corrupted."); //$NON-NLS-1$
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(count * CHECKPOINT_SIZE);
+        readFully(fc, buffer);
+        for (int i = 0; i < count; i++) {
+            fCheckpoints.put(buffer.getLong(), buffer.getLong());
+        }
+        fCheckpointsSectionSize = CHECKPOINTS_HEADER_SIZE + count * CHECKPOINT_SIZE;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer) < 0) {
+                throw new IOException("Unexpected end of the checkpoints file section"); //$NON-NLS-1$
+            }
+        }
+        buffer.flip();
+    }
+
     private void waitForCheckpoints() {
         try {
             fCheckpointsReady.await();
@@ -299,8 +696,10 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
     private class CheckpointsRequest extends TmfEventRequest {
         private final ITmfTrace trace;
         private final Map<Long, Long> checkpts;
+        private final long costBudget;
         private long eventCount;
-        private long lastCheckpointAt;
+        private long lastCheckpointTime;
+        private long costSinceCheckpoint;
 
         public CheckpointsRequest(ITmfStateProvider input, Map<Long, Long> checkpoints) {
             super(ITmfEvent.class,
@@ -311,8 +710,10 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
             checkpoints.clear();
             this.trace = input.getTrace();
             this.checkpts = checkpoints;
+            this.costBudget = fGranularity * PROCESS_COST;
             eventCount = 0;
-            lastCheckpointAt = 0;
+            lastCheckpointTime = input.getStartTime();
+            costSinceCheckpoint = 0;
 
             /* Insert a checkpoint at the start of the trace */
             checkpoints.put(input.getStartTime(), 0L);
@@ -321,14 +722,19 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
         @Override
         public void handleData(final ITmfEvent event) {
             super.handleData(event);
-            if (event.getTrace() == trace) {
-                eventCount++;
+            eventCount++;
+            costSinceCheckpoint += (event.getTrace() == trace ? PROCESS_COST : READ_COST);
 
-                /* Check if we need to register a new checkpoint */
-                if (eventCount >= lastCheckpointAt + fGranularity) {
-                    checkpts.put(event.getTimestamp().getValue(), eventCount);
-                    lastCheckpointAt = eventCount;
-                }
+            /*
+             * Check if we need to register a new checkpoint. Replays start
+             * after the checkpoint's timestamp, so there is no point in adding
+             * a checkpoint at the same time as the previous one.
+             */
+            long timestamp = event.getTimestamp().getValue();
+            if (costSinceCheckpoint >= costBudget && timestamp > lastCheckpointTime) {
+                checkpts.put(timestamp, eventCount);
+                lastCheckpointTime = timestamp;
+                costSinceCheckpoint = 0;
             }
         }
 
@@ -338,41 +744,4 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
             fCheckpointsReady.countDown();
         }
     }
-
-    private class PartialStateSystemRequest extends TmfEventRequest {
-        private final ITmfStateProvider sci;
-        private final ITmfTrace trace;
-
-        PartialStateSystemRequest(ITmfStateProvider sci, TmfTimeRange range) {
-            super(ITmfEvent.class,
-                    range,
-                    0,
-                    ITmfEventRequest.ALL_DATA,
-                    ITmfEventRequest.ExecutionType.BACKGROUND);
-            this.sci = sci;
-            this.trace = sci.getTrace();
-        }
-
-        @Override
-        public void handleData(final ITmfEvent event) {
-            super.handleData(event);
-            if (event.getTrace() == trace) {
-                sci.processEvent(event);
-            }
-        }
-
-        @Override
-        public void handleCompleted() {
-            /*
-             * If we're using a threaded state provider, we need to make sure
-             * all events have been handled by the state system before doing
-             * queries on it.
-             */
-            if (fPartialInput instanceof AbstractTmfStateProvider) {
-                ((AbstractTmfStateProvider) fPartialInput).waitForEmptyQueue();
-            }
-            super.handleCompleted();
-        }
-
-    }
 }
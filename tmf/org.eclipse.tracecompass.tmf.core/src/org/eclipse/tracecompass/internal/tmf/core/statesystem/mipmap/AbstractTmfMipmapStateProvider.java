@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialStateSystem;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
@@ -80,6 +81,16 @@ public abstract class AbstractTmfMipmapStateProvider extends AbstractTmfStatePro
      */
     private Map<Integer, Set<ITmfMipmapFeature>> featureMap = new HashMap<>();
 
+    /**
+     * Map of mipmap pyramids per attribute. The map's key is the base attribute quark.
+     */
+    private Map<Integer, TmfMipmapPyramid> pyramidMap = new HashMap<>();
+
+    /**
+     * The pyramids shared with the range queries of the state system
+     */
+    private final TmfMipmapPyramidStore fPyramidStore = new TmfMipmapPyramidStore();
+
     // ------------------------------------------------------------------------
     // Constructor
     // ------------------------------------------------------------------------
@@ -113,6 +124,16 @@ public abstract class AbstractTmfMipmapStateProvider extends AbstractTmfStatePro
         super.dispose();
     }
 
+    /**
+     * Get the store of the mipmap pyramids built by this state provider, to
+     * pass to the range queries of {@link TmfStateSystemOperations}.
+     *
+     * @return The pyramid store
+     */
+    public TmfMipmapPyramidStore getPyramidStore() {
+        return fPyramidStore;
+    }
+
     /**
      * Modify a mipmap attribute. The base attribute is modified and the mipmap
      * attributes for the feature(s) specified in the mipmap feature bitmap are
@@ -120,7 +141,9 @@ public abstract class AbstractTmfMipmapStateProvider extends AbstractTmfStatePro
      * Note: The mipmapFeatureBits and resolution are only used on the first
      * call of this method for a particular attribute, and the mipmap features
      * for this attribute are then activated until the end of the trace.<br>
-     * Note: The base attribute should only be modified by calling this method.
+     * Note: The base attribute should only be modified by calling this method.<br>
+     * The attribute's {@link TmfMipmapPyramid} is also updated, which answers
+     * the range queries of {@link TmfStateSystemOperations}.
      *
      * @param ts
      *            The timestamp of the event
@@ -152,6 +175,10 @@ public abstract class AbstractTmfMipmapStateProvider extends AbstractTmfStatePro
             for (ITmfMipmapFeature mf : features) {
                 mf.updateMipmap(value, ts);
             }
+            TmfMipmapPyramid pyramid = pyramidMap.get(baseQuark);
+            if (pyramid != null) {
+                pyramid.update(value, ts);
+            }
         }
     }
 
@@ -171,6 +198,15 @@ public abstract class AbstractTmfMipmapStateProvider extends AbstractTmfStatePro
             return features;
         }
         featureMap.put(baseQuark, features);
+        /*
+         * The partial history replays sections of the trace in its own state
+         * systems, which are never queried for ranges.
+         */
+        if (resolution > 1 && !(ss instanceof PartialStateSystem)) {
+            TmfMipmapPyramid pyramid = new TmfMipmapPyramid(ss, baseQuark, resolution, value.getType());
+            pyramidMap.put(baseQuark, pyramid);
+            fPyramidStore.put(baseQuark, pyramid);
+        }
         if (resolution > 1) {
             try {
                 if ((mipmapFeatureBits & MAX) != 0) {
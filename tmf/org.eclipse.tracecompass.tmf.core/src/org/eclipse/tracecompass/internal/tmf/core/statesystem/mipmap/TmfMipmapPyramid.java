@@ -0,0 +1,540 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * Pyramid of aggregates over the values of a numerical attribute, used to
+ * answer min, max, average and sum queries over any time range without
+ * reading every state of the attribute.
+ *
+ * Level 0 is made of the non-null states of the attribute, in time order.
+ * They are not kept in memory: they are already in the history of the state
+ * system, which is read for the few states at the edges of a query. Every
+ * group of 'fanout' consecutive entries of a level is summarized by one entry
+ * of the level above, which holds the minimum, the maximum and the sum of the
+ * value weighted by the duration of its children. Entries are added as soon as
+ * their group is complete, so the pyramid grows incrementally with the
+ * attribute. A range query reads at most 2 * (fanout - 1) entries per level,
+ * and the states of the history that are not part of a complete group of
+ * level 0.
+ *
+ * The last state of the attribute is still ongoing: it extends until the end
+ * of the history, like in the state system.
+ */
+public class TmfMipmapPyramid {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ITmfStateSystem fStateSystem;
+    private final int fQuark;
+    private final int fFanout;
+    private final Type fType;
+
+    /* The levels above level 0, the first one summarizes the states */
+    private final List<Level> fLevels = new ArrayList<>();
+
+    private ITmfStateValue fCurrentValue = TmfStateValue.nullValue();
+    private long fCurrentStart;
+
+    /* Aggregate of the states of the group of level 0 being filled */
+    private int fGroupSize = 0;
+    private long fGroupStart;
+    private long fGroupEnd;
+    private long fGroupMin;
+    private long fGroupMax;
+    private double fGroupSum;
+
+    /** One level of the pyramid above level 0 */
+    private static final class Level {
+        private long[] fStarts = new long[INITIAL_CAPACITY];
+        private long[] fEnds = new long[INITIAL_CAPACITY];
+        private long[] fMins = new long[INITIAL_CAPACITY];
+        private long[] fMaxs = new long[INITIAL_CAPACITY];
+        private double[] fSums = new double[INITIAL_CAPACITY];
+        private int fSize = 0;
+
+        public void add(long start, long end, long min, long max, double sum) {
+            if (fSize == fStarts.length) {
+                int capacity = fSize * 2;
+                fStarts = Arrays.copyOf(fStarts, capacity);
+                fEnds = Arrays.copyOf(fEnds, capacity);
+                fMins = Arrays.copyOf(fMins, capacity);
+                fMaxs = Arrays.copyOf(fMaxs, capacity);
+                fSums = Arrays.copyOf(fSums, capacity);
+            }
+            fStarts[fSize] = start;
+            fEnds[fSize] = end;
+            fMins[fSize] = min;
+            fMaxs[fSize] = max;
+            fSums[fSize] = sum;
+            fSize++;
+        }
+    }
+
+    /** Accumulator of the aggregates of a query */
+    private final class Result {
+        private boolean fHasValue = false;
+        private long fMin;
+        private long fMax;
+        private double fSum = 0.0;
+        private long fFirst;
+
+        public void add(long min, long max, double sum) {
+            if (!fHasValue) {
+                fMin = min;
+                fMax = max;
+                fFirst = min;
+                fHasValue = true;
+            } else {
+                fMin = (compare(min, fMin) < 0 ? min : fMin);
+                fMax = (compare(max, fMax) > 0 ? max : fMax);
+            }
+            fSum += sum;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ss
+     *            The state system of the attribute, which is read for the
+     *            states of level 0
+     * @param quark
+     *            The quark of the attribute
+     * @param fanout
+     *            The number of entries of a level summarized by one entry of
+     *            the level above, must be greater than 1
+     * @param type
+     *            The type of the values: {@link Type#INTEGER},
+     *            {@link Type#LONG} or {@link Type#DOUBLE}
+     */
+    public TmfMipmapPyramid(ITmfStateSystem ss, int quark, int fanout, Type type) {
+        if (fanout < 2) {
+            throw new IllegalArgumentException("Invalid fanout " + fanout); //$NON-NLS-1$
+        }
+        fStateSystem = ss;
+        fQuark = quark;
+        fFanout = fanout;
+        fType = type;
+    }
+
+    /**
+     * Update the pyramid with a new value of the attribute. It should follow
+     * the changes of the attribute in the state system.
+     *
+     * @param value
+     *            The new value, or a null value
+     * @param ts
+     *            The time at which the attribute takes this value
+     */
+    public synchronized void update(ITmfStateValue value, long ts) {
+        if (fCurrentValue.equals(value)) {
+            return;
+        }
+        /* Like in the state system, a state without duration is replaced */
+        if (!fCurrentValue.isNull() && ts > fCurrentStart) {
+            addState(fCurrentStart, ts, toRaw(fCurrentValue));
+        }
+        fCurrentValue = value;
+        fCurrentStart = ts;
+    }
+
+    /**
+     * Get the number of levels of the pyramid, including level 0.
+     *
+     * @return The number of levels
+     */
+    public synchronized int getNbLevels() {
+        return fLevels.size() + 1;
+    }
+
+    /**
+     * Get the maximum value of the attribute over a time range.
+     *
+     * @param t1
+     *            The start of the range
+     * @param t2
+     *            The end of the range
+     * @return The maximum value, or a null value if the attribute has no value
+     *         in the range
+     * @throws AttributeNotFoundException
+     *             If the attribute is not in the state system
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    public synchronized ITmfStateValue queryMax(long t1, long t2)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        Result result = query(t1, t2);
+        return (result.fHasValue ? toValue(result.fMax) : TmfStateValue.nullValue());
+    }
+
+    /**
+     * Get the minimum value of the attribute over a time range.
+     *
+     * @param t1
+     *            The start of the range
+     * @param t2
+     *            The end of the range
+     * @return The minimum value, or a null value if the attribute has no value
+     *         in the range
+     * @throws AttributeNotFoundException
+     *             If the attribute is not in the state system
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    public synchronized ITmfStateValue queryMin(long t1, long t2)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        Result result = query(t1, t2);
+        return (result.fHasValue ? toValue(result.fMin) : TmfStateValue.nullValue());
+    }
+
+    /**
+     * Get the average value of the attribute over a time range, weighted by
+     * the duration of its states. Null states count as zero.
+     *
+     * @param t1
+     *            The start of the range
+     * @param t2
+     *            The end of the range
+     * @return The average value, or the value at t1 if t1 equals t2
+     * @throws AttributeNotFoundException
+     *             If the attribute is not in the state system
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    public synchronized double queryAverage(long t1, long t2)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        Result result = query(t1, t2);
+        if (!result.fHasValue) {
+            return 0.0;
+        } else if (t1 == t2) {
+            return toDouble(result.fFirst);
+        }
+        return result.fSum / (t2 - t1);
+    }
+
+    /**
+     * Get the sum of the value of the attribute over a time range, multiplied
+     * by the duration of its states (the integral of the attribute).
+     *
+     * @param t1
+     *            The start of the range
+     * @param t2
+     *            The end of the range
+     * @return The sum
+     * @throws AttributeNotFoundException
+     *             If the attribute is not in the state system
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    public synchronized double querySum(long t1, long t2)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        return query(t1, t2).fSum;
+    }
+
+    // ------------------------------------------------------------------------
+    // Serialization
+    // ------------------------------------------------------------------------
+
+    /**
+     * Write the pyramid, for {@link #readFrom} to read it back.
+     *
+     * @param out
+     *            The output to write to
+     * @throws IOException
+     *             If the pyramid cannot be written
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(fFanout);
+        out.writeInt(fType.ordinal());
+        out.writeBoolean(!fCurrentValue.isNull());
+        if (!fCurrentValue.isNull()) {
+            out.writeLong(fCurrentStart);
+            out.writeLong(toRaw(fCurrentValue));
+        }
+        out.writeInt(fGroupSize);
+        if (fGroupSize > 0) {
+            writeEntry(out, fGroupStart, fGroupEnd, fGroupMin, fGroupMax, fGroupSum);
+        }
+        /* Upper levels are rebuilt when reading */
+        Level first = (fLevels.isEmpty() ? new Level() : fLevels.get(0));
+        out.writeInt(first.fSize);
+        for (int i = 0; i < first.fSize; i++) {
+            writeEntry(out, first.fStarts[i], first.fEnds[i], first.fMins[i], first.fMaxs[i], first.fSums[i]);
+        }
+    }
+
+    /**
+     * Read a pyramid written by {@link #writeTo}.
+     *
+     * @param in
+     *            The input to read from
+     * @param ss
+     *            The state system of the attribute
+     * @param quark
+     *            The quark of the attribute
+     * @return The pyramid
+     * @throws IOException
+     *             If the pyramid cannot be read
+     */
+    public static TmfMipmapPyramid readFrom(DataInput in, ITmfStateSystem ss, int quark) throws IOException {
+        int fanout = in.readInt();
+        int typeOrdinal = in.readInt();
+        if (fanout < 2 || typeOrdinal < 0 || typeOrdinal >= Type.values().length) {
+            throw new IOException("Invalid mipmap pyramid"); //$NON-NLS-1$
+        }
+        TmfMipmapPyramid pyramid = new TmfMipmapPyramid(ss, quark, fanout, Type.values()[typeOrdinal]);
+        if (in.readBoolean()) {
+            pyramid.fCurrentStart = in.readLong();
+            pyramid.fCurrentValue = pyramid.toValue(in.readLong());
+        }
+        pyramid.fGroupSize = in.readInt();
+        if (pyramid.fGroupSize < 0 || pyramid.fGroupSize >= fanout) {
+            throw new IOException("Invalid mipmap pyramid"); //$NON-NLS-1$
+        }
+        if (pyramid.fGroupSize > 0) {
+            pyramid.fGroupStart = in.readLong();
+            pyramid.fGroupEnd = in.readLong();
+            pyramid.fGroupMin = in.readLong();
+            pyramid.fGroupMax = in.readLong();
+            pyramid.fGroupSum = in.readDouble();
+        }
+        int nbEntries = in.readInt();
+        for (int i = 0; i < nbEntries; i++) {
+            long start = in.readLong();
+            long end = in.readLong();
+            long min = in.readLong();
+            long max = in.readLong();
+            double sum = in.readDouble();
+            pyramid.addEntry(start, end, min, max, sum);
+        }
+        return pyramid;
+    }
+
+    private static void writeEntry(DataOutput out, long start, long end, long min, long max, double sum) throws IOException {
+        out.writeLong(start);
+        out.writeLong(end);
+        out.writeLong(min);
+        out.writeLong(max);
+        out.writeDouble(sum);
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /*
+     * Add a state of level 0 to the current group, and summarize the group in
+     * the first level once it is complete.
+     */
+    private void addState(long start, long end, long raw) {
+        double sum = toDouble(raw) * (end - start);
+        if (fGroupSize == 0) {
+            fGroupStart = start;
+            fGroupMin = raw;
+            fGroupMax = raw;
+            fGroupSum = sum;
+        } else {
+            fGroupMin = (compare(raw, fGroupMin) < 0 ? raw : fGroupMin);
+            fGroupMax = (compare(raw, fGroupMax) > 0 ? raw : fGroupMax);
+            fGroupSum += sum;
+        }
+        fGroupEnd = end;
+        fGroupSize++;
+        if (fGroupSize == fFanout) {
+            addEntry(fGroupStart, fGroupEnd, fGroupMin, fGroupMax, fGroupSum);
+            fGroupSize = 0;
+        }
+    }
+
+    /*
+     * Append an entry to the first level, and summarize its group in the
+     * level above if it is now complete.
+     */
+    private void addEntry(long start, long end, long min, long max, double sum) {
+        int lvl = 0;
+        if (fLevels.isEmpty()) {
+            fLevels.add(new Level());
+        }
+        Level current = fLevels.get(lvl);
+        current.add(start, end, min, max, sum);
+        while (current.fSize % fFanout == 0) {
+            int first = current.fSize - fFanout;
+            long groupMin = current.fMins[first];
+            long groupMax = current.fMaxs[first];
+            double groupSum = 0.0;
+            for (int i = first; i < current.fSize; i++) {
+                groupMin = (compare(current.fMins[i], groupMin) < 0 ? current.fMins[i] : groupMin);
+                groupMax = (compare(current.fMaxs[i], groupMax) > 0 ? current.fMaxs[i] : groupMax);
+                groupSum += current.fSums[i];
+            }
+            lvl++;
+            if (lvl == fLevels.size()) {
+                fLevels.add(new Level());
+            }
+            Level parent = fLevels.get(lvl);
+            parent.add(current.fStarts[first], current.fEnds[current.fSize - 1], groupMin, groupMax, groupSum);
+            current = parent;
+        }
+    }
+
+    private Result query(long t1, long t2) throws AttributeNotFoundException, StateSystemDisposedException {
+        Result result = new Result();
+        if (t1 > t2) {
+            return result;
+        }
+        /* Entries of the first level that are entirely inside the range */
+        int a = 0;
+        int b = -1;
+        if (!fLevels.isEmpty()) {
+            Level first = fLevels.get(0);
+            a = firstStartFrom(first, t1);
+            b = firstEndAfter(first, t2) - 1;
+        }
+        if (a <= b) {
+            Level first = fLevels.get(0);
+            addStates(result, t1, first.fStarts[a] - 1, t1, t2);
+            addFull(result, a, b);
+            addStates(result, first.fEnds[b], t2, t1, t2);
+        } else {
+            addStates(result, t1, t2, t1, t2);
+        }
+        return result;
+    }
+
+    /*
+     * Add the states of the history between two times, for the parts of the
+     * range that are not covered by the first level. Times outside of the
+     * history are ignored.
+     */
+    private void addStates(Result result, long from, long to, long t1, long t2)
+            throws AttributeNotFoundException, StateSystemDisposedException {
+        long start = Math.max(from, fStateSystem.getStartTime());
+        long end = Math.min(to, fStateSystem.getCurrentEndTime());
+        if (start > end) {
+            return;
+        }
+        for (ITmfStateInterval interval : fStateSystem.query2D(Collections.singleton(fQuark), start, end)) {
+            ITmfStateValue value = interval.getStateValue();
+            if (!value.isNull()) {
+                long raw = toRaw(value);
+                long duration = Math.min(t2, interval.getEndTime() + 1) - Math.max(t1, interval.getStartTime());
+                result.add(raw, raw, (duration > 0 ? toDouble(raw) * duration : 0.0));
+            }
+        }
+    }
+
+    /*
+     * Add the entries of the first level between two indexes, included, which
+     * are entirely inside the query range, going up the levels for the
+     * complete groups in the middle.
+     */
+    private void addFull(Result result, int first, int last) {
+        int level = 0;
+        int a = first;
+        int b = last;
+        while (a <= b) {
+            Level current = fLevels.get(level);
+            while (a <= b && a % fFanout != 0) {
+                result.add(current.fMins[a], current.fMaxs[a], current.fSums[a]);
+                a++;
+            }
+            while (a <= b && (b + 1) % fFanout != 0) {
+                result.add(current.fMins[b], current.fMaxs[b], current.fSums[b]);
+                b--;
+            }
+            /* The groups from a to b are complete, use their parents */
+            a = a / fFanout;
+            b = (b + 1) / fFanout - 1;
+            level++;
+        }
+    }
+
+    private static int firstStartFrom(Level level, long t) {
+        int lo = 0;
+        int hi = level.fSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (level.fStarts[mid] >= t) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private static int firstEndAfter(Level level, long t) {
+        int lo = 0;
+        int hi = level.fSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (level.fEnds[mid] > t) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Values are stored as longs: integral values as is, and doubles as their
+     * bits.
+     */
+    private long toRaw(ITmfStateValue value) {
+        if (fType == Type.DOUBLE) {
+            double d = (value.getType() == Type.DOUBLE ? value.unboxDouble() : value.unboxLong());
+            return Double.doubleToLongBits(d);
+        }
+        return (value.getType() == Type.DOUBLE ? (long) value.unboxDouble() : value.unboxLong());
+    }
+
+    private double toDouble(long raw) {
+        return (fType == Type.DOUBLE ? Double.longBitsToDouble(raw) : raw);
+    }
+
+    private ITmfStateValue toValue(long raw) {
+        switch (fType) {
+        case DOUBLE:
+            return TmfStateValue.newValueDouble(Double.longBitsToDouble(raw));
+        case INTEGER:
+            return TmfStateValue.newValueInt((int) raw);
+        case LONG:
+        case NULL:
+        case STRING:
+        default:
+            return TmfStateValue.newValueLong(raw);
+        }
+    }
+
+    private int compare(long raw1, long raw2) {
+        if (fType == Type.DOUBLE) {
+            return Double.compare(Double.longBitsToDouble(raw1), Double.longBitsToDouble(raw2));
+        }
+        return Long.compare(raw1, raw2);
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+
+/**
+ * The mipmap pyramids of the attributes of a state system. The store is owned
+ * by the state provider that builds the pyramids, then by the analysis module
+ * of the state system, and is passed explicitly to the range queries. It is
+ * saved to a file next to the history, so that the pyramids are available
+ * again when the history file is reopened.
+ */
+public final class TmfMipmapPyramidStore {
+
+    /** Suffix of the pyramid file, added to the name of the history file */
+    public static final String FILE_SUFFIX = ".mipmap"; //$NON-NLS-1$
+
+    private static final int MAGIC_NUMBER = 0x0A1F3A5E;
+    private static final int FILE_VERSION = 2;
+
+    /** Pyramids per base attribute quark */
+    private final Map<Integer, TmfMipmapPyramid> fPyramids = new HashMap<>();
+
+    /**
+     * Register the pyramid of an attribute.
+     *
+     * @param quark
+     *            The quark of the base attribute
+     * @param pyramid
+     *            The pyramid
+     */
+    public synchronized void put(int quark, TmfMipmapPyramid pyramid) {
+        fPyramids.put(quark, pyramid);
+    }
+
+    /**
+     * Get the pyramid of an attribute.
+     *
+     * @param quark
+     *            The quark of the base attribute
+     * @return The pyramid, or null if the attribute has none
+     */
+    public synchronized @Nullable TmfMipmapPyramid get(int quark) {
+        return fPyramids.get(quark);
+    }
+
+    /**
+     * Save the pyramids to a file. Nothing is written if the store is empty.
+     *
+     * @param ss
+     *            The state system of the pyramids, whose history is
+     *            completely built
+     * @param file
+     *            The file to write
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public void save(ITmfStateSystem ss, File file) throws IOException {
+        Map<Integer, TmfMipmapPyramid> pyramids;
+        synchronized (this) {
+            if (fPyramids.isEmpty()) {
+                return;
+            }
+            pyramids = new HashMap<>(fPyramids);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(FILE_VERSION);
+            /* Used to check that the file matches the history */
+            out.writeLong(ss.getStartTime());
+            out.writeLong(ss.getCurrentEndTime());
+            out.writeInt(pyramids.size());
+            for (Entry<Integer, TmfMipmapPyramid> entry : pyramids.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Load the pyramids of a state system from a file written by
+     * {@link #save}.
+     *
+     * @param ss
+     *            The state system, opened from an existing history file
+     * @param file
+     *            The file to read
+     * @return The store of the pyramids, or null if the file does not exist or
+     *         does not match the history
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public static @Nullable TmfMipmapPyramidStore load(ITmfStateSystem ss, File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        TmfMipmapPyramidStore store = new TmfMipmapPyramidStore();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC_NUMBER || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            if (in.readLong() != ss.getStartTime() || in.readLong() != ss.getCurrentEndTime()) {
+                return null;
+            }
+            int nbPyramids = in.readInt();
+            for (int i = 0; i < nbPyramids; i++) {
+                int quark = in.readInt();
+                store.fPyramids.put(quark, TmfMipmapPyramid.readFrom(in, ss, quark));
+            }
+        }
+        return store;
+    }
+}
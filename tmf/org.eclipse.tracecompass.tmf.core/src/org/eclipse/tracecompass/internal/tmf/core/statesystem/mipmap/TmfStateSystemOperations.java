@@ -16,6 +16,7 @@ package org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
 import org.eclipse.tracecompass.statesystem.core.StateSystemUtils;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
@@ -196,6 +197,205 @@ public final class TmfStateSystemOperations {
         return avg;
     }
 
+    /**
+     * Return the sum of the value of an attribute over a time range, weighted
+     * by the duration of its states (its integral over the range)
+     *
+     * @param ss
+     *            The state system to query
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @param quark
+     *            The quark of the attribute
+     * @return The weighted sum of the attribute in this range
+     * @throws TimeRangeException
+     *             If an invalid time range is specified
+     * @throws AttributeNotFoundException
+     *             If the specified quark doesn't match an attribute
+     * @throws StateValueTypeException
+     *             If the state value type of the attribute does not support the
+     *             "Sum" operation
+     */
+    public static double queryRangeSum(ITmfStateSystem ss, long t1, long t2, int quark)
+            throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        return queryRangeAverage(ss, t1, t2, quark) * (t2 - t1);
+    }
+
+    /**
+     * Return the maximum value of an attribute over a time range, using its mipmap
+     * pyramid if the given store has one
+     *
+     * @param ss
+     *            The state system to query
+     * @param pyramids
+     *            The pyramids of the state system, or null to read the mipmap
+     *            attributes
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @param quark
+     *            The quark of the attribute
+     * @return The maximum value of the attribute in this range
+     * @throws TimeRangeException
+     *             If an invalid time range is specified
+     * @throws AttributeNotFoundException
+     *             If the specified quark doesn't match an attribute
+     * @throws StateValueTypeException
+     *             If the state value type of the attribute does not support the
+     *             operation
+     * @see #queryRangeMax(ITmfStateSystem, long, long, int)
+     */
+    public static ITmfStateValue queryRangeMax(ITmfStateSystem ss, @Nullable TmfMipmapPyramidStore pyramids,
+            long t1, long t2, int quark)
+            throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfMipmapPyramid pyramid = getPyramid(ss, pyramids, t1, t2, quark);
+        if (pyramid != null) {
+            try {
+                return pyramid.queryMax(t1, t2);
+            } catch (StateSystemDisposedException e) {
+                /* We are shutting down, ignore the operation */
+                return TmfStateValue.nullValue();
+            }
+        }
+        return queryRangeMax(ss, t1, t2, quark);
+    }
+
+    /**
+     * Return the minimum value of an attribute over a time range, using its mipmap
+     * pyramid if the given store has one
+     *
+     * @param ss
+     *            The state system to query
+     * @param pyramids
+     *            The pyramids of the state system, or null to read the mipmap
+     *            attributes
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @param quark
+     *            The quark of the attribute
+     * @return The minimum value of the attribute in this range
+     * @throws TimeRangeException
+     *             If an invalid time range is specified
+     * @throws AttributeNotFoundException
+     *             If the specified quark doesn't match an attribute
+     * @throws StateValueTypeException
+     *             If the state value type of the attribute does not support the
+     *             operation
+     * @see #queryRangeMin(ITmfStateSystem, long, long, int)
+     */
+    public static ITmfStateValue queryRangeMin(ITmfStateSystem ss, @Nullable TmfMipmapPyramidStore pyramids,
+            long t1, long t2, int quark)
+            throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfMipmapPyramid pyramid = getPyramid(ss, pyramids, t1, t2, quark);
+        if (pyramid != null) {
+            try {
+                return pyramid.queryMin(t1, t2);
+            } catch (StateSystemDisposedException e) {
+                /* We are shutting down, ignore the operation */
+                return TmfStateValue.nullValue();
+            }
+        }
+        return queryRangeMin(ss, t1, t2, quark);
+    }
+
+    /**
+     * Return the weighted average value of an attribute over a time range, using its mipmap
+     * pyramid if the given store has one
+     *
+     * @param ss
+     *            The state system to query
+     * @param pyramids
+     *            The pyramids of the state system, or null to read the mipmap
+     *            attributes
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @param quark
+     *            The quark of the attribute
+     * @return The weighted average value of the attribute in this range
+     * @throws TimeRangeException
+     *             If an invalid time range is specified
+     * @throws AttributeNotFoundException
+     *             If the specified quark doesn't match an attribute
+     * @throws StateValueTypeException
+     *             If the state value type of the attribute does not support the
+     *             operation
+     * @see #queryRangeAverage(ITmfStateSystem, long, long, int)
+     */
+    public static double queryRangeAverage(ITmfStateSystem ss, @Nullable TmfMipmapPyramidStore pyramids,
+            long t1, long t2, int quark)
+            throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfMipmapPyramid pyramid = getPyramid(ss, pyramids, t1, t2, quark);
+        if (pyramid != null) {
+            try {
+                return pyramid.queryAverage(t1, t2);
+            } catch (StateSystemDisposedException e) {
+                /* We are shutting down, ignore the operation */
+                return 0;
+            }
+        }
+        return queryRangeAverage(ss, t1, t2, quark);
+    }
+
+    /**
+     * Return the weighted sum of an attribute over a time range, using its mipmap
+     * pyramid if the given store has one
+     *
+     * @param ss
+     *            The state system to query
+     * @param pyramids
+     *            The pyramids of the state system, or null to read the mipmap
+     *            attributes
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @param quark
+     *            The quark of the attribute
+     * @return The weighted sum of the attribute in this range
+     * @throws TimeRangeException
+     *             If an invalid time range is specified
+     * @throws AttributeNotFoundException
+     *             If the specified quark doesn't match an attribute
+     * @throws StateValueTypeException
+     *             If the state value type of the attribute does not support the
+     *             operation
+     * @see #queryRangeSum(ITmfStateSystem, long, long, int)
+     */
+    public static double queryRangeSum(ITmfStateSystem ss, @Nullable TmfMipmapPyramidStore pyramids,
+            long t1, long t2, int quark)
+            throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfMipmapPyramid pyramid = getPyramid(ss, pyramids, t1, t2, quark);
+        if (pyramid != null) {
+            try {
+                return pyramid.querySum(t1, t2);
+            } catch (StateSystemDisposedException e) {
+                /* We are shutting down, ignore the operation */
+                return 0;
+            }
+        }
+        return queryRangeSum(ss, t1, t2, quark);
+    }
+
+    /*
+     * Get the pyramid of an attribute, if it has one and the range is valid.
+     * Otherwise the attributes of the mipmap features are walked, which also
+     * reports invalid ranges.
+     */
+    private static @Nullable TmfMipmapPyramid getPyramid(ITmfStateSystem ss, @Nullable TmfMipmapPyramidStore pyramids,
+            long t1, long t2, int quark) {
+        if (pyramids == null || t1 > t2 || t1 < ss.getStartTime() || t2 > ss.getCurrentEndTime()) {
+            return null;
+        }
+        return pyramids.get(quark);
+    }
+
     private static List<ITmfStateInterval> queryAttributeRange(ITmfStateSystem ss,
             long t1, long t2, int baseQuark, String featureString)
                     throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009, 2014 Ericsson
+ * Copyright (c) 2009, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -19,6 +19,7 @@ import java.util.List;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
 import org.eclipse.tracecompass.tmf.core.trace.TmfContext;
 
@@ -33,6 +34,13 @@ import org.eclipse.tracecompass.tmf.core.trace.TmfContext;
  * <p>
  * The last trace refers to the trace from which the last event was "consumed"
  * at the experiment level.
+ * <p>
+ * The traces that have a next event are kept in a min-heap ordered by the
+ * timestamp of that event, so the next trace to read from is found in constant
+ * time, and updated in logarithmic time when its event is replaced. Timestamps
+ * in nanoseconds are compared as primitive values, the others with
+ * {@link ITmfTimestamp#compareTo}. Events with the same timestamp are ordered
+ * by trace index.
  */
 public final class TmfExperimentContext extends TmfContext {
 
@@ -53,6 +61,15 @@ public final class TmfExperimentContext extends TmfContext {
     private final List<ITmfEvent> fEvents;
     private int fLastTraceRead;
 
+    /* Value of the timestamp of each trace's event, if it is in nanoseconds */
+    private final long[] fNanoTimes;
+    private final boolean[] fIsNano;
+
+    /* Heap of trace indexes, and position of each trace in it (or -1) */
+    private final int[] fHeap;
+    private final int[] fHeapPositions;
+    private int fHeapSize;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -68,12 +85,17 @@ public final class TmfExperimentContext extends TmfContext {
         fLastTraceRead = NO_TRACE;
         fContexts = new ArrayList<>(nbTraces);
         fEvents = new ArrayList<>(nbTraces);
-
+        fNanoTimes = new long[nbTraces];
+        fIsNano = new boolean[nbTraces];
+        fHeap = new int[nbTraces];
+        fHeapPositions = new int[nbTraces];
+        fHeapSize = 0;
 
         /* Initialize the arrays to the requested size */
         for (int i = 0; i < nbTraces; i++) {
             fContexts.add(null);
             fEvents.add(null);
+            fHeapPositions[i] = -1;
         }
     }
 
@@ -142,10 +164,40 @@ public final class TmfExperimentContext extends TmfContext {
      * @param traceIndex
      *            The index of the trace in the experiment
      * @param event
-     *            The event at the context in the trace
+     *            The event at the context in the trace, or null if there are
+     *            no more events in that trace
      */
-    public void setEvent(int traceIndex, ITmfEvent event) {
+    public void setEvent(int traceIndex, @Nullable ITmfEvent event) {
         fEvents.set(traceIndex, event);
+        int pos = fHeapPositions[traceIndex];
+        if (event == null) {
+            if (pos >= 0) {
+                removeAt(pos);
+            }
+            return;
+        }
+        ITmfTimestamp ts = event.getTimestamp();
+        fIsNano[traceIndex] = (ts.getScale() == ITmfTimestamp.NANOSECOND_SCALE);
+        fNanoTimes[traceIndex] = ts.getValue();
+        if (pos < 0) {
+            pos = fHeapSize++;
+            fHeap[pos] = traceIndex;
+            fHeapPositions[traceIndex] = pos;
+            siftUp(pos);
+        } else {
+            siftDown(siftUp(pos));
+        }
+    }
+
+    /**
+     * Get the index of the trace whose current event comes first, which is the
+     * next event of the experiment.
+     *
+     * @return The index of the trace, or {@link #NO_TRACE} if no trace has a
+     *         current event
+     */
+    public int getNextTrace() {
+        return (fHeapSize == 0 ? NO_TRACE : fHeap[0]);
     }
 
     /**
@@ -168,6 +220,85 @@ public final class TmfExperimentContext extends TmfContext {
         fLastTraceRead = newIndex;
     }
 
+    // ------------------------------------------------------------------------
+    // Heap operations
+    // ------------------------------------------------------------------------
+
+    /**
+     * Check if the event of a trace comes before the event of another trace.
+     */
+    private boolean isBefore(int trace1, int trace2) {
+        int cmp;
+        if (fIsNano[trace1] && fIsNano[trace2]) {
+            cmp = Long.compare(fNanoTimes[trace1], fNanoTimes[trace2]);
+        } else {
+            ITmfEvent event1 = fEvents.get(trace1);
+            ITmfEvent event2 = fEvents.get(trace2);
+            if (event1 == null || event2 == null) {
+                throw new IllegalStateException();
+            }
+            cmp = event1.getTimestamp().compareTo(event2.getTimestamp());
+        }
+        return (cmp < 0 || (cmp == 0 && trace1 < trace2));
+    }
+
+    private void place(int pos, int traceIndex) {
+        fHeap[pos] = traceIndex;
+        fHeapPositions[traceIndex] = pos;
+    }
+
+    /**
+     * Move the trace at a position up in the heap, as needed.
+     *
+     * @return The new position of that trace
+     */
+    private int siftUp(int pos) {
+        int traceIndex = fHeap[pos];
+        int i = pos;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isBefore(traceIndex, fHeap[parent])) {
+                break;
+            }
+            place(i, fHeap[parent]);
+            i = parent;
+        }
+        place(i, traceIndex);
+        return i;
+    }
+
+    /**
+     * Move the trace at a position down in the heap, as needed.
+     */
+    private void siftDown(int pos) {
+        int traceIndex = fHeap[pos];
+        int i = pos;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= fHeapSize) {
+                break;
+            }
+            if (child + 1 < fHeapSize && isBefore(fHeap[child + 1], fHeap[child])) {
+                child++;
+            }
+            if (!isBefore(fHeap[child], traceIndex)) {
+                break;
+            }
+            place(i, fHeap[child]);
+            i = child;
+        }
+        place(i, traceIndex);
+    }
+
+    private void removeAt(int pos) {
+        fHeapPositions[fHeap[pos]] = -1;
+        fHeapSize--;
+        if (pos < fHeapSize) {
+            place(pos, fHeap[fHeapSize]);
+            siftDown(siftUp(pos));
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Object
     // ------------------------------------------------------------------------
@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.trace.experiment;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
+import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
+import org.eclipse.tracecompass.tmf.core.trace.location.ITmfLocation;
+
+/**
+ * Context of a trace of an experiment, whose events are read ahead by a
+ * worker thread into a bounded ring buffer. The experiment then merges events
+ * that are already parsed, and the traces of an experiment are decoded in
+ * parallel.
+ * <p>
+ * The worker reads from the wrapped trace context, which must not be used
+ * anymore by anyone else. This context's location and rank are the ones of the
+ * wrapped context right after the last event returned by {@link #getNext()},
+ * so they can be stored in the experiment location as usual. Setting them
+ * stops the worker first: a new location discards the events read ahead and
+ * reading starts again from there, a new rank renumbers them.
+ * <p>
+ * The reading task is submitted to the executor when the buffer is half
+ * empty, and returns when the buffer is full, so a few threads can serve the
+ * many traces of an experiment.
+ */
+public final class TmfPrefetchingContext implements ITmfContext {
+
+    private final ITmfTrace fTrace;
+    private ITmfContext fContext;
+    private final Executor fExecutor;
+
+    /*
+     * Events read ahead, with the location and rank of the wrapped context
+     * after each of them
+     */
+    private final @Nullable ITmfEvent[] fEvents;
+    private final @Nullable ITmfLocation[] fLocations;
+    private final long[] fRanks;
+    private int fHead = 0;
+    private int fCount = 0;
+
+    /* State of the reader, all protected by this object's monitor */
+    private boolean fScheduled = false;
+    private boolean fPaused = false;
+    private boolean fEnded = false;
+    private boolean fDisposed = false;
+    private @Nullable RuntimeException fError = null;
+
+    /* Position after the last event that was consumed */
+    private ITmfLocation fLocation;
+    private long fRank;
+
+    private final Runnable fReader = new Runnable() {
+        @Override
+        public void run() {
+            readAhead();
+        }
+    };
+
+    /**
+     * Constructor. Reading ahead starts right away.
+     *
+     * @param trace
+     *            The trace to read
+     * @param context
+     *            The context of that trace, positioned where reading should
+     *            start
+     * @param bufferSize
+     *            The maximum number of events to read ahead
+     * @param executor
+     *            The executor that runs the reading tasks
+     */
+    public TmfPrefetchingContext(ITmfTrace trace, ITmfContext context, int bufferSize, Executor executor) {
+        fTrace = trace;
+        fContext = context;
+        fExecutor = executor;
+        fEvents = new ITmfEvent[bufferSize];
+        fLocations = new ITmfLocation[bufferSize];
+        fRanks = new long[bufferSize];
+        fLocation = context.getLocation();
+        fRank = context.getRank();
+        synchronized (this) {
+            schedule();
+        }
+    }
+
+    /**
+     * Get the next event of the trace, waiting for it to be read if needed.
+     *
+     * @return The event, or null if there are no more events in the trace
+     * @throws CancellationException
+     *             If the thread is interrupted while waiting. Returning null
+     *             would make the experiment drop the rest of this trace
+     *             silently, this fails the request instead.
+     */
+    public synchronized @Nullable ITmfEvent getNext() {
+        while (fCount == 0 && !fEnded) {
+            schedule();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                CancellationException exception = new CancellationException("Interrupted while reading trace " + fTrace.getName()); //$NON-NLS-1$
+                exception.initCause(e);
+                throw exception;
+            }
+        }
+        if (fCount == 0) {
+            RuntimeException error = fError;
+            if (error != null) {
+                /* Report the reader's failure to the consumer */
+                fError = null;
+                throw error;
+            }
+            return null;
+        }
+
+        ITmfEvent event = fEvents[fHead];
+        ITmfLocation location = fLocations[fHead];
+        if (location != null) {
+            fLocation = location;
+        }
+        fRank = fRanks[fHead];
+        fEvents[fHead] = null;
+        fLocations[fHead] = null;
+        fHead = (fHead + 1) % fEvents.length;
+        fCount--;
+
+        if (fCount <= fEvents.length / 2) {
+            schedule();
+        }
+        return event;
+    }
+
+    /**
+     * Submit the reading task, if it is not already running and there is
+     * something to read. Must be called while holding this object's monitor.
+     */
+    private void schedule() {
+        if (fScheduled || fPaused || fEnded || fDisposed || fCount == fEvents.length) {
+            return;
+        }
+        fScheduled = true;
+        try {
+            fExecutor.execute(fReader);
+        } catch (RejectedExecutionException e) {
+            /* The experiment is being disposed */
+            fScheduled = false;
+            fEnded = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stop the reading task, and wait until it has returned. Must be called
+     * while holding this object's monitor. Call {@link #resume()} when done.
+     */
+    private void pause() {
+        fPaused = true;
+        boolean interrupted = false;
+        while (fScheduled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                /* The task stops after at most one event, keep waiting */
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void resume() {
+        fPaused = false;
+        schedule();
+    }
+
+    /**
+     * Mark the reading task as stopped, and wake up the threads waiting for
+     * events or for the task to stop. Must be called while holding this
+     * object's monitor.
+     */
+    private void readerStopped() {
+        fScheduled = false;
+        notifyAll();
+    }
+
+    /**
+     * Read events into the buffer, until it is full or the trace has no more
+     * events.
+     */
+    private void readAhead() {
+        ITmfContext context;
+        while (true) {
+            synchronized (this) {
+                context = fContext;
+                if (fDisposed) {
+                    break;
+                }
+                if (fPaused || fCount == fEvents.length) {
+                    readerStopped();
+                    return;
+                }
+            }
+
+            /*
+             * The wrapped context is only replaced while this task is
+             * stopped, so it can be read without holding the monitor.
+             */
+            ITmfEvent event;
+            try {
+                event = fTrace.getNext(context);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    fError = e;
+                    fEnded = true;
+                    if (!fDisposed) {
+                        readerStopped();
+                        return;
+                    }
+                }
+                break;
+            }
+
+            synchronized (this) {
+                if (fDisposed) {
+                    break;
+                }
+                if (event == null) {
+                    fEnded = true;
+                    readerStopped();
+                    return;
+                }
+                /*
+                 * Keep the event even if the task was paused meanwhile, the
+                 * buffer must stay in sync with the wrapped context.
+                 */
+                int tail = (fHead + fCount) % fEvents.length;
+                fEvents[tail] = event;
+                fLocations[tail] = context.getLocation();
+                fRanks[tail] = context.getRank();
+                fCount++;
+                if (fCount == 1) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /* Disposed while reading, the wrapped context is ours to dispose */
+        synchronized (this) {
+            readerStopped();
+        }
+        context.dispose();
+    }
+
+    // ------------------------------------------------------------------------
+    // ITmfContext
+    // ------------------------------------------------------------------------
+
+    @Override
+    public synchronized long getRank() {
+        return fRank;
+    }
+
+    @Override
+    public synchronized ITmfLocation getLocation() {
+        return fLocation;
+    }
+
+    @Override
+    public synchronized boolean hasValidRank() {
+        return fRank != UNKNOWN_RANK;
+    }
+
+    /**
+     * Move this context to another location of the trace. The events read
+     * ahead are discarded, and reading starts again from the new location.
+     */
+    @Override
+    public synchronized void setLocation(ITmfLocation location) {
+        if (fDisposed) {
+            return;
+        }
+        pause();
+        for (int i = 0; i < fCount; i++) {
+            int index = (fHead + i) % fEvents.length;
+            fEvents[index] = null;
+            fLocations[index] = null;
+        }
+        fHead = 0;
+        fCount = 0;
+        fEnded = false;
+        fError = null;
+
+        ITmfContext context = fTrace.seekEvent(location);
+        context.setRank(fRank);
+        fContext.dispose();
+        fContext = context;
+        fLocation = location;
+        resume();
+    }
+
+    /**
+     * Change the rank of this context. The events read ahead are numbered
+     * again from that rank.
+     */
+    @Override
+    public synchronized void setRank(long rank) {
+        if (fDisposed) {
+            return;
+        }
+        pause();
+        for (int i = 0; i < fCount; i++) {
+            fRanks[(fHead + i) % fEvents.length] = (rank == UNKNOWN_RANK ? UNKNOWN_RANK : rank + i + 1);
+        }
+        fContext.setRank(rank == UNKNOWN_RANK ? UNKNOWN_RANK : rank + fCount);
+        fRank = rank;
+        resume();
+    }
+
+    @Override
+    public synchronized void increaseRank() {
+        if (hasValidRank()) {
+            setRank(fRank + 1);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (fDisposed) {
+                return;
+            }
+            fDisposed = true;
+            notifyAll();
+            if (fScheduled) {
+                /* The reader will dispose the wrapped context when it stops */
+                return;
+            }
+        }
+        fContext.dispose();
+    }
+
+    @Override
+    @SuppressWarnings("nls")
+    public synchronized String toString() {
+        return "TmfPrefetchingContext [fLocation=" + fLocation + ", fRank=" + fRank
+                + ", fBuffered=" + fCount + "]";
+    }
+}
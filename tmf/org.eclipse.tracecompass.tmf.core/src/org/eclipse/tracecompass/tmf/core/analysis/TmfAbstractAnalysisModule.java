@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2014 École Polytechnique de Montréal
+ * Copyright (c) 2013, 2015 École Polytechnique de Montréal
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -27,7 +27,9 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
 import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.osgi.util.NLS;
@@ -36,6 +38,7 @@ import org.eclipse.tracecompass.internal.tmf.core.Activator;
 import org.eclipse.tracecompass.internal.tmf.core.TmfCoreTracer;
 import org.eclipse.tracecompass.tmf.core.analysis.TmfAnalysisRequirement.ValuePriorityLevel;
 import org.eclipse.tracecompass.tmf.core.component.TmfComponent;
+import org.eclipse.tracecompass.tmf.core.component.TmfEventProvider;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfAnalysisException;
 import org.eclipse.tracecompass.tmf.core.signal.TmfSignalHandler;
 import org.eclipse.tracecompass.tmf.core.signal.TmfStartAnalysisSignal;
@@ -69,6 +72,9 @@ public abstract class TmfAbstractAnalysisModule extends TmfComponent implements
 
     private boolean fAnalysisCancelled = false;
 
+    /* Trace whose background requests are held until this analysis sent its own */
+    private @Nullable TmfEventProvider fHeldTrace = null;
+
     @Override
     public boolean isAutomatic() {
         return fAutomatic;
@@ -239,6 +245,42 @@ public abstract class TmfAbstractAnalysisModule extends TmfComponent implements
      */
     protected abstract void canceling();
 
+    /**
+     * Whether this analysis reads the events of its trace with background
+     * event requests, itself or through the analyses it schedules. The
+     * background requests of the trace are then held from the moment this
+     * analysis is scheduled until it calls {@link #traceRequestSent()}. The
+     * analyses scheduled together thus all subscribe before the reading
+     * starts, and their requests are coalesced in a single pass on the trace.
+     * Foreground requests are not held.
+     *
+     * @return Whether this analysis reads the events of its trace
+     * @since 1.1
+     */
+    protected boolean isTraceReader() {
+        return false;
+    }
+
+    /**
+     * Indicate that this analysis sent its event request to the trace, or that
+     * it will not send one after all, so that the trace can start reading for
+     * the requests it holds. It is called when the analysis completes or is
+     * cancelled if it was not called before, and calling it again has no
+     * effect.
+     *
+     * @since 1.1
+     */
+    protected final void traceRequestSent() {
+        TmfEventProvider trace;
+        synchronized (syncObj) {
+            trace = fHeldTrace;
+            fHeldTrace = null;
+        }
+        if (trace != null) {
+            trace.notifyPendingBackgroundRequest(false);
+        }
+    }
+
     /**
      * To be called when the analysis is completed, whether normally or because
      * it was cancelled or for any other reason.
@@ -266,6 +308,7 @@ public abstract class TmfAbstractAnalysisModule extends TmfComponent implements
             }
             fStarted = false;
         }
+        traceRequestSent();
     }
 
     @Override
@@ -306,6 +349,11 @@ public abstract class TmfAbstractAnalysisModule extends TmfComponent implements
                 return;
             }
             fStarted = true;
+            if (isTraceReader() && fHeldTrace == null && trace instanceof TmfEventProvider) {
+                TmfEventProvider provider = (TmfEventProvider) trace;
+                provider.notifyPendingBackgroundRequest(true);
+                fHeldTrace = provider;
+            }
         }
 
         /* Execute dependent analyses before creating the job for this one */
@@ -337,6 +385,7 @@ public abstract class TmfAbstractAnalysisModule extends TmfComponent implements
                 } catch (TmfAnalysisException e) {
                     Activator.logError("Error executing analysis with trace " + trace.getName(), e); //$NON-NLS-1$
                 } finally {
+                    traceRequestSent();
                     synchronized (syncObj) {
                         mon.done();
                         setAnalysisCompleted();
@@ -355,9 +404,17 @@ public abstract class TmfAbstractAnalysisModule extends TmfComponent implements
             protected void canceling() {
                 TmfCoreTracer.traceAnalysis(getId(), getTrace(), "job cancelled"); //$NON-NLS-1$
                 TmfAbstractAnalysisModule.this.canceling();
+                traceRequestSent();
             }
 
         };
+        fJob.addJobChangeListener(new JobChangeAdapter() {
+            @Override
+            public void done(@Nullable IJobChangeEvent event) {
+                /* Also called if the job is cancelled before it runs */
+                traceRequestSent();
+            }
+        });
         fJob.schedule();
     }
 
@@ -79,6 +79,8 @@ public abstract class TmfEventProvider extends TmfComponent implements ITmfEvent
 
     private int fRequestPendingCounter = 0;
 
+    private int fBackgroundPendingCounter = 0;
+
     private Timer fTimer;
 
     /** Current timer task */
@@ -236,6 +238,9 @@ public abstract class TmfEventProvider extends TmfComponent implements ITmfEvent
             if (fRequestPendingCounter > 0) {
                 return;
             }
+            if (isTimeout && fBackgroundPendingCounter > 0) {
+                return;
+            }
 
             if (fPendingCoalescedRequests.size() > 0) {
                 Iterator<TmfCoalescedEventRequest> iter = fPendingCoalescedRequests.iterator();
@@ -279,6 +284,34 @@ public abstract class TmfEventProvider extends TmfComponent implements ITmfEvent
         }
     }
 
+    /**
+     * Increments/decrements the pending background requests counter. While it
+     * is above 0, the coalesced background requests are not dispatched, so
+     * that the background requests that are about to be sent can still join
+     * them. Foreground requests are not affected.
+     *
+     * @param isIncrement
+     *            Should we increment (true) or decrement (false) the pending
+     *            counter
+     * @since 1.1
+     */
+    public void notifyPendingBackgroundRequest(boolean isIncrement) {
+        synchronized (fLock) {
+            if (isIncrement) {
+                fBackgroundPendingCounter++;
+            } else {
+                if (fBackgroundPendingCounter > 0) {
+                    fBackgroundPendingCounter--;
+                }
+
+                // fire the background requests if they are all received
+                if (fBackgroundPendingCounter == 0) {
+                    fireRequest(true);
+                }
+            }
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Coalescing
     // ------------------------------------------------------------------------
@@ -468,6 +501,38 @@ public abstract class TmfEventProvider extends TmfComponent implements ITmfEvent
         return fExecutor.isTerminated();
     }
 
+    /**
+     * @param type
+     *            the execution type of the requests
+     * @return the number of requests of that type waiting to be executed
+     * @since 1.1
+     */
+    protected int executorQueueDepth(ExecutionType type) {
+        return fExecutor.getQueueDepth(type);
+    }
+
+    /**
+     * @param type
+     *            the execution type of the requests
+     * @return the average time, in nanoseconds, the requests of that type
+     *         waited before being started
+     * @since 1.1
+     */
+    protected long executorAverageWaitTime(ExecutionType type) {
+        return fExecutor.getAverageWaitTime(type);
+    }
+
+    /**
+     * @param type
+     *            the execution type of the requests
+     * @return the longest time, in nanoseconds, a request of that type waited
+     *         before being started
+     * @since 1.1
+     */
+    protected long executorMaxWaitTime(ExecutionType type) {
+        return fExecutor.getMaxWaitTime(type);
+    }
+
     // ------------------------------------------------------------------------
     // Signal handlers
     // ------------------------------------------------------------------------
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.request;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
+
+/**
+ * An event request that receives its events in batches, instead of one at a
+ * time. The per-event cost of dispatching, and of any lock the request takes
+ * to handle its data, is then paid once per batch.
+ * <p>
+ * The events of a batch were checked exactly like the ones passed to
+ * {@link #handleData(ITmfEvent)}: they are of the requested data type, in the
+ * requested range, and within the requested number of events. Once a request
+ * accepts batches, {@link #handleData(ITmfEvent)} is not called anymore.
+ *
+ * @since 1.1
+ */
+public interface ITmfEventBatchRequest extends ITmfEventRequest {
+
+    /**
+     * Get the maximum number of events to pass in one call to
+     * {@link #handleData(ITmfEvent[], int)}.
+     *
+     * @return The batch size. With 1 or less, the events are passed one at a
+     *         time to {@link #handleData(ITmfEvent)}.
+     */
+    int getBatchSize();
+
+    /**
+     * Process a batch of events
+     *
+     * @param events
+     *            The array containing the events to process. It is reused for
+     *            the next batch, so it should not be kept.
+     * @param count
+     *            The number of events of the batch, at the start of the array
+     */
+    void handleData(@NonNull ITmfEvent[] events, int count);
+}
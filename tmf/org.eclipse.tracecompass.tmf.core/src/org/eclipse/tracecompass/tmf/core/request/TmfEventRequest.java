@@ -281,6 +281,21 @@ public abstract class TmfEventRequest implements ITmfEventRequest {
         fNbRead++;
     }
 
+    /**
+     * Process a batch of events. Subclasses implementing
+     * {@link ITmfEventBatchRequest} should call this method, like they would
+     * call {@link #handleData(ITmfEvent)} for a single event.
+     *
+     * @param events
+     *            The array containing the events to process
+     * @param count
+     *            The number of events of the batch, at the start of the array
+     * @since 1.1
+     */
+    public void handleData(ITmfEvent[] events, int count) {
+        fNbRead += count;
+    }
+
     @Override
     public void handleStarted() {
         if (TmfCoreTracer.isRequestTraced()) {
@@ -24,8 +24,11 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.tmf.core.Activator;
 import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialHistoryBackend;
 import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.PartialStateSystem;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap.AbstractTmfMipmapStateProvider;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap.TmfMipmapPyramidStore;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
@@ -34,6 +37,7 @@ import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFact
 import org.eclipse.tracecompass.tmf.core.analysis.TmfAbstractAnalysisModule;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfTraceException;
+import org.eclipse.tracecompass.tmf.core.request.ITmfEventBatchRequest;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.request.TmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.signal.TmfSignalHandler;
@@ -68,6 +72,8 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
     @Nullable private ITmfStateProvider fStateProvider;
     @Nullable private IStateHistoryBackend fHtBackend;
     @Nullable private ITmfEventRequest fRequest;
+    @Nullable private File fMipmapFile;
+    @Nullable private TmfMipmapPyramidStore fPyramidStore;
     @Nullable private TmfTimeRange fTimeRange = null;
 
     private int fNbRead = 0;
@@ -135,6 +141,49 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         return StateSystemBackendType.FULL;
     }
 
+    /**
+     * Whether to create the per-attribute index of the history once it is
+     * built (see {@link StateHistoryBackendFactory#createAttributeIndex}).
+     * Range queries on a few attributes, like the history of one thread, then
+     * only read the nodes of these attributes. This is only used with the
+     * {@link StateSystemBackendType#FULL} back-end.
+     *
+     * @return True to create the index. The default is false, since building
+     *         the index reads the whole history once more.
+     * @since 1.1
+     */
+    protected boolean useAttributeIndex() {
+        return false;
+    }
+
+    /**
+     * Whether to compact the history file when it is opened again (see
+     * {@link StateHistoryBackendFactory#compactHistoryTreeFile}). This is
+     * only done once per file, the first time it is opened after being built,
+     * and is only used with the {@link StateSystemBackendType#FULL} back-end.
+     *
+     * @return True to compact the history file. The default is false, since
+     *         it rewrites the whole file once.
+     * @since 1.1
+     */
+    protected boolean useCompaction() {
+        return false;
+    }
+
+    /**
+     * Whether to write new history files in the compact node format (see
+     * {@link StateHistoryBackendFactory#createHistoryTreeBackendNewFile(String, File, int, long, int, boolean)}).
+     * Existing files are read in the format they were written in. This is
+     * only used with the {@link StateSystemBackendType#FULL} back-end.
+     *
+     * @return True to use the compact node format. The default is false,
+     *         since the entries of each node read have to be decoded.
+     * @since 1.1
+     */
+    protected boolean useCompactNodes() {
+        return false;
+    }
+
     /**
      * Get the supplementary file name where to save this state system. The
      * default is the ID of the analysis followed by the extension.
@@ -156,6 +205,19 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         return fStateSystem;
     }
 
+    /**
+     * Get the mipmap pyramids of the state system, built by its state provider
+     * or loaded with an existing history file. They are passed to the range
+     * queries of
+     * {@link org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap.TmfStateSystemOperations}.
+     *
+     * @return The pyramid store, or null if the state system has no pyramid
+     * @since 1.1
+     */
+    public @Nullable TmfMipmapPyramidStore getMipmapPyramidStore() {
+        return fPyramidStore;
+    }
+
     /**
      * Block the calling thread until the analysis module has been initialized.
      * After this method returns, {@link #getStateSystem()} should not return
@@ -171,6 +233,11 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
     // TmfAbstractAnalysisModule
     // ------------------------------------------------------------------------
 
+    @Override
+    protected boolean isTraceReader() {
+        return true;
+    }
+
     @Override
     protected boolean executeAnalysis(@Nullable final  IProgressMonitor monitor) {
         IProgressMonitor mon = (monitor == null ? new NullProgressMonitor() : monitor);
@@ -252,11 +319,32 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         if (htFile.exists()) {
            /* Load an existing history */
             final int version = provider.getVersion();
+            boolean compacted = false;
+            if (useCompaction()) {
+                try {
+                    compacted = StateHistoryBackendFactory.compactHistoryTreeFile(htFile, version);
+                } catch (IOException e) {
+                    /*
+                     * The file is left as it was. If it cannot be opened
+                     * either, it is built again below.
+                     */
+                }
+            }
             try {
                 IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(
                         id, htFile, version);
                 fHtBackend = backend;
-                fStateSystem = StateSystemFactory.newStateSystem(backend, false);
+                if (compacted && useAttributeIndex()) {
+                    /* The index of the old nodes was deleted */
+                    try {
+                        StateHistoryBackendFactory.createAttributeIndex(backend);
+                    } catch (IOException e) {
+                        Activator.logError("Error creating the attribute index of state system " + getId(), e); //$NON-NLS-1$
+                    }
+                }
+                ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend, false);
+                fStateSystem = ss;
+                loadMipmapPyramids(ss, htFile);
                 fInitialized.countDown();
                 return;
             } catch (IOException e) {
@@ -273,8 +361,12 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
 
         try {
             IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendNewFile(
-                    id, htFile, provider.getVersion(), provider.getStartTime(), QUEUE_SIZE);
+                    id, htFile, provider.getVersion(), provider.getStartTime(), QUEUE_SIZE, useCompactNodes());
             fHtBackend = backend;
+            /* Pyramids of a previous history would not match this one */
+            File mipmapFile = new File(htFile.getPath() + TmfMipmapPyramidStore.FILE_SUFFIX);
+            mipmapFile.delete();
+            fMipmapFile = mipmapFile;
             fStateSystem = StateSystemFactory.newStateSystem(backend);
             provider.assignTargetStateSystem(fStateSystem);
             build(provider);
@@ -299,6 +391,13 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
      */
     private void createPartialHistory(String id, ITmfStateProvider provider, File htPartialFile)
             throws TmfTraceException {
+
+        /* If the target file already exists, do not rebuild it uselessly */
+        if (htPartialFile.exists() && openPartialHistory(id, provider, htPartialFile)) {
+            fInitialized.countDown();
+            return;
+        }
+
         /*
          * The order of initializations is very tricky (but very important!)
          * here. We need to follow this pattern:
@@ -363,6 +462,51 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         build(provider);
     }
 
+    /*
+     * Open an existing partial history file, following the same steps as
+     * createPartialHistory, except that nothing is built. Returns false if the
+     * file could not be opened, in which case it should be built again.
+     */
+    private boolean openPartialHistory(String id, ITmfStateProvider provider, File htPartialFile) {
+        IStateHistoryBackend realBackend;
+        try {
+            realBackend = StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(
+                    id, htPartialFile, provider.getVersion());
+        } catch (IOException e) {
+            return false;
+        }
+
+        ITmfStateProvider partialProvider = provider.getNewInstance();
+        PartialStateSystem pss = new PartialStateSystem();
+        partialProvider.assignTargetStateSystem(pss);
+
+        String partialId = new String(id + ".partial"); //$NON-NLS-1$
+        IStateHistoryBackend partialBackend;
+        try {
+            partialBackend = new PartialHistoryBackend(partialId, partialProvider, pss, realBackend);
+        } catch (IOException e) {
+            /* Probably not a partial history, or an older version of it */
+            partialProvider.dispose();
+            pss.dispose();
+            realBackend.dispose();
+            return false;
+        }
+
+        try {
+            @SuppressWarnings("restriction")
+            org.eclipse.tracecompass.internal.statesystem.core.StateSystem realSS =
+            (org.eclipse.tracecompass.internal.statesystem.core.StateSystem) StateSystemFactory.newStateSystem(partialBackend, false);
+            pss.assignUpstream(realSS);
+
+            fHtBackend = partialBackend;
+            fStateSystem = realSS;
+            return true;
+        } catch (IOException e) {
+            partialBackend.dispose();
+            return false;
+        }
+    }
+
     /*
      * Create a new state system using a null history back-end. This means that
      * no history intervals will be saved anywhere, and as such only
@@ -394,8 +538,43 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         if (provider != null) {
             provider.dispose();
         }
+        File mipmapFile = fMipmapFile;
+        ITmfStateSystem ss = fStateSystem;
         if (deleteFiles && (fHtBackend != null)) {
             fHtBackend.removeFiles();
+        } else if (mipmapFile != null && ss != null) {
+            /* Save the mipmap pyramids next to the completed history */
+            try {
+                TmfMipmapPyramidStore pyramids = fPyramidStore;
+                if (pyramids != null) {
+                    pyramids.save(ss, mipmapFile);
+                }
+            } catch (IOException e) {
+                Activator.logError("Error saving the mipmap pyramids of state system " + getId(), e); //$NON-NLS-1$
+                mipmapFile.delete();
+            }
+            IStateHistoryBackend backend = fHtBackend;
+            if (useAttributeIndex() && backend != null) {
+                try {
+                    StateHistoryBackendFactory.createAttributeIndex(backend);
+                } catch (IOException e) {
+                    Activator.logError("Error creating the attribute index of state system " + getId(), e); //$NON-NLS-1$
+                }
+            }
+        }
+    }
+
+    /*
+     * Load the mipmap pyramids saved next to an existing history file. Range
+     * queries on mipmap attributes fall back to reading the state system if
+     * they cannot be loaded.
+     */
+    private void loadMipmapPyramids(ITmfStateSystem ss, File htFile) {
+        File mipmapFile = new File(htFile.getPath() + TmfMipmapPyramidStore.FILE_SUFFIX);
+        try {
+            fPyramidStore = TmfMipmapPyramidStore.load(ss, mipmapFile);
+        } catch (IOException e) {
+            Activator.logError("Error loading the mipmap pyramids of state system " + getId(), e); //$NON-NLS-1$
         }
     }
 
@@ -416,9 +595,13 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         }
 
         fStateProvider = provider;
+        if (provider instanceof AbstractTmfMipmapStateProvider) {
+            fPyramidStore = ((AbstractTmfMipmapStateProvider) provider).getPyramidStore();
+        }
         synchronized (fRequestSyncObj) {
             startRequest();
         }
+        traceRequestSent();
 
         /*
          * The state system object is now created, we can consider this module
@@ -439,7 +622,27 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         }
     }
 
-    private class StateSystemEventRequest extends TmfEventRequest {
+    /*
+     * Check if an event is from the given trace or, if it is an experiment,
+     * from one of its child traces.
+     */
+    private static boolean isEventOfTrace(ITmfEvent event, ITmfTrace trace) {
+        if (event.getTrace() == trace) {
+            return true;
+        }
+        if (trace instanceof TmfExperiment) {
+            for (ITmfTrace childTrace : ((TmfExperiment) trace).getTraces()) {
+                if (childTrace == event.getTrace()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private class StateSystemEventRequest extends TmfEventRequest implements ITmfEventBatchRequest {
+        private static final int BATCH_SIZE = 1024;
+
         private final ITmfStateProvider sci;
         private final ITmfTrace trace;
 
@@ -459,17 +662,23 @@ public abstract class TmfStateSystemAnalysisModule extends TmfAbstractAnalysisMo
         @Override
         public void handleData(final ITmfEvent event) {
             super.handleData(event);
-            if (event.getTrace() == trace) {
+            if (isEventOfTrace(event, trace)) {
                 sci.processEvent(event);
-            } else if (trace instanceof TmfExperiment) {
-                /*
-                 * If the request is for an experiment, check if the event is
-                 * from one of the child trace
-                 */
-                for (ITmfTrace childTrace : ((TmfExperiment) trace).getTraces()) {
-                    if (childTrace == event.getTrace()) {
-                        sci.processEvent(event);
-                    }
+            }
+        }
+
+        @Override
+        public int getBatchSize() {
+            return BATCH_SIZE;
+        }
+
+        @Override
+        public void handleData(final ITmfEvent[] events, int count) {
+            super.handleData(events, count);
+            for (int i = 0; i < count; i++) {
+                ITmfEvent event = events[i];
+                if (isEventOfTrace(event, trace)) {
+                    sci.processEvent(event);
                 }
             }
         }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2014 Ericsson
+ * Copyright (c) 2013, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -107,6 +107,12 @@ public class TmfStatisticsModule extends TmfAbstractAnalysisModule
         return true;
     }
 
+    @Override
+    protected boolean isTraceReader() {
+        /* The sub-modules read the trace */
+        return true;
+    }
+
     @Override
     protected boolean executeAnalysis(IProgressMonitor monitor) throws TmfAnalysisException {
         ITmfTrace trace = getTrace();
@@ -118,6 +124,8 @@ public class TmfStatisticsModule extends TmfAbstractAnalysisModule
 
         IStatus status1 = totalsModule.schedule();
         IStatus status2 = eventTypesModule.schedule();
+        /* The sub-modules now hold the trace's requests themselves */
+        traceRequestSent();
         if (!(status1.isOK() && status2.isOK())) {
             cancelSubAnalyses();
             fInitialized.countDown();
@@ -287,20 +287,30 @@ public abstract class TmfTrace extends TmfEventProvider implements ITmfTrace, IT
     protected IStatus executeAnalysis() {
         MultiStatus status = new MultiStatus(Activator.PLUGIN_ID, IStatus.OK, null, null);
 
-        Multimap<String, IAnalysisModuleHelper> modules = TmfAnalysisManager.getAnalysisModules();
-        for (IAnalysisModuleHelper helper : modules.values()) {
-            try {
-                IAnalysisModule module = helper.newModule(this);
-                if (module == null) {
-                    continue;
-                }
-                fAnalysisModules.put(module.getId(), module);
-                if (module.isAutomatic()) {
-                    status.add(module.schedule());
+        /*
+         * Hold the background requests until all the automatic analyses are
+         * scheduled, so that the ones reading the trace share a single pass on
+         * it.
+         */
+        notifyPendingBackgroundRequest(true);
+        try {
+            Multimap<String, IAnalysisModuleHelper> modules = TmfAnalysisManager.getAnalysisModules();
+            for (IAnalysisModuleHelper helper : modules.values()) {
+                try {
+                    IAnalysisModule module = helper.newModule(this);
+                    if (module == null) {
+                        continue;
+                    }
+                    fAnalysisModules.put(module.getId(), module);
+                    if (module.isAutomatic()) {
+                        status.add(module.schedule());
+                    }
+                } catch (TmfAnalysisException e) {
+                    status.add(new Status(IStatus.WARNING, Activator.PLUGIN_ID, e.getMessage()));
                 }
-            } catch (TmfAnalysisException e) {
-                status.add(new Status(IStatus.WARNING, Activator.PLUGIN_ID, e.getMessage()));
             }
+        } finally {
+            notifyPendingBackgroundRequest(false);
         }
         return status;
     }
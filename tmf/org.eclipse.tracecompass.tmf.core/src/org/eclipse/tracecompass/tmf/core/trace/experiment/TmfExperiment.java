@@ -22,6 +22,10 @@ import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -36,6 +40,7 @@ import org.eclipse.tracecompass.internal.tmf.core.Activator;
 import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfExperimentContext;
 import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfExperimentLocation;
 import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfLocationArray;
+import org.eclipse.tracecompass.internal.tmf.core.trace.experiment.TmfPrefetchingContext;
 import org.eclipse.tracecompass.tmf.core.TmfCommonConstants;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfTraceException;
@@ -111,6 +116,17 @@ public class TmfExperiment extends TmfTrace implements ITmfPersistentlyIndexable
      */
     private final Lock fSyncLock = new ReentrantLock();
 
+    /**
+     * Number of events read ahead from each trace for requests, 0 if the
+     * traces are read by the request thread
+     */
+    private volatile int fPrefetchSize = 0;
+
+    /**
+     * Threads reading ahead the traces, created when first needed
+     */
+    private @Nullable ThreadPoolExecutor fPrefetchExecutor = null;
+
     // ------------------------------------------------------------------------
     // Construction
     // ------------------------------------------------------------------------
@@ -171,6 +187,12 @@ public class TmfExperiment extends TmfTrace implements ITmfPersistentlyIndexable
             getIndexer().dispose();
         }
 
+        ThreadPoolExecutor executor = fPrefetchExecutor;
+        if (executor != null) {
+            executor.shutdown();
+            fPrefetchExecutor = null;
+        }
+
         super.dispose();
     }
 
@@ -261,6 +283,22 @@ public class TmfExperiment extends TmfTrace implements ITmfPersistentlyIndexable
         return (event != null) ? event.getTimestamp() : null;
     }
 
+    /**
+     * Set the number of events that are read ahead from each trace of the
+     * experiment, for the event requests. When it is greater than 0, each
+     * trace is read by a worker thread into a buffer of that size, so the
+     * traces are decoded in parallel while the request thread merges their
+     * events. The contexts obtained by seeking are not affected.
+     *
+     * @param nbEvents
+     *            The number of events to read ahead per trace, or 0 to read
+     *            the traces from the request thread (the default)
+     * @since 1.1
+     */
+    public void setPrefetchSize(int nbEvents) {
+        fPrefetchSize = Math.max(nbEvents, 0);
+    }
+
     // ------------------------------------------------------------------------
     // Request management
     // ------------------------------------------------------------------------
@@ -273,15 +311,50 @@ public class TmfExperiment extends TmfTrace implements ITmfPersistentlyIndexable
             return null;
         }
 
+        final ITmfContext context;
         if (!TmfTimestamp.BIG_BANG.equals(request.getRange().getStartTime())
                 && request.getIndex() == 0) {
-            final ITmfContext context = seekEvent(request.getRange().getStartTime());
+            context = seekEvent(request.getRange().getStartTime());
             request.setStartIndex((int) context.getRank());
-            return context;
+        } else {
+            context = seekEvent(request.getIndex());
+        }
+
+        startPrefetching(context);
+        return context;
+    }
 
+    /**
+     * Replace the contexts of the traces that still have events by contexts
+     * that read ahead, if prefetching is enabled.
+     */
+    private void startPrefetching(@Nullable ITmfContext context) {
+        int prefetchSize = fPrefetchSize;
+        if (prefetchSize <= 0 || !(context instanceof TmfExperimentContext)) {
+            return;
         }
+        TmfExperimentContext expContext = (TmfExperimentContext) context;
+        Executor executor = getPrefetchExecutor();
+        for (int i = 0; i < expContext.getNbTraces(); i++) {
+            ITmfContext traceContext = expContext.getContext(i);
+            if (traceContext != null && expContext.getEvent(i) != null) {
+                expContext.setContext(i, new TmfPrefetchingContext(
+                        (ITmfTrace) getChild(i), traceContext, prefetchSize, executor));
+            }
+        }
+    }
 
-        return seekEvent(request.getIndex());
+    private synchronized Executor getPrefetchExecutor() {
+        ThreadPoolExecutor executor = fPrefetchExecutor;
+        if (executor == null) {
+            int nbThreads = Runtime.getRuntime().availableProcessors();
+            executor = new ThreadPoolExecutor(nbThreads, nbThreads,
+                    1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            /* Do not keep idle threads around between requests */
+            executor.allowCoreThreadTimeOut(true);
+            fPrefetchExecutor = executor;
+        }
+        return executor;
     }
 
     // ------------------------------------------------------------------------
@@ -391,24 +464,16 @@ public class TmfExperiment extends TmfTrace implements ITmfPersistentlyIndexable
         final int lastTrace = expContext.getLastTrace();
         if (lastTrace != TmfExperimentContext.NO_TRACE) {
             final ITmfContext traceContext = expContext.getContext(lastTrace);
-            expContext.setEvent(lastTrace, ((ITmfTrace) getChild(lastTrace)).getNext(traceContext));
+            if (traceContext instanceof TmfPrefetchingContext) {
+                expContext.setEvent(lastTrace, ((TmfPrefetchingContext) traceContext).getNext());
+            } else {
+                expContext.setEvent(lastTrace, ((ITmfTrace) getChild(lastTrace)).getNext(traceContext));
+            }
             expContext.setLastTrace(TmfExperimentContext.NO_TRACE);
         }
 
-        // Scan the candidate events and identify the "next" trace to read from
-        int trace = TmfExperimentContext.NO_TRACE;
-        ITmfTimestamp timestamp = TmfTimestamp.BIG_CRUNCH;
-        for (int i = 0; i < length; i++) {
-            final ITmfEvent event = expContext.getEvent(i);
-
-            if (event != null) {
-                final ITmfTimestamp otherTS = event.getTimestamp();
-                if (otherTS.compareTo(timestamp) < 0) {
-                    trace = i;
-                    timestamp = otherTS;
-                }
-            }
-        }
+        // Identify the "next" trace to read from
+        int trace = expContext.getNextTrace();
 
         ITmfEvent event = null;
         if (trace != TmfExperimentContext.NO_TRACE) {
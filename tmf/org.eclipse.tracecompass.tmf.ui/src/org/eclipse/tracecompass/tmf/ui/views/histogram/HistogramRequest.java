@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009, 2014 Ericsson
+ * Copyright (c) 2009, 2015 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -19,6 +19,7 @@ package org.eclipse.tracecompass.tmf.ui.views.histogram;
 
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.event.ITmfLostEvent;
+import org.eclipse.tracecompass.tmf.core.request.ITmfEventBatchRequest;
 import org.eclipse.tracecompass.tmf.core.request.ITmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.request.TmfEventRequest;
 import org.eclipse.tracecompass.tmf.core.timestamp.ITmfTimestamp;
@@ -32,7 +33,13 @@ import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimeRange;
  * @author Francois Chouinard
  *         <p>
  */
-public class HistogramRequest extends TmfEventRequest {
+public class HistogramRequest extends TmfEventRequest implements ITmfEventBatchRequest {
+
+    // ------------------------------------------------------------------------
+    // Constants
+    // ------------------------------------------------------------------------
+
+    private static final int BATCH_SIZE = 1024;
 
     // ------------------------------------------------------------------------
     // Attributes
@@ -91,19 +98,54 @@ public class HistogramRequest extends TmfEventRequest {
         super.handleData(event);
         synchronized (fHistogram) {
             if (!isCancelled()) {
-                if (event instanceof ITmfLostEvent) {
-                    ITmfLostEvent lostEvents = (ITmfLostEvent) event;
-                    /* clear the old data when it is a new request */
-                    fHistogram.countLostEvent(lostEvents.getTimeRange(), lostEvents.getNbLostEvents(), fFullRange);
-
-                } else { /* handle lost event */
-                    long timestamp = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
-                    fHistogram.countEvent(getNbRead(), timestamp, event.getTrace());
+                countEvent(event, getNbRead());
+            }
+        }
+    }
+
+    /**
+     * @since 2.0
+     */
+    @Override
+    public int getBatchSize() {
+        return BATCH_SIZE;
+    }
+
+    /**
+     * Handle a batch of events from the trace by updating the histogram data
+     * model. The model is locked once for the whole batch.
+     *
+     * @param events
+     *            the array containing the events from the trace
+     * @param count
+     *            the number of events of the batch
+     * @since 2.0
+     */
+    @Override
+    public void handleData(ITmfEvent[] events, int count) {
+        long nbRead = getNbRead();
+        super.handleData(events, count);
+        synchronized (fHistogram) {
+            if (!isCancelled()) {
+                for (int i = 0; i < count; i++) {
+                    countEvent(events[i], nbRead + i + 1);
                 }
             }
         }
     }
 
+    private void countEvent(ITmfEvent event, long eventCount) {
+        if (event instanceof ITmfLostEvent) {
+            ITmfLostEvent lostEvents = (ITmfLostEvent) event;
+            /* clear the old data when it is a new request */
+            fHistogram.countLostEvent(lostEvents.getTimeRange(), lostEvents.getNbLostEvents(), fFullRange);
+
+        } else { /* handle lost event */
+            long timestamp = event.getTimestamp().normalize(0, ITmfTimestamp.NANOSECOND_SCALE).getValue();
+            fHistogram.countEvent(eventCount, timestamp, event.getTrace());
+        }
+    }
+
     /**
      * Complete the request. It also notifies the histogram model about the
      * completion.